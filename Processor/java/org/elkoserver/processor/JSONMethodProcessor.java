@@ -0,0 +1,435 @@
+package org.elkoserver.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+/**
+ * Annotation processor that generates a decoder class for each class with a
+ * JSON-driven constructor, that is, a constructor annotated with
+ * <tt>org.elkoserver.foundation.json.JSONMethod</tt>.
+ *
+ * The decoder for class <tt>p.C</tt> is named <tt>p.C_JSONDecoder</tt> and
+ * extends <tt>org.elkoserver.foundation.json.GeneratedDecoder</tt>.  Its
+ * decode() method extracts each of the constructor's parameters from the
+ * JSON object descriptor by name and calls the constructor directly, which
+ * <tt>ObjectDecoder</tt> will do in preference to invoking the constructor
+ * via its general purpose reflection-driven machinery.
+ *
+ * Decoders are not generated for classes whose constructor could not be
+ * called from generated code in the same package (private constructors,
+ * abstract classes, inner classes and the like) or whose annotation does not
+ * match the constructor's parameters.  Such classes are simply decoded the
+ * old way, which is also where any errors in their annotations get
+ * reported.
+ */
+@SupportedAnnotationTypes(JSONMethodProcessor.JSON_METHOD)
+public class JSONMethodProcessor extends AbstractProcessor {
+    /** Name of the annotation that marks JSON-driven constructors. */
+    static final String JSON_METHOD =
+        "org.elkoserver.foundation.json.JSONMethod";
+
+    /** Name of the base class of generated decoders. */
+    private static final String GENERATED_DECODER =
+        "org.elkoserver.foundation.json.GeneratedDecoder";
+
+    /** Name of the JSON object class. */
+    private static final String JSON_OBJECT = "org.elkoserver.json.JSONObject";
+
+    /** Suffix appended to a class's name to name its decoder.  This must
+        match GeneratedDecoder.CLASS_NAME_SUFFIX. */
+    private static final String DECODER_SUFFIX = "_JSONDecoder";
+
+    /**
+     * Declare the source version supported, which is whatever the compiler
+     * running this processor supports, since generated code uses nothing
+     * newer than the code it is generated from.
+     *
+     * @return the latest supported source version.
+     */
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    /**
+     * Generate decoders for the classes in a round of compilation.
+     *
+     * @param annotations  The annotation types requested to be processed.
+     * @param roundEnv  Information about the current round.
+     *
+     * @return false, so that other processors may also look at the
+     *    annotations.
+     */
+    public boolean process(Set<? extends TypeElement> annotations,
+                           RoundEnvironment roundEnv)
+    {
+        for (TypeElement annotation : annotations) {
+            /* A class with more than one annotated constructor maps to null,
+               leaving ObjectDecoder to complain about it at runtime. */
+            Map<TypeElement, ExecutableElement> constructors =
+                new LinkedHashMap<TypeElement, ExecutableElement>();
+            for (Element element :
+                     roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() == ElementKind.CONSTRUCTOR) {
+                    TypeElement decodeClass =
+                        (TypeElement) element.getEnclosingElement();
+                    if (constructors.containsKey(decodeClass)) {
+                        constructors.put(decodeClass, null);
+                    } else {
+                        constructors.put(decodeClass,
+                                         (ExecutableElement) element);
+                    }
+                }
+            }
+            for (Map.Entry<TypeElement, ExecutableElement> entry :
+                     constructors.entrySet()) {
+                ExecutableElement constructor = entry.getValue();
+                if (constructor != null) {
+                    generateDecoder(entry.getKey(), constructor, annotation);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Generate the decoder for a class, if it is possible to do so.
+     *
+     * @param decodeClass  The class to be decoded.
+     * @param constructor  Its JSON-driven constructor.
+     * @param annotation  The JSONMethod annotation type.
+     */
+    private void generateDecoder(TypeElement decodeClass,
+                                 ExecutableElement constructor,
+                                 TypeElement annotation)
+    {
+        String paramNames[] = annotationValue(constructor, annotation);
+        if (paramNames == null || !isCallable(decodeClass, constructor)) {
+            return;
+        }
+        List<? extends VariableElement> params = constructor.getParameters();
+        boolean includeRawObject;
+        if (paramNames.length + 1 == params.size() &&
+                isJSONObject(params.get(0).asType())) {
+            includeRawObject = true;
+        } else if (paramNames.length == params.size()) {
+            includeRawObject = false;
+        } else {
+            return;
+        }
+
+        PackageElement pkg =
+            processingEnv.getElementUtils().getPackageOf(decodeClass);
+        for (VariableElement param : params) {
+            if (!isAccessible(param.asType(), pkg)) {
+                return;
+            }
+        }
+
+        String packageName = pkg.getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().
+            getBinaryName(decodeClass).toString();
+        String decoderName =
+            binaryName.substring(binaryName.lastIndexOf('.') + 1) +
+            DECODER_SUFFIX;
+
+        List<String> args = new ArrayList<String>();
+        List<String> names = new ArrayList<String>();
+        if (includeRawObject) {
+            args.add("obj");
+        }
+        for (int i = 0; i < paramNames.length; ++i) {
+            String name = paramNames[i];
+            boolean optional = name.startsWith("?");
+            if (optional) {
+                name = name.substring(1);
+            }
+            names.add(quote(name));
+            VariableElement param = params.get(includeRawObject ? i + 1 : i);
+            args.add(paramExpression(param.asType(), quote(name), optional));
+        }
+
+        StringBuilder out = new StringBuilder();
+        if (packageName.length() > 0) {
+            out.append("package ").append(packageName).append(";\n\n");
+        }
+        out.append("/**\n");
+        out.append(" * JSON decoder for {@link ").
+            append(decodeClass.getQualifiedName()).append("}.\n");
+        out.append(" *\n");
+        out.append(" * Generated by ").append(getClass().getName()).
+            append(" from the class's\n");
+        out.append(" * JSON-driven constructor; do not edit.\n");
+        out.append(" */\n");
+        out.append("@SuppressWarnings({ \"unchecked\", \"rawtypes\" })\n");
+        out.append("public final class ").append(decoderName).
+            append(" extends ").append(GENERATED_DECODER).append(" {\n");
+        out.append("    private static final String theParamNames[] = {");
+        for (int i = 0; i < names.size(); ++i) {
+            out.append(i == 0 ? " " : ", ").append(names.get(i));
+        }
+        out.append(names.isEmpty() ? "};\n\n" : " };\n\n");
+        out.append("    public Object decode(").append(JSON_OBJECT).
+            append(" obj,\n");
+        out.append("        org.elkoserver.foundation.json.TypeResolver " +
+                   "resolver)\n");
+        out.append("        throws Exception\n");
+        out.append("    {\n");
+        out.append("        checkParameters(obj, theParamNames);\n");
+        out.append("        return new ").
+            append(decodeClass.getQualifiedName()).append("(");
+        for (int i = 0; i < args.size(); ++i) {
+            out.append(i == 0 ? "\n            " : ",\n            ");
+            out.append(args.get(i));
+        }
+        out.append(");\n");
+        out.append("    }\n");
+        out.append("}\n");
+
+        String qualifiedDecoderName = packageName.length() > 0
+            ? packageName + "." + decoderName
+            : decoderName;
+        try {
+            Writer writer = processingEnv.getFiler().
+                createSourceFile(qualifiedDecoderName, decodeClass).
+                openWriter();
+            try {
+                writer.write(out.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                "unable to write JSON decoder " + qualifiedDecoderName +
+                ": " + e.getMessage(), decodeClass);
+        }
+    }
+
+    /**
+     * Obtain the parameter names from a constructor's JSONMethod annotation.
+     *
+     * @param constructor  The constructor.
+     * @param annotation  The JSONMethod annotation type.
+     *
+     * @return the annotation's value, or null if it can't be determined.
+     */
+    private String[] annotationValue(ExecutableElement constructor,
+                                     TypeElement annotation)
+    {
+        for (AnnotationMirror mirror : constructor.getAnnotationMirrors()) {
+            if (!mirror.getAnnotationType().asElement().equals(annotation)) {
+                continue;
+            }
+            for (Map.Entry<? extends ExecutableElement,
+                           ? extends AnnotationValue> entry :
+                     processingEnv.getElementUtils().
+                         getElementValuesWithDefaults(mirror).entrySet()) {
+                if (entry.getKey().getSimpleName().contentEquals("value")) {
+                    Object value = entry.getValue().getValue();
+                    if (!(value instanceof List)) {
+                        return null;
+                    }
+                    List<?> values = (List<?>) value;
+                    String result[] = new String[values.size()];
+                    for (int i = 0; i < result.length; ++i) {
+                        Object name =
+                            ((AnnotationValue) values.get(i)).getValue();
+                        if (!(name instanceof String) ||
+                                ((String) name).length() == 0) {
+                            return null;
+                        }
+                        result[i] = (String) name;
+                    }
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Test if a constructor can be called from a generated class in the same
+     * package as the class it constructs.
+     *
+     * @param decodeClass  The class.
+     * @param constructor  Its constructor.
+     *
+     * @return true if generated code can call 'constructor'.
+     */
+    private boolean isCallable(TypeElement decodeClass,
+                               ExecutableElement constructor)
+    {
+        if (constructor.getModifiers().contains(Modifier.PRIVATE) ||
+                !constructor.getTypeParameters().isEmpty() ||
+                decodeClass.getModifiers().contains(Modifier.ABSTRACT) ||
+                decodeClass.getKind() != ElementKind.CLASS) {
+            return false;
+        }
+        Element scan = decodeClass;
+        while (!(scan instanceof PackageElement)) {
+            if (!(scan instanceof TypeElement) ||
+                    scan.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+            TypeElement type = (TypeElement) scan;
+            if (type.getNestingKind() != NestingKind.TOP_LEVEL &&
+                    (type.getNestingKind() != NestingKind.MEMBER ||
+                     !type.getModifiers().contains(Modifier.STATIC))) {
+                return false;
+            }
+            scan = scan.getEnclosingElement();
+        }
+        return true;
+    }
+
+    /**
+     * Test if a type can be named by code in a given package.
+     *
+     * @param type  The type to test.
+     * @param pkg  The package the code is in.
+     *
+     * @return true if 'type' can be referred to from 'pkg'.
+     */
+    private boolean isAccessible(TypeMirror type, PackageElement pkg) {
+        TypeMirror erased = processingEnv.getTypeUtils().erasure(type);
+        while (erased.getKind() == TypeKind.ARRAY) {
+            erased = ((ArrayType) erased).getComponentType();
+        }
+        if (erased.getKind() != TypeKind.DECLARED) {
+            return true;
+        }
+        Element scan = ((DeclaredType) erased).asElement();
+        while (scan instanceof TypeElement) {
+            Set<Modifier> modifiers = scan.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE)) {
+                return false;
+            } else if (!modifiers.contains(Modifier.PUBLIC) &&
+                       !processingEnv.getElementUtils().getPackageOf(scan).
+                           equals(pkg)) {
+                return false;
+            }
+            scan = scan.getEnclosingElement();
+        }
+        return true;
+    }
+
+    /**
+     * Test if a type is the JSON object class.
+     *
+     * @param type  The type to test.
+     *
+     * @return true if 'type' is org.elkoserver.json.JSONObject.
+     */
+    private boolean isJSONObject(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED &&
+            processingEnv.getTypeUtils().erasure(type).toString().
+                equals(JSON_OBJECT);
+    }
+
+    /**
+     * Produce the expression that extracts a constructor parameter from the
+     * JSON object being decoded.
+     *
+     * @param type  The declared type of the parameter.
+     * @param name  The parameter's JSON name, as a quoted string literal.
+     * @param optional  True if the parameter was declared optional.
+     *
+     * @return a Java expression for the parameter's value.
+     */
+    private String paramExpression(TypeMirror type, String name,
+                                   boolean optional)
+    {
+        switch (type.getKind()) {
+            case LONG:
+                return "longParam(obj, " + name + ")";
+            case INT:
+                return "intParam(obj, " + name + ")";
+            case DOUBLE:
+                return "doubleParam(obj, " + name + ")";
+            case BOOLEAN:
+                return "booleanParam(obj, " + name + ")";
+            case SHORT:
+                return unboxedParam("Short", "short", name);
+            case BYTE:
+                return unboxedParam("Byte", "byte", name);
+            case FLOAT:
+                return unboxedParam("Float", "float", name);
+            case CHAR:
+                return unboxedParam("Character", "char", name);
+            default:
+                String erased =
+                    processingEnv.getTypeUtils().erasure(type).toString();
+                if (erased.equals("java.lang.String")) {
+                    return "stringParam(obj, " + name + ", " + optional + ")";
+                } else {
+                    return "(" + erased + ") param(obj, " + name + ", " +
+                        optional + ", " + erased + ".class, resolver)";
+                }
+        }
+    }
+
+    /**
+     * Produce the expression that extracts a primitive parameter that has no
+     * specialized extraction method.  Such parameters are always required,
+     * since there is no value to pass for them if they are absent.
+     *
+     * @param wrapper  The name of the primitive type's wrapper class.
+     * @param primitive  The name of the primitive type.
+     * @param name  The parameter's JSON name, as a quoted string literal.
+     *
+     * @return a Java expression for the parameter's value.
+     */
+    private static String unboxedParam(String wrapper, String primitive,
+                                       String name)
+    {
+        return "((" + wrapper + ") param(obj, " + name + ", false, " +
+            primitive + ".class, resolver))." + primitive + "Value()";
+    }
+
+    /**
+     * Quote a string as a Java string literal.
+     *
+     * @param str  The string.
+     *
+     * @return a Java string literal whose value is 'str'.
+     */
+    private static String quote(String str) {
+        StringBuilder result = new StringBuilder(str.length() + 2);
+        result.append('"');
+        for (int i = 0; i < str.length(); ++i) {
+            char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < ' ' || c > '~') {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        result.append('"');
+        return result.toString();
+    }
+}
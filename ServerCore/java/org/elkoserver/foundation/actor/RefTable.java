@@ -1,11 +1,11 @@
 package org.elkoserver.foundation.actor;
 
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.elkoserver.foundation.json.Deliverer;
 import org.elkoserver.foundation.json.DispatchTarget;
 import org.elkoserver.foundation.json.MessageDispatcher;
@@ -31,6 +31,9 @@ import org.elkoserver.json.Referenceable;
  * convention at all, but various classes provide convenience methods that are
  * helpful if you do).  The specific forms of 'type' and 'ref' themselves are
  * unconstrained (other than the use of a hyphen as separator).
+ *
+ * <p>The table may be consulted and modified from any thread.  Lookups take
+ * no locks.
  */
 public class RefTable implements Iterable<DispatchTarget> {
     /** Mapped Objects, indexed by reference. */
@@ -52,8 +55,9 @@ public class RefTable implements Iterable<DispatchTarget> {
      *    object descriptors.
      */
     public RefTable(TypeResolver resolver) {
-        myObjects = new HashMap<String, DispatchTarget>();
-        myObjectGroups = new HashMap<String, List<DispatchTarget>>();
+        myObjects = new ConcurrentHashMap<String, DispatchTarget>();
+        myObjectGroups =
+            new ConcurrentHashMap<String, List<DispatchTarget>>();
         myDispatcher = new MessageDispatcher(resolver);
         addRef(new ErrorHandler());
     }
@@ -100,12 +104,14 @@ public class RefTable implements Iterable<DispatchTarget> {
         myObjects.put(ref, target);
         myDispatcher.addClass(target.getClass());
         String groupRef = rootRef(ref);
-        List<DispatchTarget> group = myObjectGroups.get(groupRef);
-        if (group == null) {
-            group = new LinkedList<DispatchTarget>();
-            myObjectGroups.put(groupRef, group);
+        synchronized (myObjectGroups) {
+            List<DispatchTarget> group = myObjectGroups.get(groupRef);
+            if (group == null) {
+                group = new CopyOnWriteArrayList<DispatchTarget>();
+                myObjectGroups.put(groupRef, group);
+            }
+            group.add(target);
         }
-        group.add(target);
     }
 
     /**
@@ -219,15 +225,16 @@ public class RefTable implements Iterable<DispatchTarget> {
      * @param ref  Reference string for the object to be removed.
      */
     public void remove(String ref) {
-        Referenceable object = (Referenceable) myObjects.get(ref);
+        Referenceable object = (Referenceable) myObjects.remove(ref);
         if (object != null) {
-            myObjects.remove(ref);
             String groupRef = rootRef(ref);
-            List<DispatchTarget> group = myObjectGroups.get(groupRef);
-            if (group != null) {
-                group.remove(object);
-                if (group.isEmpty()) {
-                    myObjectGroups.remove(groupRef);
+            synchronized (myObjectGroups) {
+                List<DispatchTarget> group = myObjectGroups.get(groupRef);
+                if (group != null) {
+                    group.remove(object);
+                    if (group.isEmpty()) {
+                        myObjectGroups.remove(groupRef);
+                    }
                 }
             }
         }
@@ -0,0 +1,96 @@
+package org.elkoserver.foundation.json;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A table of information computed, via reflection, about Java classes, that
+ * may be consulted and added to from any thread.
+ *
+ * The information for each class is computed only once, by whichever thread
+ * first asks for it; any other threads that ask for it while it is being
+ * computed wait for the result rather than computing it again.  If the
+ * computation fails, the failure is reported to every thread that was
+ * waiting on it, and the computation will be retried the next time it is
+ * asked for, so that errors are reported just as they would be if the
+ * information were not cached at all.  Lookups of information that has
+ * already been computed take no locks.
+ *
+ * @param <V>  The type of information kept about each class.
+ */
+abstract class ClassCache<V> {
+    /** The computations of the information about each class, complete or in
+        progress. */
+    private ConcurrentMap<Class<?>, FutureTask<V>> myEntries;
+
+    /**
+     * Constructor.
+     */
+    ClassCache() {
+        myEntries = new ConcurrentHashMap<Class<?>, FutureTask<V>>();
+    }
+
+    /**
+     * Compute the information about a class.  This is called at most once
+     * per class, unless it fails.
+     *
+     * @param type  The class of interest.
+     *
+     * @return the information about 'type'.
+     *
+     * @throws JSONSetupError if the class is unsuitable.
+     */
+    abstract V build(Class<?> type);
+
+    /**
+     * Obtain the information about a class, computing it if necessary.
+     *
+     * @param type  The class of interest.
+     *
+     * @return the information about 'type'.
+     *
+     * @throws JSONSetupError if the class is unsuitable.
+     */
+    V get(final Class<?> type) {
+        FutureTask<V> task = myEntries.get(type);
+        if (task == null) {
+            FutureTask<V> newTask = new FutureTask<V>(new Callable<V>() {
+                public V call() {
+                    return build(type);
+                }
+            });
+            task = myEntries.putIfAbsent(type, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            }
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            myEntries.remove(type, task);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new JSONSetupError(cause.toString());
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
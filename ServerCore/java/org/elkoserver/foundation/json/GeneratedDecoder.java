@@ -0,0 +1,302 @@
+package org.elkoserver.foundation.json;
+
+import java.util.Map;
+import org.elkoserver.json.JSONObject;
+import org.elkoserver.util.trace.Trace;
+
+/**
+ * Base class for the decoders generated at compile time, by the annotation
+ * processor in the Processor component, for classes that have a JSON-driven
+ * constructor.
+ *
+ * A generated decoder calls the constructor directly, extracting each of its
+ * parameters from the JSON object descriptor by name, rather than going
+ * through the general purpose machinery of {@link ObjectDecoder}, which
+ * walks the descriptor's properties, maps each to a parameter position via a
+ * table, and calls the constructor with an array of parameters.  The
+ * decoder for class <tt>p.C</tt> is the class <tt>p.C_JSONDecoder</tt>;
+ * {@link ObjectDecoder} looks for it the first time it needs to decode an
+ * instance of <tt>C</tt> and uses it if it is there.  Classes for which no
+ * decoder was generated (because the processor was not run, or because the
+ * constructor is not accessible from generated code) are decoded as before.
+ *
+ * The parameter extraction methods here apply exactly the same conversions
+ * and checks that {@link ObjectDecoder} does, so that the two ways of
+ * decoding an object are indistinguishable except in speed.
+ */
+public abstract class GeneratedDecoder {
+    /** Suffix appended to a class's name to form the name of its generated
+        decoder class. */
+    public static final String CLASS_NAME_SUFFIX = "_JSONDecoder";
+
+    /**
+     * Invoke the JSON-driven constructor of this decoder's class on a JSON
+     * object descriptor.
+     *
+     * @param obj  The JSON object descriptor to decode.
+     * @param resolver  An object mapping JSON type tag strings to classes.
+     *
+     * @return the object constructed.
+     *
+     * @throws JSONInvocationException if a parameter is missing or of the
+     *    wrong type.
+     * @throws Exception if the constructor itself throws one.
+     */
+    public abstract Object decode(JSONObject obj, TypeResolver resolver)
+        throws Exception;
+
+    /**
+     * Obtain the generated decoder for a class, if there is one.
+     *
+     * @param decodeClass  The class whose generated decoder is sought.
+     *
+     * @return a generated decoder for 'decodeClass', or null if it doesn't
+     *    have one.
+     */
+    static GeneratedDecoder forClass(Class<?> decodeClass) {
+        String decoderName = decodeClass.getName() + CLASS_NAME_SUFFIX;
+        try {
+            Class<?> decoderClass =
+                Class.forName(decoderName, true, decodeClass.getClassLoader());
+            if (GeneratedDecoder.class.isAssignableFrom(decoderClass)) {
+                return (GeneratedDecoder) decoderClass.newInstance();
+            }
+            Trace.comm.errorm(decoderName + " is not a generated decoder");
+        } catch (ClassNotFoundException e) {
+            /* No decoder was generated, which is fine. */
+        } catch (Exception e) {
+            Trace.comm.errorm("unable to use generated decoder " +
+                              decoderName + ": " + e);
+        } catch (LinkageError e) {
+            Trace.comm.errorm("unable to use generated decoder " +
+                              decoderName + ": " + e);
+        }
+        return null;
+    }
+
+    /**
+     * Log any properties of a JSON object descriptor that don't correspond
+     * to constructor parameters, as {@link ObjectDecoder} does.
+     *
+     * @param obj  The JSON object descriptor being decoded.
+     * @param paramNames  The JSON names of the constructor's parameters.
+     */
+    protected static void checkParameters(JSONObject obj,
+                                          String paramNames[])
+    {
+        if (Trace.comm.warning) {
+            for (Map.Entry<String, Object> entry : obj.properties()) {
+                String name = entry.getKey();
+                boolean known = false;
+                for (String paramName : paramNames) {
+                    if (paramName.equals(name)) {
+                        known = true;
+                        break;
+                    }
+                }
+                if (!known) {
+                    Invoker.noteUnknownParameter(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Extract a parameter of any type.
+     *
+     * @param obj  The JSON object descriptor being decoded.
+     * @param name  The name of the parameter.
+     * @param optional  True if the parameter was declared optional (with a
+     *    '?' in front of its name), in which case null is returned if it is
+     *    absent.
+     * @param paramType  The declared type of the parameter.  For primitive
+     *    types, the value returned is an instance of the corresponding
+     *    wrapper class.
+     * @param resolver  An object mapping JSON type tag strings to classes.
+     *
+     * @return the value to pass for the parameter.
+     *
+     * @throws JSONInvocationException if the parameter is missing but
+     *    required or is of the wrong type.
+     */
+    protected static Object param(JSONObject obj, String name,
+                                  boolean optional, Class<?> paramType,
+                                  TypeResolver resolver)
+        throws JSONInvocationException
+    {
+        Object value = obj.getProperty(name);
+        if (value == null) {
+            if (optional) {
+                return null;
+            } else if (Invoker.isOptionalParamType(paramType)) {
+                return OptionalParameter.missingValue(paramType);
+            } else {
+                throw missing(name);
+            }
+        }
+        Object param = Invoker.packParam(Invoker.paramKind(paramType),
+                                         paramType, value, resolver);
+        if (param == null) {
+            throw wrongType(name, paramType);
+        }
+        return param;
+    }
+
+    /**
+     * Extract a String parameter.
+     *
+     * @param obj  The JSON object descriptor being decoded.
+     * @param name  The name of the parameter.
+     * @param optional  True if null is to be returned if the parameter is
+     *    absent.
+     *
+     * @return the value to pass for the parameter.
+     *
+     * @throws JSONInvocationException if the parameter is missing but
+     *    required or is not a string.
+     */
+    protected static String stringParam(JSONObject obj, String name,
+                                        boolean optional)
+        throws JSONInvocationException
+    {
+        Object value = obj.getProperty(name);
+        if (value instanceof String) {
+            return (String) value;
+        } else if (value != null) {
+            throw wrongType(name, String.class);
+        } else if (optional) {
+            return null;
+        } else {
+            throw missing(name);
+        }
+    }
+
+    /**
+     * Extract a required numeric parameter.
+     *
+     * @param obj  The JSON object descriptor being decoded.
+     * @param name  The name of the parameter.
+     * @param paramType  The declared type of the parameter, for the error
+     *    message.
+     *
+     * @return the value of the parameter, as a Long or Double.
+     *
+     * @throws JSONInvocationException if the parameter is missing or is not a
+     *    number.
+     */
+    private static Number numberParam(JSONObject obj, String name,
+                                      Class<?> paramType)
+        throws JSONInvocationException
+    {
+        Object value = obj.getProperty(name);
+        if (value instanceof Long || value instanceof Double) {
+            return (Number) value;
+        } else if (value != null) {
+            throw wrongType(name, paramType);
+        } else {
+            throw missing(name);
+        }
+    }
+
+    /**
+     * Extract a required long parameter.
+     *
+     * @param obj  The JSON object descriptor being decoded.
+     * @param name  The name of the parameter.
+     *
+     * @return the value to pass for the parameter.
+     *
+     * @throws JSONInvocationException if the parameter is missing or is not a
+     *    number.
+     */
+    protected static long longParam(JSONObject obj, String name)
+        throws JSONInvocationException
+    {
+        return numberParam(obj, name, long.class).longValue();
+    }
+
+    /**
+     * Extract a required int parameter.
+     *
+     * @param obj  The JSON object descriptor being decoded.
+     * @param name  The name of the parameter.
+     *
+     * @return the value to pass for the parameter.
+     *
+     * @throws JSONInvocationException if the parameter is missing or is not a
+     *    number.
+     */
+    protected static int intParam(JSONObject obj, String name)
+        throws JSONInvocationException
+    {
+        return numberParam(obj, name, int.class).intValue();
+    }
+
+    /**
+     * Extract a required double parameter.
+     *
+     * @param obj  The JSON object descriptor being decoded.
+     * @param name  The name of the parameter.
+     *
+     * @return the value to pass for the parameter.
+     *
+     * @throws JSONInvocationException if the parameter is missing or is not a
+     *    number.
+     */
+    protected static double doubleParam(JSONObject obj, String name)
+        throws JSONInvocationException
+    {
+        return numberParam(obj, name, double.class).doubleValue();
+    }
+
+    /**
+     * Extract a required boolean parameter.
+     *
+     * @param obj  The JSON object descriptor being decoded.
+     * @param name  The name of the parameter.
+     *
+     * @return the value to pass for the parameter.
+     *
+     * @throws JSONInvocationException if the parameter is missing or is not
+     *    boolean.
+     */
+    protected static boolean booleanParam(JSONObject obj, String name)
+        throws JSONInvocationException
+    {
+        Object value = obj.getProperty(name);
+        if (value instanceof Boolean) {
+            return ((Boolean) value).booleanValue();
+        } else if (value != null) {
+            throw wrongType(name, boolean.class);
+        } else {
+            throw missing(name);
+        }
+    }
+
+    /**
+     * Produce the exception for a missing parameter.
+     *
+     * @param name  The name of the parameter.
+     *
+     * @return a suitable exception to throw.
+     */
+    private static JSONInvocationException missing(String name) {
+        return new JSONInvocationException("expected parameter '" + name +
+                                           "' missing");
+    }
+
+    /**
+     * Produce the exception for a parameter of the wrong type.
+     *
+     * @param name  The name of the parameter.
+     * @param paramType  The declared type of the parameter.
+     *
+     * @return a suitable exception to throw.
+     */
+    private static JSONInvocationException wrongType(String name,
+                                                     Class<?> paramType)
+    {
+        return new JSONInvocationException("parameter '" + name +
+                                           "' should be type " + paramType);
+    }
+}
@@ -14,6 +14,10 @@ import org.elkoserver.util.trace.Trace;
 /**
  * Precomputed Java reflection information needed invoke a method or
  * constructor via a JSON message or JSON-encoded object descriptor.
+ *
+ * Each parameter position has a precomputed conversion kind, so that turning
+ * a JSON value into the Java value the method wants is a switch rather than a
+ * walk through a series of class comparisons.
  */
 abstract class Invoker {
     /** Mapping of JSON parameter names to Java parameter positions */
@@ -22,6 +26,27 @@ abstract class Invoker {
     /** Parameter types, by position. */
     private Class myParamTypes[];
 
+    /** Parameter conversion kinds, by position. */
+    private int myParamKinds[];
+
+    /* The parameter conversion kinds */
+    private static final int KIND_OTHER       =  0; /* Exact class match */
+    private static final int KIND_STRING      =  1; /* String */
+    private static final int KIND_OPT_STRING  =  2; /* OptString */
+    private static final int KIND_LONG        =  3; /* long or Long */
+    private static final int KIND_INT         =  4; /* int or Integer */
+    private static final int KIND_OPT_INT     =  5; /* OptInteger */
+    private static final int KIND_BYTE        =  6; /* byte or Byte */
+    private static final int KIND_SHORT       =  7; /* short or Short */
+    private static final int KIND_DOUBLE      =  8; /* double or Double */
+    private static final int KIND_FLOAT       =  9; /* float or Float */
+    private static final int KIND_OPT_DOUBLE  = 10; /* OptDouble */
+    private static final int KIND_BOOLEAN     = 11; /* boolean or Boolean */
+    private static final int KIND_OPT_BOOLEAN = 12; /* OptBoolean */
+    private static final int KIND_JSON_ARRAY  = 13; /* JSONArray */
+    private static final int KIND_ARRAY       = 14; /* Any Java array */
+    private static final int KIND_JSON_OBJECT = 15; /* JSONObject */
+
     /** Parameter names, by position. */
     private String myParamNames[];
 
@@ -47,6 +72,10 @@ abstract class Invoker {
     {
         myParamTypes = paramTypes;
         myParamNames = paramNames;
+        myParamKinds = new int[paramTypes.length];
+        for (int i = 0; i < paramTypes.length; ++i) {
+            myParamKinds[i] = paramKind(paramTypes[i]);
+        }
 
         Class targetClass = method.getDeclaringClass();
         ((AccessibleObject) method).setAccessible(true);
@@ -65,6 +94,21 @@ abstract class Invoker {
         }
     }
 
+    /**
+     * Copy constructor.  The new invoker shares the original's precomputed
+     * information, none of which is ever modified once it has been
+     * constructed.
+     *
+     * @param original  The invoker to copy.
+     */
+    Invoker(Invoker original) {
+        myParamMap = original.myParamMap;
+        myParamTypes = original.myParamTypes;
+        myParamKinds = original.myParamKinds;
+        myParamNames = original.myParamNames;
+        myParamOptFlags = original.myParamOptFlags;
+    }
+
     /**
      * Subclass-provided method that knows how to actually call the method.
      *
@@ -110,18 +154,14 @@ abstract class Invoker {
             String paramName = entry.getKey();
             Integer paramNum = (Integer) myParamMap.get(paramName);
             if (paramNum == null) {
-                if (!paramName.equals("op") && !paramName.equals("to") &&
-                        !paramName.equals("type") &&
-                        !paramName.equals("ref") && !paramName.equals("_id")) {
-                    Trace.comm.warningm("ignored unknown parameter '" +
-                                        paramName + "'");
-                }
+                noteUnknownParameter(paramName);
                 continue;
             }
             Class paramType = myParamTypes[paramNum];
             Object value = entry.getValue();
             if (value != null) {
-                Object param = packParam(paramType, value, resolver);
+                Object param = packParam(myParamKinds[paramNum], paramType,
+                                         value, resolver);
                 if (param == null) {
                     throw new JSONInvocationException(
                         "parameter '" + paramName + "' should be type " +
@@ -158,6 +198,104 @@ abstract class Invoker {
         }
     }
 
+    /**
+     * Log the presence of a property that doesn't correspond to any parameter,
+     * unless it is one of the standard properties of messages and object
+     * descriptors.
+     *
+     * @param paramName  The name of the property.
+     */
+    static void noteUnknownParameter(String paramName) {
+        if (!isStandardProperty(paramName)) {
+            Trace.comm.warningm("ignored unknown parameter '" +
+                                paramName + "'");
+        }
+    }
+
+    /**
+     * Test if a property is one of the standard properties of messages and
+     * object descriptors, which may be present without corresponding to any
+     * parameter.
+     *
+     * @param name  The name of the property.
+     *
+     * @return true if 'name' is the name of a standard property.
+     */
+    static boolean isStandardProperty(String name) {
+        return name.equals("op") || name.equals("to") ||
+            name.equals("type") || name.equals("ref") || name.equals("_id");
+    }
+
+    /**
+     * Get the number of JSON parameters this invoker takes.
+     *
+     * @return the number of parameters that are given values from JSON
+     *    properties.
+     */
+    int jsonParamCount() {
+        return myParamNames.length;
+    }
+
+    /**
+     * Get the JSON name of one of this invoker's parameters.
+     *
+     * @param index  Which JSON parameter, counting from 0.
+     *
+     * @return the name of the property that supplies the parameter's value.
+     */
+    String jsonParamName(int index) {
+        String name = myParamNames[index];
+        return myParamOptFlags[index] ? name.substring(1) : name;
+    }
+
+    /**
+     * Test if one of this invoker's JSON parameters must be given a value.
+     *
+     * @param index  Which JSON parameter, counting from 0.
+     *
+     * @return true if invocation fails when the parameter is missing.
+     */
+    boolean isJSONParamRequired(int index) {
+        int paramNum = index + myParamTypes.length - myParamNames.length;
+        return !myParamOptFlags[index] &&
+            !isOptionalParamType(myParamTypes[paramNum]);
+    }
+
+    /**
+     * Determine what kinds of JSON value are acceptable for one of this
+     * invoker's JSON parameters.
+     *
+     * @param index  Which JSON parameter, counting from 0.
+     *
+     * @return a combination of the {@link MessageSchema} value kind flags for
+     *    the values that can be converted to the parameter's type.
+     */
+    int jsonParamValues(int index) {
+        int paramNum = index + myParamTypes.length - myParamNames.length;
+        switch (myParamKinds[paramNum]) {
+            case KIND_STRING:
+            case KIND_OPT_STRING:
+                return MessageSchema.VALUE_STRING;
+            case KIND_LONG:
+            case KIND_INT:
+            case KIND_OPT_INT:
+            case KIND_BYTE:
+            case KIND_SHORT:
+            case KIND_DOUBLE:
+            case KIND_FLOAT:
+            case KIND_OPT_DOUBLE:
+                return MessageSchema.VALUE_NUMBER;
+            case KIND_BOOLEAN:
+            case KIND_OPT_BOOLEAN:
+                return MessageSchema.VALUE_BOOLEAN;
+            case KIND_JSON_ARRAY:
+            case KIND_ARRAY:
+                return MessageSchema.VALUE_ARRAY;
+            default:
+                return MessageSchema.VALUE_OBJECT;
+        }
+    }
+
     /**
      * Check if a class is an optional parameter type.
      *
@@ -166,19 +304,64 @@ abstract class Invoker {
      * @return true if paramClass is one of the supported optional parameter
      *    classes.
      */
-    private boolean isOptionalParamType(Class paramClass) {
+    static boolean isOptionalParamType(Class<?> paramClass) {
         return OptionalParameter.class.isAssignableFrom(paramClass) ||
             paramClass.isArray();
     }
 
+    /**
+     * Determine how JSON values are to be converted for a parameter of a
+     * given type.
+     *
+     * @param paramType  The type that the method is expecting.
+     *
+     * @return the conversion kind for 'paramType'.
+     */
+    static int paramKind(Class<?> paramType) {
+        if (paramType == String.class) {
+            return KIND_STRING;
+        } else if (paramType == OptString.class) {
+            return KIND_OPT_STRING;
+        } else if (paramType == long.class || paramType == Long.class) {
+            return KIND_LONG;
+        } else if (paramType == int.class || paramType == Integer.class) {
+            return KIND_INT;
+        } else if (paramType == OptInteger.class) {
+            return KIND_OPT_INT;
+        } else if (paramType == byte.class || paramType == Byte.class) {
+            return KIND_BYTE;
+        } else if (paramType == short.class || paramType == Short.class) {
+            return KIND_SHORT;
+        } else if (paramType == double.class || paramType == Double.class) {
+            return KIND_DOUBLE;
+        } else if (paramType == float.class || paramType == Float.class) {
+            return KIND_FLOAT;
+        } else if (paramType == OptDouble.class) {
+            return KIND_OPT_DOUBLE;
+        } else if (paramType == boolean.class || paramType == Boolean.class) {
+            return KIND_BOOLEAN;
+        } else if (paramType == OptBoolean.class) {
+            return KIND_OPT_BOOLEAN;
+        } else if (paramType == JSONArray.class) {
+            return KIND_JSON_ARRAY;
+        } else if (paramType.isArray()) {
+            return KIND_ARRAY;
+        } else if (paramType == JSONObject.class) {
+            return KIND_JSON_OBJECT;
+        } else {
+            return KIND_OTHER;
+        }
+    }
+
     /**
      * Produce the object that should actually be passed to the method or
-     * constructor for a particular parameter when invoked through the Java
-     * reflection API.  This may be a different object than appeared in the
-     * corresponding name parameter from the decoded JSON message or object
-     * descriptor, due to the numeric type coercion, JSON object literal
-     * interpretation, JSON array interpretation, and optional parameter types.
+     * constructor for a particular parameter.  This may be a different object
+     * than appeared in the corresponding name parameter from the decoded JSON
+     * message or object descriptor, due to the numeric type coercion, JSON
+     * object literal interpretation, JSON array interpretation, and optional
+     * parameter types.
      *
+     * @param kind  The conversion kind for 'paramType'.
      * @param paramType  The type that the method is expecting.
      * @param value  The object value from the JSON message.
      * @param resolver  Type resolver for object parameters.
@@ -186,77 +369,85 @@ abstract class Invoker {
      * @return the object to pass to the method for 'value', or null if the
      *    value is of the wrong type.
      */
-    private Object packParam(Class paramType, Object value,
-                             TypeResolver resolver) {
+    static Object packParam(int kind, Class<?> paramType, Object value,
+                            TypeResolver resolver) {
         Class valueType = value.getClass();
         if (valueType == String.class) {
-            if (paramType == String.class) {
-                return value;
-            } else if (paramType == OptString.class) {
-                return new OptString((String) value);
-            } else {
-                return null;
+            switch (kind) {
+                case KIND_STRING:
+                    return value;
+                case KIND_OPT_STRING:
+                    return new OptString((String) value);
+                default:
+                    return null;
             }
         } else if (valueType == Long.class) {
-            if (paramType == long.class || paramType == Long.class) {
-                return value;
-            } else if (paramType == int.class || paramType == Integer.class) {
-                return new Integer(((Long) value).intValue());
-            } else if (paramType == OptInteger.class) {
-                return new OptInteger(((Long) value).intValue());
-            } else if (paramType == byte.class || paramType == Byte.class) {
-                return new Byte(((Long) value).byteValue());
-            } else if (paramType == short.class || paramType == Short.class) {
-                return new Short(((Long) value).shortValue());
-            } else if (paramType == double.class ||
-                       paramType == Double.class) {
-                return new Double(((Long) value).doubleValue());
-            } else if (paramType == float.class || paramType == Float.class) {
-                return new Float(((Long) value).floatValue());
-            } else if (paramType == OptDouble.class) {
-                return new OptDouble(((Long) value).doubleValue());
-            } else {
-                return null;
+            long longValue = ((Long) value).longValue();
+            switch (kind) {
+                case KIND_LONG:
+                    return value;
+                case KIND_INT:
+                    return Integer.valueOf((int) longValue);
+                case KIND_OPT_INT:
+                    return new OptInteger((int) longValue);
+                case KIND_BYTE:
+                    return Byte.valueOf((byte) longValue);
+                case KIND_SHORT:
+                    return Short.valueOf((short) longValue);
+                case KIND_DOUBLE:
+                    return Double.valueOf((double) longValue);
+                case KIND_FLOAT:
+                    return Float.valueOf((float) longValue);
+                case KIND_OPT_DOUBLE:
+                    return new OptDouble((double) longValue);
+                default:
+                    return null;
             }
         } else if (valueType == Double.class) {
-            if (paramType == double.class || paramType == Double.class) {
-                return value;
-            } else if (paramType == float.class || paramType == Float.class) {
-                return new Float(((Double) value).doubleValue());
-            } else if (paramType == OptDouble.class) {
-                return new OptDouble(((Double) value).doubleValue());
-            } else if (paramType == long.class || paramType == Long.class) {
-                return new Long(((Double) value).longValue());
-            } else if (paramType == int.class || paramType == Integer.class) {
-                return new Integer(((Double) value).intValue());
-            } else if (paramType == OptInteger.class) {
-                return new OptInteger(((Double) value).intValue());
-            } else if (paramType == byte.class || paramType == Byte.class) {
-                return new Byte(((Double) value).byteValue());
-            } else if (paramType == short.class || paramType == Short.class) {
-                return new Short(((Double) value).shortValue());
-            } else {
-                return null;
+            double doubleValue = ((Double) value).doubleValue();
+            switch (kind) {
+                case KIND_DOUBLE:
+                    return value;
+                case KIND_FLOAT:
+                    return Float.valueOf((float) doubleValue);
+                case KIND_OPT_DOUBLE:
+                    return new OptDouble(doubleValue);
+                case KIND_LONG:
+                    return Long.valueOf((long) doubleValue);
+                case KIND_INT:
+                    return Integer.valueOf((int) doubleValue);
+                case KIND_OPT_INT:
+                    return new OptInteger((int) doubleValue);
+                case KIND_BYTE:
+                    return Byte.valueOf((byte) (int) doubleValue);
+                case KIND_SHORT:
+                    return Short.valueOf((short) (int) doubleValue);
+                default:
+                    return null;
             }
         } else if (valueType == Boolean.class) {
-            if (paramType == boolean.class || paramType == Boolean.class) {
-                return value;
-            } else if (paramType == OptBoolean.class) {
-                return new OptBoolean(((Boolean) value).booleanValue());
-            } else {
-                return null;
+            switch (kind) {
+                case KIND_BOOLEAN:
+                    return value;
+                case KIND_OPT_BOOLEAN:
+                    return new OptBoolean(((Boolean) value).booleanValue());
+                default:
+                    return null;
             }
         } else if (valueType == JSONArray.class) {
-            JSONArray arrayValue = (JSONArray) value;
-            if (paramType == JSONArray.class) {
+            if (kind == KIND_JSON_ARRAY) {
                 return value;
-            } else if (paramType.isArray()) {
+            } else if (kind == KIND_ARRAY) {
                 Class baseType = paramType.getComponentType();
-                Object valueArray[] = arrayValue.toArray();
+                int baseKind = paramKind(baseType);
+                Object valueArray[] = ((JSONArray) value).toArray();
                 Object result = Array.newInstance(baseType, valueArray.length);
                 for (int i = 0; i < valueArray.length; ++i) {
-                    Object elemValue =
-                        packParam(baseType, valueArray[i], resolver);
+                    Object elemValue = null;
+                    if (valueArray[i] != null) {
+                        elemValue = packParam(baseKind, baseType,
+                                              valueArray[i], resolver);
+                    }
                     if (elemValue != null) {
                         Array.set(result, i, elemValue);
                     } else {
@@ -268,8 +459,8 @@ abstract class Invoker {
                 return null;
             }
         } else if (valueType == JSONObject.class) {
-            if (paramType == JSONObject.class) {
-                return (JSONObject) value;
+            if (kind == KIND_JSON_OBJECT) {
+                return value;
             } else {
                 return ObjectDecoder.decode(paramType, (JSONObject) value,
                                             resolver);
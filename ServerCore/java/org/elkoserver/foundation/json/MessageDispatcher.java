@@ -2,11 +2,15 @@ package org.elkoserver.foundation.json;
 
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.elkoserver.foundation.run.RunnerStats;
 import org.elkoserver.json.JSONObject;
+import org.elkoserver.util.trace.Trace;
 
 /**
  * A collection of precomputed Java reflection information that can dispatch
@@ -24,7 +28,23 @@ public class MessageDispatcher {
 
     /** Classes for which there is stored dispatch information, to avoid
         repeating reflection operations. */
-    private Set<Class> myClasses;
+    private Set<Class<?>> myClasses;
+
+    /** Mapping from Java class to invokers for the class's JSON methods,
+        shared by all dispatchers and all threads, so that the reflection
+        operations for a class are only done once. */
+    private static ClassCache<MethodInvoker[]> theMethodTables =
+        new ClassCache<MethodInvoker[]>() {
+            MethodInvoker[] build(Class<?> targetClass) {
+                MethodInvoker methods[] = findMethods(targetClass);
+                MessageSchema.addMethods(methods);
+                return methods;
+            }
+        };
+
+    /** Verb under which dispatch statistics are kept for messages whose verb
+        no JSON method handles. */
+    private static final String UNKNOWN_VERB = "(unknown)";
 
     /** Type resolver for the type tags of JSON encoded message parameter
         objects. */
@@ -37,8 +57,9 @@ public class MessageDispatcher {
      *    parameter objects.
      */
     public MessageDispatcher(TypeResolver resolver) {
-        myInvokers = new HashMap<String, MethodInvoker>();
-        myClasses = new HashSet<Class>();
+        myInvokers = new ConcurrentHashMap<String, MethodInvoker>();
+        myClasses = Collections.newSetFromMap(
+            new ConcurrentHashMap<Class<?>, Boolean>());
         myResolver = resolver;
     }
 
@@ -64,6 +85,10 @@ public class MessageDispatcher {
      * rules, no dispatch information will be recorded for that method and an
      * error message will be logged.
      *
+     * The reflection operations for any given class are only done once, no
+     * matter how many dispatchers it is added to.  This may be called from
+     * any thread, including while messages are being dispatched.
+     *
      * @param targetClass  Class to compute method dispatch information for.
      *
      * @throws JSONSetupError if an annotated method breaks the rules for a
@@ -71,46 +96,92 @@ public class MessageDispatcher {
      */
     public void addClass(Class targetClass) {
         if (!myClasses.contains(targetClass)) {
-            for (Method method : targetClass.getMethods()) {
-                JSONMethod note = method.getAnnotation(JSONMethod.class);
-
-                if (note == null) {
-                    continue;
+            MethodInvoker methods[] = theMethodTables.get(targetClass);
+            synchronized (this) {
+                if (!myClasses.contains(targetClass)) {
+                    for (MethodInvoker method : methods) {
+                        String name = method.verb();
+                        MethodInvoker prev = myInvokers.get(name);
+                        myInvokers.put(name, new MethodInvoker(method, prev));
+                    }
+                    myClasses.add(targetClass);
                 }
+            }
+        }
+    }
 
-                if (!Modifier.isPublic(method.getModifiers())) {
-                    throw new JSONSetupError("class " + targetClass.getName() +
-                        " JSON message handler method " + method.getName() +
-                        " is not public");
-                }
+    /**
+     * Perform ahead of time the reflection operations needed to do JSON
+     * message dispatch on a given Java class, so that this need not be done
+     * when the class is first added to a dispatcher.  Any problem with the
+     * class's JSON methods is logged.
+     *
+     * @param targetClass  Class to compute method dispatch information for.
+     *
+     * @return true if 'targetClass' can be added to a dispatcher, false if
+     *    not.
+     */
+    static public boolean prepare(Class<?> targetClass) {
+        try {
+            theMethodTables.get(targetClass);
+            return true;
+        } catch (JSONSetupError e) {
+            Trace.comm.errorm(e.getMessage());
+            return false;
+        }
+    }
 
-                if (method.getReturnType() != void.class) {
-                    throw new JSONSetupError("class " + targetClass.getName() +
-                        " JSON message handler method " + method.getName() +
-                        " does not have return type void");
-                }
+    /**
+     * Find a class's JSON message handler methods.  The rules the methods
+     * must follow are described in the description of the {@link #addClass
+     * addClass()} method.
+     *
+     * @param targetClass  Class to find the methods of.
+     *
+     * @return an array of unchained invokers for the methods.
+     *
+     * @throws JSONSetupError if an annotated method breaks the rules for a
+     *    JSON method.
+     */
+    private static MethodInvoker[] findMethods(Class<?> targetClass) {
+        List<MethodInvoker> methods = new ArrayList<MethodInvoker>();
+        for (Method method : targetClass.getMethods()) {
+            JSONMethod note = method.getAnnotation(JSONMethod.class);
 
-                Class paramTypes[] = method.getParameterTypes();
-                if (paramTypes.length == 0 ||
-                        !Deliverer.class.isAssignableFrom(paramTypes[0])) {
-                    throw new JSONSetupError("class " + targetClass.getName() +
-                        " JSON message handler method " + method.getName() +
-                        " does not have a Deliverer first parameter");
-                }
+            if (note == null) {
+                continue;
+            }
 
-                String paramNames[] = note.value();
-                if (paramNames.length + 1 != paramTypes.length) {
-                    throw new JSONSetupError("class " + targetClass.getName() +
-                        " JSON message handler method " + method.getName() +
-                        " has wrong number of parameters");
-                }
-                String name = method.getName();
-                MethodInvoker prev = myInvokers.get(name);
-                myInvokers.put(name,
-                    new MethodInvoker(method, paramTypes, paramNames, prev));
+            if (!Modifier.isPublic(method.getModifiers())) {
+                throw new JSONSetupError("class " + targetClass.getName() +
+                    " JSON message handler method " + method.getName() +
+                    " is not public");
+            }
+
+            if (method.getReturnType() != void.class) {
+                throw new JSONSetupError("class " + targetClass.getName() +
+                    " JSON message handler method " + method.getName() +
+                    " does not have return type void");
+            }
+
+            Class<?> paramTypes[] = method.getParameterTypes();
+            if (paramTypes.length == 0 ||
+                    !Deliverer.class.isAssignableFrom(paramTypes[0])) {
+                throw new JSONSetupError("class " + targetClass.getName() +
+                    " JSON message handler method " + method.getName() +
+                    " does not have a Deliverer first parameter");
+            }
+
+            String paramNames[] = note.value();
+            if (paramNames.length + 1 != paramTypes.length) {
+                throw new JSONSetupError("class " + targetClass.getName() +
+                    " JSON message handler method " + method.getName() +
+                    " has wrong number of parameters");
             }
-            myClasses.add(targetClass);
+            methods.add(new MethodInvoker(method, paramTypes, paramNames,
+                                          null));
         }
+        return methods.toArray(new MethodInvoker[methods.size()]);
     }
 
     /**
@@ -154,8 +225,59 @@ public class MessageDispatcher {
         throws MessageHandlerException
     {
         String verb = message.verb();
+        RunnerStats stats = RunnerStats.current();
+        if (stats != null && verb != null) {
+            long start = System.nanoTime();
+            try {
+                dispatch(from, target, message, verb);
+            } finally {
+                /* Verbs come from clients, so only those that some JSON
+                   method handles are kept apart; otherwise a client could
+                   make the statistics grow without limit. */
+                if (!myInvokers.containsKey(verb)) {
+                    verb = UNKNOWN_VERB;
+                }
+                stats.noteDispatch(target.getClass(), verb,
+                                   System.nanoTime() - start);
+            }
+        } else {
+            dispatch(from, target, message, verb);
+        }
+    }
+
+    /**
+     * Dispatch a message, as described for {@link #dispatchMessage
+     * dispatchMessage()}.
+     *
+     * @param from  The source from whom the message was allegedly received.
+     * @param target  The object to which the message is addressed.
+     * @param message  The message itself.
+     * @param verb  The message verb.
+     *
+     * @throws MessageHandlerException if there was some kind of problem
+     *    handling the message.
+     */
+    private void dispatch(Deliverer from, DispatchTarget target,
+                          JSONObject message, String verb)
+        throws MessageHandlerException
+    {
         if (verb != null) {
             MethodInvoker invoker = myInvokers.get(verb);
+            if (invoker != null && !(target instanceof MessageRetargeter)) {
+                invoker = invoker.findInvoker(target);
+                if (invoker != null) {
+                    if (from instanceof SourceRetargeter) {
+                        from = ((SourceRetargeter) from).findEffectiveSource(
+                            target);
+                    }
+                    if (from == null) {
+                        throw new MessageHandlerException(
+                            "invalid message target");
+                    }
+                    invoker.handle(target, from, message, myResolver);
+                    return;
+                }
+            }
             while (invoker != null) {
                 DispatchTarget actualTarget = invoker.findActualTarget(target);
                 if (actualTarget != null) {
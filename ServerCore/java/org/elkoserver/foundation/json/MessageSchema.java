@@ -0,0 +1,303 @@
+package org.elkoserver.foundation.json;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.elkoserver.json.JSONArray;
+import org.elkoserver.json.JSONObject;
+import org.elkoserver.json.MessageValidator;
+import org.elkoserver.json.SyntaxError;
+
+/**
+ * Validator that checks received messages against the message verbs that
+ * the server's JSON methods handle, so that messages that could not possibly
+ * be delivered are rejected while they are still being parsed, rather than
+ * after they have been parsed in full and dispatched.
+ *
+ * The schema is derived from the {@link JSONMethod} annotations of every
+ * class that has been added to any {@link MessageDispatcher}.  For each verb
+ * it records which parameters some method with that name accepts and what
+ * kinds of JSON value (string, number, boolean, object or array) each of
+ * them may have, and which parameters every method with that name requires.
+ * A message whose verb is in the schema is rejected if it has a property
+ * that no such method accepts (other than the standard properties, such as
+ * "to" and "op", that all messages may have), if a property has a kind of
+ * value that no such method accepts, or if it lacks a parameter that all of
+ * them require.  Messages with no verb at all are always rejected.  Messages
+ * whose verbs are not in the schema are rejected only if the validator is
+ * strict, since objects that implement {@link DefaultDispatchTarget} can
+ * handle any verb at all.
+ *
+ * Verbs handled in ways the annotations don't describe can be added to the
+ * schema, or have parameters added to them, with {@link #declareVerb
+ * declareVerb()}.
+ */
+public class MessageSchema implements MessageValidator {
+    /* Flags for the kinds of JSON value a parameter accepts. */
+    static final int VALUE_STRING  =  1;
+    static final int VALUE_NUMBER  =  2;
+    static final int VALUE_BOOLEAN =  4;
+    static final int VALUE_OBJECT  =  8;
+    static final int VALUE_ARRAY   = 16;
+    static final int VALUE_ANY     = 31;
+
+    /** The schema for each known verb, by verb. */
+    private static ConcurrentMap<String, VerbSchema> theVerbs =
+        new ConcurrentHashMap<String, VerbSchema>();
+
+    /** Flag that messages with verbs not in the schema should be rejected. */
+    private boolean amStrict;
+
+    /**
+     * Constructor.
+     *
+     * @param strict  If true, reject messages whose verbs are not in the
+     *    schema; if false, let them through unchecked.
+     */
+    public MessageSchema(boolean strict) {
+        amStrict = strict;
+    }
+
+    /**
+     * Add the JSON methods of a class to the schema.
+     *
+     * @param methods  Invokers for the methods.
+     */
+    static synchronized void addMethods(MethodInvoker methods[]) {
+        for (MethodInvoker method : methods) {
+            int count = method.jsonParamCount();
+            Map<String, Integer> params =
+                new HashMap<String, Integer>(count);
+            List<String> required = new ArrayList<String>(count);
+            for (int i = 0; i < count; ++i) {
+                String name = method.jsonParamName(i);
+                params.put(name, method.jsonParamValues(i));
+                if (method.isJSONParamRequired(i)) {
+                    required.add(name);
+                }
+            }
+            addVerb(method.verb(), new VerbSchema(params, required, false));
+        }
+    }
+
+    /**
+     * Add a verb to the schema, or add parameters to a verb already in it.
+     * Values of any kind are accepted for the parameters declared this way,
+     * and none of them are required.  Since a declared parameter may be
+     * handled by something other than a JSON method, declaring a verb also
+     * stops the schema from requiring any parameter for it.
+     *
+     * @param verb  The verb to declare.
+     * @param params  Comma-separated list of the names of the parameters
+     *    messages with this verb may have, or "*" if they may have any
+     *    parameters at all.
+     */
+    static public synchronized void declareVerb(String verb, String params) {
+        Map<String, Integer> paramMap = new HashMap<String, Integer>();
+        boolean open = false;
+        StringTokenizer scan = new StringTokenizer(params, ", ");
+        while (scan.hasMoreTokens()) {
+            String name = scan.nextToken();
+            if (name.equals("*")) {
+                open = true;
+            } else {
+                paramMap.put(name, VALUE_ANY);
+            }
+        }
+        addVerb(verb, new VerbSchema(paramMap, new ArrayList<String>(),
+                                     open));
+    }
+
+    /**
+     * Merge a schema for a verb into the schema for all verbs.  This must
+     * only be called while synchronized on the class.
+     *
+     * @param verb  The verb.
+     * @param schema  Schema for one way of handling the verb.
+     */
+    private static void addVerb(String verb, VerbSchema schema) {
+        VerbSchema old = theVerbs.get(verb);
+        if (old != null) {
+            schema = old.merge(schema);
+        }
+        theVerbs.put(verb, schema);
+    }
+
+    /**
+     * Check a property of a message being parsed.
+     *
+     * @param message  The message so far.
+     * @param name  The name of the property being checked.
+     * @param value  The value of the property being checked.
+     *
+     * @throws SyntaxError if the message is unacceptable.
+     */
+    public void checkProperty(JSONObject message, String name, Object value)
+        throws SyntaxError
+    {
+        if (name.equals("op")) {
+            if (!(value instanceof String)) {
+                throw new SyntaxError("invalid message: verb is not a string");
+            }
+            String verb = (String) value;
+            VerbSchema schema = theVerbs.get(verb);
+            if (schema == null) {
+                if (amStrict) {
+                    throw new SyntaxError("invalid message: unknown verb '" +
+                                          verb + "'");
+                }
+            } else {
+                /* Check the properties that came before the verb. */
+                for (Map.Entry<String, Object> entry : message.properties()) {
+                    schema.check(verb, entry.getKey(), entry.getValue());
+                }
+            }
+        } else {
+            String verb = message.verb();
+            if (verb != null) {
+                VerbSchema schema = theVerbs.get(verb);
+                if (schema != null) {
+                    schema.check(verb, name, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check a message that has been completely parsed.
+     *
+     * @param message  The message.
+     *
+     * @throws SyntaxError if the message is unacceptable.
+     */
+    public void checkMessage(JSONObject message) throws SyntaxError {
+        String verb = message.verb();
+        if (verb == null) {
+            throw new SyntaxError("invalid message: no verb");
+        }
+        VerbSchema schema = theVerbs.get(verb);
+        if (schema != null) {
+            for (String name : schema.myRequired) {
+                if (message.getProperty(name) == null) {
+                    throw new SyntaxError("invalid message: '" + verb +
+                        "' message lacks parameter '" + name + "'");
+                }
+            }
+        }
+    }
+
+    /**
+     * The schema for a single verb.  These are never modified once they have
+     * been constructed, so they may be consulted from any thread.
+     */
+    private static class VerbSchema {
+        /** The kinds of value accepted for each parameter, by name. */
+        private Map<String, Integer> myParams;
+
+        /** Names of the parameters that are required. */
+        private String myRequired[];
+
+        /** Flag that any parameters at all are accepted. */
+        private boolean amOpen;
+
+        /**
+         * Constructor.
+         *
+         * @param params  The kinds of value accepted for each parameter.
+         * @param required  Names of the parameters that are required.
+         * @param open  If true, any parameters at all are accepted.
+         */
+        VerbSchema(Map<String, Integer> params, List<String> required,
+                   boolean open)
+        {
+            myParams = params;
+            myRequired = required.toArray(new String[required.size()]);
+            amOpen = open;
+        }
+
+        /**
+         * Produce a schema that accepts whatever either this schema or
+         * another one accepts.
+         *
+         * @param other  The other schema.
+         *
+         * @return a schema accepting the messages that either this or 'other'
+         *    accepts.
+         */
+        VerbSchema merge(VerbSchema other) {
+            Map<String, Integer> params =
+                new HashMap<String, Integer>(myParams);
+            for (Map.Entry<String, Integer> entry :
+                     other.myParams.entrySet()) {
+                Integer kinds = params.get(entry.getKey());
+                if (kinds == null) {
+                    params.put(entry.getKey(), entry.getValue());
+                } else {
+                    params.put(entry.getKey(), kinds | entry.getValue());
+                }
+            }
+            List<String> required = new ArrayList<String>();
+            for (String name : myRequired) {
+                for (String otherName : other.myRequired) {
+                    if (name.equals(otherName)) {
+                        required.add(name);
+                        break;
+                    }
+                }
+            }
+            return new VerbSchema(params, required, amOpen || other.amOpen);
+        }
+
+        /**
+         * Check a property of a message with this schema's verb.
+         *
+         * @param verb  The verb.
+         * @param name  The name of the property.
+         * @param value  The value of the property.
+         *
+         * @throws SyntaxError if the property is unacceptable.
+         */
+        void check(String verb, String name, Object value)
+            throws SyntaxError
+        {
+            Integer kinds = myParams.get(name);
+            if (kinds == null) {
+                if (!amOpen && !Invoker.isStandardProperty(name)) {
+                    throw new SyntaxError("invalid message: '" + verb +
+                        "' message has unknown parameter '" + name + "'");
+                }
+            } else if (value != null && (kinds & valueKind(value)) == 0) {
+                throw new SyntaxError("invalid message: '" + verb +
+                    "' message parameter '" + name +
+                    "' has the wrong kind of value");
+            }
+        }
+    }
+
+    /**
+     * Determine the kind of a JSON value.
+     *
+     * @param value  The value, which must not be null.
+     *
+     * @return the value kind flag for 'value'.
+     */
+    private static int valueKind(Object value) {
+        if (value instanceof String) {
+            return VALUE_STRING;
+        } else if (value instanceof Number) {
+            return VALUE_NUMBER;
+        } else if (value instanceof Boolean) {
+            return VALUE_BOOLEAN;
+        } else if (value instanceof JSONObject) {
+            return VALUE_OBJECT;
+        } else if (value instanceof JSONArray) {
+            return VALUE_ARRAY;
+        } else {
+            return VALUE_ANY;
+        }
+    }
+}
@@ -7,13 +7,28 @@ import org.elkoserver.json.JSONObject;
 /**
  * Invoker subclass for methods.  Uses Java reflection to invoke a JSON message
  * handler method.
+ *
+ * Calling through a MethodHandle with unboxed parameters instead saves only a
+ * few nanoseconds per message, a small fraction of the cost of dispatching
+ * one (see org.elkoserver.foundation.json.test.DispatchBenchmark), so the
+ * speedup here comes from the per-verb inline cache and the precomputed
+ * parameter conversion kinds rather than from a specialized call.
  */
 class MethodInvoker extends Invoker {
     /** The method to call. */
     private Method myMethod;
 
     /** The Java class that defined the method. */
-    private Class myMethodClass;
+    private Class<?> myMethodClass;
+
+    /** The class of the target most recently found to have the method, and
+        the member of this chain that handles it (if this is the head of its
+        chain), or null.  This is a one entry cache that saves walking the
+        chain when messages with the same verb keep going to objects of the
+        same class, which is the usual case.  The entry is immutable and
+        replaced whole, so it can be read and written by any number of
+        threads without locking. */
+    private volatile CacheEntry myCache;
 
     /** Next method in a chain of methods for the same verb.  There will be one
         entry in this chain for each registered class that implements a handler
@@ -30,7 +45,7 @@ class MethodInvoker extends Invoker {
      * @param paramNames  JSON names for the parameters.
      * @param next  Next JSON method in a growing chain.
      */
-    MethodInvoker(Method method, Class paramTypes[], String paramNames[],
+    MethodInvoker(Method method, Class<?> paramTypes[], String paramNames[],
                   MethodInvoker next)
     {
         super(method, paramTypes, paramNames, 1);
@@ -39,6 +54,21 @@ class MethodInvoker extends Invoker {
         myNext = next;
     }
 
+    /**
+     * Constructor for a new link in a chain, calling the same method as an
+     * existing invoker.  The reflection information is shared rather than
+     * computed again.
+     *
+     * @param original  The invoker for the method.
+     * @param next  Next JSON method in a growing chain.
+     */
+    MethodInvoker(MethodInvoker original, MethodInvoker next) {
+        super(original);
+        myMethod = original.myMethod;
+        myMethodClass = original.myMethodClass;
+        myNext = next;
+    }
+
     /**
      * Determine the object to which a message containing this method's verb
      * should really be delivered.
@@ -59,6 +89,48 @@ class MethodInvoker extends Invoker {
         }
     }
 
+    /**
+     * Find the member of this chain that handles this chain's verb for a
+     * given target, consulting and updating the chain's one entry cache.
+     * This must be called on the head of the chain.
+     *
+     * @param target  The object to which the JSON message was addressed.
+     *
+     * @return the invoker to use for 'target', or null if no member of the
+     *    chain handles this verb for it.
+     */
+    MethodInvoker findInvoker(DispatchTarget target) {
+        Class<?> targetClass = target.getClass();
+        CacheEntry cache = myCache;
+        if (cache != null && cache.myTargetClass == targetClass) {
+            return cache.myInvoker;
+        }
+        for (MethodInvoker invoker = this; invoker != null;
+                 invoker = invoker.myNext) {
+            if (invoker.myMethodClass.isInstance(target)) {
+                myCache = new CacheEntry(targetClass, invoker);
+                return invoker;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Entry in the one entry (target class, invoker) cache.
+     */
+    private static class CacheEntry {
+        /** The class of the target. */
+        final Class<?> myTargetClass;
+
+        /** The invoker that handles the verb for that class. */
+        final MethodInvoker myInvoker;
+
+        CacheEntry(Class<?> targetClass, MethodInvoker invoker) {
+            myTargetClass = targetClass;
+            myInvoker = invoker;
+        }
+    }
+
     /**
      * Invoke the method held by this invoker on a received JSON message.
      *
@@ -103,6 +175,15 @@ class MethodInvoker extends Invoker {
         }
     }
 
+    /**
+     * Get the verb of the messages this invoker handles.
+     *
+     * @return the name of the method.
+     */
+    String verb() {
+        return myMethod.getName();
+    }
+
     /**
      * Follow the chain of linked methods of the same name.
      *
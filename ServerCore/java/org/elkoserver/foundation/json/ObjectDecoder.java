@@ -1,8 +1,6 @@
 package org.elkoserver.foundation.json;
 
 import java.lang.reflect.Constructor;
-import java.util.HashMap;
-import java.util.Map;
 import org.elkoserver.json.JSONObject;
 import org.elkoserver.json.Parser;
 import org.elkoserver.json.SyntaxError;
@@ -14,13 +12,22 @@ import org.elkoserver.util.trace.Trace;
  */
 public class ObjectDecoder {
     /** Mapping from Java class to the specific decoder for that class.  This
-        is a cache of decoders, to avoid recomputing reflection information. */
-    private static Map<Class, ObjectDecoder> theDecoders =
-        new HashMap<Class, ObjectDecoder>();
+        is a cache of decoders, to avoid recomputing reflection information,
+        shared by all threads. */
+    private static ClassCache<ObjectDecoder> theDecoders =
+        new ClassCache<ObjectDecoder>() {
+            ObjectDecoder build(Class<?> decodeClass) {
+                return new ObjectDecoder(decodeClass);
+            }
+        };
 
     /** Reflection information for the Java constructor this decoder invokes.*/
     private ConstructorInvoker myConstructor;
 
+    /** Decoder generated at compile time for the class, or null if there
+        isn't one. */
+    private GeneratedDecoder myGeneratedDecoder;
+
     /**
      * Constructor.
      *
@@ -48,6 +55,9 @@ public class ObjectDecoder {
      * these rules, no decoder will be created for the class and an error
      * message will be logged.
      *
+     * If a {@link GeneratedDecoder} was generated for the class at compile
+     * time, it will be used to invoke the constructor.
+     *
      * @param decodeClass  The Java class to construct a decoder for
      *
      * @throws JSONSetupError if an annotated constructor breaks the rules for
@@ -90,6 +100,7 @@ public class ObjectDecoder {
         myConstructor =
             new ConstructorInvoker(jsonConstructor, includeRawObject,
                                    paramTypes, paramNames);
+        myGeneratedDecoder = GeneratedDecoder.forClass(decodeClass);
     }
 
     /**
@@ -101,18 +112,27 @@ public class ObjectDecoder {
      * @return a decoder for 'decodeClass', or null if one could not be made.
      */
     static private ObjectDecoder classDecoder(Class decodeClass) {
-        ObjectDecoder decoder = theDecoders.get(decodeClass);
-
-        if (decoder == null) {
-            try {
-                decoder = new ObjectDecoder(decodeClass);
-                theDecoders.put(decodeClass, decoder);
-            } catch (JSONSetupError e) {
-                Trace.comm.errorm(e.getMessage());
-                decoder = null;
-            }
+        try {
+            return theDecoders.get(decodeClass);
+        } catch (JSONSetupError e) {
+            Trace.comm.errorm(e.getMessage());
+            return null;
         }
-        return decoder;
+    }
+
+    /**
+     * Perform ahead of time the reflection operations needed to decode
+     * objects of a given class, so that this need not be done when the first
+     * such object is decoded.  Any problem with the class's JSON-driven
+     * constructor is logged.
+     *
+     * @param decodeClass  The class that will be decoded.
+     *
+     * @return true if objects of class 'decodeClass' can be decoded, false if
+     *    not.
+     */
+    static public boolean prepare(Class<?> decodeClass) {
+        return classDecoder(decodeClass) != null;
     }
 
     /**
@@ -126,7 +146,19 @@ public class ObjectDecoder {
      *    be interpreted.
      */
     private Object decode(JSONObject obj, TypeResolver resolver) {
-        return myConstructor.construct(obj, resolver);
+        if (myGeneratedDecoder == null) {
+            return myConstructor.construct(obj, resolver);
+        }
+        try {
+            return myGeneratedDecoder.decode(obj, resolver);
+        } catch (JSONInvocationException e) {
+            Trace.comm.errorm("error calling JSON constructor: " +
+                              e.getMessage());
+            return null;
+        } catch (Exception e) {
+            Trace.comm.errorReportException(e, "calling JSON constructor");
+            return null;
+        }
     }
 
     /**
@@ -37,7 +37,12 @@ class ParameterMismatchException extends RuntimeException {
         String message = "";
         int count = Math.min(suppliedParams.length, expectedParams.length);
         for (int i = 0; i < count; ++i) {
-            if (!expectedParams[i].isAssignableFrom(
+            if (suppliedParams[i] == null) {
+                if (expectedParams[i].isPrimitive()) {
+                    message = message + "Parameter mismatch: Method  requires "
+                        + expectedParams[i] + "; found null. ";
+                }
+            } else if (!expectedParams[i].isAssignableFrom(
                     suppliedParams[i].getClass())) {
                 message = message + "Parameter mismatch: Method  requires "
                     + expectedParams[i] + "; found "
@@ -3,8 +3,6 @@ package org.elkoserver.foundation.json;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * A simple type resolver that tries to resolve JSON type tags from statically
@@ -24,14 +22,45 @@ public class StaticTypeResolver implements TypeResolver {
         new StaticTypeResolver();
 
     /** Cached mapping from Java class to the JSON object type tag lookup
-        method for that class. */
-    private Map<Class, Method> myMethodCache;
+        method for that class (null if it has none). */
+    private ClassCache<Method> myMethodCache;
 
     /**
      * Private Miranda constructor to ensure singletonness.
      */
     private StaticTypeResolver() {
-        myMethodCache = new HashMap<Class, Method>();
+        myMethodCache = new ClassCache<Method>() {
+            Method build(Class<?> baseType) {
+                return findLookupMethod(baseType);
+            }
+        };
+    }
+
+    /**
+     * Find the type tag lookup method for a class.
+     *
+     * @param baseType  The class whose lookup method is sought.
+     *
+     * @return the static 'jsonClass' method of 'baseType' or of its nearest
+     *    superclass that has one, or null if there is no such method.
+     */
+    private static Method findLookupMethod(Class<?> baseType) {
+        Class<?> type = baseType;
+        while (type != null) {
+            try {
+                Method lookupMethod =
+                    type.getDeclaredMethod("jsonClass",
+                                           new Class<?>[] { String.class });
+                if (Modifier.isStatic(lookupMethod.getModifiers())) {
+                    lookupMethod.setAccessible(true);
+                    return lookupMethod;
+                }
+            } catch (NoSuchMethodException e) {
+                /* Keep looking, in the superclass. */
+            }
+            type = type.getSuperclass();
+        }
+        return null;
     }
 
     /**
@@ -49,28 +78,8 @@ public class StaticTypeResolver implements TypeResolver {
      *    a parameter of class 'baseType'.
      */
     public Class resolveType(Class baseType, String typeName) {
-        Class<?> type = baseType;
-        Method lookupMethod = myMethodCache.get(type);
-        if (lookupMethod == null && myMethodCache.containsKey(type)) {
-            return baseType;
-        }
-        while (lookupMethod == null && type != null) {
-            try {
-                lookupMethod =
-                    type.getDeclaredMethod("jsonClass",
-                                           new Class[] { String.class });
-                if (Modifier.isStatic(lookupMethod.getModifiers())) {
-                    lookupMethod.setAccessible(true);
-                    myMethodCache.put(baseType, lookupMethod);
-                } else {
-                    lookupMethod = null;
-                }
-            } catch (NoSuchMethodException e) {
-                type = type.getSuperclass();
-            }
-        }
+        Method lookupMethod = myMethodCache.get(baseType);
         if (lookupMethod == null) {
-            myMethodCache.put(baseType, null);
             return baseType;
         } else {
             try {
@@ -0,0 +1,185 @@
+package org.elkoserver.foundation.json.test;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import org.elkoserver.foundation.json.Deliverer;
+import org.elkoserver.foundation.json.DispatchTarget;
+import org.elkoserver.foundation.json.JSONMethod;
+import org.elkoserver.foundation.json.MessageDispatcher;
+import org.elkoserver.foundation.json.StaticTypeResolver;
+import org.elkoserver.json.JSONLiteral;
+import org.elkoserver.json.JSONObject;
+
+/**
+ * Measure what JSON message dispatch costs, and how much of that a
+ * specialized invoker could save.  Three things are timed, per message:
+ *
+ *   dispatch  MessageDispatcher.dispatchMessage() on a message with an int,
+ *             a double and a string parameter: the whole path a received
+ *             message takes (verb lookup, the per-verb inline cache,
+ *             parameter conversion, and the reflective call).
+ *   reflect   Just the final step as MessageDispatcher does it: boxing the
+ *             parameter values into an array and calling Method.invoke().
+ *   handle    The same call through a static final MethodHandle with
+ *             invokeExact() and unboxed parameters, which is the best a
+ *             generated or MethodHandle-based invoker could do.
+ *
+ * The difference between 'reflect' and 'handle' bounds what replacing the
+ * reflective call could gain; 'dispatch' shows what that would be a
+ * fraction of.  Results are printed in nanoseconds per message, the median
+ * of several timed rounds run after a warmup.
+ */
+public class DispatchBenchmark {
+    /** Handle for Handler.move(), set up the way a specialized invoker
+        would hold it. */
+    private static final MethodHandle theMoveHandle = findMoveHandle();
+
+    private static MethodHandle findMoveHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Handler.class,
+                "move", MethodType.methodType(void.class, Deliverer.class,
+                                              int.class, double.class,
+                                              String.class));
+        } catch (Exception e) {
+            throw new Error("can't find Handler.move(): " + e);
+        }
+    }
+
+    /**
+     * Message target with a typical JSON method.
+     */
+    public static class Handler implements DispatchTarget {
+        long mySink;
+
+        @JSONMethod({ "x", "y", "name" })
+        public void move(Deliverer from, int x, double y, String name) {
+            mySink += x + (long) y + name.length();
+        }
+    }
+
+    /**
+     * Message source that discards anything sent to it.
+     */
+    private static class NullDeliverer implements Deliverer {
+        public void send(JSONLiteral message) {
+        }
+    }
+
+    private static void usage() {
+        System.out.println("usage: java org.elkoserver.foundation.json.test.DispatchBenchmark [messages N] [rounds N] [help]");
+        System.exit(0);
+    }
+
+    private static JSONObject[] makeMessages(int count) {
+        JSONObject[] messages = new JSONObject[count];
+        for (int i = 0; i < count; ++i) {
+            JSONObject message = new JSONObject("thing", "move");
+            message.addProperty("x", i);
+            message.addProperty("y", i * 0.5);
+            message.addProperty("name", "n" + (i % 10));
+            messages[i] = message;
+        }
+        return messages;
+    }
+
+    private static long timeDispatch(MessageDispatcher dispatcher,
+                                     Deliverer from, Handler target,
+                                     JSONObject[] messages)
+        throws Exception
+    {
+        long start = System.nanoTime();
+        for (JSONObject message : messages) {
+            dispatcher.dispatchMessage(from, target, message);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long timeReflect(Method method, Deliverer from,
+                                    Handler target, JSONObject[] messages)
+        throws Exception
+    {
+        long start = System.nanoTime();
+        for (JSONObject message : messages) {
+            Object[] params = new Object[4];
+            params[0] = from;
+            params[1] = Integer.valueOf(message.getInt("x"));
+            params[2] = Double.valueOf(message.getDouble("y"));
+            params[3] = message.getString("name");
+            method.invoke(target, params);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long timeHandle(Deliverer from, Handler target,
+                                   JSONObject[] messages)
+        throws Throwable
+    {
+        long start = System.nanoTime();
+        for (JSONObject message : messages) {
+            theMoveHandle.invokeExact(target, from, message.getInt("x"),
+                                      message.getDouble("y"),
+                                      message.getString("name"));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    public static void main(String[] args) throws Throwable {
+        int count = 1000000;
+        int rounds = 9;
+
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("messages")) {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("rounds")) {
+                rounds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("help")) {
+                usage();
+            } else {
+                System.out.println("don't recognize arg #" + i + " '" +
+                                   args[i] + "'");
+                usage();
+            }
+        }
+
+        MessageDispatcher dispatcher =
+            new MessageDispatcher(StaticTypeResolver.theStaticTypeResolver);
+        dispatcher.addClass(Handler.class);
+        Method method = Handler.class.getMethod("move", Deliverer.class,
+            int.class, double.class, String.class);
+        Deliverer from = new NullDeliverer();
+        Handler target = new Handler();
+        JSONObject[] messages = makeMessages(count);
+
+        long[] dispatchTimes = new long[rounds];
+        long[] reflectTimes = new long[rounds];
+        long[] handleTimes = new long[rounds];
+        for (int warmup = 0; warmup < 3; ++warmup) {
+            timeDispatch(dispatcher, from, target, messages);
+            timeReflect(method, from, target, messages);
+            timeHandle(from, target, messages);
+        }
+        for (int round = 0; round < rounds; ++round) {
+            dispatchTimes[round] =
+                timeDispatch(dispatcher, from, target, messages);
+            reflectTimes[round] = timeReflect(method, from, target, messages);
+            handleTimes[round] = timeHandle(from, target, messages);
+        }
+
+        System.out.println("dispatch " +
+            (double) median(dispatchTimes) / count + " ns/msg");
+        System.out.println("reflect  " +
+            (double) median(reflectTimes) / count + " ns/msg");
+        System.out.println("handle   " +
+            (double) median(handleTimes) / count + " ns/msg");
+        System.out.println("(sink " + target.mySink + ")");
+    }
+}
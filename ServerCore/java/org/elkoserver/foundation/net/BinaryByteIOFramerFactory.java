@@ -0,0 +1,356 @@
+package org.elkoserver.foundation.net;
+
+import java.io.IOException;
+import org.elkoserver.json.BinaryDecoder;
+import org.elkoserver.json.BinaryEncoder;
+import org.elkoserver.json.JSONObject;
+import org.elkoserver.json.SyntaxError;
+import org.elkoserver.util.trace.Trace;
+
+/**
+ * Byte I/O framer factory for JSON messaging over a byte stream, in either
+ * the usual text framing (see {@link JSONByteIOFramerFactory}) or a compact
+ * binary encoding, as the other end of each connection chooses.
+ *
+ * <p>The binary encoding (see {@link org.elkoserver.json.BinaryEncoder}) is
+ * MessagePack, with a per-connection dictionary for property names, message
+ * verbs, object references and the like, and with each message preceded by
+ * its length.  A client asks for it by sending the byte {@link
+ * #BINARY_HEADER_BYTE} before its first message; this byte can't begin a
+ * JSON message block, so the framer simply looks at the first byte received.
+ * The server then answers with the same byte before its own first message
+ * and uses the binary encoding in both directions from then on.  Messages
+ * are delivered to and accepted from the rest of the server as JSON objects
+ * and literals just the same regardless of how they are encoded on the wire.
+ *
+ * <p>Broadcast messages are still encoded into JSON text once for all the
+ * connections using this factory's framers.  Since the dictionary makes the
+ * binary encoding of a message depend on what was sent before it on the same
+ * connection, each binary connection then translates the text into its own
+ * binary form.
+ */
+public class BinaryByteIOFramerFactory implements ByteIOFramerFactory {
+    /** Trace object for logging message traffic. */
+    private Trace trMsg;
+
+    /** Limits on the messages the framers will accept. */
+    private MessageLimits myLimits;
+
+    /** First byte sent by each side of a connection using the binary
+        encoding. */
+    static final int BINARY_HEADER_BYTE = 0xE1;
+
+    /** Most bytes that a message length can take to encode. */
+    private static final int MAX_LENGTH_BYTES = 5;
+
+    /**
+     * Constructor.
+     *
+     * @param msgTrace  Trace object for logging message traffic.
+     */
+    public BinaryByteIOFramerFactory(Trace msgTrace) {
+        this(msgTrace, MessageLimits.DEFAULT_LIMITS);
+    }
+
+    /**
+     * Constructor for a factory whose framers enforce particular limits on
+     * the messages they receive, in either encoding.
+     *
+     * @param msgTrace  Trace object for logging message traffic.
+     * @param limits  Limits on the messages that will be accepted.
+     */
+    public BinaryByteIOFramerFactory(Trace msgTrace, MessageLimits limits) {
+        trMsg = msgTrace;
+        myLimits = limits;
+    }
+
+    /**
+     * Provide an I/O framer for a new connection.
+     *
+     * @param receiver  Object to deliver received messages to.
+     * @param label  A printable label identifying the associated connection.
+     */
+    public ByteIOFramer provideFramer(MessageReceiver receiver, String label) {
+        return new BinaryFramer(receiver, label);
+    }
+
+    /**
+     * Framer that speaks JSON text until its peer asks for the binary
+     * encoding.
+     */
+    private class BinaryFramer
+        implements StreamingByteIOFramer, VariableByteIOFramer
+    {
+        /** The message receiver input is being framed for. */
+        private MessageReceiver myReceiver;
+
+        /** A label for the connection, for logging. */
+        private String myLabel;
+
+        /** Framer for JSON text, which frames input while the connection is
+            in text mode and produces the text of all output. */
+        private JSONScanningByteIOFramer myTextFramer;
+
+        /** Decoder for input, or null if the connection is in text mode. */
+        private BinaryDecoder myDecoder;
+
+        /** Encoder for output, or null if the connection is in text mode. */
+        private BinaryEncoder myEncoder;
+
+        /** Flag that the first input has been examined. */
+        private boolean amInputKnown;
+
+        /** Flag that output has already been produced, so that it is too late
+            to switch to binary. */
+        private boolean amOutputStarted;
+
+        /** Bytes of a partially received binary message, including its
+            length, or null if none have needed saving. */
+        private byte[] myPartial;
+
+        /** Number of bytes in myPartial that are in use. */
+        private int myPartialLength;
+
+        /**
+         * Constructor.
+         *
+         * @param receiver  Object to deliver received messages to.
+         * @param label  Printable label identifying the connection.
+         */
+        BinaryFramer(MessageReceiver receiver, String label) {
+            myReceiver = receiver;
+            myLabel = label;
+            myTextFramer =
+                new JSONScanningByteIOFramer(trMsg, receiver, label,
+                                             myLimits);
+            myDecoder = null;
+            myEncoder = null;
+            amInputKnown = false;
+            amOutputStarted = false;
+            myPartial = null;
+            myPartialLength = 0;
+        }
+
+        /**
+         * Get the framer whose output this framer transforms.
+         *
+         * @return the JSON text framer.
+         */
+        public ByteIOFramer innerFramer() {
+            return myTextFramer;
+        }
+
+        /**
+         * Identify the kind of encoding this framer currently produces.  In
+         * text mode this is the same as a plain JSON text framer; in binary
+         * mode it is unique to this framer.
+         *
+         * @return an object denoting this framer's encoding.
+         */
+        public Object frameKind() {
+            if (myEncoder == null) {
+                return myTextFramer.getClass();
+            } else {
+                return this;
+            }
+        }
+
+        /**
+         * Process bytes of data received.
+         *
+         * @param data   The bytes received.
+         * @param length  Number of usable bytes in 'data'.  End of input is
+         *    indicated by passing a 'length' value of 0.
+         */
+        public void receiveBytes(byte[] data, int length) throws IOException {
+            int start = 0;
+            if (!amInputKnown && length > 0) {
+                amInputKnown = true;
+                if ((data[0] & 0xFF) == BINARY_HEADER_BYTE) {
+                    if (amOutputStarted) {
+                        throw new IOException(
+                            "binary encoding requested after output began");
+                    }
+                    myDecoder = myLimits.decoder();
+                    myEncoder = new BinaryEncoder();
+                    start = 1;
+                }
+            }
+            if (myDecoder == null) {
+                myTextFramer.receiveBytes(data, length);
+            } else if (length == 0) {
+                if (myPartialLength > 0) {
+                    throw new IOException("undecodeable bytes left over");
+                }
+            } else if (myPartialLength > 0) {
+                appendPartial(data, start, length - start);
+                int end = processMessages(myPartial, 0, myPartialLength);
+                myPartialLength -= end;
+                System.arraycopy(myPartial, end, myPartial, 0,
+                                 myPartialLength);
+            } else {
+                int end = processMessages(data, start, length);
+                if (end < length) {
+                    appendPartial(data, end, length - end);
+                }
+            }
+        }
+
+        /**
+         * Save bytes of a partially received message until the rest
+         * arrives.
+         *
+         * @param data  Array containing the bytes to save.
+         * @param offset  Index of the first byte to save.
+         * @param length  Number of bytes to save.
+         */
+        private void appendPartial(byte[] data, int offset, int length)
+            throws IOException
+        {
+            int needed = myPartialLength + length;
+            if (needed > myLimits.maxLength() + MAX_LENGTH_BYTES) {
+                throw new IOException("input too large (limit " +
+                    myLimits.maxLength() + " bytes)");
+            }
+            if (myPartial == null || needed > myPartial.length) {
+                int size = myPartial == null ? 0 : myPartial.length * 2;
+                byte[] newPartial = new byte[Math.max(size, needed)];
+                if (myPartialLength > 0) {
+                    System.arraycopy(myPartial, 0, newPartial, 0,
+                                     myPartialLength);
+                }
+                myPartial = newPartial;
+            }
+            System.arraycopy(data, offset, myPartial, myPartialLength,
+                             length);
+            myPartialLength = needed;
+        }
+
+        /**
+         * Deliver all the complete binary messages in a range of bytes.
+         *
+         * @param data  Array containing the bytes.
+         * @param start  Index of the first byte.
+         * @param limit  Index just past the last byte.
+         *
+         * @return the index of the first byte not consumed, which begins an
+         *    incomplete message if it is less than 'limit'.
+         */
+        private int processMessages(byte[] data, int start, int limit)
+            throws IOException
+        {
+            while (start < limit) {
+                int pos = start;
+                int bodyLength = 0;
+                int shift = 0;
+                while (true) {
+                    if (pos == limit) {
+                        return start;
+                    }
+                    int b = data[pos++] & 0xFF;
+                    bodyLength |= (b & 0x7F) << shift;
+                    if (b < 0x80) {
+                        break;
+                    }
+                    shift += 7;
+                    if (pos - start == MAX_LENGTH_BYTES) {
+                        throw new IOException("malformed message length");
+                    }
+                }
+                if (bodyLength < 0 || bodyLength > myLimits.maxLength()) {
+                    throw new IOException("input too large (limit " +
+                        myLimits.maxLength() + " bytes)");
+                }
+                if (limit - pos < bodyLength) {
+                    return start;
+                }
+                deliverMessage(data, pos, bodyLength);
+                start = pos + bodyLength;
+            }
+            return start;
+        }
+
+        /**
+         * Decode a binary message and deliver it to the receiver.
+         *
+         * @param data  Array containing the message.
+         * @param offset  Index of the first byte of the message.
+         * @param length  Number of bytes in the message.
+         */
+        private void deliverMessage(byte[] data, int offset, int length) {
+            try {
+                JSONObject message = myDecoder.decode(data, offset, length);
+                if (trMsg.event) {
+                    trMsg.msgi(myLabel, true, message.sendableString());
+                }
+                myReceiver.receiveMsg(message);
+            } catch (SyntaxError e) {
+                if (NetworkManager.TheDebugReplyFlag) {
+                    myReceiver.receiveMsg(e);
+                }
+                if (trMsg.warning) {
+                    trMsg.warningm("syntax error in binary message: " +
+                                   e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Produce the bytes for writing a message to a connection.
+         *
+         * @param message  The message to be written, which must be a string,
+         *    a JSONLiteral, or a JSONObject.
+         *
+         * @return a byte array containing the writable form of 'message'.
+         */
+        public byte[] produceBytes(Object message) throws IOException {
+            return encode(myTextFramer.produceBytes(message));
+        }
+
+        /**
+         * Translate the JSON text framing of some messages into the binary
+         * encoding, if the connection is using it.
+         *
+         * @param frame  The text framer's encoding of a message.
+         *
+         * @return the bytes to transmit.
+         */
+        public byte[] encode(byte[] frame) throws IOException {
+            if (myEncoder == null) {
+                amOutputStarted = true;
+                return frame;
+            }
+            byte[] result;
+            try {
+                result = myEncoder.encode(frame, 0, frame.length);
+            } catch (SyntaxError e) {
+                throw new IOException("unable to encode message: " +
+                                      e.getMessage());
+            }
+            if (!amOutputStarted) {
+                amOutputStarted = true;
+                byte[] headed = new byte[result.length + 1];
+                headed[0] = (byte) BINARY_HEADER_BYTE;
+                System.arraycopy(result, 0, headed, 1, result.length);
+                result = headed;
+            }
+            return result;
+        }
+
+        /**
+         * Flush any output being held at the end of a batch; since this
+         * framer holds nothing back, there never is any.
+         *
+         * @return null.
+         */
+        public byte[] flush() {
+            return null;
+        }
+
+        /**
+         * Release resources; this framer has none to release.
+         */
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.elkoserver.foundation.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of equal-sized byte buffers available for reuse.
+ *
+ * Each pool belongs to a single {@link SelectThread} and is only ever used
+ * from inside that thread, so no synchronization is done here.  Buffers are
+ * allocated on demand; when a buffer is released back to a pool that is
+ * already full, it is simply dropped and left for the garbage collector.
+ */
+class BufferPool {
+    /** Buffers currently available for reuse. */
+    private ByteBuffer myBuffers[];
+
+    /** Number of buffers currently available in myBuffers.  This is only
+        modified from inside the owning thread, but may be read (for
+        statistics) from others. */
+    private volatile int myCount;
+
+    /** Size, in bytes, of the buffers in this pool. */
+    private int myBufferSize;
+
+    /** Flag that buffers should be allocated outside the Java heap. */
+    private boolean amDirect;
+
+    /** Number of times a buffer has been requested from this pool. */
+    private volatile long myAcquireCount;
+
+    /** Number of requests that could not be satisfied from the pool and so
+        required a new buffer to be allocated. */
+    private volatile long myMissCount;
+
+    /**
+     * Constructor.
+     *
+     * @param bufferSize  Size, in bytes, of the buffers to pool.
+     * @param capacity  Maximum number of idle buffers to retain.
+     * @param direct  If true, allocate direct buffers.
+     */
+    BufferPool(int bufferSize, int capacity, boolean direct) {
+        myBuffers = new ByteBuffer[capacity];
+        myCount = 0;
+        myBufferSize = bufferSize;
+        amDirect = direct;
+        myAcquireCount = 0;
+        myMissCount = 0;
+    }
+
+    /**
+     * Obtain a cleared buffer from this pool, allocating a new one if none is
+     * available.
+     *
+     * @return a buffer ready to be filled.
+     */
+    ByteBuffer acquire() {
+        ++myAcquireCount;
+        if (myCount > 0) {
+            --myCount;
+            ByteBuffer result = myBuffers[myCount];
+            myBuffers[myCount] = null;
+            result.clear();
+            return result;
+        } else {
+            ++myMissCount;
+            if (amDirect) {
+                return ByteBuffer.allocateDirect(myBufferSize);
+            } else {
+                return ByteBuffer.allocate(myBufferSize);
+            }
+        }
+    }
+
+    /**
+     * Return a buffer to this pool.
+     *
+     * @param buffer  The buffer, which must have been obtained from this pool
+     *    by {@link #acquire}, and must not be used again by the caller.
+     */
+    void release(ByteBuffer buffer) {
+        if (myCount < myBuffers.length) {
+            myBuffers[myCount] = buffer;
+            ++myCount;
+        }
+    }
+
+    /**
+     * Get the size of the buffers in this pool.
+     *
+     * @return this pool's buffer size, in bytes.
+     */
+    int bufferSize() {
+        return myBufferSize;
+    }
+
+    /**
+     * Get the number of idle buffers currently held by this pool.
+     *
+     * @return the number of buffers available for reuse.
+     */
+    int idleCount() {
+        return myCount;
+    }
+
+    /**
+     * Get the number of buffers that have been requested from this pool.
+     *
+     * @return this pool's acquisition count.
+     */
+    long acquireCount() {
+        return myAcquireCount;
+    }
+
+    /**
+     * Get the number of buffer requests that had to be satisfied by
+     * allocating a new buffer.
+     *
+     * @return this pool's miss count.
+     */
+    long missCount() {
+        return myMissCount;
+    }
+}
@@ -3,7 +3,6 @@ package org.elkoserver.foundation.net;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedList;
 import org.elkoserver.util.trace.Trace;
 
 /**
@@ -67,25 +66,32 @@ public class ChunkyByteArrayInputStream extends InputStream {
      * coded in awareness of what is being done here.
      */
 
-    /** Byte buffer currently being read from. */
-    private byte[] myWorkingBuffer;
+    /** Bytes that were received in earlier buffers but not yet read, saved
+        by {@link #preserveBuffers}.  These always precede any bytes in the
+        client buffer.  Null if nothing has needed saving. */
+    private byte[] myRemainder;
 
-    /** Position of the next byte to read from the working buffer. */
-    private int myWorkingBufferIdx;
+    /** Position of the next byte to read from the remainder. */
+    private int myRemainderIdx;
 
-    /** Number of bytes in working buffer that may be read. */
-    private int myWorkingBufferLength;
+    /** Position just past the last saved byte in the remainder. */
+    private int myRemainderEnd;
 
-    /** Additional byte arrays queued to be read. */
-    private LinkedList<byte[]> myPendingBuffers;
-    
     /** A byte array that has been passed to this object by its client but not
         yet copied to storage internal to this object. */
     private byte[] myClientBuffer;
 
+    /** Position of the next byte to read from the client buffer. */
+    private int myClientBufferIdx;
+
     /** Number of bytes in client buffer that may be used. */
     private int myClientBufferLength;
-    
+
+    /** Largest remainder array that will be held onto once it has been
+        emptied.  Larger ones are dropped, so that idle connections don't tie
+        up memory on behalf of messages that have long since been read. */
+    private static final int MAX_IDLE_REMAINDER = 512;
+
     /** Number of bytes fed in that haven't yet been read. */
     private int myTotalByteCount;
 
@@ -105,8 +111,9 @@ public class ChunkyByteArrayInputStream extends InputStream {
      * Constructor.  Initially, no input has been provided.
      */
     public ChunkyByteArrayInputStream() {
-        myPendingBuffers = new LinkedList<byte[]>();
-        myWorkingBuffer = null;
+        myRemainder = null;
+        myRemainderIdx = 0;
+        myRemainderEnd = 0;
         myClientBuffer = null;
         myTotalByteCount = 0;
         myUsefulByteCount = 0;
@@ -142,6 +149,7 @@ public class ChunkyByteArrayInputStream extends InputStream {
         } else {
             preserveBuffers(); /* save previous client buffer */
             myClientBuffer = buf;
+            myClientBufferIdx = 0;
             myClientBufferLength = length;
             for (int i = 0; i < length; ++i) {
                 if (buf[i] == '\n' || (amWebSocketFraming && buf[i] == -1)) {
@@ -168,27 +176,43 @@ public class ChunkyByteArrayInputStream extends InputStream {
      * #addBuffer}.  This has the side effect of passing responsibility for the
      * client buffer back to the client.  This indirection minimizes
      * unnecessary byte array allocation and copying.
+     *
+     * <p>Unread bytes are accumulated in a single, compacted remainder array
+     * that is reused from one partial read to the next.</p>
      */
     public void preserveBuffers() {
         if (myClientBuffer != null) {
-            if (myWorkingBuffer == myClientBuffer) {
-                byte[] saveBuffer =
-                    new byte[myWorkingBufferLength - myWorkingBufferIdx];
-                System.arraycopy(myWorkingBuffer, myWorkingBufferIdx,
-                                 saveBuffer,      0,
-                                 saveBuffer.length);
-                myWorkingBuffer = saveBuffer;
-                myWorkingBufferLength = saveBuffer.length;
-                myWorkingBufferIdx = 0;
-            } else {
-                byte[] saveBuffer = new byte[myClientBufferLength];
-                System.arraycopy(myClientBuffer, 0,
-                                 saveBuffer,     0,
-                                 saveBuffer.length);
-                myPendingBuffers.add(saveBuffer);
+            int unread = myClientBufferLength - myClientBufferIdx;
+            if (unread > 0) {
+                int saved = myRemainderEnd - myRemainderIdx;
+                int needed = saved + unread;
+                if (myRemainder == null || needed > myRemainder.length) {
+                    int size = myRemainder == null ? 0 : myRemainder.length * 2;
+                    byte[] newRemainder = new byte[Math.max(size, needed)];
+                    if (saved > 0) {
+                        System.arraycopy(myRemainder, myRemainderIdx,
+                                         newRemainder, 0, saved);
+                    }
+                    myRemainder = newRemainder;
+                } else if (myRemainderIdx > 0 && saved > 0) {
+                    System.arraycopy(myRemainder, myRemainderIdx,
+                                     myRemainder, 0, saved);
+                }
+                System.arraycopy(myClientBuffer, myClientBufferIdx,
+                                 myRemainder, saved, unread);
+                myRemainderIdx = 0;
+                myRemainderEnd = needed;
             }
             myClientBuffer = null;
         }
+        if (myRemainderIdx == myRemainderEnd) {
+            myRemainderIdx = 0;
+            myRemainderEnd = 0;
+            if (myRemainder != null &&
+                    myRemainder.length > MAX_IDLE_REMAINDER) {
+                myRemainder = null;
+            }
+        }
     }
     
     /**
@@ -239,24 +263,14 @@ public class ChunkyByteArrayInputStream extends InputStream {
      * @return the next byte of data.
      */
     private int readByteInternal() throws IOException {
-        if (myWorkingBuffer == null) {
-            if (myPendingBuffers.size() > 0) {
-                myWorkingBuffer = myPendingBuffers.removeFirst();
-                myWorkingBufferLength = myWorkingBuffer.length;
-            } else if (myClientBuffer != null) {
-                myWorkingBuffer = myClientBuffer;
-                myWorkingBufferLength = myClientBufferLength;
-            } else {
-                return -1;
-            }
-            myWorkingBufferIdx = 0;
-        }
-        int result = myWorkingBuffer[myWorkingBufferIdx++];
-        if (myWorkingBufferIdx >= myWorkingBufferLength) {
-            if (myWorkingBuffer == myClientBuffer) {
-                myClientBuffer = null;
-            }
-            myWorkingBuffer = null;
+        int result;
+        if (myRemainderIdx < myRemainderEnd) {
+            result = myRemainder[myRemainderIdx++];
+        } else if (myClientBuffer != null &&
+                   myClientBufferIdx < myClientBufferLength) {
+            result = myClientBuffer[myClientBufferIdx++];
+        } else {
+            return -1;
         }
         --myTotalByteCount;
         if (myUsefulByteCount > 0) {
@@ -282,9 +296,21 @@ public class ChunkyByteArrayInputStream extends InputStream {
             return null;
         } else {
             byte[] result = new byte[count];
-            for (int i = 0; i < count; ++i) {
-                result[i] = (byte) readByteInternal();
+            int fromRemainder =
+                Math.min(count, myRemainderEnd - myRemainderIdx);
+            if (fromRemainder > 0) {
+                System.arraycopy(myRemainder, myRemainderIdx,
+                                 result, 0, fromRemainder);
+                myRemainderIdx += fromRemainder;
+            }
+            int fromClient = count - fromRemainder;
+            if (fromClient > 0) {
+                System.arraycopy(myClientBuffer, myClientBufferIdx,
+                                 result, fromRemainder, fromClient);
+                myClientBufferIdx += fromClient;
             }
+            myTotalByteCount -= count;
+            myUsefulByteCount = Math.max(0, myUsefulByteCount - count);
             return result;
         }
     }
@@ -1,5 +1,7 @@
 package org.elkoserver.foundation.net;
 
+import org.elkoserver.foundation.run.Runner;
+
 /**
  * A communications connection to other entities on the net.
  */
@@ -23,6 +25,35 @@ public interface Connection {
      */
     public void sendMsg(Object message);
 
+    /**
+     * Direct the handling of messages received on this connection to a
+     * different run queue.
+     *
+     * @param runner  The run queue in which messages should be handled from
+     *    now on.
+     */
+    public void setRunner(Runner runner);
+
+    /**
+     * Mark this connection as carrying control traffic (such as messages
+     * between servers or administrative commands), whose messages are
+     * handled in the priority lane of the run queue rather than waiting
+     * behind ordinary traffic.
+     *
+     * @param priority  If true, handle messages received on this connection
+     *    in the priority lane; if false, in the normal lane.
+     */
+    public void setPriority(boolean priority);
+
+    /**
+     * Test if this connection carries control traffic, so that work done on
+     * behalf of its messages can be given the same priority.
+     *
+     * @return true if messages received on this connection are handled in
+     *    the priority lane.
+     */
+    public boolean isPriority();
+
     /**
      * Turn debug features for this connection on or off.
      *
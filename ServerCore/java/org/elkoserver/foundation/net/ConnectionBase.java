@@ -1,5 +1,8 @@
 package org.elkoserver.foundation.net;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.elkoserver.foundation.run.Runner;
 import org.elkoserver.util.trace.Trace;
 
@@ -21,7 +24,20 @@ public abstract class ConnectionBase implements Connection {
     private MessageHandler myMessageHandler;
 
     /** The run queue in which messages will be handled. */
-    /* protected */ Runner myRunner;
+    private volatile Runner myRunner;
+
+    /** Flag that messages are handled in the run queue's priority lane. */
+    private volatile boolean amPriority;
+
+    /** Received messages (and the handler setup) awaiting handling, in the
+        order they arrived. */
+    private Queue<Runnable> myInbox;
+
+    /** Flag that myInboxThunk is on a run queue or is running. */
+    private AtomicBoolean amInboxScheduled;
+
+    /** Thunk that works through myInbox. */
+    private Runnable myInboxThunk;
 
     /** System load tracker. */
     private LoadMonitor myLoadMonitor;
@@ -33,7 +49,11 @@ public abstract class ConnectionBase implements Connection {
      */
     protected ConnectionBase(NetworkManager mgr) {
         myMessageHandler = null;
-        myRunner = mgr.runner();;
+        myRunner = mgr.runner();
+        amPriority = false;
+        myInbox = new ConcurrentLinkedQueue<Runnable>();
+        amInboxScheduled = new AtomicBoolean(false);
+        myInboxThunk = new InboxThunk();
         myLoadMonitor = mgr.loadMonitor();
         myID = theIDCounter++;
     }
@@ -74,7 +94,95 @@ public abstract class ConnectionBase implements Connection {
         if (myMessageHandler instanceof MessageAcquirer) {
             ((MessageAcquirer) myMessageHandler).acquireMessage(message);
         }
-        myRunner.enqueue(new MessageHandlerThunk(message));
+        enqueueInbox(new MessageHandlerThunk(message));
+    }
+
+    /**
+     * Direct the handling of messages received on this connection to a
+     * different run queue.  Messages received before the change are still
+     * handled before any that are received after it, and none are ever
+     * handled in two run queues at once.
+     *
+     * @param runner  The run queue in which messages should be handled from
+     *    now on.
+     */
+    public void setRunner(Runner runner) {
+        myRunner = runner;
+    }
+
+    /**
+     * Mark this connection as carrying control traffic, whose messages are
+     * handled in the priority lane of the run queue.  Messages received on
+     * the connection are still handled in the order they arrived.
+     *
+     * @param priority  If true, handle messages in the priority lane; if
+     *    false, in the normal lane.
+     */
+    public void setPriority(boolean priority) {
+        amPriority = priority;
+    }
+
+    /**
+     * Test if this connection carries control traffic.
+     *
+     * @return true if messages received on this connection are handled in
+     *    the priority lane.
+     */
+    public boolean isPriority() {
+        return amPriority;
+    }
+
+    /**
+     * Put something on this connection's inbox, and make sure that the inbox
+     * will be worked through.
+     *
+     * @param todo  The thing to be done in turn.
+     */
+    private void enqueueInbox(Runnable todo) {
+        myInbox.add(todo);
+        scheduleInbox();
+    }
+
+    /**
+     * Put the inbox thunk on the run queue, if it isn't there already.
+     */
+    private void scheduleInbox() {
+        if (amInboxScheduled.compareAndSet(false, true)) {
+            myRunner.enqueue(myInboxThunk, amPriority);
+        }
+    }
+
+    /**
+     * Work through the inbox from the run queue, one thing per trip through
+     * the queue so that a busy connection doesn't hold up any others.  If the
+     * connection's run queue has changed since the thunk was enqueued, the
+     * thunk moves itself to the new run queue instead.
+     */
+    private class InboxThunk implements Runnable {
+        public void run() {
+            Runner runner = myRunner;
+            if (!runner.isCurrentThreadInRunner()) {
+                runner.enqueue(this, amPriority);
+                return;
+            }
+            try {
+                Runnable todo = myInbox.poll();
+                if (todo != null) {
+                    todo.run();
+                }
+            } finally {
+                if (myInbox.isEmpty()) {
+                    amInboxScheduled.set(false);
+                    /* Something may have arrived after the inbox was seen to
+                       be empty but before the flag was cleared. */
+                    if (!myInbox.isEmpty()) {
+                        scheduleInbox();
+                    }
+                } else {
+                    myRunner.enqueue(this, amPriority);
+                }
+            }
+        }
     }
 
     /**
@@ -119,7 +227,7 @@ public abstract class ConnectionBase implements Connection {
      */
     protected void enqueueHandlerFactory(MessageHandlerFactory handlerFactory)
     {
-        myRunner.enqueue(new HandlerFactoryThunk(handlerFactory));
+        enqueueInbox(new HandlerFactoryThunk(handlerFactory));
     }
 
     private class HandlerFactoryThunk implements Runnable {
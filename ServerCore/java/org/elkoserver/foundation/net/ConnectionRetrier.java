@@ -8,6 +8,10 @@ import org.elkoserver.util.trace.Trace;
 /**
  * Worker object to manage an ongoing attempt to establish an outbound TCP
  * connection, so that failed connection attempts can be retried automatically.
+ *
+ * Outbound connections are only made to other servers, so the connection,
+ * once established, is marked as priority (see {@link
+ * Connection#setPriority}).
  */
 public class ConnectionRetrier
 {
@@ -18,7 +22,7 @@ public class ConnectionRetrier
     private String myLabel;
 
     /** Low-level I/O framer factory for the new connection. */
-    private JSONByteIOFramerFactory myFramerFactory;
+    private ByteIOFramerFactory myFramerFactory;
 
     /** Flag to stop retries. */
     private boolean myKeepTryingFlag;
@@ -58,7 +62,15 @@ public class ConnectionRetrier
         myLabel = label;
         myKeepTryingFlag = true;
         myTrace = appTrace.subTrace(label);
-        myFramerFactory = new JSONByteIOFramerFactory(myTrace);
+        if (host.protocol().equals("ltcp")) {
+            myFramerFactory = new LengthPrefixedByteIOFramerFactory(myTrace);
+        } else {
+            myFramerFactory = new JSONByteIOFramerFactory(myTrace);
+        }
+        if (host.compress()) {
+            myFramerFactory =
+                new DeflatingByteIOFramerFactory(myFramerFactory, true);
+        }
         myNetworkManager = networkManager;
         myActualFactory = actualFactory;
         myTrace.eventi("connecting to " + myLabel + " at " + host.hostPort());
@@ -72,6 +84,7 @@ public class ConnectionRetrier
                     }
                     return null;
                 } else {
+                    connection.setPriority(true);
                     return myActualFactory.provideMessageHandler(connection);
                 }
             }
@@ -0,0 +1,350 @@
+package org.elkoserver.foundation.net;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.elkoserver.util.trace.Trace;
+
+/**
+ * Byte I/O framer factory that adds streaming compression to the framing
+ * provided by some other framer factory.
+ *
+ * <p>Output is compressed with a single deflate (zlib) stream per connection,
+ * so that each message is compressed in the context of everything sent
+ * before it, which is what makes compressing small messages worthwhile.  The
+ * stream is sync-flushed at the end of every batch of output a connection
+ * writes, so compression never holds messages back.
+ *
+ * <p>Input is decompressed only if the other end is sending compressed data.
+ * A zlib stream always begins with the byte 0x78, which can begin neither a
+ * JSON message block nor a length-prefixed frame, so the framer simply looks
+ * at the first byte received.  A framer that was not told to compress its
+ * output will nevertheless start doing so if its peer's input turns out to
+ * be compressed, provided it has not already sent anything uncompressed.
+ * Thus the side making a connection decides whether the link is compressed,
+ * and a listener merely needs to be willing.
+ */
+public class DeflatingByteIOFramerFactory implements ByteIOFramerFactory {
+    /** Factory for the framers whose output is being compressed. */
+    private ByteIOFramerFactory myInnerFactory;
+
+    /** Flag that output should be compressed from the start. */
+    private boolean amCompressingOutput;
+
+    /** First byte of a zlib stream (deflate, 32K window). */
+    private static final int ZLIB_HEADER_BYTE = 0x78;
+
+    /** Size of the buffer into which input is decompressed. */
+    private static final int INFLATE_BUFFER_SIZE = 16 * 1024;
+
+    /** Number of uncompressed bytes that have been compressed. */
+    private static long theDeflateInBytes = 0;
+
+    /** Number of compressed bytes produced by compression. */
+    private static long theDeflateOutBytes = 0;
+
+    /** Elapsed (wall clock, not CPU) time spent compressing, in
+        nanoseconds. */
+    private static long theDeflateWallTime = 0;
+
+    /** Number of compressed bytes that have been decompressed. */
+    private static long theInflateInBytes = 0;
+
+    /** Number of uncompressed bytes produced by decompression. */
+    private static long theInflateOutBytes = 0;
+
+    /** Elapsed (wall clock, not CPU) time spent decompressing, in
+        nanoseconds. */
+    private static long theInflateWallTime = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param innerFactory  Factory providing the framers to be wrapped.
+     * @param compressOutput  If true, compress output from the start;
+     *    otherwise, only compress output if the peer's input is compressed.
+     */
+    public DeflatingByteIOFramerFactory(ByteIOFramerFactory innerFactory,
+                                        boolean compressOutput)
+    {
+        myInnerFactory = innerFactory;
+        amCompressingOutput = compressOutput;
+    }
+
+    /**
+     * Provide an I/O framer for a new connection.
+     *
+     * @param receiver  Object to deliver received messages to.
+     * @param label  A printable label identifying the associated connection.
+     */
+    public ByteIOFramer provideFramer(MessageReceiver receiver, String label) {
+        return new DeflatingFramer(
+            myInnerFactory.provideFramer(receiver, label), amCompressingOutput);
+    }
+
+    /**
+     * Take note of some compression having been done.
+     *
+     * @param inBytes  Number of bytes compressed.
+     * @param outBytes  Number of bytes they compressed into.
+     * @param wallTime  Elapsed time taken, in nanoseconds.
+     */
+    private static synchronized void noteDeflate(long inBytes, long outBytes,
+                                                 long wallTime)
+    {
+        theDeflateInBytes += inBytes;
+        theDeflateOutBytes += outBytes;
+        theDeflateWallTime += wallTime;
+    }
+
+    /**
+     * Take note of some decompression having been done.
+     *
+     * @param inBytes  Number of bytes decompressed.
+     * @param outBytes  Number of bytes they decompressed into.
+     * @param wallTime  Elapsed time taken, in nanoseconds.
+     */
+    private static synchronized void noteInflate(long inBytes, long outBytes,
+                                                 long wallTime)
+    {
+        theInflateInBytes += inBytes;
+        theInflateOutBytes += outBytes;
+        theInflateWallTime += wallTime;
+    }
+
+    /**
+     * Log the compression statistics counters as metrics messages.  Nothing
+     * is reported if no compressed connections have been used.
+     */
+    static synchronized void reportStats() {
+        if (theDeflateInBytes > 0 || theInflateInBytes > 0) {
+            Trace.comm.metrics("comm.deflate.in", 0, theDeflateInBytes);
+            Trace.comm.metrics("comm.deflate.out", 0, theDeflateOutBytes);
+            if (theDeflateOutBytes > 0) {
+                Trace.comm.metrics("comm.deflate.ratio", 0,
+                    (double) theDeflateInBytes / theDeflateOutBytes);
+            }
+            Trace.comm.metrics("comm.deflate.wallms", 0,
+                               theDeflateWallTime / 1000000);
+            Trace.comm.metrics("comm.inflate.in", 0, theInflateInBytes);
+            Trace.comm.metrics("comm.inflate.out", 0, theInflateOutBytes);
+            Trace.comm.metrics("comm.inflate.wallms", 0,
+                               theInflateWallTime / 1000000);
+        }
+    }
+
+    /**
+     * Framer that compresses and decompresses the byte stream of another
+     * framer.
+     */
+    private static class DeflatingFramer implements StreamingByteIOFramer {
+        /** The framer whose byte stream is being compressed. */
+        private ByteIOFramer myInner;
+
+        /** Compressor for output, or null if not compressing output. */
+        private Deflater myDeflater;
+
+        /** Decompressor for input, or null if input is not compressed (or
+            hasn't been seen yet). */
+        private Inflater myInflater;
+
+        /** Flag that the first input has been examined. */
+        private boolean amInputKnown;
+
+        /** Flag that uncompressed output has already been produced, so that
+            it is too late to start compressing. */
+        private boolean amOutputStarted;
+
+        /** Flag that release() has been called. */
+        private boolean amReleased;
+
+        /** Buffer into which output is compressed. */
+        private byte[] myDeflateBuffer;
+
+        /** Buffer into which input is decompressed. */
+        private byte[] myInflateBuffer;
+
+        /** Initial size of the compression output buffer. */
+        private static final int DEFLATE_BUFFER_SIZE = 4096;
+
+        /**
+         * Constructor.
+         *
+         * @param inner  The framer to wrap.
+         * @param compressOutput  If true, compress output from the start.
+         */
+        DeflatingFramer(ByteIOFramer inner, boolean compressOutput) {
+            myInner = inner;
+            myInflater = null;
+            amInputKnown = false;
+            amOutputStarted = false;
+            amReleased = false;
+            if (compressOutput) {
+                startDeflating();
+            } else {
+                myDeflater = null;
+            }
+        }
+
+        /**
+         * Begin compressing output.
+         */
+        private void startDeflating() {
+            myDeflater = new Deflater(Deflater.BEST_SPEED);
+            myDeflateBuffer = new byte[DEFLATE_BUFFER_SIZE];
+        }
+
+        /**
+         * Get the framer whose output this framer transforms.
+         *
+         * @return the inner framer.
+         */
+        public ByteIOFramer innerFramer() {
+            return myInner;
+        }
+
+        /**
+         * Process bytes of data received, decompressing them if they are
+         * compressed, and hand the result to the inner framer.
+         *
+         * @param data   The bytes received.
+         * @param length  Number of usable bytes in 'data'.  End of input is
+         *    indicated by passing a 'length' value of 0.
+         */
+        public void receiveBytes(byte[] data, int length) throws IOException {
+            if (amReleased) {
+                return;
+            }
+            if (length == 0) {
+                myInner.receiveBytes(data, 0);
+                return;
+            }
+            if (!amInputKnown) {
+                amInputKnown = true;
+                if ((data[0] & 0xFF) == ZLIB_HEADER_BYTE) {
+                    myInflater = new Inflater();
+                    myInflateBuffer = new byte[INFLATE_BUFFER_SIZE];
+                    if (myDeflater == null && !amOutputStarted) {
+                        startDeflating();
+                    }
+                }
+            }
+            if (myInflater == null) {
+                myInner.receiveBytes(data, length);
+                return;
+            }
+            long startTime = System.nanoTime();
+            long decompressed = 0;
+            myInflater.setInput(data, 0, length);
+            try {
+                while (!myInflater.finished()) {
+                    int count = myInflater.inflate(myInflateBuffer);
+                    if (count == 0) {
+                        if (myInflater.needsInput() ||
+                                myInflater.needsDictionary()) {
+                            break;
+                        }
+                    } else {
+                        decompressed += count;
+                        myInner.receiveBytes(myInflateBuffer, count);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("bad compressed input: " +
+                                      e.getMessage());
+            }
+            noteInflate(length, decompressed, System.nanoTime() - startTime);
+        }
+
+        /**
+         * Produce the bytes for writing a message to a connection.
+         *
+         * @param message  The message to be written; which classes of message
+         *    are acceptable is up to the inner framer.
+         *
+         * @return a byte array containing the writable form of 'message'.
+         */
+        public byte[] produceBytes(Object message) throws IOException {
+            return encode(myInner.produceBytes(message));
+        }
+
+        /**
+         * Pass bytes produced by the inner framer through the compressor.
+         *
+         * @param frame  The inner framer's encoding of a message.
+         *
+         * @return the bytes to transmit, possibly none.
+         */
+        public byte[] encode(byte[] frame) {
+            if (myDeflater == null) {
+                amOutputStarted = true;
+                return frame;
+            }
+            long startTime = System.nanoTime();
+            myDeflater.setInput(frame);
+            byte[] result = deflate(Deflater.NO_FLUSH);
+            noteDeflate(frame.length, result.length,
+                        System.nanoTime() - startTime);
+            return result;
+        }
+
+        /**
+         * Flush the compressor at the end of a batch of output.
+         *
+         * @return the bytes to transmit, or null if there are none.
+         */
+        public byte[] flush() {
+            if (myDeflater == null) {
+                return null;
+            }
+            long startTime = System.nanoTime();
+            byte[] result = deflate(Deflater.SYNC_FLUSH);
+            noteDeflate(0, result.length, System.nanoTime() - startTime);
+            return result;
+        }
+
+        /**
+         * Free the compressor's and decompressor's native memory, rather
+         * than leaving it until they are finalized.
+         */
+        public void release() {
+            if (myDeflater != null) {
+                myDeflater.end();
+                myDeflater = null;
+            }
+            if (myInflater != null) {
+                myInflater.end();
+                myInflater = null;
+            }
+            /* The connection is closed by now, so any input that still
+               turns up is ignored. */
+            amReleased = true;
+        }
+
+        /**
+         * Run the compressor until it has consumed all its input.
+         *
+         * @param flushMode  Deflater flush mode to use.
+         *
+         * @return the compressed bytes produced.
+         */
+        private byte[] deflate(int flushMode) {
+            int total = 0;
+            while (true) {
+                int count = myDeflater.deflate(myDeflateBuffer, total,
+                    myDeflateBuffer.length - total, flushMode);
+                total += count;
+                if (total < myDeflateBuffer.length) {
+                    break;
+                }
+                byte[] newBuffer = new byte[myDeflateBuffer.length * 2];
+                System.arraycopy(myDeflateBuffer, 0, newBuffer, 0, total);
+                myDeflateBuffer = newBuffer;
+            }
+            byte[] result = new byte[total];
+            System.arraycopy(myDeflateBuffer, 0, result, 0, total);
+            return result;
+        }
+    }
+}
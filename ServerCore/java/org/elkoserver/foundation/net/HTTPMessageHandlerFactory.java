@@ -54,6 +54,9 @@ class HTTPMessageHandlerFactory implements MessageHandlerFactory {
     /** Like mySessionTimeout, but when connection is in debug mode. */
     private int myDebugSessionTimeout;
 
+    /** Output queue statistics for this factory's sessions. */
+    private OutputQueueStats myQueueStats;
+
     /** Default session timeout if none is explicitly given, in seconds. */
     static final int DEFAULT_SESSION_TIMEOUT = 15;
 
@@ -69,10 +72,12 @@ class HTTPMessageHandlerFactory implements MessageHandlerFactory {
      * @param httpFramer  HTTP framer to interpret HTTP POSTs and format HTTP
      *    replies.
      * @param manager  Network manager for this server.
+     * @param queueStats  Output queue statistics for this factory's sessions.
      */
     HTTPMessageHandlerFactory(MessageHandlerFactory innerFactory,
                               String rootURI, HTTPFramer httpFramer,
-                              NetworkManager manager)
+                              NetworkManager manager,
+                              OutputQueueStats queueStats)
     {
         myInnerFactory = innerFactory;
         myRootURI = "/" + rootURI + "/";
@@ -81,6 +86,7 @@ class HTTPMessageHandlerFactory implements MessageHandlerFactory {
             new HashMap<Connection, HTTPSessionConnection>();
         myHTTPFramer = httpFramer;
         myManager = manager;
+        myQueueStats = queueStats;
 
         BootProperties props = manager.props();
 
@@ -399,6 +405,15 @@ class HTTPMessageHandlerFactory implements MessageHandlerFactory {
     NetworkManager networkManager() {
         return myManager;
     }
+
+    /**
+     * Get the output queue statistics collector for this factory's sessions.
+     *
+     * @return this factory's output queue statistics.
+     */
+    OutputQueueStats queueStats() {
+        return myQueueStats;
+    }
     
     /**
      * Provide a message handler for a new (HTTP over TCP) connection.
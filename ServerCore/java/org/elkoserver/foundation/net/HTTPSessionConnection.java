@@ -4,7 +4,6 @@ import java.security.SecureRandom;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
-import org.elkoserver.foundation.run.Queue;
 import org.elkoserver.foundation.timer.Clock;
 import org.elkoserver.foundation.timer.TickNoticer;
 import org.elkoserver.foundation.timer.Timer;
@@ -32,7 +31,7 @@ public class HTTPSessionConnection extends ConnectionBase
     private int myXmitSequenceNumber;
 
     /** Queue of outgoing messages awaiting retrieval by the client. */
-    private Queue myQueue;
+    private OutputQueue myQueue;
 
     /** Flag indicating that connection is in the midst of shutting down. */
     private boolean amClosing;
@@ -117,7 +116,8 @@ public class HTTPSessionConnection extends ConnectionBase
         mySelectSequenceNumber = 1;
         myXmitSequenceNumber = 1;
         clearDownstreamConnection();
-        myQueue = new Queue();
+        myQueue = sessionFactory.networkManager().makeOutputQueue(
+            sessionFactory.queueStats());
         myHTTPFramer = mySessionFactory.httpFramer();
         amClosing = false;
 
@@ -381,7 +381,7 @@ public class HTTPSessionConnection extends ConnectionBase
             boolean start = true;
             boolean end;
             do {
-                Object message = myQueue.nextElement();
+                Object message = myQueue.optDequeue();
                 end = !myQueue.hasMoreElements();
                 if (trMsg.event && Trace.ON) {
                     trMsg.msgi(this + ":" + downstreamConnection, false,
@@ -435,7 +435,13 @@ public class HTTPSessionConnection extends ConnectionBase
         } else {
             /* If there *is not* a pending select request, put the message on
                the outgoing message queue. */
-            myQueue.enqueue(message);
+            if (!myQueue.enqueue(message)) {
+                /* The client isn't collecting its messages fast enough and
+                   the backlog can't be trimmed back within budget. */
+                Trace.comm.eventm(this + " queue backlog limit exceeded");
+                myQueue.clear();
+                close();
+            }
         }
     }
 
@@ -13,17 +13,35 @@ import org.elkoserver.util.trace.Trace;
  * then parsed for JSON messages that are fed to the receiver.
  *
  * <p>On output, each message being sent is framed according to this rule.
+ *
+ * <p>The framers this factory provides locate message boundaries by scanning
+ * the received bytes directly; see {@link JSONScanningByteIOFramer}.
  */
 public class JSONByteIOFramerFactory implements ByteIOFramerFactory {
     private Trace trMsg;
 
+    /** Limits on the messages the framers will accept. */
+    private MessageLimits myLimits;
+
     /**
      * Constructor.
      *
      * @param msgTrace  Trace object for logging message traffic.
      */
     public JSONByteIOFramerFactory(Trace msgTrace) {
+        this(msgTrace, MessageLimits.DEFAULT_LIMITS);
+    }
+
+    /**
+     * Constructor for a factory whose framers enforce particular limits on
+     * the messages they receive.
+     *
+     * @param msgTrace  Trace object for logging message traffic.
+     * @param limits  Limits on the messages that will be accepted.
+     */
+    public JSONByteIOFramerFactory(Trace msgTrace, MessageLimits limits) {
         trMsg = msgTrace;
+        myLimits = limits;
     }
 
     /**
@@ -33,6 +51,7 @@ public class JSONByteIOFramerFactory implements ByteIOFramerFactory {
      * @param label  A printable label identifying the associated connection.
      */
     public ByteIOFramer provideFramer(MessageReceiver receiver, String label) {
-        return new JSONByteIOFramer(trMsg, receiver, label);
+        return new JSONScanningByteIOFramer(trMsg, receiver, label,
+                                            myLimits);
     }
 }
@@ -0,0 +1,344 @@
+package org.elkoserver.foundation.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.elkoserver.json.JSONLiteral;
+import org.elkoserver.json.JSONObject;
+import org.elkoserver.json.SyntaxError;
+import org.elkoserver.json.UTF8Parser;
+import org.elkoserver.util.trace.Trace;
+
+/**
+ * I/O framer implementation for JSON messages that works directly on the
+ * received bytes.
+ *
+ * The framing rule is the same as that of {@link JSONByteIOFramer}: a message
+ * block is terminated by an empty line (two successive newlines, the second
+ * optionally preceded by a carriage return).  However, rather than reading
+ * its input a character and a line at a time, this framer scans each buffer
+ * of received bytes for message boundaries in a single pass and hands each
+ * complete block, as one byte range, to be decoded and parsed.  In the common
+ * case, where the buffer received from the network contains whole messages,
+ * the bytes are not copied at all; only the trailing partial message (if any)
+ * is saved, in a reusable per-framer accumulator, to await the rest of its
+ * bytes.
+ */
+public class JSONScanningByteIOFramer implements ByteIOFramer {
+    /** The message receiver input is being framed for. */
+    private MessageReceiver myReceiver;
+
+    /** A label for the connection, for logging. */
+    private String myLabel;
+
+    /** Bytes of a partially received message block, or null if none have
+        needed saving. */
+    private byte[] myPartial;
+
+    /** Number of bytes in myPartial that are in use. */
+    private int myPartialLength;
+
+    /** Position in myPartial up to which a boundary has already been searched
+        for without success. */
+    private int myPartialScanned;
+
+    /** Trace object for logging message traffic. */
+    private Trace trMsg;
+
+    /** Limits on the messages that will be accepted. */
+    private MessageLimits myLimits;
+
+    /** Largest accumulator array that will be held onto once it has been
+        emptied. */
+    private static final int MAX_IDLE_PARTIAL = 512;
+
+    /**
+     * Constructor.
+     *
+     * @param msgTrace  Trace object for logging message traffic.
+     * @param receiver  Object to deliver received messages to.
+     * @param label  A printable label identifying the associated connection.
+     */
+    public JSONScanningByteIOFramer(Trace msgTrace, MessageReceiver receiver,
+                                    String label)
+    {
+        this(msgTrace, receiver, label, MessageLimits.DEFAULT_LIMITS);
+    }
+
+    /**
+     * Constructor for a framer that enforces particular limits on the
+     * messages it receives.
+     *
+     * @param msgTrace  Trace object for logging message traffic.
+     * @param receiver  Object to deliver received messages to.
+     * @param label  A printable label identifying the associated connection.
+     * @param limits  Limits on the messages that will be accepted.
+     */
+    public JSONScanningByteIOFramer(Trace msgTrace, MessageReceiver receiver,
+                                    String label, MessageLimits limits)
+    {
+        trMsg = msgTrace;
+        myReceiver = receiver;
+        myLabel = label;
+        myLimits = limits;
+        myPartial = null;
+        myPartialLength = 0;
+        myPartialScanned = 0;
+    }
+
+    /**
+     * Process bytes of data received.
+     *
+     * @param data   The bytes received.
+     * @param length  Number of usable bytes in 'data'.  End of input is
+     *    indicated by passing a 'length' value of 0.
+     */
+    public void receiveBytes(byte[] data, int length) throws IOException {
+        if (length == 0) {
+            if (myPartialLength > 0) {
+                throw new IOException("undecodeable bytes left over");
+            }
+            return;
+        }
+        int start = 0;
+        if (myPartialLength > 0) {
+            /* Finish the partial block using the new bytes, then carry on
+               with whatever remains in the new buffer. */
+            int end = findBoundary(data, 0, length, true);
+            if (end < 0) {
+                appendPartial(data, 0, length);
+                return;
+            }
+            appendPartial(data, 0, end);
+            processBlock(myPartial, 0, myPartialLength);
+            myPartialLength = 0;
+            myPartialScanned = 0;
+            if (myPartial.length > MAX_IDLE_PARTIAL) {
+                myPartial = null;
+            }
+            start = end;
+        }
+        while (start < length) {
+            int end = findBoundary(data, start, length, false);
+            if (end < 0) {
+                appendPartial(data, start, length - start);
+                return;
+            }
+            processBlock(data, start, end - start);
+            start = end;
+        }
+    }
+
+    /**
+     * Search for the end of a message block.
+     *
+     * @param data  Bytes to search.
+     * @param start  Index of the first byte to examine.
+     * @param limit  Index just past the last byte to examine.
+     * @param continuing  If true, 'data' continues the saved partial block,
+     *    so that a boundary may straddle the two.
+     *
+     * @return the index just past the empty line terminating the block, or -1
+     *    if there is no boundary in the bytes examined.
+     */
+    private int findBoundary(byte[] data, int start, int limit,
+                             boolean continuing)
+    {
+        /* 'state' tracks how much of a boundary has been seen: 0 = nothing,
+           1 = a newline, 2 = a newline followed by a carriage return. */
+        int state = 0;
+        if (continuing) {
+            for (int i = myPartialScanned; i < myPartialLength; ++i) {
+                state = nextBoundaryState(state, myPartial[i]);
+            }
+        }
+        for (int i = start; i < limit; ++i) {
+            byte b = data[i];
+            if (b == '\n') {
+                if (state != 0) {
+                    return i + 1;
+                }
+                state = 1;
+            } else if (b == '\r' && state == 1) {
+                state = 2;
+            } else {
+                state = 0;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Advance the boundary search state by one byte.  The search state is
+     * only carried across buffers, so this need not be fast.
+     *
+     * @param state  The current search state.
+     * @param b  The next byte.
+     *
+     * @return the new search state.
+     */
+    private static int nextBoundaryState(int state, byte b) {
+        if (b == '\n') {
+            return 1;
+        } else if (b == '\r' && state == 1) {
+            return 2;
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Save bytes of a partially received block until the rest arrives.
+     *
+     * @param data  Array containing the bytes to save.
+     * @param offset  Index of the first byte to save.
+     * @param length  Number of bytes to save.
+     */
+    private void appendPartial(byte[] data, int offset, int length)
+        throws IOException
+    {
+        int needed = myPartialLength + length;
+        if (needed > myLimits.maxLength()) {
+            throw new IOException("input too large (limit " +
+                myLimits.maxLength() + " bytes)");
+        }
+        if (myPartial == null || needed > myPartial.length) {
+            int size = myPartial == null ? 0 : myPartial.length * 2;
+            byte[] newPartial = new byte[Math.max(size, needed)];
+            if (myPartialLength > 0) {
+                System.arraycopy(myPartial, 0, newPartial, 0,
+                                 myPartialLength);
+            }
+            myPartial = newPartial;
+        }
+        System.arraycopy(data, offset, myPartial, myPartialLength, length);
+        myPartialLength = needed;
+        /* Only the last two bytes can matter to a boundary that straddles
+           this block and the next buffer. */
+        myPartialScanned = Math.max(0, myPartialLength - 2);
+    }
+
+    /**
+     * Decode and parse a complete message block, delivering the messages in
+     * it to the receiver.
+     *
+     * @param data  Array containing the block.
+     * @param offset  Index of the first byte of the block.
+     * @param length  Number of bytes in the block.
+     */
+    private void processBlock(byte[] data, int offset, int length)
+        throws IOException
+    {
+        deliverMessages(data, offset, length, myReceiver, trMsg, myLabel,
+                        myLimits);
+    }
+
+    /**
+     * Parse a block of UTF-8 encoded JSON messages, delivering the messages
+     * in it to a receiver.  This is shared by the framers that carry blocks
+     * of JSON messages in some byte-level framing of their own.  The bytes are
+     * parsed directly; they are only decoded into a String if message traffic
+     * is being logged.  Objects nested inside the messages are left unparsed
+     * until a message handler looks at them, since many (such as the payloads
+     * of relay messages) are only passed along.  A message that breaks the
+     * given limits is rejected, along with the rest of the block, as soon as
+     * the parser sees the problem.
+     *
+     * @param data  Array containing the block.
+     * @param offset  Index of the first byte of the block.
+     * @param length  Number of bytes in the block.
+     * @param receiver  Object to deliver the messages to.
+     * @param trMsg  Trace object for logging message traffic.
+     * @param label  A printable label identifying the associated connection.
+     * @param limits  Limits on the messages that will be accepted.
+     */
+    static void deliverMessages(byte[] data, int offset, int length,
+                                MessageReceiver receiver, Trace trMsg,
+                                String label, MessageLimits limits)
+        throws IOException
+    {
+        if (length > limits.maxLength()) {
+            throw new IOException("input too large (limit " +
+                limits.maxLength() + " bytes)");
+        }
+        if (trMsg.event) {
+            trMsg.msgi(label, true, new String(data, offset, length, "UTF-8"));
+        }
+        UTF8Parser parser = limits.parser(data, offset, length);
+        parser.setDeferNestedObjects(true);
+        while (parser != null) {
+            try {
+                JSONObject obj = parser.parseObjectLiteral();
+                if (obj == null) {
+                    parser = null;
+                } else {
+                    receiver.receiveMsg(obj);
+                }
+            } catch (SyntaxError e) {
+                parser = null;
+                if (NetworkManager.TheDebugReplyFlag) {
+                    receiver.receiveMsg(e);
+                }
+                if (trMsg.warning) {
+                    trMsg.warningm("syntax error in JSON message: " +
+                                   e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Generate the bytes for writing a message to a connection.
+     *
+     * @param message  The message to be written.  In this implementation,
+     *    the message must be a string, a JSONLiteral, or a JSONObject.
+     *
+     * @return a byte array containing the writable form of 'message'.
+     */
+    public byte[] produceBytes(Object message) throws IOException {
+        ByteBuffer body = messageBytes(message, trMsg, myLabel);
+        int length = body.remaining();
+        byte[] frame = new byte[length + 2];
+        body.get(frame, 0, length);
+        frame[length] = '\n';
+        frame[length + 1] = '\n';
+        return frame;
+    }
+
+    /**
+     * Obtain the UTF-8 encoded bytes of a JSON message, logging it if message
+     * traffic is being logged.  A JSONLiteral's bytes are taken directly from
+     * the literal, so that in the usual case the message is never converted
+     * into a String at all.  This is shared by the framers that carry JSON
+     * messages in some byte-level framing of their own.
+     *
+     * @param message  The message to be written, which must be a string, a
+     *    JSONLiteral, or a JSONObject.
+     * @param trMsg  Trace object for logging message traffic.
+     * @param label  A printable label identifying the associated connection.
+     *
+     * @return a buffer whose remaining bytes are the encoded message.
+     */
+    static ByteBuffer messageBytes(Object message, Trace trMsg, String label)
+        throws IOException
+    {
+        if (message instanceof JSONLiteral) {
+            JSONLiteral literal = (JSONLiteral) message;
+            if (trMsg.event) {
+                trMsg.msgi(label, false, literal.sendableString());
+            }
+            return literal.sendableBytes();
+        }
+        String messageString;
+        if (message instanceof JSONObject) {
+            messageString = ((JSONObject) message).sendableString();
+        } else if (message instanceof String) {
+            messageString = (String) message;
+        } else {
+            throw new IOException("invalid message object class for write");
+        }
+        if (trMsg.event) {
+            trMsg.msgi(label, false, messageString);
+        }
+        return ByteBuffer.wrap(messageString.getBytes("UTF-8"));
+    }
+}
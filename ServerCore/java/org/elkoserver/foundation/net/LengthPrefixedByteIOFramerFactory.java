@@ -0,0 +1,257 @@
+package org.elkoserver.foundation.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.elkoserver.util.trace.Trace;
+
+/**
+ * Byte I/O framer factory for JSON messaging between servers over a byte
+ * stream, with each message carried in a frame that announces its own
+ * length.
+ *
+ * <p>The text framing used with clients ({@link JSONByteIOFramerFactory})
+ * must examine every byte received to find the blank lines that separate
+ * messages.  Between trusted servers, which may move a great deal of data
+ * (e.g., object state to and from the repository), it is cheaper to simply
+ * say how long each message is.  Each frame consists of a four byte header
+ * followed by a body.  The first byte of the header gives the body's
+ * encoding and the remaining three give the length of the body, in bytes,
+ * most significant byte first.  Currently the only encoding is {@link
+ * #FRAME_JSON}, a body of one or more JSON messages encoded in UTF-8; other
+ * values are reserved for more compact encodings.
+ *
+ * <p>Connections using this framing are designated by the protocol name
+ * "ltcp" (for "length-prefixed TCP").
+ */
+public class LengthPrefixedByteIOFramerFactory implements ByteIOFramerFactory {
+    /** Trace object for logging message traffic. */
+    private Trace trMsg;
+
+    /** Limits on the messages the framers will accept. */
+    private MessageLimits myLimits;
+
+    /** Frame encoding code for UTF-8 encoded JSON text. */
+    static final int FRAME_JSON = 0;
+
+    /** Number of bytes in a frame header. */
+    static final int HEADER_LENGTH = 4;
+
+    /** Largest body length that a frame header can express. */
+    static final int MAX_FRAME_LENGTH = 0xFFFFFF;
+
+    /**
+     * Constructor.
+     *
+     * @param msgTrace  Trace object for logging message traffic.
+     */
+    public LengthPrefixedByteIOFramerFactory(Trace msgTrace) {
+        this(msgTrace, MessageLimits.DEFAULT_LIMITS);
+    }
+
+    /**
+     * Constructor for a factory whose framers enforce particular limits on
+     * the messages they receive.
+     *
+     * @param msgTrace  Trace object for logging message traffic.
+     * @param limits  Limits on the messages that will be accepted.
+     */
+    public LengthPrefixedByteIOFramerFactory(Trace msgTrace,
+                                             MessageLimits limits)
+    {
+        trMsg = msgTrace;
+        myLimits = limits;
+    }
+
+    /**
+     * Provide an I/O framer for a new connection.
+     *
+     * @param receiver  Object to deliver received messages to.
+     * @param label  A printable label identifying the associated connection.
+     */
+    public ByteIOFramer provideFramer(MessageReceiver receiver, String label) {
+        return new LengthPrefixedFramer(receiver, label);
+    }
+
+    /**
+     * I/O framer implementation for length-prefixed frames.
+     */
+    private class LengthPrefixedFramer implements ByteIOFramer {
+        /** The message receiver input is being framed for. */
+        private MessageReceiver myReceiver;
+
+        /** A label for the connection, for logging. */
+        private String myLabel;
+
+        /** Bytes of a partially received frame header. */
+        private byte[] myHeader;
+
+        /** Number of bytes of header received so far. */
+        private int myHeaderCount;
+
+        /** Body of a partially received frame, or null if no body is in
+            progress. */
+        private byte[] myBody;
+
+        /** Number of bytes of myBody received so far. */
+        private int myBodyCount;
+
+        /** Encoding of the frame whose body is in progress. */
+        private int myBodyType;
+
+        /**
+         * Constructor.
+         *
+         * @param receiver  Object to deliver received messages to.
+         * @param label  Printable label identifying the connection.
+         */
+        LengthPrefixedFramer(MessageReceiver receiver, String label) {
+            myReceiver = receiver;
+            myLabel = label;
+            myHeader = new byte[HEADER_LENGTH];
+            myHeaderCount = 0;
+            myBody = null;
+            myBodyCount = 0;
+        }
+
+        /**
+         * Process bytes of data received.
+         *
+         * @param data   The bytes received.
+         * @param length  Number of usable bytes in 'data'.  End of input is
+         *    indicated by passing a 'length' value of 0.
+         */
+        public void receiveBytes(byte[] data, int length) throws IOException {
+            if (length == 0) {
+                if (myHeaderCount > 0 || myBody != null) {
+                    throw new IOException("undecodeable bytes left over");
+                }
+                return;
+            }
+            int pos = 0;
+            while (pos < length) {
+                if (myBody != null) {
+                    /* Continue a frame whose body straddles buffers. */
+                    int count = Math.min(length - pos,
+                                         myBody.length - myBodyCount);
+                    System.arraycopy(data, pos, myBody, myBodyCount, count);
+                    myBodyCount += count;
+                    pos += count;
+                    if (myBodyCount == myBody.length) {
+                        byte[] body = myBody;
+                        myBody = null;
+                        processFrame(myBodyType, body, 0, body.length);
+                    }
+                } else if (myHeaderCount > 0 ||
+                           length - pos < HEADER_LENGTH) {
+                    /* Accumulate a header that straddles buffers. */
+                    while (pos < length && myHeaderCount < HEADER_LENGTH) {
+                        myHeader[myHeaderCount++] = data[pos++];
+                    }
+                    if (myHeaderCount == HEADER_LENGTH) {
+                        myHeaderCount = 0;
+                        beginBody(myHeader, 0);
+                    }
+                } else {
+                    /* A whole header is at hand; if the whole body is too,
+                       it can be processed straight out of the input
+                       buffer. */
+                    int type = data[pos] & 0xFF;
+                    int bodyLength = frameLength(data, pos);
+                    pos += HEADER_LENGTH;
+                    if (length - pos >= bodyLength) {
+                        processFrame(type, data, pos, bodyLength);
+                        pos += bodyLength;
+                    } else {
+                        beginBody(data, pos - HEADER_LENGTH);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Start accumulating the body of a frame whose header has been
+         * received.
+         *
+         * @param header  Array containing the frame header.
+         * @param offset  Index of the header within 'header'.
+         */
+        private void beginBody(byte[] header, int offset) throws IOException {
+            myBodyType = header[offset] & 0xFF;
+            int bodyLength = frameLength(header, offset);
+            if (bodyLength == 0) {
+                processFrame(myBodyType, header, offset, 0);
+            } else {
+                myBody = new byte[bodyLength];
+                myBodyCount = 0;
+            }
+        }
+
+        /**
+         * Extract and check the body length from a frame header.
+         *
+         * @param header  Array containing the frame header.
+         * @param offset  Index of the header within 'header'.
+         *
+         * @return the length of the frame body.
+         */
+        private int frameLength(byte[] header, int offset)
+            throws IOException
+        {
+            int bodyLength = ((header[offset + 1] & 0xFF) << 16) |
+                             ((header[offset + 2] & 0xFF) << 8) |
+                             (header[offset + 3] & 0xFF);
+            if (bodyLength > myLimits.maxLength()) {
+                throw new IOException("input too large (limit " +
+                    myLimits.maxLength() + " bytes)");
+            }
+            return bodyLength;
+        }
+
+        /**
+         * Decode the body of a complete frame and deliver the messages in it
+         * to the receiver.
+         *
+         * @param type  The frame's body encoding.
+         * @param data  Array containing the body.
+         * @param offset  Index of the first byte of the body.
+         * @param length  Number of bytes in the body.
+         */
+        private void processFrame(int type, byte[] data, int offset,
+                                  int length)
+            throws IOException
+        {
+            if (type == FRAME_JSON) {
+                JSONScanningByteIOFramer.deliverMessages(data, offset, length,
+                    myReceiver, trMsg, myLabel, myLimits);
+            } else {
+                throw new IOException("unknown frame encoding " + type);
+            }
+        }
+
+        /**
+         * Generate the bytes for writing a message to a connection.
+         *
+         * @param message  The message to be written.  In this
+         *    implementation, the message must be a string, a JSONLiteral, or
+         *    a JSONObject.
+         *
+         * @return a byte array containing the writable form of 'message'.
+         */
+        public byte[] produceBytes(Object message) throws IOException {
+            ByteBuffer body = JSONScanningByteIOFramer.messageBytes(message,
+                trMsg, myLabel);
+            int length = body.remaining();
+            if (length > MAX_FRAME_LENGTH) {
+                throw new IOException("message too large to frame (" +
+                                      length + " bytes)");
+            }
+            byte[] frame = new byte[HEADER_LENGTH + length];
+            frame[0] = (byte) FRAME_JSON;
+            frame[1] = (byte) (length >> 16);
+            frame[2] = (byte) (length >> 8);
+            frame[3] = (byte) length;
+            body.get(frame, HEADER_LENGTH, length);
+            return frame;
+        }
+    }
+}
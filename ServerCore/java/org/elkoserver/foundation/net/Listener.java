@@ -32,9 +32,6 @@ class Listener {
     /** The channel doing the actual listening. */
     private ServerSocketChannel myChannel;
 
-    /** The thread that does select calls on behalf of this listener. */
-    private SelectThread mySelectThread;
-
     /** Listener is expecting SSL connections. */
     private boolean amSecure;
 
@@ -44,6 +41,9 @@ class Listener {
     /** Trace object this listener should use. */
     private Trace myTrace;
 
+    /** Output queue statistics for connections made to this listener. */
+    private OutputQueueStats myQueueStats;
+
     /**
      * Constructor.
      *
@@ -57,14 +57,15 @@ class Listener {
      * @param secure  If true, use SSL.
      * @param portTrace  Trace object for logging activity associated with this
      *   port & its connections
+     * @param queueStats  Output queue statistics for this port's connections.
      */
     Listener(String localAddress, MessageHandlerFactory handlerFactory,
              ByteIOFramerFactory framerFactory, NetworkManager mgr,
-             boolean secure, Trace portTrace)
+             boolean secure, Trace portTrace, OutputQueueStats queueStats)
         throws UnknownHostException, IOException
     {
-        mySelectThread = null;
         myHandlerFactory = handlerFactory;
+        myQueueStats = queueStats;
         myFramerFactory = framerFactory;
         myMgr = mgr;
         myTrace = portTrace;
@@ -98,8 +99,10 @@ class Listener {
             SocketChannel newChannel = myChannel.accept();
             if (newChannel != null) {
                 myMgr.connectionCount(1);
-                mySelectThread.newChannel(myHandlerFactory, myFramerFactory,
-                                          newChannel, amSecure, myTrace);
+                SelectThread ioThread = myMgr.chooseSelectThread();
+                ioThread.adoptChannel(myHandlerFactory, myFramerFactory,
+                                      newChannel, amSecure, myTrace,
+                                      myQueueStats);
             } else {
                 myTrace.usagem("accept returned null socket, ignoring");
             }
@@ -127,15 +130,14 @@ class Listener {
     /**
      * Register this listener with a selector.
      *
-     * This *must* be run from inside the select thread.
+     * This *must* be run from inside the select thread that owns 'selector'.
+     * Connections accepted by this listener will be handed off to whichever
+     * select thread the network manager chooses to service them, which need
+     * not be the one doing the accepting.
      *
-     * @param selectThread  The select thread that is managing this listener
      * @param selector  The selector to register with
      */
-    void register(SelectThread selectThread, Selector selector)
-        throws ClosedChannelException
-    {
-        mySelectThread = selectThread;
+    void register(Selector selector) throws ClosedChannelException {
         SelectionKey key =
             myChannel.register(selector, SelectionKey.OP_ACCEPT);
         key.attach(this);
@@ -0,0 +1,126 @@
+package org.elkoserver.foundation.net;
+
+import org.elkoserver.foundation.boot.BootProperties;
+import org.elkoserver.foundation.json.MessageSchema;
+import org.elkoserver.json.BinaryDecoder;
+import org.elkoserver.json.MessageValidator;
+import org.elkoserver.json.UTF8Parser;
+
+/**
+ * The limits placed on the messages received on the connections made to a
+ * listener, so that junk traffic can be turned away as cheaply as possible.
+ *
+ * Besides the limit on the size of each message (or, for framings that
+ * don't delimit individual messages, each block of messages), there can be
+ * limits on how deeply objects and arrays may be nested in a message and on
+ * how many members any object or array may have, and messages can be checked
+ * against the schema of the verbs the server handles (see {@link
+ * MessageSchema}).  The parser applies all of these while it is parsing, so
+ * a bad message is rejected as soon as what is wrong with it has been seen.
+ */
+public class MessageLimits {
+    /** Largest message, in bytes, that will be accepted. */
+    private int myMaxLength;
+
+    /** Deepest nesting of objects and arrays allowed, or 0 for no limit. */
+    private int myMaxDepth;
+
+    /** Most members an object or array may have, or 0 for no limit. */
+    private int myMaxMembers;
+
+    /** Validator to check messages with, or null for none. */
+    private MessageValidator myValidator;
+
+    /** The limits that apply when none have been configured. */
+    static final MessageLimits DEFAULT_LIMITS =
+        new MessageLimits(NetworkManager.MAX_MSG_LENGTH, 0, 0, null);
+
+    /**
+     * Constructor.
+     *
+     * @param maxLength  Largest message, in bytes, that will be accepted.
+     * @param maxDepth  Deepest nesting of objects and arrays allowed, or 0
+     *    for no limit.
+     * @param maxMembers  Most properties an object, or elements an array,
+     *    may have, or 0 for no limit.
+     * @param validator  Validator to check messages with, or null for none.
+     */
+    public MessageLimits(int maxLength, int maxDepth, int maxMembers,
+                         MessageValidator validator)
+    {
+        myMaxLength = maxLength;
+        myMaxDepth = maxDepth;
+        myMaxMembers = maxMembers;
+        myValidator = validator;
+    }
+
+    /**
+     * Create a new MessageLimits object from properties describing a
+     * listener.  The properties examined are:
+     *
+     *    propRoot + ".maxmsglength" (default {@link
+     *        NetworkManager#MAX_MSG_LENGTH})
+     *    propRoot + ".maxmsgdepth" (default no limit)
+     *    propRoot + ".maxmsgprops" (default no limit)
+     *    propRoot + ".validate", which may be "true" to check messages whose
+     *        verbs are in the schema or "strict" to also reject messages
+     *        whose verbs are not (default no checking).
+     *
+     * @param props  Properties to examine.
+     * @param propRoot  Prefix for the listener's properties.
+     *
+     * @return the limits described by the properties.
+     */
+    public static MessageLimits fromProperties(BootProperties props,
+                                               String propRoot)
+    {
+        int maxLength = props.intProperty(propRoot + ".maxmsglength",
+                                          NetworkManager.MAX_MSG_LENGTH);
+        int maxDepth = props.intProperty(propRoot + ".maxmsgdepth", 0);
+        int maxMembers = props.intProperty(propRoot + ".maxmsgprops", 0);
+        MessageValidator validator = null;
+        if (props.testProperty(propRoot + ".validate", "strict")) {
+            validator = new MessageSchema(true);
+        } else if (props.testProperty(propRoot + ".validate")) {
+            validator = new MessageSchema(false);
+        }
+        return new MessageLimits(maxLength, maxDepth, maxMembers, validator);
+    }
+
+    /**
+     * Get the size of the largest message that will be accepted.
+     *
+     * @return the maximum message length, in bytes.
+     */
+    public int maxLength() {
+        return myMaxLength;
+    }
+
+    /**
+     * Produce a parser that applies these limits, for some received bytes.
+     *
+     * @param data  Array containing the UTF-8 encoded JSON text to be parsed.
+     * @param offset  Index of the first byte of the text in 'data'.
+     * @param length  Number of bytes of text.
+     *
+     * @return a parser for the text.
+     */
+    UTF8Parser parser(byte[] data, int offset, int length) {
+        UTF8Parser parser = new UTF8Parser(data, offset, length);
+        parser.setLimits(myMaxDepth, myMaxMembers);
+        parser.setValidator(myValidator);
+        return parser;
+    }
+
+    /**
+     * Produce a binary message decoder that applies these limits.
+     *
+     * @return a new decoder.
+     */
+    BinaryDecoder decoder() {
+        BinaryDecoder decoder = new BinaryDecoder();
+        decoder.setLimits(myMaxDepth, myMaxMembers);
+        decoder.setValidator(myValidator);
+        return decoder;
+    }
+}
@@ -6,12 +6,16 @@ import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import org.elkoserver.foundation.boot.BootProperties;
 import org.elkoserver.foundation.run.Runner;
+import org.elkoserver.foundation.timer.TickNoticer;
+import org.elkoserver.foundation.timer.Timer;
 import org.elkoserver.json.JSONLiteral;
 import org.elkoserver.util.trace.Trace;
 
@@ -19,7 +23,9 @@ import org.elkoserver.util.trace.Trace;
  * Manage network connections between this server and other entities.
  */
 public class NetworkManager {
-    /** Maximum length message that a connection will be able to receive. */
+    /** Maximum length message that a connection will be able to receive,
+        unless its listener has been configured otherwise (see {@link
+        MessageLimits}). */
     static public final int MAX_MSG_LENGTH = 1024*1024;
 
     /**
@@ -45,8 +51,92 @@ public class NetworkManager {
     /** Initialized SSL context, if supporting SSL, else null. */
     private SSLContext mySSLContext;
 
-    /** Select thread for non-blocking I/O. */
-    private SelectThread mySelectThread;
+    /** Select threads for non-blocking I/O, or null if not yet started. */
+    private SelectThread mySelectThreads[];
+
+    /** Select thread dedicated to accepting inbound connections, or null if
+        listeners share the select threads that do connection I/O. */
+    private SelectThread myAcceptThread;
+
+    /** Number of select threads to share connection I/O across. */
+    private int mySelectThreadCount;
+
+    /** Flag that connections should be assigned to the select thread with the
+        fewest connections, rather than round-robin. */
+    private boolean amBalancingByLoad;
+
+    /** Flag that listeners should have a select thread of their own. */
+    private boolean amUsingAcceptThread;
+
+    /** Index of the select thread to assign the next connection to, when
+        assigning round-robin. */
+    private int myNextSelectThread;
+
+    /** Maximum number of messages to send in one gathering write. */
+    private int myWriteBatchLimit;
+
+    /** Number of bytes beyond which no more messages are added to an output
+        batch. */
+    private int myWriteBatchBytes;
+
+    /** Size of the buffers output batches are assembled in. */
+    private int myOutputBufferSize;
+
+    /** Maximum number of idle output buffers each select thread retains. */
+    private int myOutputBufferPoolSize;
+
+    /** Size of the buffers connections read into. */
+    private int myInputBufferSize;
+
+    /** Maximum number of idle input buffers each select thread retains. */
+    private int myInputBufferPoolSize;
+
+    /** Interval between communications statistics reports, in seconds, or 0
+        if statistics are not to be reported. */
+    private int myStatsInterval;
+
+    /** Time limit for outbound connections to be made, in milliseconds, or 0
+        if there is no limit. */
+    private int myConnectTimeout;
+
+    /** Byte budget for each connection's outbound message queue, or 0 if
+        queues are unbounded. */
+    private int myOutputQueueLimit;
+
+    /** Policy to apply to connections that exceed their output queue budget,
+        one of the OutputQueue.POLICY_ constants. */
+    private int myOutputQueuePolicy;
+
+    /** Output queue statistics for each listener, plus one for outbound
+        connections. */
+    private List<OutputQueueStats> myOutputQueueStats;
+
+    /** Output queue statistics for outbound connections. */
+    private OutputQueueStats myOutboundQueueStats;
+
+    /** Default outbound connection time limit, in seconds. */
+    private static final int DEFAULT_CONNECT_TIMEOUT = 15;
+
+    /** Default maximum number of messages per output batch. */
+    private static final int DEFAULT_WRITE_BATCH_LIMIT = 64;
+
+    /** Default byte threshold for output batches. */
+    private static final int DEFAULT_WRITE_BATCH_BYTES = 64 * 1024;
+
+    /** Default output buffer size. */
+    private static final int DEFAULT_OUTPUT_BUFFER_SIZE = 16 * 1024;
+
+    /** Default number of idle output buffers retained per select thread. */
+    private static final int DEFAULT_OUTPUT_BUFFER_POOL_SIZE = 64;
+
+    /** Default input buffer size. */
+    private static final int DEFAULT_INPUT_BUFFER_SIZE = 16 * 1024;
+
+    /** Default number of idle input buffers retained per select thread.
+        Since connections only hold input buffers for the duration of a read,
+        and each select thread only reads one connection at a time, very few
+        are ever needed. */
+    private static final int DEFAULT_INPUT_BUFFER_POOL_SIZE = 2;
 
     /** Connection managers, indexed by class name. */
     private Map<String, ConnectionManager> myConnectionManagers;
@@ -69,7 +159,71 @@ public class NetworkManager {
         myConnectionManagers = new HashMap<String, ConnectionManager>();
         HTTPSessionConnection.initializeRNG();
         myLoadMonitor = loadMonitor;
-        mySelectThread = null;
+        mySelectThreads = null;
+        myAcceptThread = null;
+        myNextSelectThread = 0;
+
+        mySelectThreadCount = props.intProperty("conf.comm.selectors", 1);
+        if (mySelectThreadCount < 1) {
+            Trace.comm.warningm("conf.comm.selectors must be at least 1, " +
+                                "using 1");
+            mySelectThreadCount = 1;
+        }
+        amBalancingByLoad =
+            props.testProperty("conf.comm.selectpolicy", "leastloaded");
+        amUsingAcceptThread = props.testProperty("conf.comm.acceptor");
+
+        myWriteBatchLimit = props.intProperty("conf.comm.writebatch",
+                                              DEFAULT_WRITE_BATCH_LIMIT);
+        if (myWriteBatchLimit < 1) {
+            myWriteBatchLimit = 1;
+        }
+        myWriteBatchBytes = props.intProperty("conf.comm.writebatchbytes",
+                                              DEFAULT_WRITE_BATCH_BYTES);
+        myOutputBufferSize = props.intProperty("conf.comm.outbufsize",
+                                               DEFAULT_OUTPUT_BUFFER_SIZE);
+        if (myOutputBufferSize < 1024) {
+            myOutputBufferSize = 1024;
+        }
+        myOutputBufferPoolSize =
+            props.intProperty("conf.comm.outbufpool",
+                              DEFAULT_OUTPUT_BUFFER_POOL_SIZE);
+        if (myOutputBufferPoolSize < 0) {
+            myOutputBufferPoolSize = 0;
+        }
+        myInputBufferSize = props.intProperty("conf.comm.inbufsize",
+                                              DEFAULT_INPUT_BUFFER_SIZE);
+        if (myInputBufferSize < 1024) {
+            myInputBufferSize = 1024;
+        }
+        myInputBufferPoolSize =
+            props.intProperty("conf.comm.inbufpool",
+                              DEFAULT_INPUT_BUFFER_POOL_SIZE);
+        if (myInputBufferPoolSize < 0) {
+            myInputBufferPoolSize = 0;
+        }
+        myStatsInterval = props.intProperty("conf.comm.stats", 0);
+
+        myConnectTimeout = props.intProperty("conf.comm.connecttimeout",
+                                             DEFAULT_CONNECT_TIMEOUT) * 1000;
+        if (myConnectTimeout < 0) {
+            myConnectTimeout = 0;
+        }
+
+        myOutputQueueLimit = props.intProperty("conf.comm.outqueuelimit", 0);
+        if (myOutputQueueLimit < 0) {
+            myOutputQueueLimit = 0;
+        }
+        String policyName =
+            props.getProperty("conf.comm.outqueuepolicy", "disconnect");
+        myOutputQueuePolicy = OutputQueue.policyCode(policyName);
+        if (myOutputQueuePolicy == 0) {
+            Trace.comm.warningm("unknown conf.comm.outqueuepolicy '" +
+                                policyName + "', using 'disconnect'");
+            myOutputQueuePolicy = OutputQueue.POLICY_DISCONNECT;
+        }
+        myOutputQueueStats = new LinkedList<OutputQueueStats>();
+        myOutboundQueueStats = outputQueueStats("outbound");
 
         boolean jsonStrictness =
             props.boolProperty("conf.comm.jsonstrictness", true);
@@ -80,6 +234,107 @@ public class NetworkManager {
         }
     }
 
+    /**
+     * Get the maximum number of messages to send in a single write.
+     *
+     * @return the output batch message limit.
+     */
+    int writeBatchLimit() {
+        return myWriteBatchLimit;
+    }
+
+    /**
+     * Get the number of bytes beyond which no further messages will be added
+     * to an output batch.
+     *
+     * @return the output batch byte threshold.
+     */
+    int writeBatchBytes() {
+        return myWriteBatchBytes;
+    }
+
+    /**
+     * Get the size of the buffers into which input is read.
+     *
+     * @return the input buffer size, in bytes.
+     */
+    int inputBufferSize() {
+        return myInputBufferSize;
+    }
+
+    /**
+     * Get the number of idle input buffers each select thread should retain
+     * for reuse.
+     *
+     * @return the input buffer pool size.
+     */
+    int inputBufferPoolSize() {
+        return myInputBufferPoolSize;
+    }
+
+    /**
+     * Get the size of the buffers in which output is assembled.
+     *
+     * @return the output buffer size, in bytes.
+     */
+    int outputBufferSize() {
+        return myOutputBufferSize;
+    }
+
+    /**
+     * Get the number of idle output buffers each select thread should retain
+     * for reuse.
+     *
+     * @return the output buffer pool size.
+     */
+    int outputBufferPoolSize() {
+        return myOutputBufferPoolSize;
+    }
+
+    /**
+     * Get the time limit for making outbound connections.
+     *
+     * @return the connect timeout, in milliseconds, or 0 for no limit.
+     */
+    int connectTimeout() {
+        return myConnectTimeout;
+    }
+
+    /**
+     * Create a statistics collector for the output queues of a group of
+     * connections, and register it to be included in statistics reports.
+     *
+     * @param label  Label identifying the connections to be covered.
+     *
+     * @return a new output queue statistics collector.
+     */
+    synchronized OutputQueueStats outputQueueStats(String label) {
+        OutputQueueStats result = new OutputQueueStats(label);
+        myOutputQueueStats.add(result);
+        return result;
+    }
+
+    /**
+     * Get the output queue statistics collector for outbound connections.
+     *
+     * @return the outbound connections' output queue statistics.
+     */
+    OutputQueueStats outboundQueueStats() {
+        return myOutboundQueueStats;
+    }
+
+    /**
+     * Create a new outbound message queue for a connection, bounded
+     * according to this server's configuration.
+     *
+     * @param stats  Statistics collector for the connection's listener.
+     *
+     * @return a new output queue.
+     */
+    OutputQueue makeOutputQueue(OutputQueueStats stats) {
+        return new OutputQueue(myOutputQueueLimit, myOutputQueuePolicy, stats);
+    }
+
     /**
      * Keep track of the number of connections.
      *
@@ -141,8 +396,8 @@ public class NetworkManager {
                            ByteIOFramerFactory framerFactory, Trace trace)
     {
         connectionCount(1);
-        ensureSelectThread();
-        mySelectThread.connect(handlerFactory, framerFactory, hostPort, trace);
+        chooseSelectThread().connect(handlerFactory, framerFactory, hostPort,
+                                     trace);
     }
 
     /**
@@ -176,11 +431,129 @@ public class NetworkManager {
     }
 
     /**
-     * Start the select thread if it's not already running.
+     * Start the select threads if they're not already running.
+     */
+    private synchronized void ensureSelectThreads() {
+        if (mySelectThreads == null) {
+            mySelectThreads = new SelectThread[mySelectThreadCount];
+            if (mySelectThreadCount == 1) {
+                mySelectThreads[0] =
+                    new SelectThread(this, mySSLContext, "Elko Select");
+            } else {
+                for (int i = 0; i < mySelectThreadCount; ++i) {
+                    mySelectThreads[i] =
+                        new SelectThread(this, mySSLContext,
+                                         "Elko Select " + i);
+                }
+            }
+            if (amUsingAcceptThread) {
+                myAcceptThread =
+                    new SelectThread(this, mySSLContext, "Elko Accept");
+            } else {
+                myAcceptThread = mySelectThreads[0];
+            }
+            if (mySelectThreadCount > 1 || amUsingAcceptThread) {
+                Trace.comm.noticei("using " + mySelectThreadCount +
+                    " select threads (" +
+                    (amBalancingByLoad ? "least loaded" : "round robin") +
+                    " assignment" +
+                    (amUsingAcceptThread ? ", dedicated acceptor" : "") +
+                    ")");
+            }
+            if (myStatsInterval > 0) {
+                Timer.theTimer().every(myStatsInterval * 1000,
+                    new TickNoticer() {
+                        public void noticeTick(int ticks) {
+                            reportStats();
+                        }
+                    }).start();
+            }
+        }
+    }
+
+    /**
+     * Log the current values of the communications statistics counters,
+     * cumulative over all the select threads, as metrics messages.
+     */
+    public synchronized void reportStats() {
+        if (mySelectThreads == null) {
+            return;
+        }
+        long batches = 0;
+        long batchMessages = 0;
+        long batchBytes = 0;
+        long inRequests = 0;
+        long inMisses = 0;
+        int inIdle = 0;
+        long outRequests = 0;
+        long outMisses = 0;
+        int outIdle = 0;
+        for (SelectThread thread : mySelectThreads) {
+            batches += thread.batchCount();
+            batchMessages += thread.batchMessageCount();
+            batchBytes += thread.batchByteCount();
+            BufferPool pool = thread.inputBufferPool();
+            inRequests += pool.acquireCount();
+            inMisses += pool.missCount();
+            inIdle += pool.idleCount();
+            pool = thread.outputBufferPool();
+            outRequests += pool.acquireCount();
+            outMisses += pool.missCount();
+            outIdle += pool.idleCount();
+        }
+        Trace.comm.metrics("comm.write.batches", 0, batches);
+        Trace.comm.metrics("comm.write.messages", 0, batchMessages);
+        Trace.comm.metrics("comm.write.bytes", 0, batchBytes);
+        if (batches > 0) {
+            Trace.comm.metrics("comm.write.batchsize", 0,
+                               (double) batchMessages / batches);
+            Trace.comm.metrics("comm.write.bytesperflush", 0,
+                               (double) batchBytes / batches);
+        }
+        Trace.comm.metrics("comm.inbuf.requests", 0, inRequests);
+        Trace.comm.metrics("comm.inbuf.misses", 0, inMisses);
+        Trace.comm.metrics("comm.inbuf.idle", 0, inIdle);
+        Trace.comm.metrics("comm.outbuf.requests", 0, outRequests);
+        Trace.comm.metrics("comm.outbuf.misses", 0, outMisses);
+        Trace.comm.metrics("comm.outbuf.idle", 0, outIdle);
+        DeflatingByteIOFramerFactory.reportStats();
+        for (OutputQueueStats stats : myOutputQueueStats) {
+            String prefix = "comm.outqueue." + stats.label();
+            Trace.comm.metrics(prefix + ".drops", 0, stats.dropCount());
+            Trace.comm.metrics(prefix + ".coalesced", 0,
+                               stats.coalesceCount());
+            Trace.comm.metrics(prefix + ".disconnects", 0,
+                               stats.disconnectCount());
+            Trace.comm.metrics(prefix + ".highwater", 0, stats.highWater());
+        }
+    }
+
+    /**
+     * Pick the select thread that should service a new connection, starting
+     * the select threads if necessary.  Depending on configuration, this is
+     * either the next thread in round-robin order or the thread currently
+     * servicing the fewest connections.
+     *
+     * @return the select thread to hand a new connection to.
      */
-    private void ensureSelectThread() {
-        if (mySelectThread == null) {
-            mySelectThread = new SelectThread(this, mySSLContext);
+    synchronized SelectThread chooseSelectThread() {
+        ensureSelectThreads();
+        if (mySelectThreads.length == 1) {
+            return mySelectThreads[0];
+        } else if (amBalancingByLoad) {
+            SelectThread result = mySelectThreads[0];
+            for (int i = 1; i < mySelectThreads.length; ++i) {
+                if (mySelectThreads[i].connectionCount() <
+                        result.connectionCount()) {
+                    result = mySelectThreads[i];
+                }
+            }
+            return result;
+        } else {
+            SelectThread result = mySelectThreads[myNextSelectThread];
+            myNextSelectThread =
+                (myNextSelectThread + 1) % mySelectThreads.length;
+            return result;
         }
     }
 
@@ -205,15 +578,16 @@ public class NetworkManager {
                               boolean secure, Trace trace)
         throws IOException
     {
+        OutputQueueStats queueStats = outputQueueStats(listenAddress);
         MessageHandlerFactory outerHandlerFactory =
             new HTTPMessageHandlerFactory(
-               innerHandlerFactory, rootURI, httpFramer, this);
+               innerHandlerFactory, rootURI, httpFramer, this, queueStats);
 
         ByteIOFramerFactory framerFactory =
             new HTTPRequestByteIOFramerFactory();
 
         return listenTCP(listenAddress, outerHandlerFactory, framerFactory,
-                         secure, trace);
+                         secure, trace, queueStats);
     }
 
     /**
@@ -234,14 +608,16 @@ public class NetworkManager {
                               boolean secure)
         throws IOException
     {
+        OutputQueueStats queueStats = outputQueueStats(listenAddress);
         MessageHandlerFactory outerHandlerFactory =
-            new RTCPMessageHandlerFactory(innerHandlerFactory, msgTrace, this);
+            new RTCPMessageHandlerFactory(innerHandlerFactory, msgTrace, this,
+                                          queueStats);
 
         ByteIOFramerFactory framerFactory =
             new RTCPRequestByteIOFramerFactory(msgTrace);
 
         return listenTCP(listenAddress, outerHandlerFactory, framerFactory,
-                         secure, msgTrace);
+                         secure, msgTrace, queueStats);
     }
 
     /**
@@ -263,6 +639,33 @@ public class NetworkManager {
                                    Trace msgTrace,
                                    boolean secure)
         throws IOException
+    {
+        return listenWebSocket(listenAddress, innerHandlerFactory, socketURI,
+                               msgTrace, secure, MessageLimits.DEFAULT_LIMITS);
+    }
+
+    /**
+     * Begin listening for incoming WebSocket connections on some port,
+     * enforcing particular limits on the messages received.
+     *
+     * @param listenAddress  Host name and port to listen for connections on.
+     * @param innerHandlerFactory  Message handler factory to provide message
+     *    handlers for messages passed inside WebSocket frames on connections
+     *    made to this port.
+     * @param socketURI  The WebSocket URI that browsers connect to
+     * @param msgTrace   Trace object for logging message traffice
+     * @param secure  If true, use SSL.
+     * @param limits  Limits on the messages that will be accepted.
+     *
+     * @return the address that ended up being listened upon
+     */
+    public NetAddr listenWebSocket(String listenAddress,
+                                   MessageHandlerFactory innerHandlerFactory,
+                                   String socketURI,
+                                   Trace msgTrace,
+                                   boolean secure,
+                                   MessageLimits limits)
+        throws IOException
     {
         if (!socketURI.startsWith("/")) {
             socketURI = "/" + socketURI;
@@ -272,7 +675,8 @@ public class NetworkManager {
                                                msgTrace, this);
 
         ByteIOFramerFactory framerFactory =
-            new WebSocketByteIOFramerFactory(msgTrace, listenAddress, socketURI);
+            new WebSocketByteIOFramerFactory(msgTrace, listenAddress, socketURI,
+                myProps.boolProperty("conf.comm.wsdeflate", true), limits);
 
         return listenTCP(listenAddress, outerHandlerFactory, framerFactory,
                          secure, msgTrace);
@@ -297,10 +701,37 @@ public class NetworkManager {
                              Trace portTrace)
         throws IOException
     {
-        ensureSelectThread();
+        return listenTCP(listenAddress, handlerFactory, framerFactory, secure,
+                         portTrace, outputQueueStats(listenAddress));
+    }
+
+    /**
+     * Begin listening for incoming TCP connections on some port, with the
+     * connections' output queue statistics accumulated in a given collector.
+     *
+     * @param listenAddress  Host name and port to listen for connections on.
+     * @param handlerFactory  Message handler factory to provide message
+     *    handlers for connections made to this port.
+     * @param framerFactory  Byte I/O framer factory for the new connection.
+     * @param secure  If true, use SSL.
+     * @param portTrace  Trace object for logging activity associated with this
+     *   port &amp; its connections
+     * @param queueStats  Output queue statistics for this port's connections.
+     *
+     * @return the address that ended up being listened upon
+     */
+    private NetAddr listenTCP(String listenAddress,
+                              MessageHandlerFactory handlerFactory,
+                              ByteIOFramerFactory framerFactory,
+                              boolean secure, Trace portTrace,
+                              OutputQueueStats queueStats)
+        throws IOException
+    {
+        ensureSelectThreads();
         Listener listener =
-            mySelectThread.listen(listenAddress, handlerFactory,
-                                  framerFactory, secure, portTrace);
+            myAcceptThread.listen(listenAddress, handlerFactory,
+                                  framerFactory, secure, portTrace,
+                                  queueStats);
         return listener.listenAddress();
     }
 
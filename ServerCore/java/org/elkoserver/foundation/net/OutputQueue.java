@@ -0,0 +1,359 @@
+package org.elkoserver.foundation.net;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.elkoserver.json.JSONLiteral;
+import org.elkoserver.json.JSONObject;
+
+/**
+ * A queue of outbound messages awaiting transmission on a connection, which
+ * keeps track of (approximately) how many bytes it is holding and which
+ * enforces a limit on that number.
+ *
+ * A client that stops reading, or that simply can't keep up, would otherwise
+ * cause the server to accumulate an unbounded backlog of messages destined
+ * for it.  When the backlog exceeds the queue's byte budget, the queue's
+ * slow-consumer policy is applied:
+ *
+ * <ul>
+ * <li>POLICY_DISCONNECT: the connection is given up on.</li>
+ * <li>POLICY_DROP_OLDEST: the oldest droppable messages are discarded until
+ *     the backlog is back within budget.</li>
+ * <li>POLICY_COALESCE: queued messages that have been superseded by later
+ *     messages to the same target with the same verb are discarded; if that
+ *     is not enough, the oldest droppable messages are discarded as well.</li>
+ * </ul>
+ *
+ * Only JSON messages are considered droppable; protocol strings, control
+ * frames and the like are always delivered.  If a queue cannot be brought
+ * back within budget by discarding messages, the connection must be closed.
+ *
+ * Messages are enqueued from run threads and dequeued from a select thread,
+ * so all access is synchronized.
+ */
+class OutputQueue {
+    /** Policy: close connections that exceed their budget. */
+    static final int POLICY_DISCONNECT = 1;
+
+    /** Policy: drop the oldest droppable messages to stay within budget. */
+    static final int POLICY_DROP_OLDEST = 2;
+
+    /** Policy: discard superseded messages, then drop the oldest. */
+    static final int POLICY_COALESCE = 3;
+
+    /** Queued messages, in a circular buffer. */
+    private Object myMessages[];
+
+    /** Estimated sizes, in bytes, of the messages in myMessages. */
+    private int mySizes[];
+
+    /** Index in myMessages of the message at the head of the queue. */
+    private int myHead;
+
+    /** Number of messages in the queue. */
+    private int myCount;
+
+    /** Estimated total number of bytes in the queue. */
+    private long myByteCount;
+
+    /** Byte budget, or 0 if the queue is unbounded. */
+    private int myLimit;
+
+    /** Policy to apply when the budget is exceeded. */
+    private int myPolicy;
+
+    /** Statistics collector for the listener this queue's connection came
+        from. */
+    private OutputQueueStats myStats;
+
+    /** Initial capacity of the message buffer. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Constructor.
+     *
+     * @param limit  The byte budget, or 0 for no limit.
+     * @param policy  Slow-consumer policy, one of the POLICY_ constants.
+     * @param stats  Statistics collector for the queue.
+     */
+    OutputQueue(int limit, int policy, OutputQueueStats stats) {
+        myMessages = new Object[INITIAL_CAPACITY];
+        mySizes = new int[INITIAL_CAPACITY];
+        myHead = 0;
+        myCount = 0;
+        myByteCount = 0;
+        myLimit = limit;
+        myPolicy = policy;
+        myStats = stats;
+    }
+
+    /**
+     * Translate the name of a slow-consumer policy into a policy code.
+     *
+     * @param name  The policy name: "disconnect", "dropoldest" or "coalesce".
+     *
+     * @return the corresponding POLICY_ constant, or 0 if 'name' does not
+     *    name a policy.
+     */
+    static int policyCode(String name) {
+        if ("disconnect".equals(name)) {
+            return POLICY_DISCONNECT;
+        } else if ("dropoldest".equals(name)) {
+            return POLICY_DROP_OLDEST;
+        } else if ("coalesce".equals(name)) {
+            return POLICY_COALESCE;
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Add a message to the end of the queue, applying the slow-consumer
+     * policy if this puts the queue over budget.
+     *
+     * @param message  The message to add.
+     *
+     * @return true if the queue is within budget, false if it could not be
+     *    brought back within budget and the connection should be closed.
+     */
+    synchronized boolean enqueue(Object message) {
+        if (myCount == myMessages.length) {
+            grow();
+        }
+        int size = sizeOf(message);
+        int tail = (myHead + myCount) % myMessages.length;
+        myMessages[tail] = message;
+        mySizes[tail] = size;
+        ++myCount;
+        myByteCount += size;
+        myStats.noteBacklog(myByteCount);
+
+        if (myLimit > 0 && size > 0 && myByteCount > myLimit) {
+            if (myPolicy == POLICY_COALESCE) {
+                coalesce();
+            }
+            if (myPolicy != POLICY_DISCONNECT) {
+                dropOldest();
+            }
+            if (myByteCount > myLimit) {
+                myStats.noteDisconnect();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove and return the message at the head of the queue.
+     *
+     * @return the next message in the queue, or null if the queue is empty.
+     */
+    synchronized Object optDequeue() {
+        if (myCount == 0) {
+            return null;
+        }
+        Object result = myMessages[myHead];
+        myMessages[myHead] = null;
+        myByteCount -= mySizes[myHead];
+        myHead = (myHead + 1) % myMessages.length;
+        --myCount;
+        return result;
+    }
+
+    /**
+     * Test if there are any messages in the queue.
+     *
+     * @return true if the queue is not empty.
+     */
+    synchronized boolean hasMoreElements() {
+        return myCount > 0;
+    }
+
+    /**
+     * Get the estimated number of bytes currently in the queue.
+     *
+     * @return the queue's backlog, in bytes.
+     */
+    synchronized long byteCount() {
+        return myByteCount;
+    }
+
+    /**
+     * Discard everything in the queue, releasing any messages that hold
+     * resources.
+     */
+    synchronized void clear() {
+        for (int i = 0; i < myCount; ++i) {
+            int index = (myHead + i) % myMessages.length;
+            release(myMessages[index]);
+            myMessages[index] = null;
+        }
+        myHead = 0;
+        myCount = 0;
+        myByteCount = 0;
+    }
+
+    /**
+     * Discard queued messages that are superseded by later messages to the
+     * same target with the same verb.
+     */
+    private void coalesce() {
+        Set<String> seen = new HashSet<String>();
+        boolean doomed[] = null;
+        for (int i = myCount - 1; i >= 0; --i) {
+            int index = (myHead + i) % myMessages.length;
+            String key = coalesceKey(myMessages[index]);
+            if (key != null && !seen.add(key)) {
+                if (doomed == null) {
+                    doomed = new boolean[myCount];
+                }
+                doomed[i] = true;
+                myStats.noteCoalesce();
+            }
+        }
+        if (doomed != null) {
+            removeMarked(doomed);
+        }
+    }
+
+    /**
+     * Discard droppable messages, oldest first, until the queue is within
+     * budget or there is nothing left that may be dropped.
+     */
+    private void dropOldest() {
+        boolean doomed[] = null;
+        long byteCount = myByteCount;
+        for (int i = 0; i < myCount && byteCount > myLimit; ++i) {
+            int index = (myHead + i) % myMessages.length;
+            if (isDroppable(myMessages[index])) {
+                if (doomed == null) {
+                    doomed = new boolean[myCount];
+                }
+                doomed[i] = true;
+                byteCount -= mySizes[index];
+                myStats.noteDrop();
+            }
+        }
+        if (doomed != null) {
+            removeMarked(doomed);
+        }
+    }
+
+    /**
+     * Remove a selected set of messages from the queue, releasing them.
+     *
+     * @param doomed  Flags, in queue order, of which messages to remove.
+     */
+    private void removeMarked(boolean doomed[]) {
+        Object messages[] = new Object[myMessages.length];
+        int sizes[] = new int[myMessages.length];
+        int count = 0;
+        for (int i = 0; i < myCount; ++i) {
+            int index = (myHead + i) % myMessages.length;
+            if (doomed[i]) {
+                release(myMessages[index]);
+                myByteCount -= mySizes[index];
+            } else {
+                messages[count] = myMessages[index];
+                sizes[count] = mySizes[index];
+                ++count;
+            }
+        }
+        myMessages = messages;
+        mySizes = sizes;
+        myHead = 0;
+        myCount = count;
+    }
+
+    /**
+     * Double the capacity of the queue.
+     */
+    private void grow() {
+        Object messages[] = new Object[myMessages.length * 2];
+        int sizes[] = new int[myMessages.length * 2];
+        for (int i = 0; i < myCount; ++i) {
+            int index = (myHead + i) % myMessages.length;
+            messages[i] = myMessages[index];
+            sizes[i] = mySizes[index];
+        }
+        myMessages = messages;
+        mySizes = sizes;
+        myHead = 0;
+    }
+
+    /**
+     * Estimate the number of bytes a message will occupy on the wire.
+     * Messages whose size can't be cheaply determined count as 0.
+     *
+     * @param message  The message of interest.
+     *
+     * @return the approximate size of 'message'.
+     */
+    private static int sizeOf(Object message) {
+        if (message instanceof JSONLiteral) {
+            return ((JSONLiteral) message).length();
+        } else if (message instanceof SharedFrame) {
+            return ((SharedFrame) message).message().length();
+        } else if (message instanceof String) {
+            return ((String) message).length();
+        } else if (message instanceof JSONObject) {
+            return ((JSONObject) message).sendableString().length();
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Test if a message may be dropped to stay within budget.
+     *
+     * @param message  The message of interest.
+     *
+     * @return true if 'message' is a JSON message that may be discarded.
+     */
+    private static boolean isDroppable(Object message) {
+        return message instanceof JSONLiteral ||
+            message instanceof SharedFrame ||
+            message instanceof JSONObject;
+    }
+
+    /**
+     * Obtain the key that identifies which messages a message supersedes.
+     *
+     * @param message  The message of interest.
+     *
+     * @return the target and verb of 'message', combined into a single
+     *    string, or null if 'message' is not a JSON message with a target and
+     *    a verb.
+     */
+    private static String coalesceKey(Object message) {
+        String target;
+        String verb;
+        if (message instanceof SharedFrame) {
+            message = ((SharedFrame) message).message();
+        }
+        if (message instanceof JSONLiteral) {
+            target = ((JSONLiteral) message).target();
+            verb = ((JSONLiteral) message).verb();
+        } else if (message instanceof JSONObject) {
+            target = ((JSONObject) message).target();
+            verb = ((JSONObject) message).verb();
+        } else {
+            return null;
+        }
+        if (target == null || verb == null) {
+            return null;
+        }
+        return target + " " + verb;
+    }
+
+    /**
+     * Release a message that is being discarded, if it holds resources.
+     *
+     * @param message  The message being discarded.
+     */
+    private static void release(Object message) {
+        if (message instanceof Releasable) {
+            ((Releasable) message).release();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.elkoserver.foundation.net;
+
+/**
+ * Counters describing the behavior of the outbound message queues of all the
+ * connections associated with a single listener (or, for outbound
+ * connections, with the server as a whole).  These are updated from whatever
+ * threads are sending messages, so all access is synchronized.
+ */
+class OutputQueueStats {
+    /** Label identifying the connections these statistics cover. */
+    private String myLabel;
+
+    /** Number of messages discarded to keep queues within budget. */
+    private long myDropCount;
+
+    /** Number of messages discarded because a later message superseded
+        them. */
+    private long myCoalesceCount;
+
+    /** Number of connections closed for exceeding their queue budget. */
+    private long myDisconnectCount;
+
+    /** Largest number of bytes ever waiting in any one connection's queue. */
+    private long myHighWater;
+
+    /**
+     * Constructor.
+     *
+     * @param label  Label identifying the connections to be covered.
+     */
+    OutputQueueStats(String label) {
+        myLabel = label;
+        myDropCount = 0;
+        myCoalesceCount = 0;
+        myDisconnectCount = 0;
+        myHighWater = 0;
+    }
+
+    /**
+     * Get the label identifying the connections these statistics cover.
+     *
+     * @return this object's label.
+     */
+    String label() {
+        return myLabel;
+    }
+
+    /**
+     * Take note of the number of bytes waiting in some connection's queue.
+     *
+     * @param backlog  Number of bytes currently queued.
+     */
+    synchronized void noteBacklog(long backlog) {
+        if (backlog > myHighWater) {
+            myHighWater = backlog;
+        }
+    }
+
+    /**
+     * Take note that a queued message was dropped.
+     */
+    synchronized void noteDrop() {
+        ++myDropCount;
+    }
+
+    /**
+     * Take note that a queued message was superseded by a later one.
+     */
+    synchronized void noteCoalesce() {
+        ++myCoalesceCount;
+    }
+
+    /**
+     * Take note that a connection was closed for exceeding its budget.
+     */
+    synchronized void noteDisconnect() {
+        ++myDisconnectCount;
+    }
+
+    /**
+     * Get the number of messages dropped to stay within budget.
+     *
+     * @return the drop count.
+     */
+    synchronized long dropCount() {
+        return myDropCount;
+    }
+
+    /**
+     * Get the number of messages discarded as superseded.
+     *
+     * @return the coalesce count.
+     */
+    synchronized long coalesceCount() {
+        return myCoalesceCount;
+    }
+
+    /**
+     * Get the number of connections closed for exceeding their budget.
+     *
+     * @return the disconnect count.
+     */
+    synchronized long disconnectCount() {
+        return myDisconnectCount;
+    }
+
+    /**
+     * Get the largest queue backlog seen.
+     *
+     * @return the high-water mark, in bytes.
+     */
+    synchronized long highWater() {
+        return myHighWater;
+    }
+}
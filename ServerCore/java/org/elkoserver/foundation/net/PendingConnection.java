@@ -0,0 +1,175 @@
+package org.elkoserver.foundation.net;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
+import org.elkoserver.foundation.timer.Timeout;
+import org.elkoserver.foundation.timer.TimeoutNoticer;
+import org.elkoserver.foundation.timer.Timer;
+import org.elkoserver.util.trace.Trace;
+
+/**
+ * An outbound TCP connection that has been initiated but not yet completed.
+ *
+ * The connection's channel is registered with its select thread's selector
+ * for OP_CONNECT, so that the select thread can carry on servicing all its
+ * other connections while the remote host makes up its mind.  When the
+ * connection completes, it is turned into a {@link TCPConnection}; if it
+ * fails, or if the connect timeout expires first, the message handler factory
+ * is informed by being asked for a handler for a null connection, just as it
+ * would be if the connection attempt had failed outright.
+ */
+class PendingConnection implements TimeoutNoticer {
+    /** Provider of a handler for the connection once it is made. */
+    private MessageHandlerFactory myHandlerFactory;
+
+    /** Byte I/O framer factory for the connection once it is made. */
+    private ByteIOFramerFactory myFramerFactory;
+
+    /** The channel that is connecting. */
+    private SocketChannel myChannel;
+
+    /** Selection key for the channel's registration for OP_CONNECT. */
+    private SelectionKey myKey;
+
+    /** Address being connected to, for logging. */
+    private String myRemoteAddr;
+
+    /** Trace object for the connection. */
+    private Trace myTrace;
+
+    /** Select thread handling the connection. */
+    private SelectThread mySelectThread;
+
+    /** Network manager for this server. */
+    private NetworkManager myMgr;
+
+    /** Timeout that will abandon the connection attempt, or null if there is
+        no connect time limit. */
+    private Timeout myTimeout;
+
+    /** Flag that the attempt is still in progress. */
+    private boolean amPending;
+
+    /**
+     * Constructor.
+     *
+     * This *must* be called from inside the select thread.
+     *
+     * @param handlerFactory  Provider of a message handler for the
+     *    connection.
+     * @param framerFactory  Byte I/O framer factory for the connection.
+     * @param channel  Channel on which a non-blocking connect has been begun.
+     * @param key  Selection key for 'channel', registered for OP_CONNECT.
+     * @param remoteAddr  Printable form of the address being connected to.
+     * @param trace  Trace object to use for the connection.
+     * @param selectThread  Select thread that is managing the connection.
+     * @param mgr  Network manager for this server.
+     */
+    PendingConnection(MessageHandlerFactory handlerFactory,
+                      ByteIOFramerFactory framerFactory,
+                      SocketChannel channel, SelectionKey key,
+                      String remoteAddr, Trace trace,
+                      SelectThread selectThread, NetworkManager mgr)
+    {
+        myHandlerFactory = handlerFactory;
+        myFramerFactory = framerFactory;
+        myChannel = channel;
+        myKey = key;
+        myRemoteAddr = remoteAddr;
+        myTrace = trace;
+        mySelectThread = selectThread;
+        myMgr = mgr;
+        amPending = true;
+        key.attach(this);
+        int timeout = mgr.connectTimeout();
+        if (timeout > 0) {
+            myTimeout = Timer.theTimer().after(timeout, this);
+        } else {
+            myTimeout = null;
+        }
+    }
+
+    /**
+     * Finish the connection, given that the selector has indicated that it
+     * is ready to be finished.
+     *
+     * This *must* be called from inside the select thread.
+     */
+    void doConnect() {
+        if (!amPending) {
+            return;
+        }
+        try {
+            if (myChannel.finishConnect()) {
+                amPending = false;
+                if (myTimeout != null) {
+                    myTimeout.cancel();
+                }
+                if (myTrace.event && Trace.ON) {
+                    myTrace.eventi("connected to " + myRemoteAddr);
+                }
+                mySelectThread.newChannel(myHandlerFactory, myFramerFactory,
+                                          myChannel, false, myTrace,
+                                          myMgr.outboundQueueStats());
+            }
+        } catch (IOException e) {
+            fail("unable to connect to " + myRemoteAddr + ": " + e);
+        }
+    }
+
+    /**
+     * Abandon the connection attempt because it has taken too long.
+     *
+     * This is called from the timer thread, so the actual work is handed
+     * back to the select thread.  Nothing here touches the connection's
+     * state directly: the select thread and the remote address were both set
+     * before the timeout was scheduled (and so are visible to the timer
+     * thread), and the select thread's perform() queue is safe to add to
+     * from any thread.  If the connection completes while the handoff is in
+     * flight, fail() finds that it is no longer pending and does nothing.
+     */
+    public void noticeTimeout() {
+        mySelectThread.perform(new Callable<Object>() {
+            public Object call() {
+                fail("timed out connecting to " + myRemoteAddr);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Give up on the connection and tell the handler factory so.
+     *
+     * This *must* be called from inside the select thread.
+     *
+     * @param problem  Description of what went wrong.
+     */
+    private void fail(String problem) {
+        if (amPending) {
+            amPending = false;
+            if (myTimeout != null) {
+                myTimeout.cancel();
+            }
+            myKey.cancel();
+            try {
+                myChannel.close();
+            } catch (IOException e) {
+                /* It never really opened, so there's nothing to do. */
+            }
+            myMgr.connectionCount(-1);
+            Trace.comm.errorm(problem);
+            myHandlerFactory.provideMessageHandler(null);
+        }
+    }
+
+    /**
+     * Obtain a printable String representation of this connection attempt.
+     *
+     * @return a printable representation of this pending connection.
+     */
+    public String toString() {
+        return "PendingConnection(" + myRemoteAddr + ")";
+    }
+}
@@ -47,6 +47,9 @@ class RTCPMessageHandlerFactory implements MessageHandlerFactory {
         killed, in characters. */
     private int mySessionBacklogLimit;
 
+    /** Output queue statistics for this factory's sessions. */
+    private OutputQueueStats myQueueStats;
+
     /** Default inactivity timeout if none is explicitly given, in seconds. */
     static final int DEFAULT_SESSION_INACTIVITY_TIMEOUT = 60;
 
@@ -66,10 +69,12 @@ class RTCPMessageHandlerFactory implements MessageHandlerFactory {
      *   is to be wrapped by this.
      * @param msgTrace   Trace object for logging message traffic
      * @param manager  Network manager for this server.
+     * @param queueStats  Output queue statistics for this factory's sessions.
      */
     RTCPMessageHandlerFactory(MessageHandlerFactory innerFactory,
                               Trace msgTrace,
-                              NetworkManager manager)
+                              NetworkManager manager,
+                              OutputQueueStats queueStats)
     {
         myInnerFactory = innerFactory;
         mySessions = new HashMap<String, RTCPSessionConnection>();
@@ -77,6 +82,7 @@ class RTCPMessageHandlerFactory implements MessageHandlerFactory {
             new HashMap<Connection, RTCPSessionConnection>();
         trMsg = msgTrace;
         myManager = manager;
+        myQueueStats = queueStats;
 
         BootProperties props = manager.props();
         mySessionInactivityTimeout =
@@ -417,6 +423,15 @@ class RTCPMessageHandlerFactory implements MessageHandlerFactory {
         return mySessionBacklogLimit;
     }
 
+    /**
+     * Get the output queue statistics collector for this factory's sessions.
+     *
+     * @return this factory's output queue statistics.
+     */
+    OutputQueueStats queueStats() {
+        return myQueueStats;
+    }
+
     /**
      * Obtain the RTCP session disconnected timeout interval: the time an RTCP
      * session can be without a live TCP connection before the server decides
@@ -374,8 +374,11 @@ public class RTCPSessionConnection extends ConnectionBase
             if (Trace.comm.debug && Trace.ON) {
                 Trace.comm.debugm(this + " queue backlog increased to " + myQueueBacklog);
             }
+            OutputQueueStats queueStats = mySessionFactory.queueStats();
+            queueStats.noteBacklog(myQueueBacklog);
             if (myQueueBacklog > mySessionFactory.sessionBacklogLimit(false)) {
                 Trace.comm.eventm(this + " queue backlog limit exceeded");
+                queueStats.noteDisconnect();
                 close();
             }
             myQueue.addLast(qMsg);
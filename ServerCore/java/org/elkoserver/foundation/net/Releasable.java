@@ -2,7 +2,8 @@ package org.elkoserver.foundation.net;
 
 /**
  * Interface implemented by message objects that have resources that need to
- * be released after the message has been transmitted.
+ * be released after the message has been transmitted, and by byte I/O framers
+ * that have resources that need to be released when their connection closes.
  */
 public interface Releasable {
     /** Release any resources associated with this object. */
@@ -16,10 +16,14 @@ import scalablessl.SSLSelector;
 import javax.net.ssl.SSLContext;
 
 /**
- * A thread for doing all network I/O operations (send, receive, accept) using
+ * A thread for doing network I/O operations (send, receive, accept) using
  * non-blocking Channels.  Requests to open listeners, connect to remote hosts,
  * and send messages on connections are all fed to this thread via a queue.
  * This thread in turn feeds received input events to the run queue.
+ *
+ * <p>A server may run several of these, in which case the {@link
+ * NetworkManager} divides the connections among them; each connection is
+ * serviced by exactly one select thread for its entire lifetime.
  */
 class SelectThread extends Thread {
     /** Selector to await available I/O opportunities. */
@@ -31,15 +35,48 @@ class SelectThread extends Thread {
     /** Network manager for this server */
     private NetworkManager myMgr;
 
+    /** Number of connections currently being serviced by this thread.  This
+        is only modified from inside this thread, but may be read (as a load
+        estimate) from others. */
+    private volatile int myConnectionCount;
+
+    /** Pool of buffers for assembling output on this thread's
+        connections. */
+    private BufferPool myOutputBufferPool;
+
+    /** Pool of buffers that this thread's connections borrow to read
+        into. */
+    private BufferPool myInputBufferPool;
+
+    /** Number of gathering writes of output batches done by this thread.
+        This and the following counters are only modified from inside this
+        thread, but may be read (for statistics) from others. */
+    private volatile long myBatchCount;
+
+    /** Number of messages sent in those batches. */
+    private volatile long myBatchMessageCount;
+
+    /** Number of bytes sent in those batches. */
+    private volatile long myBatchByteCount;
+
     /**
      * Constructor.
      *
      * @param mgr  Network manager for this server.
      * @param sslContext  SSL context to use, if supporting SSL, else null
+     * @param name  Name for the thread.
      */
-    SelectThread(NetworkManager mgr, SSLContext sslContext) {
-        super("Elko Select");
+    SelectThread(NetworkManager mgr, SSLContext sslContext, String name) {
+        super(name);
         myMgr = mgr;
+        myConnectionCount = 0;
+        myOutputBufferPool = new BufferPool(mgr.outputBufferSize(),
+                                            mgr.outputBufferPoolSize(), true);
+        myInputBufferPool = new BufferPool(mgr.inputBufferSize(),
+                                           mgr.inputBufferPoolSize(), false);
+        myBatchCount = 0;
+        myBatchMessageCount = 0;
+        myBatchByteCount = 0;
         myQueue = new Queue();
         try {
             if (sslContext != null) {
@@ -74,7 +111,7 @@ class SelectThread extends Thread {
                 while (workToDo != null) {
                     if (workToDo instanceof Listener) {
                         Listener listener = (Listener) workToDo;
-                        listener.register(this, mySelector);
+                        listener.register(mySelector);
                         if (Trace.comm.debug) {
                             Trace.comm.debugm(
                                 "select thread registers listener " +
@@ -106,6 +143,15 @@ class SelectThread extends Thread {
                             }
                             listener.doAccept();
                         }
+                        if (key.isValid() && key.isConnectable()) {
+                            PendingConnection pending =
+                                (PendingConnection) key.attachment();
+                            if (Trace.comm.debug) {
+                                Trace.comm.debugm("select has connect for " +
+                                                  pending);
+                            }
+                            pending.doConnect();
+                        }
                         if (key.isValid() && key.isReadable()) {
                             TCPConnection connection =
                                 (TCPConnection) key.attachment();
@@ -143,6 +189,12 @@ class SelectThread extends Thread {
     /**
      * Make a new outbound TCPConnection to another host on the net.
      *
+     * The connection is made without blocking: the channel is registered for
+     * OP_CONNECT and the connection is completed (or abandoned, if it fails or
+     * takes longer than the configured connect timeout) by a {@link
+     * PendingConnection} when the selector says so.  Note that resolving the
+     * host name, if one is given rather than an IP address, may still block.
+     *
      * @param handlerFactory  Provider of a message handler to process messages
      *    received on the new connection.
      * @param framerFactory  Byte I/O framer factory for the new connection.
@@ -155,19 +207,37 @@ class SelectThread extends Thread {
     {
         myQueue.enqueue(new Callable<Object>() {
             public Object call() {
+                SocketChannel channel = null;
                 try {
                     NetAddr remoteNetAddr = new NetAddr(remoteAddr);
                     InetSocketAddress socketAddress =
                         new InetSocketAddress(remoteNetAddr.inetAddress(),
                                               remoteNetAddr.getPort());
                     Trace.comm.eventi("connecting to " + remoteNetAddr);
-                    SocketChannel channel = SocketChannel.open(socketAddress);
-                    newChannel(handlerFactory, framerFactory, channel, false,
-                               trace);
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    if (channel.connect(socketAddress)) {
+                        newChannel(handlerFactory, framerFactory, channel,
+                                   false, trace, myMgr.outboundQueueStats());
+                    } else {
+                        SelectionKey key = channel.register(mySelector,
+                            SelectionKey.OP_CONNECT);
+                        new PendingConnection(handlerFactory, framerFactory,
+                                              channel, key, remoteAddr, trace,
+                                              SelectThread.this, myMgr);
+                    }
                 } catch (IOException e) {
                     myMgr.connectionCount(-1);
                     Trace.comm.errorm("unable to connect to " + remoteAddr +
                                       ": " + e);
+                    if (channel != null) {
+                        try {
+                            channel.close();
+                        } catch (IOException e2) {
+                            /* It never really opened, so there's nothing to
+                               do. */
+                        }
+                    }
                     handlerFactory.provideMessageHandler(null);
                 }
                 return null;
@@ -186,20 +256,139 @@ class SelectThread extends Thread {
      * @param secure  If true, use SSL.
      * @param portTrace  Trace object for logging activity associated with this
      *   port & its connections
+     * @param queueStats  Output queue statistics for the port's connections.
      */
     Listener listen(String localAddress, MessageHandlerFactory handlerFactory,
                     ByteIOFramerFactory framerFactory, boolean secure,
-                    Trace portTrace)
+                    Trace portTrace, OutputQueueStats queueStats)
         throws UnknownHostException, IOException
     {
         Listener listener =
-            new Listener(localAddress, handlerFactory,
-                         framerFactory, myMgr, secure, portTrace);
+            new Listener(localAddress, handlerFactory, framerFactory, myMgr,
+                         secure, portTrace, queueStats);
         myQueue.enqueue(listener);
         mySelector.wakeup();
         return listener;
     }
 
+    /**
+     * Take charge of a newly accepted channel.  If called from some thread
+     * other than this one (e.g., from a dedicated acceptor or from another
+     * select thread in the pool), the channel is handed over via this
+     * thread's work queue, since a channel can only be registered with a
+     * selector from the thread that is selecting on it.
+     *
+     * @param handlerFactory  Message handler factory to provide the handlers
+     *    for the new connection.
+     * @param framerFactory  Byte I/O framer factory for the new connection.
+     * @param channel  The new channel for the new connection.
+     * @param isSecure  If true, this will be an SSL connnection.
+     * @param trace  Trace object to use with this new connection.
+     * @param queueStats  Output queue statistics for the new connection.
+     */
+    void adoptChannel(final MessageHandlerFactory handlerFactory,
+                      final ByteIOFramerFactory framerFactory,
+                      final SocketChannel channel, final boolean isSecure,
+                      final Trace trace, final OutputQueueStats queueStats)
+    {
+        if (Thread.currentThread() == this) {
+            newChannel(handlerFactory, framerFactory, channel, isSecure,
+                       trace, queueStats);
+        } else {
+            myQueue.enqueue(new Callable<Object>() {
+                public Object call() {
+                    newChannel(handlerFactory, framerFactory, channel,
+                               isSecure, trace, queueStats);
+                    return null;
+                }
+            });
+            mySelector.wakeup();
+        }
+    }
+
+    /**
+     * Get the number of connections this thread is currently servicing.
+     *
+     * @return this select thread's connection count.
+     */
+    int connectionCount() {
+        return myConnectionCount;
+    }
+
+    /**
+     * Get the pool of input buffers belonging to this thread.
+     *
+     * This *must* be called from inside the select thread.
+     *
+     * @return this select thread's input buffer pool.
+     */
+    BufferPool inputBufferPool() {
+        return myInputBufferPool;
+    }
+
+    /**
+     * Get the pool of output buffers belonging to this thread.
+     *
+     * This *must* be called from inside the select thread.
+     *
+     * @return this select thread's output buffer pool.
+     */
+    BufferPool outputBufferPool() {
+        return myOutputBufferPool;
+    }
+
+    /**
+     * Take note that a batch of output has been assembled for transmission
+     * on one of the connections serviced by this thread.
+     *
+     * This *must* be called from inside the select thread.
+     *
+     * @param messages  The number of messages in the batch.
+     * @param bytes  The number of bytes in the batch.
+     */
+    void noteOutputBatch(int messages, long bytes) {
+        ++myBatchCount;
+        myBatchMessageCount += messages;
+        myBatchByteCount += bytes;
+    }
+
+    /**
+     * Get the number of output batches assembled by this thread.
+     *
+     * @return this select thread's batch count.
+     */
+    long batchCount() {
+        return myBatchCount;
+    }
+
+    /**
+     * Get the number of messages sent in output batches by this thread.
+     *
+     * @return this select thread's batched message count.
+     */
+    long batchMessageCount() {
+        return myBatchMessageCount;
+    }
+
+    /**
+     * Get the number of bytes sent in output batches by this thread.
+     *
+     * @return this select thread's batched byte count.
+     */
+    long batchByteCount() {
+        return myBatchByteCount;
+    }
+
+    /**
+     * Take note that one of the connections serviced by this thread has gone
+     * away.
+     *
+     * This *must* be called from inside the select thread.
+     */
+    void connectionClosed() {
+        --myConnectionCount;
+    }
+
     /**
      * Handle the establishment of a new connection as the result of an
      * outbound connection made to another host or an accept operation by a
@@ -211,17 +400,20 @@ class SelectThread extends Thread {
      * @param channel  The new channel for the new connection.
      * @param secure  If true, this will be an SSL connnection.
      * @param trace  Trace object to use with this new connection.
+     * @param queueStats  Output queue statistics for the new connection.
      */
     void newChannel(MessageHandlerFactory handlerFactory,
                     ByteIOFramerFactory framerFactory,
-                    SocketChannel channel, boolean isSecure, Trace trace)
+                    SocketChannel channel, boolean isSecure, Trace trace,
+                    OutputQueueStats queueStats)
     {
         try {
             channel.configureBlocking(false);
             SelectionKey key =
                 channel.register(mySelector, SelectionKey.OP_READ);
             key.attach(new TCPConnection(handlerFactory, framerFactory,
-                channel, key, this, myMgr, isSecure, trace));
+                channel, key, this, myMgr, isSecure, trace, queueStats));
+            ++myConnectionCount;
         } catch (ClosedChannelException e) {
             myMgr.connectionCount(-1);
             handlerFactory.provideMessageHandler(null);
@@ -238,6 +430,16 @@ class SelectThread extends Thread {
         }
     }
 
+    /**
+     * Arrange for some work to be done inside this thread.
+     *
+     * @param thunk  The work to do.
+     */
+    void perform(Callable<Object> thunk) {
+        myQueue.enqueue(thunk);
+        mySelector.wakeup();
+    }
+
     /**
      * Notify this thread that a connection now has messages queued ready for
      * transmission.
@@ -0,0 +1,194 @@
+package org.elkoserver.foundation.net;
+
+import java.io.IOException;
+import org.elkoserver.json.JSONLiteral;
+
+/**
+ * The pre-encoded transport form of a message that is being broadcast to
+ * many connections at once.
+ *
+ * A message sent to a group of recipients (for example, a chat line said in a
+ * context with hundreds of users in it) would otherwise be separately
+ * converted to a string, framed, and encoded into UTF-8 bytes once for every
+ * connection it goes out on.  A SharedFrame holds the encoded frame bytes for
+ * such a message, computed once per kind of framer, and hands the very same
+ * (immutable) byte array to every connection that uses that kind of framer.
+ *
+ * Shared frames are reference counted.  The broadcaster holds one reference
+ * for the duration of the broadcast (from {@link #beginSharing} to {@link
+ * #endSharing}) and each {@link TCPConnection} the message is queued on holds
+ * another until the bytes have been written, at which point the connection
+ * releases it via the usual {@link Releasable} protocol.  When the last
+ * reference is released, the cached frames are dropped.
+ */
+public class SharedFrame implements Releasable {
+    /** The message being broadcast. */
+    private JSONLiteral myMessage;
+
+    /** Kinds of framer for which encoded frames have been produced: either
+        framer classes or, for framers whose encoding varies from instance to
+        instance, the kind reported by a {@link VariableByteIOFramer}. */
+    private Object myFramerTypes[];
+
+    /** Encoded frames, in correspondence with myFramerTypes. */
+    private byte[] myFrames[];
+
+    /** Number of frame types currently cached. */
+    private int myFrameCount;
+
+    /** Number of outstanding references to this frame. */
+    private int myRefCount;
+
+    /** Initial capacity of the per-framer-type cache; there are typically
+        only one or two kinds of framer in use on any given server. */
+    private static final int INITIAL_FRAME_TYPES = 2;
+
+    /**
+     * Constructor.
+     *
+     * @param message  The message that is to be broadcast.
+     */
+    private SharedFrame(JSONLiteral message) {
+        myMessage = message;
+        myFramerTypes = new Object[INITIAL_FRAME_TYPES];
+        myFrames = new byte[INITIAL_FRAME_TYPES][];
+        myFrameCount = 0;
+        myRefCount = 1;
+    }
+
+    /**
+     * Mark the beginning of a broadcast of a message.  Until the
+     * corresponding call to {@link #endSharing}, any {@link TCPConnection}
+     * the message is sent on will share a single encoding of it with all the
+     * other connections using the same kind of framer.
+     *
+     * This must be called from the run thread that is doing the sending.
+     *
+     * @param message  The message about to be broadcast.
+     *
+     * @return a SharedFrame for the broadcast, which must later be passed to
+     *    {@link #endSharing}, or null if the message is already being shared
+     *    by an enclosing broadcast.
+     */
+    static public SharedFrame beginSharing(JSONLiteral message) {
+        if (message.sharedFrame() != null) {
+            return null;
+        } else {
+            SharedFrame frame = new SharedFrame(message);
+            message.setSharedFrame(frame);
+            return frame;
+        }
+    }
+
+    /**
+     * Mark the end of a broadcast.  The message is detached from this frame
+     * and the broadcaster's reference is released.  Connections that have
+     * not yet written the message still hold their own references.
+     *
+     * This must be called from the run thread that called {@link
+     * #beginSharing}.
+     */
+    public void endSharing() {
+        myMessage.setSharedFrame(null);
+        release();
+    }
+
+    /**
+     * Obtain the object that should actually be queued for output on a
+     * connection in place of a given message.  If the message is being
+     * broadcast, this will be its SharedFrame (with an additional reference
+     * taken on behalf of the connection); otherwise, it is the message
+     * itself.
+     *
+     * @param message  The message to be sent.
+     *
+     * @return the object to queue for transmission of 'message'.
+     */
+    static Object forMessage(Object message) {
+        if (message instanceof JSONLiteral) {
+            Object shared = ((JSONLiteral) message).sharedFrame();
+            if (shared instanceof SharedFrame) {
+                SharedFrame frame = (SharedFrame) shared;
+                frame.retain();
+                return frame;
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Obtain the encoded bytes of this frame's message as produced by a given
+     * framer, encoding them if no framer of the same kind has done so yet.
+     * The array returned is shared and must not be modified.
+     *
+     * @param framer  The framer that would encode the message.
+     *
+     * @return the bytes of the framed message.
+     */
+    synchronized byte[] bytes(ByteIOFramer framer) throws IOException {
+        Object framerType;
+        if (framer instanceof VariableByteIOFramer) {
+            framerType = ((VariableByteIOFramer) framer).frameKind();
+        } else {
+            framerType = framer.getClass();
+        }
+        for (int i = 0; i < myFrameCount; ++i) {
+            if (myFramerTypes[i] == framerType) {
+                return myFrames[i];
+            }
+        }
+        byte[] result = framer.produceBytes(myMessage);
+        if (myFrameCount == myFrames.length) {
+            Object newTypes[] = new Object[myFrameCount * 2];
+            byte[] newFrames[] = new byte[myFrameCount * 2][];
+            System.arraycopy(myFramerTypes, 0, newTypes, 0, myFrameCount);
+            System.arraycopy(myFrames, 0, newFrames, 0, myFrameCount);
+            myFramerTypes = newTypes;
+            myFrames = newFrames;
+        }
+        myFramerTypes[myFrameCount] = framerType;
+        myFrames[myFrameCount] = result;
+        ++myFrameCount;
+        return result;
+    }
+
+    /**
+     * Obtain the message this frame is encoding.
+     *
+     * @return this frame's message.
+     */
+    public JSONLiteral message() {
+        return myMessage;
+    }
+
+    /**
+     * Release a reference to this frame.  When the last reference is
+     * released, the cached encodings are discarded.
+     */
+    public synchronized void release() {
+        --myRefCount;
+        if (myRefCount == 0) {
+            for (int i = 0; i < myFrameCount; ++i) {
+                myFramerTypes[i] = null;
+                myFrames[i] = null;
+            }
+            myFrameCount = 0;
+        }
+    }
+
+    /**
+     * Take an additional reference to this frame.
+     */
+    private synchronized void retain() {
+        ++myRefCount;
+    }
+
+    /**
+     * Obtain a printable String representation of this frame.
+     *
+     * @return a printable representation of this frame's message.
+     */
+    public String toString() {
+        return myMessage.toString();
+    }
+}
@@ -0,0 +1,48 @@
+package org.elkoserver.foundation.net;
+
+import java.io.IOException;
+
+/**
+ * Interface for byte I/O framers that pass the output of some other framer
+ * through a stream transformation (such as compression) whose state carries
+ * over from one message to the next.
+ *
+ * Since the transformation of any given message depends on everything sent
+ * before it on the same connection, its result can't be shared among
+ * connections.  Instead, the connection obtains the inner framer's encoding
+ * (which can be shared; see {@link SharedFrame}) and then passes it through
+ * {@link #encode}.  At the end of each batch of output the connection calls
+ * {@link #flush}, so that everything in the batch actually goes out.
+ */
+interface StreamingByteIOFramer extends ByteIOFramer, Releasable {
+    /**
+     * Get the framer whose output this framer transforms.
+     *
+     * @return the inner framer.
+     */
+    ByteIOFramer innerFramer();
+
+    /**
+     * Pass bytes produced by the inner framer through the transformation.
+     *
+     * @param frame  The inner framer's encoding of a message.
+     *
+     * @return the bytes to transmit, which may be empty if the transformation
+     *    is holding on to its output until the next flush.
+     */
+    byte[] encode(byte[] frame) throws IOException;
+
+    /**
+     * Flush any output the transformation is holding at the end of a batch.
+     *
+     * @return the bytes to transmit, or null if there are none.
+     */
+    byte[] flush() throws IOException;
+
+    /**
+     * Release any resources (such as native compression state) the
+     * transformation holds.  The connection calls this once it has closed;
+     * the framer is not used again afterwards.
+     */
+    void release();
+}
@@ -7,26 +7,49 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.Callable;
-import org.elkoserver.foundation.run.Queue;
 import org.elkoserver.foundation.run.Runner;
 import org.elkoserver.util.trace.Trace;
 
 /**
  * An implementation of {@link Connection} that manages a non-blocking TCP
  * connection to a single remote host.
+ *
+ * A connection has no input buffer of its own: each read borrows one from
+ * its select thread's pool, and the framer keeps whatever part of a message
+ * is left over.  The pooled input buffers are heap buffers rather than
+ * direct ones (unlike the output buffers, which are handed straight to the
+ * channel's gathering writes).  Framers consume byte arrays, and reading into
+ * a heap buffer costs the channel exactly one copy out of its own cached
+ * direct buffer.  Reading into a direct buffer would still need that one
+ * copy, made here instead, to give the framer an array, so direct input
+ * buffers would save nothing and would cost native memory.
  */
 public class TCPConnection
     extends ConnectionBase
     implements MessageReceiver, Callable<Object>
 {
     /** Queue of unencoded outbound messages. */
-    private Queue myOutputQueue;
+    private OutputQueue myOutputQueue;
 
     /** Framer to perform low-level message conversion. */
     private ByteIOFramer myFramer;
 
-    /** Buffer holding actual output bytes. */
-    private ByteBuffer myOutputBuffer;
+    /** Buffers holding the batch of output bytes currently being sent. */
+    private ByteBuffer myOutputBuffers[];
+
+    /** Index of the first buffer in myOutputBuffers that has not yet been
+        completely written. */
+    private int myOutputStart;
+
+    /** Number of buffers in myOutputBuffers that are in use. */
+    private int myOutputCount;
+
+    /** Flag that the close marker was reached while assembling output, so the
+        connection should be closed once the current batch is sent. */
+    private boolean amClosingAfterOutput;
+
+    /** Initial capacity of the output buffer array. */
+    private static final int INITIAL_OUTPUT_BUFFERS = 8;
 
     /** Thread that does blocking select operations for this connection. */
     private SelectThread mySelectThread;
@@ -44,12 +67,6 @@ public class TCPConnection
     /** Time an inbound message was last received. */
     private long myLastNetActivity = System.currentTimeMillis();
 
-    /** Default size of input buffer. */
-    private static final int INPUT_BUFFER_SIZE = 2048;
-
-    /** Buffer receiving actual input bytes. */
-    private ByteBuffer myInputBuffer;
-
     /** Monitor lock for synching with the select thread. */
     private Object myWakeupLock = new Object();
 
@@ -86,11 +103,14 @@ public class TCPConnection
      * @param mgr  Network manager for this server.
      * @param isSecure  If true, this is an SSL connection.
      * @param trace  Trace object to use for this connection.
+     * @param queueStats  Output queue statistics collector for the listener
+     *    (or other source) of this connection.
      */
     TCPConnection(MessageHandlerFactory handlerFactory,
                   ByteIOFramerFactory framerFactory, SocketChannel channel,
                   SelectionKey key, SelectThread selectThread,
-                  NetworkManager mgr, boolean isSecure, Trace trace)
+                  NetworkManager mgr, boolean isSecure, Trace trace,
+                  OutputQueueStats queueStats)
         throws IOException
     {
         super(mgr);
@@ -107,10 +127,12 @@ public class TCPConnection
         socket.setReuseAddress(true);
         myRemoteAddr = socket.getInetAddress().getHostAddress() + ":" +
             socket.getPort();
-        myInputBuffer = ByteBuffer.wrap(new byte[INPUT_BUFFER_SIZE]);
         myFramer = framerFactory.provideFramer(this, label());
-        myOutputBuffer = null;
-        myOutputQueue = new Queue();
+        myOutputBuffers = new ByteBuffer[INITIAL_OUTPUT_BUFFERS];
+        myOutputStart = 0;
+        myOutputCount = 0;
+        amClosingAfterOutput = false;
+        myOutputQueue = mgr.makeOutputQueue(queueStats);
         mySelectThread = selectThread;
         enqueueHandlerFactory(handlerFactory);
         if (myTrace.event && Trace.ON) {
@@ -123,8 +145,21 @@ public class TCPConnection
      * to do a write.  If this connection has pending output to send, adjusts
      * the selection key so that it will then attend to the availability of
      * write opportunities when select() is called.
+     *
+     * If the pending output has already been sent (by a write that happened
+     * between the notification and now), the connection is instead re-marked
+     * as needing to notify this thread, since the notification that led here
+     * used up the mark and nothing else would otherwise restore it.  The test
+     * and the marking are done together under the wakeup lock so that a
+     * message enqueued concurrently will either be seen here or will itself
+     * notify this thread.
      */
     public Object call() {
+        synchronized (myWakeupLock) {
+            if (!myOutputQueue.hasMoreElements()) {
+                amNeedingToWakeupSelect = true;
+            }
+        }
         if (myOutputQueue.hasMoreElements() && myKey.isValid()) {
             myKey.interestOps(myKey.interestOps() | SelectionKey.OP_WRITE);
             if (myTrace.debug && Trace.ON) {
@@ -172,16 +207,15 @@ public class TCPConnection
             myTrace.debugm(this + " ignoring IOException on close");
         }
         myKey.attach(null);
+        mySelectThread.connectionClosed();
         myMgr.connectionCount(-1);
         if (myTrace.event && Trace.ON) {
             myTrace.eventi(this + " died: " + reason);
         }
-        Object message = myOutputQueue.optDequeue();
-        while (message != null) {
-            if (message instanceof Releasable) {
-                ((Releasable) message).release();
-            }
-            message = myOutputQueue.optDequeue();
+        releaseOutputBuffers();
+        myOutputQueue.clear();
+        if (myFramer instanceof Releasable) {
+            ((Releasable) myFramer).release();
         }
         connectionDied(reason);
     }
@@ -193,10 +227,15 @@ public class TCPConnection
      * This *must* be called from inside the select thread.
      */
     void doRead() {
+        /* The input buffer is borrowed from the select thread's pool only for
+           the duration of the read; the framer preserves whatever part of a
+           message is left over before it returns. */
+        BufferPool pool = mySelectThread.inputBufferPool();
+        ByteBuffer inputBuffer = pool.acquire();
         try {
             int count;
             do {
-                count = myChannel.read(myInputBuffer);
+                count = myChannel.read(inputBuffer);
 
                 if (count < 0) {
                     /* EOF: cease to be interested in reads, then throw EOF. */
@@ -205,9 +244,9 @@ public class TCPConnection
                 } else {
                     /* Data read: give bytes to framer, then recycle the buffer. */
                     if (count > 0) {
-                        myFramer.receiveBytes(myInputBuffer.array(),
-                                              myInputBuffer.position());
-                        myInputBuffer.clear();
+                        myFramer.receiveBytes(inputBuffer.array(),
+                                              inputBuffer.position());
+                        inputBuffer.clear();
                     } else {
                         if (myTrace.event && Trace.ON) {
                             myTrace.debugm(this + " zero length read");
@@ -215,7 +254,9 @@ public class TCPConnection
                     }
                 }
             } while (count > 0 && amSecure);
+            pool.release(inputBuffer);
         } catch (Throwable t) {
+            pool.release(inputBuffer);
             /* If anything bad happens during read, the connection is dead. */
             if (myTrace.debug) {
                 myTrace.debugm(this + " caught exception", t);
@@ -239,35 +280,40 @@ public class TCPConnection
      * Do a write() operation, given that the selector has indicated that this
      * can happen without blocking.
      *
+     * Rather than sending one message per write opportunity, this drains as
+     * many queued messages as will fit into a batch, encodes them into pooled
+     * (direct) buffers, and sends the whole batch with a single gathering
+     * write.
+     *
      * This *must* be called from inside the select thread.
      */
     void doWrite() { /* not Dudley */
         Exception closeException = null;
 
         try {
-            if (myOutputBuffer == null) {
-                Object message = myOutputQueue.optDequeue();
-                if (message == theCloseMarker) {
-                    closeException = new ConnectionCloseException(
-                        "Normal TCP connection close");
-                } else if (message != null) {
-                    myOutputBuffer =
-                        ByteBuffer.wrap(myFramer.produceBytes(message));
-                    if (message instanceof Releasable) {
-                        ((Releasable) message).release();
-                    }
-                }
+            if (myOutputCount == 0 && !amClosingAfterOutput) {
+                assembleOutput();
             }
-            if (myOutputBuffer != null) {
-                int before = myOutputBuffer.remaining();
-                int wrote = myChannel.write(myOutputBuffer);
+            if (myOutputStart < myOutputCount) {
+                long wrote = myChannel.write(myOutputBuffers, myOutputStart,
+                                             myOutputCount - myOutputStart);
                 if (myTrace.event && Trace.ON) {
-                    myTrace.debugm(this + " wrote " + wrote + " bytes of " + before);
+                    myTrace.debugm(this + " wrote " + wrote + " bytes from " +
+                                   (myOutputCount - myOutputStart) +
+                                   " buffers");
                 }
-                if (myOutputBuffer.remaining() == 0) {
-                    myOutputBuffer = null;
+                BufferPool pool = mySelectThread.outputBufferPool();
+                while (myOutputStart < myOutputCount &&
+                       !myOutputBuffers[myOutputStart].hasRemaining()) {
+                    pool.release(myOutputBuffers[myOutputStart]);
+                    myOutputBuffers[myOutputStart] = null;
+                    ++myOutputStart;
                 }
-            } else if (amSecure) {
+                if (myOutputStart == myOutputCount) {
+                    myOutputStart = 0;
+                    myOutputCount = 0;
+                }
+            } else if (amSecure && !amClosingAfterOutput) {
                 /* ScalableSSL sometimes requires us to do empty writes to pump
                    SSL protocol handshaking. */
                 if (myTrace.event && Trace.ON) {
@@ -275,13 +321,17 @@ public class TCPConnection
                 }
                 myChannel.write(theEmptyBuffer);
             }
+            if (amClosingAfterOutput && myOutputCount == 0) {
+                closeException = new ConnectionCloseException(
+                    "Normal TCP connection close");
+            }
         } catch (IOException e) {
             myTrace.usagem(this + " IOException: " + e.getMessage());
             closeException = e;
         }
         if (closeException != null) {
             closeIsDone(closeException);
-        } else if (myOutputBuffer == null) {
+        } else if (myOutputCount == 0) {
             if (!myOutputQueue.hasMoreElements()) {
                 myKey.interestOps(myKey.interestOps() &~SelectionKey.OP_WRITE);
                 if (myTrace.debug && Trace.ON) {
@@ -291,6 +341,130 @@ public class TCPConnection
         }
     }
 
+    /**
+     * Pull a batch of messages off the output queue and encode them into
+     * output buffers, ready to be written.  Messages are taken until the
+     * queue is empty, the batch reaches its configured message or byte limit,
+     * or the close marker is encountered.
+     *
+     * This *must* be called from inside the select thread.
+     */
+    private void assembleOutput() throws IOException {
+        int batchLimit = myMgr.writeBatchLimit();
+        int batchBytes = myMgr.writeBatchBytes();
+        StreamingByteIOFramer streamer = null;
+        if (myFramer instanceof StreamingByteIOFramer) {
+            streamer = (StreamingByteIOFramer) myFramer;
+        }
+        int messageCount = 0;
+        long byteCount = 0;
+
+        while (messageCount < batchLimit && byteCount < batchBytes) {
+            Object message = myOutputQueue.optDequeue();
+            if (message == null) {
+                break;
+            } else if (message == theCloseMarker) {
+                amClosingAfterOutput = true;
+                break;
+            }
+            byte[] frame;
+            if (message instanceof SharedFrame) {
+                /* Broadcast frames are encoded once and copied by every
+                   connection straight out of the same array.  A streaming
+                   framer shares its inner framer's encoding and then
+                   transforms it for this connection alone. */
+                SharedFrame shared = (SharedFrame) message;
+                if (streamer != null) {
+                    frame = streamer.encode(
+                        shared.bytes(streamer.innerFramer()));
+                } else {
+                    frame = shared.bytes(myFramer);
+                }
+            } else {
+                frame = myFramer.produceBytes(message);
+            }
+            if (message instanceof Releasable) {
+                ((Releasable) message).release();
+            }
+            appendOutput(frame);
+            ++messageCount;
+            byteCount += frame.length;
+        }
+        if (streamer != null && messageCount > 0) {
+            byte[] tail = streamer.flush();
+            if (tail != null) {
+                appendOutput(tail);
+                byteCount += tail.length;
+            }
+        }
+        for (int i = 0; i < myOutputCount; ++i) {
+            myOutputBuffers[i].flip();
+        }
+        if (messageCount > 0) {
+            mySelectThread.noteOutputBatch(messageCount, byteCount);
+            if (myTrace.debug && Trace.ON) {
+                myTrace.debugm(this + " batched " + messageCount +
+                               " messages, " + byteCount + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Copy bytes into the batch of output buffers being assembled, taking
+     * more buffers from the pool as needed.
+     *
+     * @param bytes  The bytes to add to the batch.
+     */
+    private void appendOutput(byte[] bytes) {
+        ByteBuffer current = null;
+        if (myOutputCount > 0) {
+            current = myOutputBuffers[myOutputCount - 1];
+        }
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (current == null || !current.hasRemaining()) {
+                current = mySelectThread.outputBufferPool().acquire();
+                addOutputBuffer(current);
+            }
+            int length = Math.min(current.remaining(), bytes.length - offset);
+            current.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    /**
+     * Add a buffer to the end of the batch of output buffers, growing the
+     * buffer array if needed.
+     *
+     * @param buffer  The buffer to add.
+     */
+    private void addOutputBuffer(ByteBuffer buffer) {
+        if (myOutputCount == myOutputBuffers.length) {
+            ByteBuffer newBuffers[] = new ByteBuffer[myOutputCount * 2];
+            System.arraycopy(myOutputBuffers, 0, newBuffers, 0,
+                             myOutputCount);
+            myOutputBuffers = newBuffers;
+        }
+        myOutputBuffers[myOutputCount] = buffer;
+        ++myOutputCount;
+    }
+
+    /**
+     * Return any output buffers still held by this connection to the select
+     * thread's pool.
+     *
+     * This *must* be called from inside the select thread.
+     */
+    private void releaseOutputBuffers() {
+        BufferPool pool = mySelectThread.outputBufferPool();
+        for (int i = myOutputStart; i < myOutputCount; ++i) {
+            pool.release(myOutputBuffers[i]);
+            myOutputBuffers[i] = null;
+        }
+        myOutputStart = 0;
+        myOutputCount = 0;
+    }
+
     /**
      * Enqueue a message for output.
      *
@@ -304,7 +478,17 @@ public class TCPConnection
 
         /* If the connection is going away, the message can be discarded. */
         if (amOpen) {
-            myOutputQueue.enqueue(message);
+            if (!myOutputQueue.enqueue(message)) {
+                /* The other end isn't keeping up and the backlog can't be
+                   trimmed back within budget, so give up on it.  Anything
+                   still queued is abandoned; the close marker goes out as
+                   soon as the batch already in progress is finished. */
+                myTrace.usagei(this + " output backlog limit exceeded (" +
+                               myOutputQueue.byteCount() + " bytes)");
+                myOutputQueue.clear();
+                myOutputQueue.enqueue(theCloseMarker);
+                amOpen = false;
+            }
             boolean doWakeup;
             synchronized (myWakeupLock) {
                 doWakeup = amNeedingToWakeupSelect;
@@ -331,28 +515,13 @@ public class TCPConnection
      * @return true if this connection appears to be writable, false if not.
      */
     public boolean isWritable() {
-        try {
-            return
-                amOpen &&
-                !myOutputQueue.hasMoreElements() &&
-                (myOutputBuffer == null || !myOutputBuffer.hasRemaining());
-        } catch (NullPointerException e) {
-            /* We are looking at myOutputBuffer from outside the thread that is
-               actually entitled to be looking at it, so it is possible that
-               the variable will be non-null when we test it for null and then
-               null a moment later when we try to invoke hasRemaining() on
-               it. Since the purpose of this method is only to give an
-               approximate take on the writabilty of the connection, we can
-               declare that if this NPE happens then the buffer is now null and
-               hence writable.  We could be more disciplined about locking and
-               such, but it would be huge increase in thread madness with no
-               particular benefit gained as a consequence.  So this little bit
-               of meatball hackery seems like it's actually the least dumb
-               thing to do here (aside from arranging to not want to ask the
-               "is it writable?"  question in the first place, of course; but
-               that would be even more work.) */
-            return true;
-        }
+        /* This looks at myOutputCount from outside the select thread, which
+           is entitled to change it at any moment; that's OK, since the answer
+           is only supposed to be approximate. */
+        return
+            amOpen &&
+            !myOutputQueue.hasMoreElements() &&
+            myOutputCount == 0;
     }
 
     /**
@@ -386,7 +555,7 @@ public class TCPConnection
         if (myTrace.debug && Trace.ON) {
             myTrace.debugm(this + " enqueueing message: " + message);
         }
-        enqueueSentMessage(message);
+        enqueueSentMessage(SharedFrame.forMessage(message));
     }
 
     /**
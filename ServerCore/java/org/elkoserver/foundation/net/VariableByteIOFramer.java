@@ -0,0 +1,20 @@
+package org.elkoserver.foundation.net;
+
+/**
+ * Interface for byte I/O framers whose encoding of a given message may differ
+ * from one instance of the framer class to another, for example according to
+ * options negotiated with the other end of the connection.  Such a framer
+ * identifies the kind of encoding it produces, so that connections can tell
+ * when they are able to share an encoding of a broadcast message (see {@link
+ * SharedFrame}).
+ */
+interface VariableByteIOFramer extends ByteIOFramer {
+    /**
+     * Identify the kind of encoding this framer currently produces.  Any two
+     * framers that return the same (identical) object from this method must
+     * produce identical bytes for any given message.
+     *
+     * @return an object denoting this framer's encoding.
+     */
+    Object frameKind();
+}
@@ -2,6 +2,10 @@ package org.elkoserver.foundation.net;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import org.elkoserver.json.JSONLiteral;
 import org.elkoserver.util.trace.Trace;
 import org.apache.commons.codec.binary.Base64;
@@ -9,6 +13,24 @@ import org.apache.commons.codec.binary.Base64;
 /**
  * Byte I/O framer factory for WebSocket connections, a perverse hybrid of HTTP
  * and TCP.
+ *
+ * <p>Two flavors of WebSocket are spoken.  Connections whose opening
+ * handshake carries a Sec-WebSocket-Key header use the framing of RFC 6455:
+ * masked client frames, fragmentation via continuation frames, and ping, pong
+ * and close control frames (which are answered directly on the select
+ * thread, without involving the run queue).  If the client offers it and the
+ * server allows it, the permessage-deflate extension of RFC 7692 is
+ * negotiated.  Older clients that use the draft (hixie-76) handshake get the
+ * legacy 0x00 ... 0xFF text framing.
+ *
+ * <p>Compression is always negotiated without context takeover in either
+ * direction.  This means each message is compressed independently of the
+ * ones before it, so that compression state need not be kept per connection:
+ * each select thread has one deflater and one inflater that it uses for all
+ * of its deflating connections, and ends when the last of them closes.  It
+ * also means a broadcast message compresses to the
+ * same bytes for every recipient, so it need only be compressed once (see
+ * {@link SharedFrame}).
  */
 public class WebSocketByteIOFramerFactory implements ByteIOFramerFactory {
     private static Base64 theCodec = new Base64();
@@ -24,15 +46,75 @@ public class WebSocketByteIOFramerFactory implements ByteIOFramerFactory {
     /** The URI of the WebSocket connection point. */
     private String mySocketURI;
 
+    /** Flag that permessage-deflate may be negotiated. */
+    private boolean amDeflateAllowed;
+
+    /** Limits on the messages the framers will accept. */
+    private MessageLimits myLimits;
+
+    /* Frame kinds produced by the various flavors of WebSocket framer. */
+    private static final Object theHixieKind = new Object();
+    private static final Object theRFC6455Kind = new Object();
+    private static final Object theDeflateKind = new Object();
+
+    /* RFC 6455 frame opcodes. */
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT         = 0x1;
+    private static final int OP_BINARY       = 0x2;
+    private static final int OP_CLOSE        = 0x8;
+    private static final int OP_PING         = 0x9;
+    private static final int OP_PONG         = 0xA;
+
+    /* RFC 6455 frame header bits. */
+    private static final int FLAG_FIN  = 0x80;
+    private static final int FLAG_RSV1 = 0x40;
+    private static final int FLAG_RSV2_3 = 0x30;
+    private static final int FLAG_MASK = 0x80;
+
+    /** Close status code for a protocol error. */
+    private static final int CLOSE_PROTOCOL_ERROR = 1002;
+
+    /** Largest frame or message reassembly buffer that will be held onto once
+        it has been emptied. */
+    private static final int MAX_IDLE_BUFFER = 512;
+
+    /** Messages shorter than this are not worth compressing. */
+    private static final int DEFLATE_THRESHOLD = 128;
+
+    /** Tail that RFC 7692 strips from (and restores to) each compressed
+        message. */
+    private static final byte[] theDeflateTail =
+        { 0x00, 0x00, (byte) 0xFF, (byte) 0xFF };
+
+    /** Extension header sent when permessage-deflate is accepted. */
+    private static final String DEFLATE_EXTENSION_HEADER =
+        "Sec-WebSocket-Extensions: permessage-deflate; " +
+        "server_no_context_takeover; client_no_context_takeover\r\n";
+
+    /** Per-select-thread compression state. */
+    private static final ThreadLocal<Codecs> theCodecs =
+        new ThreadLocal<Codecs>() {
+            protected Codecs initialValue() {
+                return new Codecs();
+            }
+        };
+
     /**
      * Constructor.
      *
      * @param msgTrace  Trace object for logging message traffic.
+     * @param hostAddress  The host address of the WebSocket connection point.
+     * @param socketURI  The URI of the WebSocket connection point.
+     * @param deflateAllowed  If true, negotiate permessage-deflate with
+     *    clients that offer it.
+     * @param limits  Limits on the messages that will be accepted.
      */
     WebSocketByteIOFramerFactory(Trace msgTrace, String hostAddress,
-                                 String socketURI)
+                                 String socketURI, boolean deflateAllowed,
+                                 MessageLimits limits)
     {
         trMsg = msgTrace;
+        myLimits = limits;
         myHostAddress = hostAddress;
         int colonPos = hostAddress.indexOf(':');
         if (colonPos != -1) {
@@ -41,6 +123,7 @@ public class WebSocketByteIOFramerFactory implements ByteIOFramerFactory {
             myHostName = hostAddress;
         }
         mySocketURI = socketURI;
+        amDeflateAllowed = deflateAllowed;
     }
 
     /**
@@ -53,10 +136,103 @@ public class WebSocketByteIOFramerFactory implements ByteIOFramerFactory {
         return new WebSocketFramer(receiver, label);
     }
 
+    /**
+     * An RFC 6455 control frame to be sent by the framer on its own behalf.
+     */
+    private static class ControlFrame {
+        /** The frame opcode. */
+        final int opcode;
+
+        /** The frame payload. */
+        final byte[] payload;
+
+        ControlFrame(int opcode, byte[] payload) {
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+
+        public String toString() {
+            return "WebSocket control frame " + opcode;
+        }
+    }
+
+    /**
+     * The compressor and decompressor shared by the deflating connections of
+     * one select thread.  Each is made when first needed, and both are ended
+     * (freeing their native storage then and there, rather than whenever the
+     * garbage collector gets around to it) when the last of the connections
+     * using them closes.  Since a connection's framer is only ever used from
+     * its select thread, no locking is needed.
+     */
+    private static class Codecs {
+        /** The compressor, or null if none has been needed yet. */
+        private Deflater myDeflater;
+
+        /** The decompressor, or null if none has been needed yet. */
+        private Inflater myInflater;
+
+        /** Number of open connections using these codecs. */
+        private int myUserCount;
+
+        /**
+         * Obtain the calling thread's codecs, counting the caller as a user
+         * of them until it calls {@link #release}.
+         *
+         * @return the codecs for the current thread.
+         */
+        static Codecs acquire() {
+            Codecs codecs = theCodecs.get();
+            ++codecs.myUserCount;
+            return codecs;
+        }
+
+        /**
+         * Get the compressor.
+         *
+         * @return a deflater for raw (headerless) deflate data.
+         */
+        Deflater deflater() {
+            if (myDeflater == null) {
+                myDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            }
+            return myDeflater;
+        }
+
+        /**
+         * Get the decompressor.
+         *
+         * @return an inflater for raw (headerless) deflate data.
+         */
+        Inflater inflater() {
+            if (myInflater == null) {
+                myInflater = new Inflater(true);
+            }
+            return myInflater;
+        }
+
+        /**
+         * Stop using these codecs, ending them if nobody else is.
+         */
+        void release() {
+            --myUserCount;
+            if (myUserCount == 0) {
+                if (myDeflater != null) {
+                    myDeflater.end();
+                    myDeflater = null;
+                }
+                if (myInflater != null) {
+                    myInflater.end();
+                    myInflater = null;
+                }
+            }
+        }
+    }
+
     /**
      * I/O framer implementation for HTTP requests.
      */
-    private class WebSocketFramer implements ByteIOFramer {
+    private class WebSocketFramer implements VariableByteIOFramer, Releasable
+    {
         /** The message receiver that input is being framed for. */
         private MessageReceiver myReceiver;
         
@@ -66,12 +242,10 @@ public class WebSocketByteIOFramerFactory implements ByteIOFramerFactory {
         /** Input data source. */
         private ChunkyByteArrayInputStream myIn;
 
-        /** Lower-level framer once we start actually reading messages. */
+        /** Lower-level framer once we start actually reading messages, in the
+            legacy framing. */
         private JSONByteIOFramer myMessageFramer;
 
-        /** Message input currently in progress. */
-        private String myMsgString;
-
         /** Stage of WebSocket input reading. */
         private int myWSParseStage;
 
@@ -81,22 +255,85 @@ public class WebSocketByteIOFramerFactory implements ByteIOFramerFactory {
         private final static int WS_STAGE_HEADER = 2;
         /** Stage is: parsing handshake bytes */
         private final static int WS_STAGE_HANDSHAKE = 3;
-        /** Stage is: parsing message stream */
+        /** Stage is: parsing legacy message stream */
         private final static int WS_STAGE_MESSAGES = 4;
+        /** Stage is: parsing RFC 6455 frames */
+        private final static int WS_STAGE_FRAMES = 5;
+        /** Stage is: closing, ignoring any further input */
+        private final static int WS_STAGE_CLOSED = 6;
 
         /** HTTP request object under construction, for start handshake. */
         private WebSocketRequest myRequest;
 
+        /** Flag that RFC 6455 framing is in use. */
+        private boolean amRFC6455;
+
+        /** Flag that permessage-deflate has been negotiated. */
+        private boolean amDeflating;
+
+        /** This thread's codecs, if deflating and not yet released. */
+        private Codecs myCodecs;
+
+        /** Bytes of a partially received frame, or null if none have needed
+            saving. */
+        private byte[] myFrameBuf;
+
+        /** Number of bytes in myFrameBuf that are in use. */
+        private int myFrameBufLength;
+
+        /** Payload of a fragmented message being reassembled. */
+        private byte[] myMessageBuf;
+
+        /** Number of bytes in myMessageBuf that are in use. */
+        private int myMessageLength;
+
+        /** Flag that a fragmented message is being reassembled. */
+        private boolean amInMessage;
+
+        /** Flag that the message being reassembled is compressed. */
+        private boolean amMessageCompressed;
+
         /**
          * Constructor.
          */
         WebSocketFramer(MessageReceiver receiver, String label) {
             myReceiver = receiver;
             myLabel = label;
-            myMsgString = "";
             myIn = new ChunkyByteArrayInputStream();
             myWSParseStage = WS_STAGE_START;
             myRequest = new WebSocketRequest();
+            amRFC6455 = false;
+            amDeflating = false;
+            myFrameBufLength = 0;
+            myMessageLength = 0;
+            amInMessage = false;
+        }
+
+        /**
+         * Identify the kind of encoding this framer produces, which depends
+         * on the protocol flavor and extensions negotiated.
+         *
+         * @return an object denoting this framer's encoding.
+         */
+        public Object frameKind() {
+            if (!amRFC6455) {
+                return theHixieKind;
+            } else if (amDeflating) {
+                return theDeflateKind;
+            } else {
+                return theRFC6455Kind;
+            }
+        }
+
+        /**
+         * Give up this connection's claim on its select thread's codecs.  The
+         * connection calls this once it has closed.
+         */
+        public void release() {
+            if (myCodecs != null) {
+                myCodecs.release();
+                myCodecs = null;
+            }
         }
         
         /**
@@ -107,6 +344,12 @@ public class WebSocketByteIOFramerFactory implements ByteIOFramerFactory {
          *    indicated by passing a 'length' value of 0.
          */
         public void receiveBytes(byte[] data, int length) throws IOException {
+            if (myWSParseStage == WS_STAGE_FRAMES) {
+                receiveFrames(data, length);
+                return;
+            } else if (myWSParseStage == WS_STAGE_CLOSED) {
+                return;
+            }
             myIn.addBuffer(data, length);
 
             while (true) {
@@ -135,6 +378,28 @@ public class WebSocketByteIOFramerFactory implements ByteIOFramerFactory {
                         break;
                     }
                     case WS_STAGE_HANDSHAKE: {
+                        if (myRequest.header("sec-websocket-key") != null) {
+                            amRFC6455 = true;
+                            amDeflating = amDeflateAllowed &&
+                                offersDeflate(myRequest.header(
+                                    "sec-websocket-extensions"));
+                            if (amDeflating) {
+                                myCodecs = Codecs.acquire();
+                            }
+                            myReceiver.receiveMsg(myRequest);
+                            myWSParseStage = WS_STAGE_FRAMES;
+                            /* Any bytes following the handshake are the
+                               start of the frame stream. */
+                            int leftover = myIn.available();
+                            if (leftover > 0) {
+                                byte[] rest = myIn.readBytes(leftover);
+                                myIn = null;
+                                receiveFrames(rest, rest.length);
+                            } else {
+                                myIn = null;
+                            }
+                            return;
+                        }
                         if (myRequest.header("sec-websocket-key1") != null) {
                             byte crazyKey[] = myIn.readBytes(8);
                             if (crazyKey == null) {
@@ -160,31 +425,498 @@ public class WebSocketByteIOFramerFactory implements ByteIOFramerFactory {
             }
         }
 
+        /**
+         * Test if a client's Sec-WebSocket-Extensions header offers a form of
+         * permessage-deflate that can be accepted.  Since the JDK's deflater
+         * always uses a full size window, an offer that restricts the
+         * server's window size is declined.
+         *
+         * @param extensions  The value of the header, or null if there was
+         *    none.
+         *
+         * @return true if permessage-deflate should be accepted.
+         */
+        private boolean offersDeflate(String extensions) {
+            if (extensions == null) {
+                return false;
+            }
+            for (String offer : extensions.split(",")) {
+                String params[] = offer.split(";");
+                if (params[0].trim().equalsIgnoreCase("permessage-deflate")) {
+                    boolean acceptable = true;
+                    for (int i = 1; i < params.length; ++i) {
+                        String param = params[i].trim();
+                        int equals = param.indexOf('=');
+                        if (equals > 0 &&
+                                param.substring(0, equals).trim()
+                                    .equalsIgnoreCase("server_max_window_bits")) {
+                            String value =
+                                param.substring(equals + 1).trim();
+                            value = value.replace("\"", "");
+                            if (!value.equals("15")) {
+                                acceptable = false;
+                            }
+                        }
+                    }
+                    if (acceptable) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Process received bytes as a stream of RFC 6455 frames.  Complete
+         * frames are handled straight out of the given buffer; only a
+         * trailing partial frame is copied, to await the rest of its bytes.
+         *
+         * @param data  The bytes received.
+         * @param length  Number of usable bytes in 'data'.
+         */
+        private void receiveFrames(byte[] data, int length)
+            throws IOException
+        {
+            if (length == 0) {
+                return;
+            }
+            if (myFrameBufLength > 0) {
+                appendFrameBytes(data, 0, length);
+                int consumed = parseFrames(myFrameBuf, 0, myFrameBufLength);
+                int remaining = myFrameBufLength - consumed;
+                if (remaining > 0 && consumed > 0) {
+                    System.arraycopy(myFrameBuf, consumed, myFrameBuf, 0,
+                                     remaining);
+                }
+                myFrameBufLength = remaining;
+                if (remaining == 0 && myFrameBuf.length > MAX_IDLE_BUFFER) {
+                    myFrameBuf = null;
+                }
+            } else {
+                int consumed = parseFrames(data, 0, length);
+                if (consumed < length &&
+                        myWSParseStage == WS_STAGE_FRAMES) {
+                    appendFrameBytes(data, consumed, length - consumed);
+                }
+            }
+        }
+
+        /**
+         * Save bytes of a partially received frame until the rest arrives.
+         *
+         * @param data  Array containing the bytes to save.
+         * @param offset  Index of the first byte to save.
+         * @param length  Number of bytes to save.
+         */
+        private void appendFrameBytes(byte[] data, int offset, int length) {
+            int needed = myFrameBufLength + length;
+            if (myFrameBuf == null || needed > myFrameBuf.length) {
+                int size = myFrameBuf == null ? 0 : myFrameBuf.length * 2;
+                byte[] newBuf = new byte[Math.max(size, needed)];
+                if (myFrameBufLength > 0) {
+                    System.arraycopy(myFrameBuf, 0, newBuf, 0,
+                                     myFrameBufLength);
+                }
+                myFrameBuf = newBuf;
+            }
+            System.arraycopy(data, offset, myFrameBuf, myFrameBufLength,
+                             length);
+            myFrameBufLength = needed;
+        }
+
+        /**
+         * Parse and handle as many complete frames as there are in a range of
+         * bytes.  Frame payloads are unmasked in place.
+         *
+         * @param buf  Array containing the bytes.
+         * @param offset  Index of the first byte to parse.
+         * @param limit  Index just past the last byte to parse.
+         *
+         * @return the index of the first byte not consumed.
+         */
+        private int parseFrames(byte[] buf, int offset, int limit)
+            throws IOException
+        {
+            int pos = offset;
+            while (limit - pos >= 2 && myWSParseStage == WS_STAGE_FRAMES) {
+                int b0 = buf[pos] & 0xFF;
+                int b1 = buf[pos + 1] & 0xFF;
+                boolean fin = (b0 & FLAG_FIN) != 0;
+                boolean compressed = (b0 & FLAG_RSV1) != 0;
+                int opcode = b0 & 0x0F;
+                if ((b0 & FLAG_RSV2_3) != 0 || (compressed && !amDeflating)) {
+                    throw new IOException(
+                        "WebSocket frame with unnegotiated reserved bits");
+                }
+                if ((b1 & FLAG_MASK) == 0) {
+                    throw new IOException("unmasked WebSocket client frame");
+                }
+                long payloadLength = b1 & 0x7F;
+                int headerLength = 2;
+                if (payloadLength == 126) {
+                    if (limit - pos < 4) {
+                        break;
+                    }
+                    payloadLength = ((buf[pos + 2] & 0xFF) << 8) |
+                                     (buf[pos + 3] & 0xFF);
+                    headerLength = 4;
+                } else if (payloadLength == 127) {
+                    if (limit - pos < 10) {
+                        break;
+                    }
+                    payloadLength = 0;
+                    for (int i = 2; i < 10; ++i) {
+                        payloadLength =
+                            (payloadLength << 8) | (buf[pos + i] & 0xFF);
+                    }
+                    headerLength = 10;
+                }
+                if (payloadLength < 0 ||
+                        payloadLength > myLimits.maxLength()) {
+                    throw new IOException("input too large (limit " +
+                        myLimits.maxLength() + " bytes)");
+                }
+                int length = (int) payloadLength;
+                int maskPos = pos + headerLength;
+                int payloadPos = maskPos + 4;
+                if (limit - payloadPos < length) {
+                    break;
+                }
+                for (int i = 0; i < length; ++i) {
+                    buf[payloadPos + i] ^= buf[maskPos + (i & 3)];
+                }
+                handleFrame(fin, compressed, opcode, buf, payloadPos, length);
+                pos = payloadPos + length;
+            }
+            return pos;
+        }
+
+        /**
+         * Handle a single, complete, unmasked frame.
+         *
+         * @param fin  True if this is the final frame of a message.
+         * @param compressed  True if the RSV1 (compression) bit was set.
+         * @param opcode  The frame opcode.
+         * @param buf  Array containing the payload.
+         * @param offset  Index of the first byte of the payload.
+         * @param length  Number of bytes in the payload.
+         */
+        private void handleFrame(boolean fin, boolean compressed, int opcode,
+                                 byte[] buf, int offset, int length)
+            throws IOException
+        {
+            switch (opcode) {
+                case OP_TEXT:
+                case OP_BINARY:
+                    if (amInMessage) {
+                        throw new IOException(
+                            "WebSocket message begun inside fragmented message");
+                    }
+                    if (fin) {
+                        deliverPayload(buf, offset, length, compressed);
+                    } else {
+                        amInMessage = true;
+                        amMessageCompressed = compressed;
+                        myMessageLength = 0;
+                        appendMessageBytes(buf, offset, length);
+                    }
+                    break;
+                case OP_CONTINUATION:
+                    if (!amInMessage) {
+                        throw new IOException(
+                            "WebSocket continuation frame outside message");
+                    }
+                    if (compressed) {
+                        /* RFC 7692: only a message's first frame has RSV1
+                           set. */
+                        throw new IOException(
+                            "WebSocket continuation frame with RSV1 set");
+                    }
+                    appendMessageBytes(buf, offset, length);
+                    if (fin) {
+                        amInMessage = false;
+                        deliverPayload(myMessageBuf, 0, myMessageLength,
+                                       amMessageCompressed);
+                        myMessageLength = 0;
+                        if (myMessageBuf.length > MAX_IDLE_BUFFER) {
+                            myMessageBuf = null;
+                        }
+                    }
+                    break;
+                case OP_PING:
+                case OP_PONG:
+                case OP_CLOSE:
+                    if (!fin || length > 125) {
+                        throw new IOException(
+                            "fragmented or oversized WebSocket control frame");
+                    }
+                    if (compressed) {
+                        throw new IOException(
+                            "WebSocket control frame with RSV1 set");
+                    }
+                    handleControlFrame(opcode, buf, offset, length);
+                    break;
+                default:
+                    throw new IOException("unknown WebSocket opcode " +
+                                          opcode);
+            }
+        }
+
+        /**
+         * Respond to a control frame.  This is done right here on the select
+         * thread; the application never sees control frames.
+         *
+         * @param opcode  The frame opcode.
+         * @param buf  Array containing the payload.
+         * @param offset  Index of the first byte of the payload.
+         * @param length  Number of bytes in the payload.
+         */
+        private void handleControlFrame(int opcode, byte[] buf, int offset,
+                                        int length)
+        {
+            Connection connection = (Connection) myReceiver;
+            if (opcode == OP_PING) {
+                byte[] payload = new byte[length];
+                System.arraycopy(buf, offset, payload, 0, length);
+                connection.sendMsg(new ControlFrame(OP_PONG, payload));
+            } else if (opcode == OP_CLOSE) {
+                /* Echo the status code, if any, then close. */
+                byte[] payload = new byte[Math.min(length, 2)];
+                System.arraycopy(buf, offset, payload, 0, payload.length);
+                if (trMsg.debug && Trace.ON) {
+                    trMsg.debugm("WS received close");
+                }
+                myWSParseStage = WS_STAGE_CLOSED;
+                connection.sendMsg(new ControlFrame(OP_CLOSE, payload));
+                connection.close();
+            }
+            /* Unsolicited pongs are simply ignored. */
+        }
+
+        /**
+         * Add bytes to a fragmented message being reassembled.
+         *
+         * @param data  Array containing the bytes.
+         * @param offset  Index of the first byte to add.
+         * @param length  Number of bytes to add.
+         */
+        private void appendMessageBytes(byte[] data, int offset, int length)
+            throws IOException
+        {
+            int needed = myMessageLength + length;
+            if (needed > myLimits.maxLength()) {
+                throw new IOException("input too large (limit " +
+                    myLimits.maxLength() + " bytes)");
+            }
+            if (myMessageBuf == null || needed > myMessageBuf.length) {
+                int size = myMessageBuf == null ? 0 : myMessageBuf.length * 2;
+                byte[] newBuf = new byte[Math.max(size, needed)];
+                if (myMessageLength > 0) {
+                    System.arraycopy(myMessageBuf, 0, newBuf, 0,
+                                     myMessageLength);
+                }
+                myMessageBuf = newBuf;
+            }
+            System.arraycopy(data, offset, myMessageBuf, myMessageLength,
+                             length);
+            myMessageLength = needed;
+        }
+
+        /**
+         * Deliver the JSON messages in a complete WebSocket message payload,
+         * decompressing it first if need be.
+         *
+         * @param buf  Array containing the payload.
+         * @param offset  Index of the first byte of the payload.
+         * @param length  Number of bytes in the payload.
+         * @param compressed  True if the payload is compressed.
+         */
+        private void deliverPayload(byte[] buf, int offset, int length,
+                                    boolean compressed)
+            throws IOException
+        {
+            if (compressed) {
+                byte[] inflated = inflate(buf, offset, length);
+                JSONScanningByteIOFramer.deliverMessages(inflated, 0,
+                    inflated.length, myReceiver, trMsg, myLabel, myLimits);
+            } else {
+                JSONScanningByteIOFramer.deliverMessages(buf, offset, length,
+                    myReceiver, trMsg, myLabel, myLimits);
+            }
+        }
+
+        /**
+         * Decompress a permessage-deflate payload.
+         *
+         * @param buf  Array containing the payload.
+         * @param offset  Index of the first byte of the payload.
+         * @param length  Number of bytes in the payload.
+         *
+         * @return the decompressed bytes.
+         */
+        private byte[] inflate(byte[] buf, int offset, int length)
+            throws IOException
+        {
+            Inflater inflater = myCodecs.inflater();
+            inflater.reset();
+            byte[] out = new byte[Math.max(length * 4, 256)];
+            int outLength = 0;
+            try {
+                for (int pass = 0; pass < 2; ++pass) {
+                    if (pass == 0) {
+                        inflater.setInput(buf, offset, length);
+                    } else {
+                        inflater.setInput(theDeflateTail);
+                    }
+                    while (true) {
+                        if (outLength == out.length) {
+                            if (out.length >= myLimits.maxLength()) {
+                                throw new IOException(
+                                    "input too large (limit " +
+                                    myLimits.maxLength() +
+                                    " bytes)");
+                            }
+                            byte[] newOut = new byte[Math.min(out.length * 2,
+                                myLimits.maxLength())];
+                            System.arraycopy(out, 0, newOut, 0, outLength);
+                            out = newOut;
+                        }
+                        int count = inflater.inflate(out, outLength,
+                                                     out.length - outLength);
+                        outLength += count;
+                        if (count == 0) {
+                            if (inflater.needsDictionary()) {
+                                throw new IOException(
+                                    "compressed WebSocket message needs " +
+                                    "a dictionary");
+                            } else if (inflater.needsInput() ||
+                                       inflater.finished()) {
+                                break;
+                            }
+                        }
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("bad compressed WebSocket message: " +
+                                      e.getMessage());
+            }
+            byte[] result = new byte[outLength];
+            System.arraycopy(out, 0, result, 0, outLength);
+            return result;
+        }
+
+        /**
+         * Compress a message payload for permessage-deflate.
+         *
+         * @param payload  The bytes to compress.
+         *
+         * @return the compressed bytes, with the trailing empty deflate block
+         *    marker removed.
+         */
+        private byte[] deflate(byte[] payload) {
+            Deflater deflater = myCodecs.deflater();
+            deflater.reset();
+            deflater.setInput(payload);
+            byte[] out = new byte[payload.length / 2 + 64];
+            int outLength = 0;
+            while (true) {
+                int count = deflater.deflate(out, outLength,
+                                             out.length - outLength,
+                                             Deflater.SYNC_FLUSH);
+                outLength += count;
+                if (outLength < out.length) {
+                    break;
+                }
+                byte[] newOut = new byte[out.length * 2];
+                System.arraycopy(out, 0, newOut, 0, outLength);
+                out = newOut;
+            }
+            if (outLength >= 4 && out[outLength - 4] == 0x00 &&
+                    out[outLength - 3] == 0x00 &&
+                    out[outLength - 2] == (byte) 0xFF &&
+                    out[outLength - 1] == (byte) 0xFF) {
+                outLength -= 4;
+            }
+            byte[] result = new byte[outLength];
+            System.arraycopy(out, 0, result, 0, outLength);
+            return result;
+        }
+
+        /**
+         * Build an (unmasked, unfragmented) RFC 6455 frame.
+         *
+         * @param opcode  The frame opcode.
+         * @param compressed  True if the RSV1 (compression) bit is to be set.
+         * @param payload  The frame payload.
+         *
+         * @return the bytes of the frame.
+         */
+        private byte[] makeFrame(int opcode, boolean compressed,
+                                 byte[] payload)
+        {
+            int length = payload.length;
+            int headerLength;
+            if (length < 126) {
+                headerLength = 2;
+            } else if (length <= 0xFFFF) {
+                headerLength = 4;
+            } else {
+                headerLength = 10;
+            }
+            byte[] frame = new byte[headerLength + length];
+            frame[0] = (byte) (FLAG_FIN | (compressed ? FLAG_RSV1 : 0) |
+                               opcode);
+            if (length < 126) {
+                frame[1] = (byte) length;
+            } else if (length <= 0xFFFF) {
+                frame[1] = (byte) 126;
+                frame[2] = (byte) (length >> 8);
+                frame[3] = (byte) length;
+            } else {
+                frame[1] = (byte) 127;
+                for (int i = 0; i < 8; ++i) {
+                    frame[9 - i] = (byte) (((long) length) >> (8 * i));
+                }
+            }
+            System.arraycopy(payload, 0, frame, headerLength, length);
+            return frame;
+        }
+
         /**
          * Generate the bytes for writing a message to a connection.  In this
-         * case, a message must be a string, a WebSocketHandshake object, or an
-         * HTTPError object.  A string is considered to be a serialized JSON
-         * message; it should be transmitted inside a WebSocket message
-         * frame. A WebSocketHandshake object contains the information for a
-         * connection setup handshake; it should be transmitted as the
-         * appropriate HTTP header plus junk. An HTTPError object is just what
-         * it seems to be; it should be transmitted as a regular HTTP error
-         * response.
+         * case, a message must be a JSONLiteral, a string, a
+         * WebSocketHandshake object, or an HTTPError object.  A JSONLiteral or
+         * a string is considered to be a serialized JSON message; it should be
+         * transmitted inside a WebSocket message frame (an RFC 6455 text
+         * frame, compressed if permessage-deflate is in effect and it is
+         * worth doing, or a legacy 0x00 ... 0xFF frame). A WebSocketHandshake
+         * object contains the information for a connection setup handshake;
+         * it should be transmitted as the appropriate HTTP header plus junk.
+         * An HTTPError object is just what it seems to be; it should be
+         * transmitted as a regular HTTP error response.
          *
          * @param msg  The message to be written.
          *
          * @return a byte array containing the writable form of 'msg'.
          */
         public byte[] produceBytes(Object msg) throws IOException {
-            if (msg instanceof JSONLiteral) {
-                msg = ((JSONLiteral) msg).sendableString();
-            }
-            if (msg instanceof String) {
-                String msgString = (String) msg;
-                if (trMsg.event && Trace.ON) {
-                    trMsg.msgi(myLabel, false, msgString);
+            if (msg instanceof JSONLiteral || msg instanceof String) {
+                ByteBuffer body =
+                    JSONScanningByteIOFramer.messageBytes(msg, trMsg, myLabel);
+                byte[] msgBytes = new byte[body.remaining()];
+                body.get(msgBytes);
+                if (amRFC6455) {
+                    boolean compressed = false;
+                    if (amDeflating &&
+                            msgBytes.length >= DEFLATE_THRESHOLD) {
+                        byte[] deflated = deflate(msgBytes);
+                        if (deflated.length < msgBytes.length) {
+                            msgBytes = deflated;
+                            compressed = true;
+                        }
+                    }
+                    return makeFrame(OP_TEXT, compressed, msgBytes);
                 }
-                byte[] msgBytes = msgString.getBytes("UTF-8");
                 byte[] frame = new byte[msgBytes.length + 2];
                 frame[0] = 0x00;
                 System.arraycopy(msgBytes, 0, frame, 1, msgBytes.length);
@@ -221,11 +953,13 @@ public class WebSocketByteIOFramerFactory implements ByteIOFramerFactory {
                 } else if (handshake.version() == 6) {
                     String header =
                         "HTTP/1.1 101 Switching Protocols\r\n" +
-                        "Upgrade: Websocket\r\n" +
+                        "Upgrade: websocket\r\n" +
                         "Connection: Upgrade\r\n" +
                         "Sec-WebSocket-Accept: " +
                             theCodec.encodeToString(handshake.bytes()) +
-                            "\r\n\r\n";
+                            "\r\n" +
+                        (amDeflating ? DEFLATE_EXTENSION_HEADER : "") +
+                        "\r\n";
                     byte[] headerBytes = header.getBytes("ASCII");
                     if (trMsg.debug && Trace.ON) {
                         trMsg.debugm("WS sending handshake:\n" + header);
@@ -234,6 +968,9 @@ public class WebSocketByteIOFramerFactory implements ByteIOFramerFactory {
                 } else {
                     throw new Error("unsupported WebSocket version");
                 }
+            } else if (msg instanceof ControlFrame) {
+                ControlFrame control = (ControlFrame) msg;
+                return makeFrame(control.opcode, false, control.payload);
             } else if (msg instanceof HTTPError) {
                 HTTPError error = (HTTPError) msg;
                 String reply = error.messageString();
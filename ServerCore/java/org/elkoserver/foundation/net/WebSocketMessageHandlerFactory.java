@@ -86,7 +86,7 @@ class WebSocketMessageHandlerFactory implements MessageHandlerFactory {
             sendError(connection, "Invalid WebSocket endpoint URI");
         } else if (!"WebSocket".equalsIgnoreCase(request.header("upgrade"))) {
             sendError(connection, "Invalid WebSocket Upgrade header");
-        } else if (!"Upgrade".equalsIgnoreCase(request.header("connection"))) {
+        } else if (!hasUpgradeToken(request.header("connection"))) {
             sendError(connection, "Invalid WebSocket Connection header");
         } else if (key != null) {
             connection.sendMsg(generateRidiculousHandshake6(key));
@@ -100,6 +100,26 @@ class WebSocketMessageHandlerFactory implements MessageHandlerFactory {
         }
     }
 
+    /**
+     * Test if a Connection header value includes the "Upgrade" token.  Many
+     * browsers send other tokens along with it (e.g., "keep-alive,
+     * Upgrade").
+     *
+     * @param connection  The value of the Connection header, or null.
+     *
+     * @return true if 'connection' lists "Upgrade".
+     */
+    private boolean hasUpgradeToken(String connection) {
+        if (connection != null) {
+            for (String token : connection.split(",")) {
+                if (token.trim().equalsIgnoreCase("Upgrade")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     private long insaneKeyDecode(String key) {
         int spaceCount = 0;
         long num = 0;
@@ -0,0 +1,238 @@
+package org.elkoserver.foundation.run;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.elkoserver.json.JSONLiteral;
+
+/**
+ * A histogram of non-negative values (normally durations in nanoseconds),
+ * cheap enough to record into for every task a {@link Runner} runs.
+ *
+ * Values are counted in buckets whose widths grow with the magnitude of the
+ * values they hold: each power of two is divided into {@link #SUB_BUCKETS}
+ * equal parts, so any value is known to within about 6% no matter how large
+ * or small it is, and no value is ever too big to count.  Recording a value
+ * takes no locks and allocates nothing.
+ *
+ * A histogram must only be recorded into by one thread at a time, but its
+ * contents may be read from any thread.  Since the counts only ever grow,
+ * the activity over an interval is obtained by subtracting a snapshot taken
+ * at its start from one taken at its end.
+ */
+public class Histogram {
+    /** Number of buckets each power of two is divided into. */
+    private static final int SUB_BUCKETS = 16;
+
+    /** log2(SUB_BUCKETS). */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /** Number of buckets needed to hold any long value. */
+    private static final int BUCKETS =
+        (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /** Count of values recorded in each bucket. */
+    private AtomicLongArray myCounts;
+
+    /** Total of all values recorded. */
+    private AtomicLong mySum;
+
+    /** Largest value recorded. */
+    private AtomicLong myMax;
+
+    /**
+     * Constructor.
+     */
+    public Histogram() {
+        myCounts = new AtomicLongArray(BUCKETS);
+        mySum = new AtomicLong(0);
+        myMax = new AtomicLong(0);
+    }
+
+    /**
+     * Record a value.  Negative values are counted as 0.
+     *
+     * @param value  The value to record.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        /* Only one thread records, so plain (lazy) writes are enough. */
+        int bucket = bucketFor(value);
+        myCounts.lazySet(bucket, myCounts.get(bucket) + 1);
+        mySum.lazySet(mySum.get() + value);
+        if (value > myMax.get()) {
+            myMax.lazySet(value);
+        }
+    }
+
+    /**
+     * Get the largest value ever recorded.
+     *
+     * @return the largest value recorded, or 0 if nothing has been.
+     */
+    public long max() {
+        return myMax.get();
+    }
+
+    /**
+     * Take a snapshot of this histogram's contents.
+     *
+     * @return a snapshot of the histogram as it is now.
+     */
+    public Snapshot snapshot() {
+        long counts[] = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = myCounts.get(i);
+        }
+        return new Snapshot(counts, mySum.get());
+    }
+
+    /**
+     * Determine which bucket a value is counted in.
+     *
+     * @param value  The value, which must not be negative.
+     *
+     * @return the index of the bucket for 'value'.
+     */
+    private static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Determine the largest value that can be counted in a bucket.
+     *
+     * @param bucket  The index of the bucket.
+     *
+     * @return the largest value that 'bucket' counts.
+     */
+    private static long bucketTop(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = SUB_BUCKETS + bucket % SUB_BUCKETS;
+        long top = ((sub + 1) << shift) - 1;
+        return top < 0 ? Long.MAX_VALUE : top;
+    }
+
+    /**
+     * The contents of a histogram at some moment.
+     */
+    public static class Snapshot {
+        /** Count of values in each bucket. */
+        private long myCounts[];
+
+        /** Total of all the values. */
+        private long mySum;
+
+        /** Total number of values. */
+        private long myCount;
+
+        /**
+         * Constructor.
+         *
+         * @param counts  Count of values in each bucket.
+         * @param sum  Total of all the values.
+         */
+        private Snapshot(long counts[], long sum) {
+            myCounts = counts;
+            mySum = sum;
+            myCount = 0;
+            for (long count : counts) {
+                myCount += count;
+            }
+        }
+
+        /**
+         * Get the number of values in this snapshot.
+         *
+         * @return the number of values.
+         */
+        public long count() {
+            return myCount;
+        }
+
+        /**
+         * Get the mean of the values in this snapshot.
+         *
+         * @return the mean value, or 0 if there are none.
+         */
+        public double mean() {
+            return myCount == 0 ? 0.0 : (double) mySum / myCount;
+        }
+
+        /**
+         * Get (an upper bound, accurate to about 6%, on) the value that a
+         * given fraction of the values in this snapshot do not exceed.
+         *
+         * @param fraction  The fraction of interest, between 0 and 1.
+         *
+         * @return the value at 'fraction', or 0 if there are no values.
+         */
+        public long valueAt(double fraction) {
+            if (myCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * myCount);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < myCounts.length; ++i) {
+                seen += myCounts[i];
+                if (seen >= rank) {
+                    return bucketTop(i);
+                }
+            }
+            return bucketTop(myCounts.length - 1);
+        }
+
+        /**
+         * Produce a snapshot of the values recorded since an earlier
+         * snapshot of the same histogram was taken.
+         *
+         * @param earlier  The earlier snapshot, or null to get this one.
+         *
+         * @return a snapshot of just the values recorded after 'earlier'.
+         */
+        public Snapshot since(Snapshot earlier) {
+            if (earlier == null) {
+                return this;
+            }
+            long counts[] = new long[myCounts.length];
+            for (int i = 0; i < counts.length; ++i) {
+                counts[i] = myCounts[i] - earlier.myCounts[i];
+            }
+            return new Snapshot(counts, mySum - earlier.mySum);
+        }
+
+        /**
+         * Encode a summary of this snapshot: the number of values, their
+         * mean, their 50th, 90th, 99th and 99.9th percentiles, and the
+         * largest of them.
+         *
+         * @return a JSON literal summarizing this snapshot.
+         */
+        public JSONLiteral encode() {
+            JSONLiteral result = new JSONLiteral();
+            result.addParameter("count", myCount);
+            if (myCount > 0) {
+                result.addParameter("mean", (long) mean());
+                result.addParameter("p50", valueAt(0.5));
+                result.addParameter("p90", valueAt(0.9));
+                result.addParameter("p99", valueAt(0.99));
+                result.addParameter("p999", valueAt(0.999));
+                result.addParameter("max", valueAt(1.0));
+            }
+            result.finish();
+            return result;
+        }
+    }
+}
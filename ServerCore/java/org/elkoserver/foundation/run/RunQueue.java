@@ -0,0 +1,321 @@
+package org.elkoserver.foundation.run;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The queue of Runnables that a {@link Runner}'s thread services.  Any number
+ * of threads may add to the queue, but only the Runner's own thread ever
+ * takes anything out.
+ *
+ * No locks are involved.  Enqueuing pushes the new item onto a stack with a
+ * single compare-and-set.  When the consuming thread runs out of things to
+ * do, it takes the entire stack with a single atomic swap, reverses it into
+ * arrival order, and then works through the resulting batch without touching
+ * any shared state at all.  When there is nothing at all to do, the consuming
+ * thread parks; only a producer that finds the stack empty can be the one
+ * that has to wake it, so every other enqueue skips the wakeup check
+ * entirely.
+ *
+ * There are two lanes, each with its own stack and batch: a priority lane,
+ * for control traffic (administrative commands, messages between servers)
+ * that must not wait behind a backlog of ordinary work, and a normal lane for
+ * everything else.  Items in each lane are taken in the order they arrived.
+ * While both lanes have items waiting, up to {@link #priorityWeight} priority
+ * items are taken for each normal one, so that a flood of control traffic
+ * slows ordinary work down rather than stopping it.
+ */
+final class RunQueue {
+    /** Number of priority items taken for each normal item, when both kinds
+        are waiting. */
+    private static volatile int thePriorityWeight =
+        Runner.DEFAULT_PRIORITY_WEIGHT;
+
+    /** The priority lane. */
+    private final Lane myPriorityLane;
+
+    /** The normal lane. */
+    private final Lane myNormalLane;
+
+    /** Number of priority items taken since the last normal one.  Only the
+        consuming thread touches this. */
+    private int myPriorityStreak;
+
+    /** When the item most recently removed was enqueued.  Only the consuming
+        thread touches this. */
+    private long myLastEnqueueTime;
+
+    /** Flag that the item most recently removed came from the priority
+        lane.  Only the consuming thread touches this. */
+    private boolean amLastPriority;
+
+    /** The consuming thread, once it has first waited. */
+    private volatile Thread myConsumer;
+
+    /** Flag that the consuming thread is parked, or about to be. */
+    private volatile boolean amWaiting;
+
+    /**
+     * Constructor.
+     */
+    RunQueue() {
+        myPriorityLane = new Lane();
+        myNormalLane = new Lane();
+        myPriorityStreak = 0;
+        myLastEnqueueTime = 0;
+        amLastPriority = false;
+        myConsumer = null;
+        amWaiting = false;
+    }
+
+    /**
+     * Set the number of priority items that are taken for each normal item
+     * while both kinds are waiting, in every queue.
+     *
+     * @param weight  The number of priority items per normal item; values
+     *    less than 1 are taken as 1.
+     */
+    static void setPriorityWeight(int weight) {
+        thePriorityWeight = weight < 1 ? 1 : weight;
+    }
+
+    /**
+     * Get the number of priority items that are taken for each normal item
+     * while both kinds are waiting.
+     *
+     * @return the priority weight.
+     */
+    static int priorityWeight() {
+        return thePriorityWeight;
+    }
+
+    /**
+     * Add an item to the queue.  May be called from any thread.
+     *
+     * @param todo  The item to add.
+     * @param enqueueTime  The time, in System.nanoTime() terms, of the
+     *    addition, or 0 if no one is interested.
+     * @param priority  If true, add the item to the priority lane, else to
+     *    the normal lane.
+     */
+    void enqueue(Runnable todo, long enqueueTime, boolean priority) {
+        Lane lane = priority ? myPriorityLane : myNormalLane;
+        if (lane.push(new Node(todo, enqueueTime)) && amWaiting) {
+            amWaiting = false;
+            LockSupport.unpark(myConsumer);
+        }
+    }
+
+    /**
+     * Remove the next item from the queue: the least recently added item in
+     * the priority lane, unless that lane has had its share of turns, or
+     * else the least recently added item in the normal lane.  Must only be
+     * called by the consuming thread.
+     *
+     * @return the item removed, or null if the queue is empty.
+     */
+    Runnable optDequeue() {
+        Node node = null;
+        if (myPriorityStreak < thePriorityWeight) {
+            node = myPriorityLane.take();
+        }
+        if (node != null) {
+            ++myPriorityStreak;
+            amLastPriority = true;
+        } else {
+            node = myNormalLane.take();
+            if (node != null) {
+                myPriorityStreak = 0;
+                amLastPriority = false;
+            } else {
+                /* The priority lane has had its share, but there's nothing
+                   else to do. */
+                node = myPriorityLane.take();
+                if (node == null) {
+                    return null;
+                }
+                amLastPriority = true;
+            }
+        }
+        myLastEnqueueTime = node.myEnqueueTime;
+        return node.myTodo;
+    }
+
+    /**
+     * Get the time at which the item most recently removed from the queue
+     * was added to it.  Must only be called by the consuming thread.
+     *
+     * @return the enqueue time that was given for the last item removed by
+     *    {@link #optDequeue}.
+     */
+    long lastEnqueueTime() {
+        return myLastEnqueueTime;
+    }
+
+    /**
+     * Test whether the item most recently removed from the queue came from
+     * the priority lane.  Must only be called by the consuming thread.
+     *
+     * @return true if the last item removed by {@link #optDequeue} was a
+     *    priority item.
+     */
+    boolean wasLastPriority() {
+        return amLastPriority;
+    }
+
+    /**
+     * Wait until the queue is not empty.  Must only be called by the
+     * consuming thread.  Interrupts are ignored, as they have always been by
+     * Runners.
+     */
+    void awaitMore() {
+        if (myPriorityLane.hasBatch() || myNormalLane.hasBatch()) {
+            return;
+        }
+        myConsumer = Thread.currentThread();
+        while (true) {
+            /* The flag is raised afresh before every look at the stacks: an
+               enqueue that has just cleared it (to wake this thread) may not
+               have been the one whose item is now waiting, for instance if
+               its unpark arrived late, after this thread had already woken
+               up some other way, done the work and come back here.  An
+               enqueue that finds the flag false has already made its lane's
+               stack non-empty by the time this reads it, so nothing can be
+               missed. */
+            amWaiting = true;
+            if (!myPriorityLane.isIncomingEmpty() ||
+                    !myNormalLane.isIncomingEmpty()) {
+                break;
+            }
+            LockSupport.park(this);
+            Thread.interrupted();
+        }
+        amWaiting = false;
+    }
+
+    /**
+     * Reverse a list of nodes.
+     *
+     * @param list  The list, most recent first.
+     *
+     * @return the same nodes, least recent first.
+     */
+    private static Node reverse(Node list) {
+        Node result = null;
+        while (list != null) {
+            Node next = list.myNext;
+            list.myNext = result;
+            result = list;
+            list = next;
+        }
+        return result;
+    }
+
+    /**
+     * One lane of the queue: a stack that producers push onto, and the batch
+     * most recently taken from it by the consuming thread.
+     */
+    private static class Lane {
+        /** Items enqueued since the last batch was taken, most recent
+            first. */
+        private final AtomicReference<Node> myIncoming;
+
+        /** Remainder of the batch being worked through, in arrival order.
+            Only the consuming thread touches this. */
+        private Node myBatch;
+
+        /**
+         * Constructor.
+         */
+        Lane() {
+            myIncoming = new AtomicReference<Node>();
+            myBatch = null;
+        }
+
+        /**
+         * Push a node onto this lane's stack.  May be called from any
+         * thread.
+         *
+         * @param node  The node to push.
+         *
+         * @return true if the stack was empty before the push.
+         */
+        boolean push(Node node) {
+            Node head;
+            do {
+                head = myIncoming.get();
+                node.myNext = head;
+            } while (!myIncoming.compareAndSet(head, node));
+            return head == null;
+        }
+
+        /**
+         * Remove the least recently added node from this lane.  Must only be
+         * called by the consuming thread.
+         *
+         * @return the node removed, or null if the lane is empty.
+         */
+        Node take() {
+            Node node = myBatch;
+            if (node == null) {
+                /* Look before swapping, so that polling an empty lane
+                   doesn't write to memory the producers are using. */
+                if (myIncoming.get() == null) {
+                    return null;
+                }
+                node = reverse(myIncoming.getAndSet(null));
+            }
+            myBatch = node.myNext;
+            return node;
+        }
+
+        /**
+         * Test if the consuming thread has taken items from this lane that
+         * it has not yet removed.  Must only be called by the consuming
+         * thread.
+         *
+         * @return true if the current batch is not used up.
+         */
+        boolean hasBatch() {
+            return myBatch != null;
+        }
+
+        /**
+         * Test if nothing has been pushed onto this lane since the last batch
+         * was taken.
+         *
+         * @return true if the lane's stack is empty.
+         */
+        boolean isIncomingEmpty() {
+            return myIncoming.get() == null;
+        }
+    }
+
+    /**
+     * An item in the queue.
+     */
+    private static class Node {
+        /** The item. */
+        final Runnable myTodo;
+
+        /** When the item was enqueued, or 0 if that wasn't noted. */
+        final long myEnqueueTime;
+
+        /** The next node in whichever list this node is in.  This is only
+            written before the node is published by the compare-and-set that
+            enqueues it, or by the consuming thread after it has taken the
+            node, so it need not be volatile. */
+        Node myNext;
+
+        /**
+         * Constructor.
+         *
+         * @param todo  The item.
+         * @param enqueueTime  When the item was enqueued.
+         */
+        Node(Runnable todo, long enqueueTime) {
+            myTodo = todo;
+            myEnqueueTime = enqueueTime;
+        }
+    }
+}
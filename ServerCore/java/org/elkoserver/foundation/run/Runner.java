@@ -1,21 +1,34 @@
 package org.elkoserver.foundation.run;
 
 import org.elkoserver.util.trace.Trace;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Runs when it can, but never on empty.  A thread services a queue
  * of Runnables.
+ *
+ * The queue has a priority lane for control traffic that shouldn't wait
+ * behind ordinary work; see {@link #enqueue(Runnable, boolean)}.
  */
 public class Runner implements Runnable {
 
     static private Trace tr = Trace.trace("runner");
 
+    /**
+     * Default number of priority tasks done for each normal task while both
+     * kinds are waiting.
+     */
+    static public final int DEFAULT_PRIORITY_WEIGHT = 8;
+
     /**
      * Number of Runners currently in operation.  When this goes to 0, it is
-     * time to exit.
+     * time to exit.  Runners are started and stopped from many threads (for
+     * instance, by a sharded context server), hence the atomic count.
      */
-    static private int theRunnerCount = 0;
+    static private AtomicInteger theRunnerCount = new AtomicInteger(0);
 
     /**
      * DANGER DANGER: Mutable static.
@@ -23,15 +36,15 @@ public class Runner implements Runnable {
     static private Runner theDefaultRunner = null;
 
     /**
-     * The number of Runnables to dequeue and run in one go.
-     * Must be >= 1.
+     * All the Runners currently in operation, for reporting statistics.
      */
-    static private final int DEQUEUE_GRANULARITY = 25;
+    static private List<Runner> theRunners =
+        new CopyOnWriteArrayList<Runner>();
 
     /**
-     * Note that Queue is a thread-safe data structure with its own lock.
+     * Note that RunQueue is a thread-safe data structure that takes no locks.
      */
-    private Queue myQ;
+    private RunQueue myQ;
 
     /**
      * If we ever go orthogonal again, myThread must not be
@@ -41,39 +54,14 @@ public class Runner implements Runnable {
     private RunnerThread myThread;
 
     /**
-     * Normally, myWorker == myThread.
-     * While another thread is synchronously calling into this runner and
-     * holding myRunLock, that thread is remembered in myWorker so it
-     * can be interrupted instead of myThread.
-     */
-    private Thread myWorker;
-
-    /**
-     * The lock protecting the heap of objects "inside" the runner.  All
-     * application execution inside the server must only happen while this
-     * lock is held.
+     * Has an orderly shutdown been requested?
      */
-    private Object myRunLock;
+    private volatile boolean myIsShuttingDown = false;
 
     /**
-     * When the queue is empty, myThread blocks on myNotifyLock rather
-     * than myRunLock to avoid a peculiar deadlock possibility: In
-     * java, one cannot notify() a lock without grabbing it, and
-     * enqueue() needs to notify the lock that myThread is wait()ing
-     * on.  This should be fine, as enqueue() only notify()s when
-     * myThread is waiting, and therefore not holding the runLock.
-     * However, a now() may be holding the runLock.  If that now()
-     * blocks waiting on a lock held by enqueue()'s caller, we
-     * deadlock.  It would be too hard to explain or remember what not
-     * to do to avoid this deadlock.  Hence a separate lock.  Ugh.
-     */
-    private Object myNotifyLock;
-    private boolean myNeedsNotify = false;
-    
-    /**
-     * Has an orderly shutdown been requested?
+     * Statistics about the work done by this runner.
      */
-    private boolean myIsShuttingDown = false;
+    private RunnerStats myStats;
     
     /**
      * Makes a Runner, and starts the thread that services its queue.
@@ -89,11 +77,11 @@ public class Runner implements Runnable {
      * @param name is the name to give to the thread created.
      */
     public Runner(String name) {
-        ++theRunnerCount;
-        myRunLock = new Object();
-        myNotifyLock = new Object();
-        myQ = new Queue(Runnable.class);
-        myWorker = myThread = new RunnerThread(this, name);
+        theRunnerCount.incrementAndGet();
+        myQ = new RunQueue();
+        myStats = new RunnerStats(name);
+        myThread = new RunnerThread(this, name);
+        theRunners.add(this);
         myThread.start();
     }
     
@@ -135,26 +123,87 @@ public class Runner implements Runnable {
      * from any thead.
      */
     public void enqueue(Runnable todo) {
-        /* enqueueing is guarded by the queue's lock, not the runLock. */
-        myQ.enqueue(todo);
-        if (myNeedsNotify) {
-            /* even here, enqueue() avoids grabbing the runLock. */
-            synchronized (myNotifyLock) {
-                myNotifyLock.notify();
-            }
+        enqueue(todo, false);
+    }
+
+    /**
+     * Queues something for this Runnable's thread to do, in either the
+     * normal lane or the priority lane.  Priority tasks are done ahead of
+     * normal ones, except that while both are waiting, a normal task is
+     * still done after every few priority tasks (see {@link
+     * #setPriorityWeight}).  Tasks in the same lane are done in the order
+     * they were enqueued, but nothing is promised about the order of tasks in
+     * different lanes.  May be called from any thread.
+     *
+     * @param todo  The task.
+     * @param priority  If true, put the task in the priority lane.
+     */
+    public void enqueue(Runnable todo, boolean priority) {
+        /* The queue wakes up this runner's thread if need be. */
+        if (RunnerStats.isEnabled()) {
+            myStats.noteEnqueue();
+            myQ.enqueue(todo, System.nanoTime(), priority);
+        } else {
+            myQ.enqueue(todo, 0, priority);
+        }
+    }
+
+    /**
+     * Test if the task the current thread is running was taken from the
+     * priority lane of its Runner's queue, so that work it hands on to other
+     * Runners can be given the same priority.
+     *
+     * @return true if the current thread is a Runner's thread and the task
+     *    it is running is a priority task.
+     */
+    static public boolean isCurrentTaskPriority() {
+        Thread t = Thread.currentThread();
+        if (t instanceof RunnerThread) {
+            return ((Runner) ((RunnerThread) t).myRunnable).myQ.
+                wasLastPriority();
         }
+        return false;
+    }
+
+    /**
+     * Set how many priority tasks every Runner does for each normal task
+     * while both kinds are waiting.
+     *
+     * @param weight  The number of priority tasks per normal task.
+     */
+    static public void setPriorityWeight(int weight) {
+        RunQueue.setPriorityWeight(weight);
+    }
+
+    /**
+     * Get the statistics about the work done by this runner.  These are only
+     * collected while {@link RunnerStats#enable} is in effect.
+     *
+     * @return this runner's statistics.
+     */
+    public RunnerStats stats() {
+        return myStats;
     }
 
     /**
-     * Tests whether the current thread is holding the run lock
+     * Get all the runners currently in operation.
+     *
+     * @return a list of the runners that have not been shut down.
+     */
+    static List<Runner> runners() {
+        return theRunners;
+    }
+
+    /**
+     * Tests whether the current thread is this runner's thread
      */
     public boolean isCurrentThreadInRunner() {
-        return Thread.currentThread() == myWorker;
+        return Thread.currentThread() == myThread;
     }
 
     /**
      * Schedules a thunk to execute "inside" this runner (in the RunnerThread
-     * as a separate turn while holding the runLock), while also effectively 
+     * as a separate turn), while also effectively 
      * executing as a synchronous call within the requestors's thread.
      * 
      * In most ways this can be thought of as a symmetric rendezvous between 
@@ -200,56 +249,29 @@ public class Runner implements Runnable {
         int msgCount = 0;
         for (;;) {
             try {
-                Thread.yield();
-                Runnable todo = null;
-                synchronized (myRunLock) {
-                    for (int i = 0; i < DEQUEUE_GRANULARITY; ++i) {
-                        /* This call to optDequeue() will momentarily acquire
-                           the queue lock while we're still holding the
-                           runLock!  I believe this is safe under all
-                           conditions, but cannot prove it at this time. */
-                        todo = (Runnable) myQ.optDequeue();
-                        if (todo == null) {
-                            break;
-                        }
+                Runnable todo = myQ.optDequeue();
+                if (todo != null) {
+                    if (RunnerStats.isEnabled()) {
+                        runWithStats(todo);
+                    } else {
                         todo.run();
-                        ++msgCount;
                     }
-                }
-                if (todo != null) {
+                    ++msgCount;
                     continue;
                 }
-                /* We can't sleep by waiting on the runLock (see myNotifyLock)
-                   but we have to release the runLock while we're asleep, so
-                   our sleepage logic is here, outside the above synchronized
-                   block. */
-                synchronized(myNotifyLock) {
-                    /* More elements could have arrived in the meantime, so
-                       check again after grabbing myNotifyLock. */
-                    if (myQ.hasMoreElements()) {
-                        continue;
-                    }
-                    if (tr.debug && Trace.ON) {
-                        tr.debugm
-                          ("RunQ empty after " + msgCount +
-                           " messages.  sleeping now.");
-                    }
-                    msgCount = 0;
-                    myNeedsNotify = true;
-                    try {
-                        waitForMore();
-                    } catch (InterruptedException e) {
-                        /* ignore */
-                    } finally {
-                        myNeedsNotify = false;
-                    }
+                if (tr.debug && Trace.ON) {
+                    tr.debugm
+                      ("RunQ empty after " + msgCount +
+                       " messages.  sleeping now.");
                 }
+                msgCount = 0;
+                myQ.awaitMore();
             } catch (ShutdownRunQException sdve) {
                 /* This kludge is the least painful way I could think of to do
                    an orderly shutdown of a runner thread without imposing
                    *any* extra overhead on the normal case. */
-                --theRunnerCount;
-                if (theRunnerCount == 0) {
+                theRunners.remove(this);
+                if (theRunnerCount.decrementAndGet() == 0) {
                     System.exit(0);
                 }
                 return;
@@ -264,15 +286,18 @@ public class Runner implements Runnable {
     }
 
     /**
-     * Called by run() when we're out of messages in the queue, or
-     * after the debug hook does its biz.  Must only while
-     * myNotifyLock is held. 
+     * Run a task, noting how long it waited and how long it took.
      *
-     * May be overridden in a subclass to wake up occasionally to do
-     * background things, like checking for finalizers.  The implementation
-     * here simply wait()s on myNotifyLock.
+     * @param todo  The task to run.
      */
-    void waitForMore() throws InterruptedException {
-        myNotifyLock.wait();
+    private void runWithStats(Runnable todo) {
+        long start = System.nanoTime();
+        myStats.noteStart(myQ.lastEnqueueTime(), start,
+                          myQ.wasLastPriority());
+        try {
+            todo.run();
+        } finally {
+            myStats.noteDone(todo.getClass(), System.nanoTime() - start);
+        }
     }
 }
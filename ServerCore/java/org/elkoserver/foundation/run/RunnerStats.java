@@ -0,0 +1,368 @@
+package org.elkoserver.foundation.run;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import org.elkoserver.json.JSONLiteral;
+import org.elkoserver.json.JSONLiteralArray;
+import org.elkoserver.util.trace.Trace;
+
+/**
+ * Statistics about the work done by a {@link Runner}, so that when a server
+ * bogs down it is possible to tell whether the cause is a backlog in its run
+ * queues or work that takes too long, and if the latter, what kind of work.
+ *
+ * For each Runner, these record:
+ *
+ * <ul>
+ * <li>the depth of its queue, each time a task is taken from it;</li>
+ * <li>how long each task waited in the queue before it started, and
+ *     separately how long those in the priority lane waited;</li>
+ * <li>how long each task took to run, both overall and broken down by the
+ *     class of the task (so that, for example, timer events, object database
+ *     results and client messages are distinguished); and</li>
+ * <li>how long each JSON message dispatched in the Runner took to handle,
+ *     broken down by the class of the object it was addressed to and the
+ *     message verb (messages whose verb no JSON method handles are all
+ *     counted together).</li>
+ * </ul>
+ *
+ * All times are in nanoseconds.  Collection is off by default, since even
+ * reading the clock costs something; it is turned on, for all Runners at
+ * once, by {@link #enable}.  Everything is recorded from the Runner's own
+ * thread, except the count of tasks enqueued, so collection adds no
+ * contention between threads beyond that.
+ *
+ * The same statistics (other than those of message dispatch) are kept for
+ * the {@link SlowServiceRunner}'s thread pool, along with the state of the
+ * pool itself; since those are recorded from many threads, the pool
+ * synchronizes on them.
+ */
+public class RunnerStats {
+    /** Trace object for reporting metrics. */
+    private static final Trace tr = Trace.trace("runner");
+
+    /** Flag that statistics are being collected. */
+    private static volatile boolean theEnabledFlag = false;
+
+    /** Statistics kept for things other than Runners, reported along with
+        those of the Runners. */
+    private static List<RunnerStats> theOtherStats =
+        new CopyOnWriteArrayList<RunnerStats>();
+
+    /** Name of the Runner these statistics describe. */
+    private String myName;
+
+    /** Number of tasks put on the queue while collection was on. */
+    private AtomicLong myEnqueueCount;
+
+    /** Number of tasks taken off the queue while collection was on.  Only
+        written by the Runner's thread. */
+    private AtomicLong myDequeueCount;
+
+    /** Queue depths seen as tasks were taken off the queue. */
+    private Histogram myDepths;
+
+    /** Time tasks spent waiting in the queue. */
+    private Histogram myWaitTimes;
+
+    /** Time priority tasks spent waiting in the queue. */
+    private Histogram myPriorityWaitTimes;
+
+    /** Time tasks spent running. */
+    private Histogram myServiceTimes;
+
+    /** Time tasks spent running, by task class. */
+    private ConcurrentMap<Class<?>, Histogram> myTaskTimes;
+
+    /** Time spent handling dispatched messages, by target class and verb. */
+    private ConcurrentMap<Class<?>, ConcurrentMap<String, Histogram>>
+        myDispatchTimes;
+
+    /** Snapshots as of the last metrics report, for reporting just what has
+        happened since.  Only touched by reportMetric(). */
+    private Map<Histogram, Histogram.Snapshot> myReported;
+
+    /** The slow service thread pool these statistics describe, if that's
+        what they describe, else null. */
+    private SlowServiceRunner myPool;
+
+    /**
+     * Constructor.
+     *
+     * @param name  Name of the Runner whose work is to be described.
+     */
+    RunnerStats(String name) {
+        myName = name;
+        myEnqueueCount = new AtomicLong(0);
+        myDequeueCount = new AtomicLong(0);
+        myDepths = new Histogram();
+        myWaitTimes = new Histogram();
+        myPriorityWaitTimes = new Histogram();
+        myServiceTimes = new Histogram();
+        myTaskTimes = new ConcurrentHashMap<Class<?>, Histogram>();
+        myDispatchTimes =
+            new ConcurrentHashMap<Class<?>,
+                                  ConcurrentMap<String, Histogram>>();
+        myReported = new HashMap<Histogram, Histogram.Snapshot>();
+        myPool = null;
+    }
+
+    /**
+     * Note that these statistics describe a slow service thread pool rather
+     * than a Runner, so that the state of the pool is reported with them.
+     *
+     * @param pool  The pool.
+     */
+    void setPool(SlowServiceRunner pool) {
+        myPool = pool;
+    }
+
+    /**
+     * Add statistics for something other than a Runner to those that are
+     * reported.
+     *
+     * @param stats  The statistics to report.
+     */
+    static void register(RunnerStats stats) {
+        theOtherStats.add(stats);
+    }
+
+    /**
+     * Turn on the collection of statistics by all Runners.
+     */
+    public static void enable() {
+        theEnabledFlag = true;
+    }
+
+    /**
+     * Test if statistics are being collected.
+     *
+     * @return true if statistics are being collected.
+     */
+    public static boolean isEnabled() {
+        return theEnabledFlag;
+    }
+
+    /**
+     * Get the statistics for the Runner whose thread is the current thread.
+     *
+     * @return the current thread's Runner's statistics, or null if the
+     *    current thread is not a Runner's thread or if statistics are not
+     *    being collected.
+     */
+    public static RunnerStats current() {
+        if (theEnabledFlag) {
+            Thread thread = Thread.currentThread();
+            if (thread instanceof RunnerThread) {
+                return ((Runner) ((RunnerThread) thread).myRunnable).stats();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the name of the Runner these statistics describe.
+     *
+     * @return the Runner's name.
+     */
+    public String name() {
+        return myName;
+    }
+
+    /**
+     * Get the number of tasks currently waiting in the Runner's queue.  This
+     * only counts tasks enqueued since collection was turned on.
+     *
+     * @return the current queue depth.
+     */
+    public long depth() {
+        long depth = myEnqueueCount.get() - myDequeueCount.get();
+        return depth < 0 ? 0 : depth;
+    }
+
+    /**
+     * Take note that a task has been put on the queue.  May be called from
+     * any thread.
+     */
+    void noteEnqueue() {
+        myEnqueueCount.incrementAndGet();
+    }
+
+    /**
+     * Take note that a task has been taken off the queue and is about to be
+     * run.  Called from the Runner's thread.
+     *
+     * @param enqueueTime  When the task was enqueued (in System.nanoTime()
+     *    terms), or 0 if it was enqueued while collection was off.
+     * @param startTime  When the task is starting.
+     * @param priority  True if the task was in the priority lane.
+     */
+    void noteStart(long enqueueTime, long startTime, boolean priority) {
+        if (enqueueTime != 0) {
+            myDequeueCount.lazySet(myDequeueCount.get() + 1);
+            myWaitTimes.record(startTime - enqueueTime);
+            if (priority) {
+                myPriorityWaitTimes.record(startTime - enqueueTime);
+            }
+        }
+        myDepths.record(depth());
+    }
+
+    /**
+     * Take note that a task has been taken off the queue without being run.
+     */
+    void noteDiscard() {
+        myDequeueCount.lazySet(myDequeueCount.get() + 1);
+    }
+
+    /**
+     * Take note that a task has finished running.  Called from the Runner's
+     * thread.
+     *
+     * @param taskClass  The class of the task.
+     * @param serviceTime  How long it took to run.
+     */
+    void noteDone(Class<?> taskClass, long serviceTime) {
+        myServiceTimes.record(serviceTime);
+        Histogram times = myTaskTimes.get(taskClass);
+        if (times == null) {
+            times = new Histogram();
+            myTaskTimes.put(taskClass, times);
+        }
+        times.record(serviceTime);
+    }
+
+    /**
+     * Take note of how long it took to handle a dispatched message.  Must be
+     * called from the Runner's thread.
+     *
+     * @param targetClass  Class of the object the message was addressed to.
+     * @param verb  The message verb.
+     * @param time  How long it took to handle the message.
+     */
+    public void noteDispatch(Class<?> targetClass, String verb, long time) {
+        ConcurrentMap<String, Histogram> verbs =
+            myDispatchTimes.get(targetClass);
+        if (verbs == null) {
+            verbs = new ConcurrentHashMap<String, Histogram>();
+            myDispatchTimes.put(targetClass, verbs);
+        }
+        Histogram times = verbs.get(verb);
+        if (times == null) {
+            times = new Histogram();
+            verbs.put(verb, times);
+        }
+        times.record(time);
+    }
+
+    /**
+     * Encode these statistics.
+     *
+     * @param reporting  If true, describe only what has happened since the
+     *    last time this was done with 'reporting' true; if false, describe
+     *    everything since collection was turned on.
+     *
+     * @return a JSON literal describing the Runner's work.
+     */
+    private JSONLiteral encode(boolean reporting) {
+        JSONLiteral result = new JSONLiteral();
+        result.addParameter("runner", myName);
+        result.addParameter("depth", depth());
+        result.addParameter("maxdepth", myDepths.max());
+        result.addParameter("depths", encode(myDepths, reporting));
+        result.addParameter("wait", encode(myWaitTimes, reporting));
+        result.addParameter("prioritywait",
+                            encode(myPriorityWaitTimes, reporting));
+        result.addParameter("service", encode(myServiceTimes, reporting));
+        JSONLiteral tasks = new JSONLiteral();
+        for (Map.Entry<Class<?>, Histogram> entry : myTaskTimes.entrySet()) {
+            tasks.addParameter(entry.getKey().getName(),
+                               encode(entry.getValue(), reporting));
+        }
+        tasks.finish();
+        result.addParameter("tasks", tasks);
+        JSONLiteral dispatch = new JSONLiteral();
+        for (Map.Entry<Class<?>, ConcurrentMap<String, Histogram>> entry :
+                 myDispatchTimes.entrySet()) {
+            String className = entry.getKey().getName();
+            for (Map.Entry<String, Histogram> verbEntry :
+                     entry.getValue().entrySet()) {
+                dispatch.addParameter(className + "#" + verbEntry.getKey(),
+                                      encode(verbEntry.getValue(), reporting));
+            }
+        }
+        dispatch.finish();
+        result.addParameter("dispatch", dispatch);
+        if (myPool != null) {
+            result.addParameter("pool", myPool.encodePool());
+        }
+        result.finish();
+        return result;
+    }
+
+    /**
+     * Encode a summary of one of the histograms.
+     *
+     * @param histogram  The histogram.
+     * @param reporting  If true, summarize only what has been recorded since
+     *    the last report.
+     *
+     * @return a JSON literal summarizing 'histogram'.
+     */
+    private JSONLiteral encode(Histogram histogram, boolean reporting) {
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        if (reporting) {
+            Histogram.Snapshot last = myReported.put(histogram, snapshot);
+            snapshot = snapshot.since(last);
+        }
+        return snapshot.encode();
+    }
+
+    /**
+     * Encode the statistics of all the Runners in operation (and of the slow
+     * service thread pool), covering everything since collection was turned
+     * on.
+     *
+     * @return a JSON literal array describing the work of every Runner.
+     */
+    public static JSONLiteralArray encodeAll() {
+        JSONLiteralArray result = new JSONLiteralArray();
+        for (Runner runner : Runner.runners()) {
+            result.addElement(runner.stats().encode(false));
+        }
+        for (RunnerStats stats : theOtherStats) {
+            result.addElement(stats.encode(false));
+        }
+        result.finish();
+        return result;
+    }
+
+    /**
+     * Log the statistics of all the Runners in operation (and of the slow
+     * service thread pool), covering everything since the last time this was
+     * done, as metrics messages (one "run.stats" message per Runner).
+     */
+    public static void reportMetrics() {
+        if (theEnabledFlag) {
+            for (Runner runner : Runner.runners()) {
+                runner.stats().reportMetric();
+            }
+            for (RunnerStats stats : theOtherStats) {
+                stats.reportMetric();
+            }
+        }
+    }
+
+    /**
+     * Log these statistics, covering everything since the last time this
+     * was done, as a metrics message.
+     */
+    private synchronized void reportMetric() {
+        tr.metrics("run.stats", 0, encode(true));
+    }
+}
@@ -1,10 +1,25 @@
 package org.elkoserver.foundation.run;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.elkoserver.foundation.timer.Timeout;
+import org.elkoserver.foundation.timer.TimeoutNoticer;
+import org.elkoserver.foundation.timer.Timer;
+import org.elkoserver.json.JSONLiteral;
 import org.elkoserver.util.ArgRunnable;
+import org.elkoserver.util.trace.Trace;
 
 /**
  * This class provides a mechanism for safely making use of external services
@@ -12,27 +27,198 @@ import org.elkoserver.util.ArgRunnable;
  * It maintains a thread pool in which calls to such services run, delivering
  * their results back via callback thunks that are dropped onto the normal
  * server run queue.
+ *
+ * The pool grows, as tasks arrive, up to its configured maximum number of
+ * threads, and threads that go unused for a minute are let go.  Tasks that
+ * arrive while all the threads are busy wait in a queue of bounded length.
+ * When that queue is full, the runner's backpressure policy decides what
+ * happens: either the new task is refused (POLICY_REJECT), or the task that
+ * has been waiting longest is discarded to make room for it
+ * (POLICY_DROP_OLDEST).  Either way, the task that doesn't get run has its
+ * result handler called with a RejectedExecutionException as the result, and
+ * a refused task is also reported to whoever tried to enqueue it.  Tasks may
+ * also be given a time limit, after which their result handlers are called
+ * with a TimeoutException and the threads running them are interrupted.
+ *
+ * Alternatively, on JVMs that support them, each task can be run in a
+ * virtual thread of its own.  The queue limit then applies to the number of
+ * tasks in progress at once, and the maximum number of threads is ignored.
+ *
+ * Counts of the tasks run, refused, dropped and timed out, and the number of
+ * threads busy and tasks waiting, are always kept.  While {@link
+ * RunnerStats} collection is turned on, so are histograms of the time tasks
+ * spend waiting and running; all of these are reported along with the
+ * statistics of the server's {@link Runner}s.
  */
 public class SlowServiceRunner {
-    /** Asynch run queue for giving results back to the main thread. */
+    /** Policy: refuse new tasks when the queue is full. */
+    public static final int POLICY_REJECT = 1;
+
+    /** Policy: discard the oldest waiting task when the queue is full. */
+    public static final int POLICY_DROP_OLDEST = 2;
+
+    /** Trace object for diagnostics. */
+    private static final Trace tr = Trace.trace("runner");
+
+    /** Asynch run queue for giving results back to the main thread, when
+        tasks aren't enqueued from some other run queue. */
     private Runner myResultRunner;
 
     /** Executor to dole out work to a pool of threads that it manages. */
-    private ThreadPoolExecutor myExecutor;
+    private ExecutorService myExecutor;
+
+    /** The executor, if it is a thread pool rather than a thread per task. */
+    private ThreadPoolExecutor myPool;
+
+    /** Most tasks in progress at once, when running a thread per task, or 0
+        for no limit. */
+    private int myTaskLimit;
+
+    /** Time limit, in milliseconds, for tasks not given one of their own, or
+        0 for none. */
+    private long myDefaultTimeout;
+
+    /** Number of tasks enqueued but not yet finished. */
+    private AtomicInteger myOutstandingCount;
+
+    /** Number of tasks that ran to completion. */
+    private AtomicLong myCompletedCount;
+
+    /** Number of tasks refused because the queue was full. */
+    private AtomicLong myRejectedCount;
+
+    /** Number of waiting tasks discarded to make room for newer ones. */
+    private AtomicLong myDroppedCount;
+
+    /** Number of tasks that ran out of time. */
+    private AtomicLong myTimedOutCount;
+
+    /** Statistics about waiting and run times.  Since these are recorded
+        from many threads, all access is synchronized on this object. */
+    private RunnerStats myStats;
 
     /**
      * Constructor.  Note that while this is a constructable class, in practice
      * it should usually be managed as a singleton, i.e., don't mak more than
      * one.
      *
+     * This makes a runner whose queue holds at most 1000 tasks, which
+     * refuses new tasks when the queue is full, and which gives tasks no time
+     * limit.
+     *
      * @param resultRunner  Run queue in which result handlers will be run
      * @param maxPoolSize  Maximum number of threads allowed in the thread pool
      */
     public SlowServiceRunner(Runner resultRunner, int maxPoolSize) {
+        this(resultRunner, maxPoolSize, 1000, POLICY_REJECT, 0, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param resultRunner  Run queue in which result handlers will be run
+     *    for tasks that aren't enqueued from some other run queue.
+     * @param maxPoolSize  Maximum number of threads allowed in the thread
+     *    pool.
+     * @param queueLimit  Most tasks that may wait for a thread (or, with
+     *    virtual threads, that may be in progress at once), or 0 for no
+     *    limit.
+     * @param policy  What to do when the queue is full, one of the POLICY_
+     *    constants.
+     * @param defaultTimeout  Time limit, in milliseconds, for tasks not given
+     *    one of their own, or 0 for none.
+     * @param useVirtualThreads  If true, and the JVM supports it, run each
+     *    task in a virtual thread of its own instead of in the pool.
+     */
+    public SlowServiceRunner(Runner resultRunner, int maxPoolSize,
+                             int queueLimit, int policy, long defaultTimeout,
+                             boolean useVirtualThreads)
+    {
         myResultRunner = resultRunner;
-        myExecutor =
-            new ThreadPoolExecutor(1, maxPoolSize, 60, TimeUnit.SECONDS,
-                                   new LinkedBlockingQueue<Runnable>());
+        myDefaultTimeout = defaultTimeout;
+        myOutstandingCount = new AtomicInteger(0);
+        myCompletedCount = new AtomicLong(0);
+        myRejectedCount = new AtomicLong(0);
+        myDroppedCount = new AtomicLong(0);
+        myTimedOutCount = new AtomicLong(0);
+        myStats = new RunnerStats("Elko Slow Service");
+        myStats.setPool(this);
+        RunnerStats.register(myStats);
+
+        myExecutor = null;
+        myPool = null;
+        myTaskLimit = 0;
+        if (useVirtualThreads) {
+            myExecutor = newVirtualThreadExecutor();
+            if (myExecutor != null) {
+                myTaskLimit = queueLimit;
+                tr.noticei("slow service tasks will run in virtual threads");
+            } else {
+                tr.warningi("virtual threads are not available, " +
+                            "using a thread pool for slow service tasks");
+            }
+        }
+        if (myExecutor == null) {
+            if (maxPoolSize < 1) {
+                maxPoolSize = 1;
+            }
+            BlockingQueue<Runnable> queue;
+            if (queueLimit > 0) {
+                queue = new ArrayBlockingQueue<Runnable>(queueLimit);
+            } else {
+                queue = new LinkedBlockingQueue<Runnable>();
+            }
+            RejectedExecutionHandler rejecter;
+            if (policy == POLICY_DROP_OLDEST) {
+                rejecter = new DropOldestPolicy();
+            } else {
+                rejecter = new ThreadPoolExecutor.AbortPolicy();
+            }
+            /* With core size equal to the maximum, the pool adds a thread
+               for each new task until it is full size, rather than queueing
+               tasks once it has one thread; idle threads still time out. */
+            myPool =
+                new ThreadPoolExecutor(maxPoolSize, maxPoolSize,
+                                       60, TimeUnit.SECONDS, queue,
+                                       new SlowThreadFactory(), rejecter);
+            myPool.allowCoreThreadTimeOut(true);
+            myExecutor = myPool;
+        }
+    }
+
+    /**
+     * Translate the name of a backpressure policy into a policy code.
+     *
+     * @param name  The policy name: "reject" or "dropoldest".
+     *
+     * @return the corresponding POLICY_ constant, or 0 if 'name' does not
+     *    name a policy.
+     */
+    public static int policyCode(String name) {
+        if ("reject".equals(name)) {
+            return POLICY_REJECT;
+        } else if ("dropoldest".equals(name)) {
+            return POLICY_DROP_OLDEST;
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Make an executor that runs each task in a new virtual thread.  This is
+     * looked up reflectively so that the server can still be built for, and
+     * run on, JVMs that lack virtual threads.
+     *
+     * @return a virtual thread per task executor, or null if this JVM can't
+     *    make one.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
     }
 
     /**
@@ -44,38 +230,311 @@ public class SlowServiceRunner {
      * honor to be well behaved!<p>
      *
      * Tasks should return a result object that will be passed to the given
-     * result handler for execution in the main server run queue.  It is
-     * permissible for a task result to be null.  However, if a task throws an
-     * exception, this will be given to the handler as the result, so if the
-     * normal task result is an exception type, it is up to the programmer of
-     * the task and the result handler to take measures to sort things out
-     * appropriately.
+     * result handler for execution in the run queue that enqueued the task
+     * (or the main server run queue, if the task was enqueued from outside
+     * any run queue).  It is permissible for a task result to be null.
+     * However, if a task throws an exception, this will be given to the
+     * handler as the result, so if the normal task result is an exception
+     * type, it is up to the programmer of the task and the result handler to
+     * take measures to sort things out appropriately.  The same goes for the
+     * RejectedExecutionException or TimeoutException that the handler is
+     * given if the task is refused, dropped, or runs out of time.<p>
+     *
+     * The task is given this runner's default time limit, if it has one.
      *
      * @param task  Callable that executes the task.  This will be executed in
      *    a separate thread.
      * @param resultHandler  Thunk that will be invoked with the result
-     *    returned by the task.  This will be executed on the main run queue.
+     *    returned by the task.  This will be executed on a run queue as
+     *    described above.
+     *
+     * @return true if the task was accepted, false if it was refused because
+     *    the queue was full.
      */
-    public void enqueueTask(final Callable<Object> task,
-                            final ArgRunnable resultHandler)
+    public boolean enqueueTask(Callable<Object> task,
+                               ArgRunnable resultHandler)
     {
-        myExecutor.execute(new Runnable() {
-            public void run() {
-                Object realResult;
-                try {
-                    realResult = task.call();
-                } catch (Exception e) {
-                    realResult = e;
+        return enqueueTask(task, resultHandler, myDefaultTimeout);
+    }
+
+    /**
+     * Enqueue a task to be executed via the slow path, with a time limit.
+     * This is just like {@link #enqueueTask(Callable, ArgRunnable)}, except
+     * for the time limit.
+     *
+     * @param task  Callable that executes the task.  This will be executed in
+     *    a separate thread.
+     * @param resultHandler  Thunk that will be invoked with the result
+     *    returned by the task.
+     * @param timeout  How long, in milliseconds, the task may take, counting
+     *    from now, before its result handler is given a TimeoutException
+     *    instead of its result, or 0 for no limit.
+     *
+     * @return true if the task was accepted, false if it was refused because
+     *    the queue was full.
+     */
+    public boolean enqueueTask(Callable<Object> task,
+                               ArgRunnable resultHandler, long timeout)
+    {
+        Runner resultRunner = myResultRunner;
+        if (Thread.currentThread() instanceof RunnerThread) {
+            resultRunner = Runner.currentRunner();
+        }
+        SlowTask slowTask = new SlowTask(task, resultHandler, resultRunner);
+        int outstanding = myOutstandingCount.incrementAndGet();
+        if (myTaskLimit > 0 && outstanding > myTaskLimit) {
+            slowTask.reject();
+            return false;
+        }
+        if (RunnerStats.isEnabled()) {
+            synchronized (myStats) {
+                myStats.noteEnqueue();
+            }
+        }
+        if (timeout > 0) {
+            slowTask.startTimer(timeout);
+        }
+        try {
+            myExecutor.execute(slowTask);
+        } catch (RejectedExecutionException e) {
+            noteDiscard();
+            slowTask.reject();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Take note, for the statistics, that a task was taken off the queue
+     * without being run.
+     */
+    private void noteDiscard() {
+        if (RunnerStats.isEnabled()) {
+            synchronized (myStats) {
+                myStats.noteDiscard();
+            }
+        }
+    }
+
+    /**
+     * Encode a description of the state of this runner's thread pool and of
+     * the fate of the tasks it has been given.
+     *
+     * @return a JSON literal describing this runner's thread pool.
+     */
+    JSONLiteral encodePool() {
+        JSONLiteral result = new JSONLiteral();
+        if (myPool != null) {
+            result.addParameter("threads", myPool.getPoolSize());
+            result.addParameter("active", myPool.getActiveCount());
+            result.addParameter("queued", myPool.getQueue().size());
+        } else {
+            result.addParameter("virtual", true);
+        }
+        result.addParameter("outstanding", myOutstandingCount.get());
+        result.addParameter("completed", myCompletedCount.get());
+        result.addParameter("rejected", myRejectedCount.get());
+        result.addParameter("dropped", myDroppedCount.get());
+        result.addParameter("timedout", myTimedOutCount.get());
+        result.finish();
+        return result;
+    }
+
+    /**
+     * Rejection policy that makes room for a new task by discarding the
+     * task that has been waiting longest.
+     */
+    private class DropOldestPolicy implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable task,
+                                      ThreadPoolExecutor executor)
+        {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("pool shut down");
+            }
+            Runnable oldest = executor.getQueue().poll();
+            if (oldest instanceof SlowTask) {
+                noteDiscard();
+                myDroppedCount.incrementAndGet();
+                ((SlowTask) oldest).drop();
+            }
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Factory for the pool's threads, so that they have recognizable names.
+     */
+    private static class SlowThreadFactory implements ThreadFactory {
+        /** Number of threads made so far. */
+        private AtomicInteger myThreadCount = new AtomicInteger(0);
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Elko Slow Service " +
+                                       myThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * A task, together with what's needed to see that its result handler
+     * is called exactly once: with the task's result, or with the exception
+     * that explains why there isn't one.
+     */
+    private class SlowTask implements Runnable, TimeoutNoticer {
+        /** The task proper. */
+        private Callable<Object> myTask;
+
+        /** Handler for the task's result, or null. */
+        private ArgRunnable myResultHandler;
+
+        /** Run queue in which to call the result handler. */
+        private Runner myHandlerRunner;
+
+        /** When the task was enqueued, in System.nanoTime() terms. */
+        private long myEnqueueTime;
+
+        /** Time limit, if there is one. */
+        private Timeout myTimeout;
+
+        /** Thread running the task, while it is running. */
+        private Thread myThread;
+
+        /** Flag that the result handler has been (or is about to be)
+            called.  Only accessed while synchronized on this object. */
+        private boolean amFinished;
+
+        /**
+         * Constructor.
+         *
+         * @param task  The task proper.
+         * @param resultHandler  Handler for the task's result, or null.
+         * @param handlerRunner  Run queue to call the handler in.
+         */
+        SlowTask(Callable<Object> task, ArgRunnable resultHandler,
+                 Runner handlerRunner)
+        {
+            myTask = task;
+            myResultHandler = resultHandler;
+            myHandlerRunner = handlerRunner;
+            myEnqueueTime = System.nanoTime();
+            myTimeout = null;
+            myThread = null;
+            amFinished = false;
+        }
+
+        /**
+         * Give the task a time limit.
+         *
+         * @param timeout  The time limit, in milliseconds.
+         */
+        void startTimer(long timeout) {
+            myTimeout = Timer.theTimer().after(timeout, this);
+        }
+
+        /**
+         * Run the task, unless it has already run out of time.  Called in a
+         * pool (or virtual) thread.
+         */
+        public void run() {
+            synchronized (this) {
+                if (amFinished) {
+                    noteDiscard();
+                    return;
                 }
-                final Object result = realResult;
-                myResultRunner.enqueue(new Runnable() {
+                myThread = Thread.currentThread();
+            }
+            boolean collecting = RunnerStats.isEnabled();
+            long start = System.nanoTime();
+            if (collecting) {
+                synchronized (myStats) {
+                    myStats.noteStart(myEnqueueTime, start, false);
+                }
+            }
+            Object result;
+            try {
+                result = myTask.call();
+            } catch (Exception e) {
+                result = e;
+            }
+            if (collecting) {
+                synchronized (myStats) {
+                    myStats.noteDone(myTask.getClass(),
+                                     System.nanoTime() - start);
+                }
+            }
+            synchronized (this) {
+                myThread = null;
+                /* Don't leave an interrupt from a timeout that happened
+                   just as the task was finishing to the next task. */
+                Thread.interrupted();
+            }
+            if (finish(result)) {
+                myCompletedCount.incrementAndGet();
+            }
+        }
+
+        /**
+         * Handle the task running out of time.  Called in the timer thread.
+         */
+        public void noticeTimeout() {
+            if (finish(new TimeoutException("slow task timed out"))) {
+                myTimedOutCount.incrementAndGet();
+                synchronized (this) {
+                    if (myThread != null) {
+                        myThread.interrupt();
+                    }
+                }
+                if (myPool != null && myPool.remove(this)) {
+                    /* It gave up its place in the queue without running. */
+                    noteDiscard();
+                }
+            }
+        }
+
+        /**
+         * Handle the task being refused.
+         */
+        void reject() {
+            myRejectedCount.incrementAndGet();
+            finish(new RejectedExecutionException("slow task queue full"));
+        }
+
+        /**
+         * Handle the task being discarded from the queue to make room.
+         */
+        void drop() {
+            finish(new RejectedExecutionException(
+                "slow task dropped from full queue"));
+        }
+
+        /**
+         * Arrange for the result handler to be called with a result, unless
+         * that has already been done.
+         *
+         * @param result  The result.
+         *
+         * @return true if this call was the one to provide the result.
+         */
+        private boolean finish(final Object result) {
+            synchronized (this) {
+                if (amFinished) {
+                    return false;
+                }
+                amFinished = true;
+            }
+            myOutstandingCount.decrementAndGet();
+            if (myTimeout != null) {
+                myTimeout.cancel();
+            }
+            if (myResultHandler != null) {
+                myHandlerRunner.enqueue(new Runnable() {
                     public void run() {
-                        if (resultHandler != null) {
-                            resultHandler.run(result);
-                        }
+                        myResultHandler.run(result);
                     }
                 });
             }
-        });
+            return true;
+        }
     }
 }
@@ -0,0 +1,81 @@
+package org.elkoserver.foundation.run.test;
+
+import org.elkoserver.foundation.run.Histogram;
+
+/**
+ * Check that a Histogram counts everything it is given, reports percentiles
+ * to within its stated accuracy (never below the true value), and that the
+ * difference of two snapshots covers just what was recorded in between.
+ */
+public class HistogramTest {
+    private static int theFailureCount = 0;
+
+    private static void check(boolean ok, String what) {
+        if (ok) {
+            System.out.println("ok: " + what);
+        } else {
+            System.out.println("FAILED: " + what);
+            ++theFailureCount;
+        }
+    }
+
+    /**
+     * Check a reported percentile against the true one.
+     */
+    private static void checkValueAt(Histogram.Snapshot snap, double fraction,
+                                     long expected, String what)
+    {
+        long actual = snap.valueAt(fraction);
+        check(expected <= actual && actual <= expected + expected / 16 + 1,
+              what + " p" + (int) (fraction * 100) + " is " + actual +
+              " (true value " + expected + ")");
+    }
+
+    public static void main(String[] args) {
+        Histogram histogram = new Histogram();
+        Histogram.Snapshot empty = histogram.snapshot();
+        check(empty.count() == 0 && empty.valueAt(0.5) == 0 &&
+              empty.mean() == 0.0, "empty histogram");
+
+        int count = 1000000;
+        for (int i = 1; i <= count; ++i) {
+            histogram.record(i);
+        }
+        Histogram.Snapshot first = histogram.snapshot();
+        check(first.count() == count, "counted " + first.count() + " of " +
+              count);
+        check(first.mean() == (count + 1) / 2.0, "mean is " + first.mean());
+        check(histogram.max() == count, "max is " + histogram.max());
+        checkValueAt(first, 0.5, count / 2, "1.." + count);
+        checkValueAt(first, 0.99, count / 100 * 99, "1.." + count);
+        checkValueAt(first, 1.0, count, "1.." + count);
+        for (int i = 0; i < 16; ++i) {
+            checkValueAt(first, (i + 1) / (double) count, i + 1,
+                         "small value " + (i + 1));
+        }
+
+        for (int i = 0; i < 100; ++i) {
+            histogram.record(5000000000L);
+        }
+        histogram.record(0);
+        histogram.record(Long.MAX_VALUE);
+        Histogram.Snapshot second = histogram.snapshot();
+        Histogram.Snapshot between = second.since(first);
+        check(between.count() == 102, "interval counted " +
+              between.count() + " of 102");
+        checkValueAt(between, 0.5, 5000000000L, "interval");
+        check(between.valueAt(0.001) == 0, "interval p0 is " +
+              between.valueAt(0.001));
+        check(between.valueAt(1.0) == Long.MAX_VALUE, "interval max is " +
+              between.valueAt(1.0));
+        check(histogram.max() == Long.MAX_VALUE, "max is " +
+              histogram.max());
+
+        if (theFailureCount == 0) {
+            System.out.println("all checks passed");
+        } else {
+            System.out.println(theFailureCount + " checks FAILED");
+        }
+        System.exit(theFailureCount == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,326 @@
+package org.elkoserver.foundation.run.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.elkoserver.foundation.run.Runner;
+
+/**
+ * Exercise a Runner's queue: tasks in each lane are done in the order they
+ * were enqueued, priority tasks are weighted ahead of normal ones, the lane
+ * a task came from is reported to it, nothing is lost or duplicated when
+ * many threads enqueue at once, and the runner's thread is never left asleep
+ * with work waiting, even when it is woken up for no reason.
+ */
+public class RunQueueTest {
+    private static int theFailureCount = 0;
+
+    private static void usage() {
+        System.out.println("usage: java org.elkoserver.foundation.run.test.RunQueueTest [producers N] [tasks N] [help]");
+        System.exit(0);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (ok) {
+            System.out.println("ok: " + what);
+        } else {
+            System.out.println("FAILED: " + what);
+            ++theFailureCount;
+        }
+    }
+
+    /**
+     * A task that notes, in a list only the runner's thread touches, who
+     * enqueued it, its sequence number, and what lane it ran from.
+     */
+    private static class Step implements Runnable {
+        private List<Step> myLog;
+        final int producer;
+        final int seq;
+        final boolean priority;
+        boolean ranAsPriority;
+
+        Step(List<Step> log, int producer, int seq, boolean priority) {
+            myLog = log;
+            this.producer = producer;
+            this.seq = seq;
+            this.priority = priority;
+        }
+
+        public void run() {
+            ranAsPriority = Runner.isCurrentTaskPriority();
+            myLog.add(this);
+        }
+    }
+
+    /**
+     * Task that holds up the runner until it is let go, so that a backlog
+     * can be built up in both lanes.
+     */
+    private static class Gate implements Runnable {
+        private CountDownLatch myEntered = new CountDownLatch(1);
+        private CountDownLatch myLatch = new CountDownLatch(1);
+
+        public void run() {
+            myEntered.countDown();
+            await(myLatch);
+        }
+
+        void awaitClosed() {
+            await(myEntered);
+        }
+
+        void open() {
+            myLatch.countDown();
+        }
+    }
+
+    /**
+     * Task that signals when everything enqueued ahead of it is done.
+     */
+    private static class Finish implements Runnable {
+        private CountDownLatch myLatch;
+
+        Finish(CountDownLatch latch) {
+            myLatch = latch;
+        }
+
+        public void run() {
+            myLatch.countDown();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /**
+     * With a backlog in both lanes, check the weighting and the per-lane
+     * ordering.
+     */
+    private static void testWeighting(Runner runner, int count) {
+        List<Step> log = new ArrayList<Step>();
+        Gate gate = new Gate();
+        runner.enqueue(gate);
+        gate.awaitClosed();
+        for (int i = 0; i < count; ++i) {
+            runner.enqueue(new Step(log, 0, i, false), false);
+            runner.enqueue(new Step(log, 0, i, true), true);
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        runner.enqueue(new Finish(done), false);
+        gate.open();
+        await(done);
+
+        check(log.size() == count * 2, "weighting: all " + count * 2 +
+              " tasks done (got " + log.size() + ")");
+        int weight = Runner.DEFAULT_PRIORITY_WEIGHT;
+        boolean weighted = true;
+        int streak = 0;
+        int prioritiesSeen = 0;
+        for (Step step : log) {
+            if (step.priority) {
+                ++prioritiesSeen;
+                if (++streak > weight) {
+                    weighted = false;
+                }
+            } else {
+                if (prioritiesSeen < count && streak < weight) {
+                    weighted = false;
+                }
+                streak = 0;
+            }
+        }
+        check(weighted, "weighting: " + weight +
+              " priority tasks for each normal one while both wait");
+        checkOrder(log, 1, "weighting");
+    }
+
+    /**
+     * Have several threads enqueue at once, in both lanes, and check that
+     * every task is done exactly once and in order within its producer and
+     * lane.
+     */
+    private static void testProducers(final Runner runner, int producers,
+                                      final int count)
+    {
+        final List<Step> log = new ArrayList<Step>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; ++p) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                public void run() {
+                    await(start);
+                    for (int i = 0; i < count; ++i) {
+                        boolean priority = (i % 3) == 0;
+                        runner.enqueue(new Step(log, producer, i, priority),
+                                       priority);
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+            }
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        runner.enqueue(new Finish(done), false);
+        await(done);
+
+        check(log.size() == producers * count, "producers: all " +
+              producers * count + " tasks done (got " + log.size() + ")");
+        boolean[][] seen = new boolean[producers][count];
+        boolean once = true;
+        for (Step step : log) {
+            if (seen[step.producer][step.seq]) {
+                once = false;
+            }
+            seen[step.producer][step.seq] = true;
+        }
+        check(once, "producers: no task done twice");
+        checkOrder(log, producers, "producers");
+    }
+
+    /**
+     * Have several threads each repeatedly enqueue a task and wait for it to
+     * be done, while another thread keeps waking the runner's thread up for
+     * no reason.  A stray wakeup arriving just as a producer is waking the
+     * runner must not leave the runner asleep the next time there is work
+     * for it, so every task should be done within a generous time limit.
+     */
+    private static void testWakeups(Runner runner, int producers,
+                                    final int rounds)
+    {
+        final Runner theRunner = runner;
+        final Thread[] runnerThread = new Thread[1];
+        CountDownLatch found = new CountDownLatch(1);
+        final CountDownLatch foundLatch = found;
+        runner.enqueue(new Runnable() {
+            public void run() {
+                runnerThread[0] = Thread.currentThread();
+                foundLatch.countDown();
+            }
+        });
+        await(found);
+
+        final boolean[] stop = { false };
+        Thread noise = new Thread() {
+            public void run() {
+                while (!stop[0]) {
+                    LockSupport.unpark(runnerThread[0]);
+                    Thread.yield();
+                }
+            }
+        };
+        noise.setDaemon(true);
+        noise.start();
+
+        final int[] lost = new int[producers];
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; ++p) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < rounds; ++i) {
+                        CountDownLatch done = new CountDownLatch(1);
+                        theRunner.enqueue(new Finish(done), (i & 1) == 0);
+                        try {
+                            if (!done.await(5, TimeUnit.SECONDS)) {
+                                ++lost[producer];
+                                return;
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            };
+            threads[p].setDaemon(true);
+            threads[p].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+            }
+        }
+        stop[0] = true;
+
+        int lostCount = 0;
+        for (int count : lost) {
+            lostCount += count;
+        }
+        check(lostCount == 0, "wakeups: runner never left asleep with work " +
+              "waiting (" + lostCount + " producers stuck)");
+    }
+
+    /**
+     * Check that each producer's tasks in each lane were done in the order
+     * they were enqueued, and that each task saw the lane it came from.
+     */
+    private static void checkOrder(List<Step> log, int producers,
+                                   String test)
+    {
+        int[] lastNormal = new int[producers];
+        int[] lastPriority = new int[producers];
+        for (int p = 0; p < producers; ++p) {
+            lastNormal[p] = -1;
+            lastPriority[p] = -1;
+        }
+        boolean ordered = true;
+        boolean lanes = true;
+        for (Step step : log) {
+            int[] last = step.priority ? lastPriority : lastNormal;
+            if (step.seq <= last[step.producer]) {
+                ordered = false;
+            }
+            last[step.producer] = step.seq;
+            if (step.ranAsPriority != step.priority) {
+                lanes = false;
+            }
+        }
+        check(ordered, test + ": each lane done in enqueue order");
+        check(lanes, test + ": each task told which lane it came from");
+    }
+
+    public static void main(String[] args) {
+        int producers = 4;
+        int count = 100000;
+
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("producers")) {
+                producers = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("tasks")) {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("help")) {
+                usage();
+            } else {
+                System.out.println("don't recognize arg #" + i + " '" +
+                                   args[i] + "'");
+                usage();
+            }
+        }
+
+        Runner runner = new Runner("RunQueueTest");
+        testWeighting(runner, 1000);
+        testProducers(runner, producers, count);
+        testWakeups(runner, producers, count / 10);
+
+        if (theFailureCount == 0) {
+            System.out.println("all checks passed");
+        } else {
+            System.out.println(theFailureCount + " checks FAILED");
+        }
+        System.exit(theFailureCount == 0 ? 0 : 1);
+    }
+}
@@ -66,11 +66,15 @@ class BrokerActor extends NonRoutingActor
      * Send a request for a service description to the broker.
      *
      * @param service  The service being requested.
+     * @param protocols  Comma-separated list of acceptable protocols, in
+     *    order of preference, or null to accept the broker's default.
      * @param monitor  Should broker continue watching for more results?
      * @param tag  Optional tag to match response with the request.
      */
-    void findService(String service, boolean monitor, String tag) {
-        send(msgFind(this, service, -1, monitor, tag));
+    void findService(String service, String protocols, boolean monitor,
+                     String tag)
+    {
+        send(msgFind(this, service, protocols, -1, monitor, tag));
     }
 
     /**
@@ -140,9 +144,32 @@ class BrokerActor extends NonRoutingActor
      */
     static public JSONLiteral msgFind(Referenceable target, String service,
                                       int wait, boolean monitor, String tag)
+    {
+        return msgFind(target, service, null, wait, monitor, tag);
+    }
+
+    /**
+     * Create a 'find' message: ask the broker to look up service information
+     * for a service reachable via one of a list of protocols.
+     *
+     * @param target  Object the message is being sent to.
+     * @param service  The service being requested.
+     * @param protocols  Comma-separated list of acceptable protocols, in
+     *    order of preference, or null to accept the broker's default.
+     * @param wait  How long broker should wait, if the service is not
+     *    immediately known to it, for the service to become available, before
+     *    failing the request (0 ==> wait forever, -1 ==> don't wait at all).
+     * @param monitor  If true, broker should keep watching for additional
+     *    matches for the requested service.
+     * @param tag  Optional tag to match response with the request.
+     */
+    static public JSONLiteral msgFind(Referenceable target, String service,
+                                      String protocols, int wait,
+                                      boolean monitor, String tag)
     {
         JSONLiteral msg = new JSONLiteral(target, "find");
         msg.addParameter("service", service);
+        msg.addParameterOpt("protocol", protocols);
         if (wait != 0) {
             msg.addParameter("wait", wait);
         }
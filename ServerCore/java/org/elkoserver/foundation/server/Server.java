@@ -15,22 +15,31 @@ import org.elkoserver.foundation.actor.JSONHTTPFramer;
 import org.elkoserver.foundation.actor.RefTable;
 import org.elkoserver.foundation.boot.BootProperties;
 import org.elkoserver.foundation.json.MessageDispatcher;
+import org.elkoserver.foundation.json.MessageSchema;
 import org.elkoserver.foundation.json.StaticTypeResolver;
+import org.elkoserver.foundation.net.BinaryByteIOFramerFactory;
+import org.elkoserver.foundation.net.ByteIOFramerFactory;
 import org.elkoserver.foundation.net.Connection;
+import org.elkoserver.foundation.net.DeflatingByteIOFramerFactory;
 import org.elkoserver.foundation.net.ConnectionCountMonitor;
 import org.elkoserver.foundation.net.ConnectionRetrier;
 import org.elkoserver.foundation.net.HTTPSessionConnection;
 import org.elkoserver.foundation.net.JSONByteIOFramerFactory;
+import org.elkoserver.foundation.net.LengthPrefixedByteIOFramerFactory;
+import org.elkoserver.foundation.net.MessageLimits;
 import org.elkoserver.foundation.net.MessageHandler;
 import org.elkoserver.foundation.net.MessageHandlerFactory;
 import org.elkoserver.foundation.net.NetAddr;
 import org.elkoserver.foundation.net.NetworkManager;
 import org.elkoserver.foundation.run.Runner;
+import org.elkoserver.foundation.run.RunnerStats;
 import org.elkoserver.foundation.run.SlowServiceRunner;
 import org.elkoserver.foundation.server.metadata.AuthDesc;
 import org.elkoserver.foundation.server.metadata.HostDesc;
 import org.elkoserver.foundation.server.metadata.ServiceDesc;
 import org.elkoserver.foundation.server.metadata.ServiceFinder;
+import org.elkoserver.foundation.timer.TickNoticer;
+import org.elkoserver.foundation.timer.Timer;
 import org.elkoserver.objdb.ObjDB;
 import org.elkoserver.objdb.ObjDBLocal;
 import org.elkoserver.objdb.ObjDBRemote;
@@ -71,6 +80,10 @@ public class Server implements ConnectionCountMonitor, ServiceFinder
     /** Host description for connection to broker, if there is one. */
     private HostDesc myBrokerHost;
 
+    /** Protocols acceptable for connections to services found via the
+        broker, in order of preference, or null for the broker's default. */
+    private String myLinkProtocols;
+
     /** Message dispatcher for broker connections. */
     private MessageDispatcher myDispatcher;
 
@@ -111,6 +124,10 @@ public class Server implements ConnectionCountMonitor, ServiceFinder
     /** Default value for max number of threads in slow service thread pool. */
     private static final int DEFAULT_SLOW_THREADS = 5;
 
+    /** Default value for max number of tasks waiting for the slow service
+        thread pool. */
+    private static final int DEFAULT_SLOW_QUEUE = 1000;
+
     /** Map from external service names to links to the services. */
     private Map<String, ServiceLink> myServiceLinksByService;
 
@@ -134,10 +151,6 @@ public class Server implements ConnectionCountMonitor, ServiceFinder
         myProps = props;
         myConnectionCount = 0;
         myMainRunner = Runner.currentRunner();
-        mySlowRunner =
-            new SlowServiceRunner(myMainRunner,
-                                  props.intProperty("conf.slowthreads",
-                                                    DEFAULT_SLOW_THREADS));
         amShuttingDown = false;
         myShutdownWatchers = new LinkedList<ShutdownWatcher>();
         myReinitWatchers = new LinkedList<ReinitWatcher>();
@@ -149,6 +162,8 @@ public class Server implements ConnectionCountMonitor, ServiceFinder
         TraceController.setProperty("trace_server", "WORLD");
         TraceController.setProperty("trace_trace", "WORLD");
 
+        mySlowRunner = makeSlowRunner(props);
+
         myServiceName = props.getProperty("conf." + serverType + ".service");
         if (myServiceName == null) {
             myServiceName = "";
@@ -178,13 +193,59 @@ public class Server implements ConnectionCountMonitor, ServiceFinder
         myPendingFinds = new HashMapMulti<String, ServiceQuery>();
         myBrokerActor = null;
         myBrokerHost = HostDesc.fromProperties(props, "conf.broker");
+        myLinkProtocols = props.getProperty("conf.broker.linkprotocols");
 
         if (props.testProperty("conf.msgdiagnostics")) {
             NetworkManager.TheDebugReplyFlag = true;
         }
+        for (String name : props.stringPropertyNames()) {
+            if (name.startsWith("conf.msgschema.")) {
+                MessageSchema.declareVerb(
+                    name.substring("conf.msgschema.".length()),
+                    props.getProperty(name));
+            }
+        }
         if (props.testProperty("conf.debugsessions")) {
             HTTPSessionConnection.TheDebugSessionsFlag = true;
         }
+        int runStatsInterval = props.intProperty("conf.run.stats", 0);
+        if (runStatsInterval > 0) {
+            RunnerStats.enable();
+            Timer.theTimer().every(runStatsInterval * 1000,
+                new TickNoticer() {
+                    public void noticeTick(int ticks) {
+                        RunnerStats.reportMetrics();
+                    }
+                }).start();
+        }
+        Runner.setPriorityWeight(
+            props.intProperty("conf.run.priorityweight",
+                              Runner.DEFAULT_PRIORITY_WEIGHT));
+    }
+
+    /**
+     * Set up the slow service thread pool as the configuration properties
+     * direct.
+     *
+     * @param props  The properties, as determined by the boot process.
+     *
+     * @return the new slow service runner.
+     */
+    private SlowServiceRunner makeSlowRunner(BootProperties props) {
+        String policyName = props.getProperty("conf.slowpolicy", "reject");
+        int policy = SlowServiceRunner.policyCode(policyName);
+        if (policy == 0) {
+            trServer.warningm("unknown conf.slowpolicy '" + policyName +
+                              "', using 'reject'");
+            policy = SlowServiceRunner.POLICY_REJECT;
+        }
+        return new SlowServiceRunner(
+            myMainRunner,
+            props.intProperty("conf.slowthreads", DEFAULT_SLOW_THREADS),
+            props.intProperty("conf.slowqueue", DEFAULT_SLOW_QUEUE),
+            policy,
+            props.intProperty("conf.slowtimeout", 0) * 1000L,
+            props.testProperty("conf.slowvirtual"));
     }
 
     /**
@@ -206,8 +267,8 @@ public class Server implements ConnectionCountMonitor, ServiceFinder
         } else {
             for (String key : myPendingFinds.keys()) {
                 for (ServiceQuery query : myPendingFinds.getMulti(key)) {
-                    brokerActor.findService(key, query.isMonitor(),
-                                            query.tag());
+                    brokerActor.findService(key, myLinkProtocols,
+                                            query.isMonitor(), query.tag());
                 }
             }
         }
@@ -233,6 +294,32 @@ public class Server implements ConnectionCountMonitor, ServiceFinder
         }
     }
 
+    /**
+     * Message handler factory for listeners that carry control traffic: marks
+     * each new connection as priority, then leaves the rest to the
+     * listener's own factory.
+     */
+    private static class PriorityMessageHandlerFactory
+        implements MessageHandlerFactory
+    {
+        /** The listener's own message handler factory. */
+        private MessageHandlerFactory myInnerFactory;
+
+        /**
+         * Constructor.
+         *
+         * @param innerFactory  The listener's own message handler factory.
+         */
+        PriorityMessageHandlerFactory(MessageHandlerFactory innerFactory) {
+            myInnerFactory = innerFactory;
+        }
+
+        public MessageHandler provideMessageHandler(Connection connection) {
+            connection.setPriority(true);
+            return myInnerFactory.provideMessageHandler(connection);
+        }
+    }
+
     /**
      * Track the number of connections, so server can exit gracefully.
      *
@@ -258,17 +345,44 @@ public class Server implements ConnectionCountMonitor, ServiceFinder
     }
 
     /**
-     * Drop a task onto the slow queue.
+     * Drop a task onto the slow queue.  If the task can't be run, because
+     * the queue is full or because it takes longer than the configured time
+     * limit, the result handler is given a RejectedExecutionException or
+     * TimeoutException as the result (see {@link SlowServiceRunner}).
      *
      * @param task  Callable that executes the task.  This will be executed in
      *    a separate thread and so is permitted to block.
      * @param resultHandler  Thunk that will be invoked with the result
-     *    returned by the task.  This will be executed on the main run queue.
+     *    returned by the task.  This will be executed on the run queue that
+     *    enqueued the task, or on the main run queue if it wasn't enqueued
+     *    from a run queue.
+     *
+     * @return true if the task was accepted, false if it was refused because
+     *    the queue was full.
      */
-    public void enqueueSlowTask(Callable<Object> task,
-                                ArgRunnable resultHandler)
+    public boolean enqueueSlowTask(Callable<Object> task,
+                                   ArgRunnable resultHandler)
     {
-        mySlowRunner.enqueueTask(task, resultHandler);
+        return mySlowRunner.enqueueTask(task, resultHandler);
+    }
+
+    /**
+     * Drop a task onto the slow queue, with a time limit of its own.
+     *
+     * @param task  Callable that executes the task.  This will be executed in
+     *    a separate thread and so is permitted to block.
+     * @param resultHandler  Thunk that will be invoked with the result
+     *    returned by the task, or with a TimeoutException if the task doesn't
+     *    produce one in time.
+     * @param timeout  Time limit for the task, in milliseconds, or 0 for none.
+     *
+     * @return true if the task was accepted, false if it was refused because
+     *    the queue was full.
+     */
+    public boolean enqueueSlowTask(Callable<Object> task,
+                                   ArgRunnable resultHandler, long timeout)
+    {
+        return mySlowRunner.enqueueTask(task, resultHandler, timeout);
     }
 
     /**
@@ -304,7 +418,8 @@ public class Server implements ConnectionCountMonitor, ServiceFinder
                                new ServiceQuery(service, handler, monitor,
                                                 tag));
             if (myBrokerActor != null) {
-                myBrokerActor.findService(service, monitor, tag);
+                myBrokerActor.findService(service, myLinkProtocols, monitor,
+                                          tag);
             }
         } else {
             tr.errori("can't find service " + service +
@@ -728,6 +843,9 @@ public class Server implements ConnectionCountMonitor, ServiceFinder
         if (actorFactory == null) {
             return null;
         }
+        if (myProps.testProperty(propRoot + ".priority")) {
+            actorFactory = new PriorityMessageHandlerFactory(actorFactory);
+        }
 
         boolean dontLog = myProps.testProperty(propRoot + ".dontlog");
         Trace msgTrace;
@@ -739,6 +857,8 @@ public class Server implements ConnectionCountMonitor, ServiceFinder
             msgTrace = Trace.comm.subTrace("cli");
         }
 
+        MessageLimits limits = MessageLimits.fromProperties(myProps, propRoot);
+
         NetAddr listenAddress = null;
 
         String mgrClass = myProps.getProperty(propRoot + ".class");
@@ -767,26 +887,44 @@ public class Server implements ConnectionCountMonitor, ServiceFinder
                           ") listener " + propRoot + " on requested host: " +
                           e);
             }
-        } else if (protocol.equals("tcp")) {
+        } else if (protocol.equals("tcp") || protocol.equals("ltcp")) {
             try {
+                ByteIOFramerFactory framerFactory;
+                if (protocol.equals("ltcp")) {
+                    framerFactory =
+                        new LengthPrefixedByteIOFramerFactory(msgTrace,
+                                                              limits);
+                } else if (myProps.testProperty(propRoot + ".binary")) {
+                    framerFactory =
+                        new BinaryByteIOFramerFactory(msgTrace, limits);
+                } else {
+                    framerFactory =
+                        new JSONByteIOFramerFactory(msgTrace, limits);
+                }
+                if (myProps.testProperty(propRoot + ".compress")) {
+                    framerFactory =
+                        new DeflatingByteIOFramerFactory(framerFactory, false);
+                }
                 listenAddress =
                     myNetworkManager.listenTCP(
                         bind,
                         actorFactory,
-                        new JSONByteIOFramerFactory(msgTrace),
+                        framerFactory,
                         secure,
                         msgTrace);
                 if (noPortConfig) {
                     host += ":" + listenAddress.getPort();
                 }
-                result = new HostDesc("tcp", secure, host, auth, -1, dontLog);
-                trServer.noticei("listening for tcp connections on " +
+                result =
+                    new HostDesc(protocol, secure, host, auth, -1, dontLog);
+                trServer.noticei("listening for " + protocol +
+                    " connections on " +
                     host + (bind != host ? (" (" + bind + ")") : "") +
                     " (" + auth.mode() + ")" +
                     (secure ? " (using SSL)" : ""));
             } catch (IOException e) {
-                tr.errorm("unable to open tcp listener " + propRoot +
-                          " on requested host: " + e);
+                tr.errorm("unable to open " + protocol + " listener " +
+                          propRoot + " on requested host: " + e);
             }
         } else if (protocol.equals("rtcp")) {
             try {
@@ -867,7 +1005,8 @@ public class Server implements ConnectionCountMonitor, ServiceFinder
                        actorFactory,
                        socketURI,
                        msgTrace,
-                       secure);
+                       secure,
+                       limits);
 
                 result = new HostDesc("ws", secure, host + "/" + socketURI,
                                       auth, -1, dontLog);
@@ -53,12 +53,13 @@ public class ServerLoadMonitor implements LoadMonitor {
     }
 
     /**
-     * Take note of some processing time spent.
+     * Take note of some processing time spent.  May be called from any
+     * thread.
      *
      * @param timeIncrement  The amount of processing time that was spent, in
      *    milliseconds.
      */
-    public void addTime(long timeIncrement) {
+    public synchronized void addTime(long timeIncrement) {
         myCumulativeProcessingTime += timeIncrement;
     }
 
@@ -116,7 +117,7 @@ public class ServerLoadMonitor implements LoadMonitor {
      *
      * @return the current load estimate, as described above.
      */
-    private double sampleLoad() {
+    private synchronized double sampleLoad() {
         long clockTime = System.currentTimeMillis() - mySampleStartTime;
         double loadFactor = 0.0;
         if (clockTime > 0) {
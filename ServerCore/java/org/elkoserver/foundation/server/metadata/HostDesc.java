@@ -25,6 +25,9 @@ public class HostDesc {
     /** Flag not to log traffic on connections to this host. */
     private boolean amDontLog;
 
+    /** Flag to compress traffic on connections to this host. */
+    private boolean amCompressing;
+
     /**
      * Constructor.
      *
@@ -39,6 +42,27 @@ public class HostDesc {
     public HostDesc(String protocol, boolean isSecure, String hostPort,
                     AuthDesc auth, int retryInterval, boolean dontLog)
     {
+        this(protocol, isSecure, hostPort, auth, retryInterval, dontLog,
+             false);
+    }
+
+    /**
+     * Constructor, with control over compression.
+     *
+     * @param protocol  Protocol spoken.
+     * @param isSecure  Flag that is true if protocol is secure.
+     * @param hostPort  Host/port/path to address for service.
+     * @param auth  Authorization.
+     * @param retryInterval  Connection retry interval, in seconds, or -1 to
+     *    accept the default (currently 15).
+     * @param dontLog  Flag not to log traffic when communicating to host.
+     * @param compress  Flag to compress traffic when communicating to host.
+     */
+    public HostDesc(String protocol, boolean isSecure, String hostPort,
+                    AuthDesc auth, int retryInterval, boolean dontLog,
+                    boolean compress)
+    {
+        amCompressing = compress;
         if (isSecure) {
             myProtocol = "s" + protocol;
         } else {
@@ -67,6 +91,15 @@ public class HostDesc {
         this(protocol, false, hostPort, null, -1, false);
     }
 
+    /**
+     * Test if this host descriptor says to compress traffic.
+     *
+     * @return true if this host's "compress" flag is set.
+     */
+    public boolean compress() {
+        return amCompressing;
+    }
+
     /**
      * Test if this host descriptor says not to log traffic.
      *
@@ -87,7 +120,10 @@ public class HostDesc {
      *    indicates that message traffic on a connection to this host should
      *    not be logged.<br>
      * <tt>"<i>propRoot</i>.retry"</tt>, an integer, if given, is the retry
-     *    interval, in seconds.
+     *    interval, in seconds.<br>
+     * <tt>"<i>propRoot</i>.compress"</tt>, a boolean, if given and true,
+     *    indicates that traffic on a connection to this host should be
+     *    compressed.
      *
      * @param props  Properties to examine for a host description.
      * @param propRoot  Root property name.
@@ -110,8 +146,10 @@ public class HostDesc {
             }
             int retry = props.intProperty(propRoot + ".retry", -1);
             boolean dontLog = props.testProperty(propRoot + ".dontlog");
+            boolean compress = props.testProperty(propRoot + ".compress");
             
-            return new HostDesc(protocol, false, host, auth, retry, dontLog);
+            return new HostDesc(protocol, false, host, auth, retry, dontLog,
+                                compress);
         }
     }
 
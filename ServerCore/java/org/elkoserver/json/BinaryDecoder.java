@@ -0,0 +1,401 @@
+package org.elkoserver.json;
+
+/**
+ * Translator of JSON messages from the binary form described in {@link
+ * BinaryFormat}, for one direction of one connection.
+ *
+ * A decoder holds the receiving side's string dictionary, so it must be
+ * handed the messages in the order they were sent.  The objects it produces
+ * are exactly those that {@link UTF8Parser} would produce from the JSON text
+ * of the same messages.  Besides the codes that {@link BinaryEncoder}
+ * produces, the MessagePack unsigned integer codes are accepted, so that
+ * senders can use an off-the-shelf MessagePack encoder if they wish.
+ *
+ * Like {@link UTF8Parser}, a decoder can be given limits on nesting and on
+ * the sizes of objects and arrays, and a {@link MessageValidator} to check
+ * the messages it decodes as they are decoded.
+ */
+public class BinaryDecoder {
+    /** The dictionary strings, by index. */
+    private String myDictionary[];
+
+    /** Index of the dictionary entry the next definition will go in. */
+    private int myNextEntry;
+
+    /** The bytes being decoded. */
+    private byte[] myData;
+
+    /** Index of the next byte to be decoded. */
+    private int myPos;
+
+    /** Index just past the last byte of the message being decoded. */
+    private int myEnd;
+
+    /** Deepest nesting of objects and arrays that will be accepted. */
+    private int myMaxDepth;
+
+    /** Most properties an object, or elements an array, may have. */
+    private int myMaxMembers;
+
+    /** Number of objects and arrays enclosing the current position. */
+    private int myDepth;
+
+    /** Validator for the messages decoded, or null if none. */
+    private MessageValidator myValidator;
+
+    /* MessagePack unsigned integer codes. */
+    private static final int UINT8 = 0xCC;
+    private static final int UINT16 = 0xCD;
+    private static final int UINT32 = 0xCE;
+    private static final int UINT64 = 0xCF;
+
+    /**
+     * Constructor.
+     */
+    public BinaryDecoder() {
+        myDictionary = new String[BinaryFormat.DICTIONARY_SIZE];
+        System.arraycopy(BinaryFormat.PRESET_STRINGS, 0, myDictionary, 0,
+                         BinaryFormat.PRESET_STRINGS.length);
+        myNextEntry = BinaryFormat.PRESET_STRINGS.length;
+        myMaxDepth = Integer.MAX_VALUE;
+        myMaxMembers = Integer.MAX_VALUE;
+        myValidator = null;
+    }
+
+    /**
+     * Limit the shape of the messages that will be accepted, as {@link
+     * UTF8Parser#setLimits UTF8Parser.setLimits()} does.
+     *
+     * @param maxDepth  Deepest nesting of objects and arrays allowed, or 0
+     *    for no limit.
+     * @param maxMembers  Most properties any object, or elements any array,
+     *    may have, or 0 for no limit.
+     */
+    public void setLimits(int maxDepth, int maxMembers) {
+        myMaxDepth = maxDepth > 0 ? maxDepth : Integer.MAX_VALUE;
+        myMaxMembers = maxMembers > 0 ? maxMembers : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Designate an object to check each message as it is being decoded.
+     *
+     * @param validator  The validator to use, or null to do no checking.
+     */
+    public void setValidator(MessageValidator validator) {
+        myValidator = validator;
+    }
+
+    /**
+     * Decode a message.
+     *
+     * @param data  Array containing the binary form of the message, not
+     *    including its length.
+     * @param offset  Index of the first byte of the message.
+     * @param length  Number of bytes in the message.
+     *
+     * @return the message.
+     *
+     * @throws SyntaxError if the bytes are not the binary form of a JSON
+     *    object.
+     */
+    public JSONObject decode(byte[] data, int offset, int length)
+        throws SyntaxError
+    {
+        myData = data;
+        myPos = offset;
+        myEnd = offset + length;
+        myDepth = 0;
+        try {
+            Object message = decodeValue();
+            if (!(message instanceof JSONObject)) {
+                throw new SyntaxError("binary message is not an object");
+            } else if (myPos != myEnd) {
+                throw new SyntaxError("extra bytes after binary message");
+            }
+            return (JSONObject) message;
+        } finally {
+            myData = null;
+        }
+    }
+
+    /**
+     * Decode a value.
+     *
+     * @return the value decoded.
+     */
+    private Object decodeValue() throws SyntaxError {
+        int code = next();
+        if (code <= BinaryFormat.POSITIVE_FIXINT_MAX) {
+            return Long.valueOf(code);
+        } else if (code >= BinaryFormat.NEGATIVE_FIXINT) {
+            return Long.valueOf((byte) code);
+        } else if (code < BinaryFormat.FIXARRAY) {
+            return decodeObject(code & BinaryFormat.FIXMAP_MAX);
+        } else if (code < BinaryFormat.FIXSTR) {
+            return decodeArray(code & BinaryFormat.FIXARRAY_MAX);
+        }
+        switch (code) {
+            case BinaryFormat.NIL:
+                return null;
+            case BinaryFormat.FALSE:
+                return Boolean.FALSE;
+            case BinaryFormat.TRUE:
+                return Boolean.TRUE;
+            case BinaryFormat.FLOAT32:
+                return Double.valueOf(Float.intBitsToFloat(nextInt()));
+            case BinaryFormat.FLOAT64:
+                return Double.valueOf(Double.longBitsToDouble(nextLong()));
+            case UINT8:
+                return Long.valueOf(next());
+            case UINT16:
+                return Long.valueOf(nextShort());
+            case UINT32:
+                return Long.valueOf(nextInt() & 0xFFFFFFFFL);
+            case UINT64: {
+                long value = nextLong();
+                if (value < 0) {
+                    throw new SyntaxError("binary integer out of range");
+                }
+                return Long.valueOf(value);
+            }
+            case BinaryFormat.INT8:
+                return Long.valueOf((byte) next());
+            case BinaryFormat.INT16:
+                return Long.valueOf((short) nextShort());
+            case BinaryFormat.INT32:
+                return Long.valueOf(nextInt());
+            case BinaryFormat.INT64:
+                return Long.valueOf(nextLong());
+            case BinaryFormat.ARRAY16:
+                return decodeArray(nextShort());
+            case BinaryFormat.ARRAY32:
+                return decodeArray(nextCount());
+            case BinaryFormat.MAP16:
+                return decodeObject(nextShort());
+            case BinaryFormat.MAP32:
+                return decodeObject(nextCount());
+            default:
+                return decodeString(code);
+        }
+    }
+
+    /**
+     * Decode a string.
+     *
+     * @param code  The code that introduced the string.
+     *
+     * @return the string decoded.
+     */
+    private String decodeString(int code) throws SyntaxError {
+        int length;
+        if (BinaryFormat.FIXSTR <= code &&
+                code <= (BinaryFormat.FIXSTR | BinaryFormat.FIXSTR_MAX)) {
+            length = code & BinaryFormat.FIXSTR_MAX;
+        } else {
+            switch (code) {
+                case BinaryFormat.STR8:
+                    length = next();
+                    break;
+                case BinaryFormat.STR16:
+                    length = nextShort();
+                    break;
+                case BinaryFormat.STR32:
+                    length = nextCount();
+                    break;
+                case BinaryFormat.DICT_REF: {
+                    String str = myDictionary[next()];
+                    if (str == null) {
+                        throw new SyntaxError(
+                            "undefined binary dictionary entry");
+                    }
+                    return str;
+                }
+                case BinaryFormat.DICT_DEF: {
+                    String str = nextString(next());
+                    myDictionary[myNextEntry] = str;
+                    ++myNextEntry;
+                    if (myNextEntry == BinaryFormat.DICTIONARY_SIZE) {
+                        myNextEntry = BinaryFormat.PRESET_STRINGS.length;
+                    }
+                    return str;
+                }
+                default:
+                    throw new SyntaxError("invalid binary value code 0x" +
+                                          Integer.toHexString(code));
+            }
+        }
+        return nextString(length);
+    }
+
+    /**
+     * Test if a code introduces a string.
+     *
+     * @param code  The code to test.
+     *
+     * @return true if 'code' is one of the string codes.
+     */
+    private static boolean isStringCode(int code) {
+        switch (code) {
+            case BinaryFormat.STR8:
+            case BinaryFormat.STR16:
+            case BinaryFormat.STR32:
+            case BinaryFormat.DICT_REF:
+            case BinaryFormat.DICT_DEF:
+                return true;
+            default:
+                return BinaryFormat.FIXSTR <= code &&
+                    code <= (BinaryFormat.FIXSTR | BinaryFormat.FIXSTR_MAX);
+        }
+    }
+
+    /**
+     * Decode the contents of an object.
+     *
+     * @param size  The number of properties the object has.
+     *
+     * @return the object decoded.
+     */
+    private JSONObject decodeObject(int size) throws SyntaxError {
+        enterNesting(size);
+        boolean validating = myValidator != null && myDepth == 1;
+        JSONObject obj = new JSONObject();
+        for (int i = 0; i < size; ++i) {
+            int code = next();
+            if (!isStringCode(code)) {
+                throw new SyntaxError("binary property name is not a string");
+            }
+            String name = decodeString(code);
+            Object value = decodeValue();
+            obj.addProperty(name, value);
+            if (validating) {
+                myValidator.checkProperty(obj, name, value);
+            }
+        }
+        if (validating) {
+            myValidator.checkMessage(obj);
+        }
+        --myDepth;
+        return obj;
+    }
+
+    /**
+     * Decode the contents of an array.
+     *
+     * @param size  The number of elements the array has.
+     *
+     * @return the array decoded.
+     */
+    private JSONArray decodeArray(int size) throws SyntaxError {
+        enterNesting(size);
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < size; ++i) {
+            array.add(decodeValue());
+        }
+        --myDepth;
+        return array;
+    }
+
+    /**
+     * Note that an object or array has been entered, checking that it is
+     * within the decoder's limits.  Since the size of an object or array is
+     * given up front, an oversized one is rejected before any of it is
+     * decoded.
+     *
+     * @param size  The number of members the object or array has.
+     */
+    private void enterNesting(int size) throws SyntaxError {
+        if (++myDepth > myMaxDepth) {
+            throw new SyntaxError("binary objects nested too deeply");
+        } else if (size > myMaxMembers) {
+            throw new SyntaxError("binary object or array has too many " +
+                                  "members");
+        }
+    }
+
+    /**
+     * Make sure there are enough bytes left in the message.
+     *
+     * @param count  The number of bytes needed.
+     */
+    private void need(int count) throws SyntaxError {
+        if (myEnd - myPos < count) {
+            throw new SyntaxError("truncated binary message");
+        }
+    }
+
+    /**
+     * Get the next byte.
+     *
+     * @return the byte, as an unsigned value.
+     */
+    private int next() throws SyntaxError {
+        need(1);
+        return myData[myPos++] & 0xFF;
+    }
+
+    /**
+     * Get the next two bytes, as an unsigned 16 bit number.
+     *
+     * @return the number.
+     */
+    private int nextShort() throws SyntaxError {
+        need(2);
+        int value = ((myData[myPos] & 0xFF) << 8) |
+                    (myData[myPos + 1] & 0xFF);
+        myPos += 2;
+        return value;
+    }
+
+    /**
+     * Get the next four bytes, as a 32 bit number.
+     *
+     * @return the number.
+     */
+    private int nextInt() throws SyntaxError {
+        need(4);
+        int value = ((myData[myPos] & 0xFF) << 24) |
+                    ((myData[myPos + 1] & 0xFF) << 16) |
+                    ((myData[myPos + 2] & 0xFF) << 8) |
+                    (myData[myPos + 3] & 0xFF);
+        myPos += 4;
+        return value;
+    }
+
+    /**
+     * Get the next eight bytes, as a 64 bit number.
+     *
+     * @return the number.
+     */
+    private long nextLong() throws SyntaxError {
+        long high = nextInt();
+        return (high << 32) | (nextInt() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Get a 32 bit element count, which can't be more than the number of
+     * bytes remaining.
+     *
+     * @return the count.
+     */
+    private int nextCount() throws SyntaxError {
+        int count = nextInt();
+        if (count < 0 || count > myEnd - myPos) {
+            throw new SyntaxError("binary length out of range");
+        }
+        return count;
+    }
+
+    /**
+     * Get a string of UTF-8 encoded bytes.
+     *
+     * @param length  The number of bytes.
+     *
+     * @return the string.
+     */
+    private String nextString(int length) throws SyntaxError {
+        need(length);
+        String str = new String(myData, myPos, length, BinaryFormat.UTF8);
+        myPos += length;
+        return str;
+    }
+}
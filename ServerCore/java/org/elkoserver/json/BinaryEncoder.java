@@ -0,0 +1,342 @@
+package org.elkoserver.json;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Translator of JSON messages into the binary form described in {@link
+ * BinaryFormat}, for one direction of one connection.
+ *
+ * An encoder holds the sending side's string dictionary, so the encoding of
+ * a message depends on everything encoded before it by the same encoder.
+ * The names of all properties, and the values of those properties that
+ * usually hold message verbs, object references or type tags (see {@link
+ * #isSymbolic isSymbolic()}), are sent via the dictionary.
+ */
+public class BinaryEncoder {
+    /** The dictionary strings, by index. */
+    private String myDictionary[];
+
+    /** Indices of the strings in the dictionary. */
+    private Map<String, Integer> myIndices;
+
+    /** Index of the dictionary entry the next definition will go in. */
+    private int myNextEntry;
+
+    /** Buffer into which output is encoded. */
+    private byte[] myBytes;
+
+    /** Number of bytes in myBytes that are in use. */
+    private int myLength;
+
+    /** Initial size of the output buffer. */
+    private static final int INITIAL_SIZE = 256;
+
+    /** Most bytes that a message length can take to encode. */
+    private static final int MAX_LENGTH_BYTES = 5;
+
+    /**
+     * Constructor.
+     */
+    public BinaryEncoder() {
+        myDictionary = new String[BinaryFormat.DICTIONARY_SIZE];
+        myIndices = new HashMap<String, Integer>();
+        for (int i = 0; i < BinaryFormat.PRESET_STRINGS.length; ++i) {
+            myDictionary[i] = BinaryFormat.PRESET_STRINGS[i];
+            myIndices.put(BinaryFormat.PRESET_STRINGS[i], i);
+        }
+        myNextEntry = BinaryFormat.PRESET_STRINGS.length;
+        myBytes = new byte[INITIAL_SIZE];
+        myLength = 0;
+    }
+
+    /**
+     * Translate a block of UTF-8 encoded JSON messages into binary form.
+     *
+     * @param text  Array containing the JSON text.
+     * @param offset  Index of the first byte of the text.
+     * @param length  Number of bytes of text.
+     *
+     * @return the binary form of the messages in the text.
+     *
+     * @throws SyntaxError if the text is not a sequence of JSON objects.
+     */
+    public byte[] encode(byte[] text, int offset, int length)
+        throws SyntaxError
+    {
+        myLength = 0;
+        UTF8Parser parser = new UTF8Parser(text, offset, length);
+        JSONObject message = parser.parseObjectLiteral();
+        while (message != null) {
+            encodeMessage(message);
+            message = parser.parseObjectLiteral();
+        }
+        byte[] result = new byte[myLength];
+        System.arraycopy(myBytes, 0, result, 0, myLength);
+        return result;
+    }
+
+    /**
+     * Encode a single message, preceded by its length.
+     *
+     * @param message  The message to encode.
+     */
+    private void encodeMessage(JSONObject message) {
+        /* Leave room for the largest possible length, then slide the message
+           down against the length once it is known how long that is. */
+        int start = myLength;
+        ensureRoom(MAX_LENGTH_BYTES);
+        myLength += MAX_LENGTH_BYTES;
+        encodeObject(message);
+        int bodyStart = start + MAX_LENGTH_BYTES;
+        int bodyLength = myLength - bodyStart;
+        myLength = start;
+        int value = bodyLength;
+        while (value >= 0x80) {
+            myBytes[myLength++] = (byte) (0x80 | (value & 0x7F));
+            value >>>= 7;
+        }
+        myBytes[myLength++] = (byte) value;
+        System.arraycopy(myBytes, bodyStart, myBytes, myLength, bodyLength);
+        myLength += bodyLength;
+    }
+
+    /**
+     * Test if the value of a property should be sent via the dictionary when
+     * it is a string.  This is the case for the properties that, by Elko
+     * convention, hold message verbs, references to objects, or type tags.
+     *
+     * @param name  The name of the property.
+     *
+     * @return true if 'name' is the name of a property whose string values
+     *    are likely to recur.
+     */
+    private static boolean isSymbolic(String name) {
+        switch (name.length()) {
+            case 2:
+                return name.equals("to") || name.equals("op") ||
+                    name.equals("in");
+            case 3:
+                return name.equals("ref");
+            case 4:
+                return name.equals("type") || name.equals("from") ||
+                    name.equals("user");
+            case 7:
+                return name.equals("context");
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Encode a JSON object.
+     *
+     * @param obj  The object to encode.
+     */
+    private void encodeObject(JSONObject obj) {
+        int size = obj.size();
+        if (size <= BinaryFormat.FIXMAP_MAX) {
+            append(BinaryFormat.FIXMAP | size);
+        } else if (size <= 0xFFFF) {
+            append(BinaryFormat.MAP16);
+            appendShort(size);
+        } else {
+            append(BinaryFormat.MAP32);
+            appendInt(size);
+        }
+        for (Map.Entry<String, Object> entry : obj.properties()) {
+            String name = entry.getKey();
+            encodeString(name, true);
+            encodeValue(entry.getValue(), isSymbolic(name));
+        }
+    }
+
+    /**
+     * Encode a JSON value.
+     *
+     * @param value  The value to encode.
+     * @param symbolic  If true and 'value' is a string, send it via the
+     *    dictionary.
+     */
+    private void encodeValue(Object value, boolean symbolic) {
+        if (value instanceof String) {
+            encodeString((String) value, symbolic);
+        } else if (value instanceof Long || value instanceof Integer) {
+            encodeLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            encodeDouble(((Number) value).doubleValue());
+        } else if (value instanceof JSONObject) {
+            encodeObject((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            int size = array.size();
+            if (size <= BinaryFormat.FIXARRAY_MAX) {
+                append(BinaryFormat.FIXARRAY | size);
+            } else if (size <= 0xFFFF) {
+                append(BinaryFormat.ARRAY16);
+                appendShort(size);
+            } else {
+                append(BinaryFormat.ARRAY32);
+                appendInt(size);
+            }
+            for (Object element : array) {
+                encodeValue(element, false);
+            }
+        } else if (value instanceof Boolean) {
+            append(((Boolean) value).booleanValue() ? BinaryFormat.TRUE :
+                                                      BinaryFormat.FALSE);
+        } else {
+            append(BinaryFormat.NIL);
+        }
+    }
+
+    /**
+     * Encode a string.
+     *
+     * @param str  The string to encode.
+     * @param symbolic  If true, send it via the dictionary.
+     */
+    private void encodeString(String str, boolean symbolic) {
+        if (symbolic) {
+            Integer index = myIndices.get(str);
+            if (index != null) {
+                append(BinaryFormat.DICT_REF);
+                append(index);
+                return;
+            }
+        }
+        byte[] bytes = str.getBytes(BinaryFormat.UTF8);
+        int length = bytes.length;
+        if (symbolic && length <= BinaryFormat.MAX_DICTIONARY_STRING) {
+            append(BinaryFormat.DICT_DEF);
+            append(length);
+            define(str);
+        } else if (length <= BinaryFormat.FIXSTR_MAX) {
+            append(BinaryFormat.FIXSTR | length);
+        } else if (length <= 0xFF) {
+            append(BinaryFormat.STR8);
+            append(length);
+        } else if (length <= 0xFFFF) {
+            append(BinaryFormat.STR16);
+            appendShort(length);
+        } else {
+            append(BinaryFormat.STR32);
+            appendInt(length);
+        }
+        ensureRoom(length);
+        System.arraycopy(bytes, 0, myBytes, myLength, length);
+        myLength += length;
+    }
+
+    /**
+     * Put a string into the next dictionary entry, displacing whatever was
+     * there before.
+     *
+     * @param str  The string to define.
+     */
+    private void define(String str) {
+        String old = myDictionary[myNextEntry];
+        if (old != null) {
+            myIndices.remove(old);
+        }
+        myDictionary[myNextEntry] = str;
+        myIndices.put(str, myNextEntry);
+        ++myNextEntry;
+        if (myNextEntry == BinaryFormat.DICTIONARY_SIZE) {
+            myNextEntry = BinaryFormat.PRESET_STRINGS.length;
+        }
+    }
+
+    /**
+     * Encode an integer, in the smallest form that holds it.
+     *
+     * @param value  The number to encode.
+     */
+    private void encodeLong(long value) {
+        if (0 <= value && value <= BinaryFormat.POSITIVE_FIXINT_MAX) {
+            append((int) value);
+        } else if (-32 <= value && value < 0) {
+            append((int) value & 0xFF);
+        } else if (Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
+            append(BinaryFormat.INT8);
+            append((int) value & 0xFF);
+        } else if (Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
+            append(BinaryFormat.INT16);
+            appendShort((int) value);
+        } else if (Integer.MIN_VALUE <= value && value <= Integer.MAX_VALUE) {
+            append(BinaryFormat.INT32);
+            appendInt((int) value);
+        } else {
+            append(BinaryFormat.INT64);
+            appendInt((int) (value >> 32));
+            appendInt((int) value);
+        }
+    }
+
+    /**
+     * Encode a floating point number, in single precision if that loses
+     * nothing.
+     *
+     * @param value  The number to encode.
+     */
+    private void encodeDouble(double value) {
+        float single = (float) value;
+        if (single == value) {
+            append(BinaryFormat.FLOAT32);
+            appendInt(Float.floatToIntBits(single));
+        } else {
+            long bits = Double.doubleToLongBits(value);
+            append(BinaryFormat.FLOAT64);
+            appendInt((int) (bits >> 32));
+            appendInt((int) bits);
+        }
+    }
+
+    /**
+     * Make room for more bytes in the output buffer.
+     *
+     * @param count  Number of bytes about to be added.
+     */
+    private void ensureRoom(int count) {
+        int needed = myLength + count;
+        if (needed > myBytes.length) {
+            byte[] newBytes = new byte[Math.max(needed, myBytes.length * 2)];
+            System.arraycopy(myBytes, 0, newBytes, 0, myLength);
+            myBytes = newBytes;
+        }
+    }
+
+    /**
+     * Append a byte.
+     *
+     * @param b  The byte to append, in the low 8 bits.
+     */
+    private void append(int b) {
+        ensureRoom(1);
+        myBytes[myLength++] = (byte) b;
+    }
+
+    /**
+     * Append a 16 bit number, most significant byte first.
+     *
+     * @param value  The number to append, in the low 16 bits.
+     */
+    private void appendShort(int value) {
+        ensureRoom(2);
+        myBytes[myLength++] = (byte) (value >> 8);
+        myBytes[myLength++] = (byte) value;
+    }
+
+    /**
+     * Append a 32 bit number, most significant byte first.
+     *
+     * @param value  The number to append.
+     */
+    private void appendInt(int value) {
+        ensureRoom(4);
+        myBytes[myLength++] = (byte) (value >> 24);
+        myBytes[myLength++] = (byte) (value >> 16);
+        myBytes[myLength++] = (byte) (value >> 8);
+        myBytes[myLength++] = (byte) value;
+    }
+}
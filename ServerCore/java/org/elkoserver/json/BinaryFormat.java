@@ -0,0 +1,91 @@
+package org.elkoserver.json;
+
+import java.nio.charset.Charset;
+
+/**
+ * Definitions shared by {@link BinaryEncoder} and {@link BinaryDecoder}, which
+ * translate JSON messages to and from a compact binary form.
+ *
+ * The binary form of a JSON value is its MessagePack encoding: integers are
+ * encoded in the smallest of the fixint, int8, int16, int32 or int64 forms
+ * that will hold them, doubles as float32 if that is exact and float64
+ * otherwise, strings as fixstr, str8, str16 or str32, arrays as fixarray,
+ * array16 or array32, objects as fixmap, map16 or map32, and true, false and
+ * null as themselves.  The bin and ext types are never used, since there is
+ * nothing in JSON that corresponds to them.
+ *
+ * Two codes are used differently, to make the names of properties and other
+ * strings that recur in message after message (such as the verbs and target
+ * references of messages) cheaper to send.  Each direction of a connection
+ * has a string dictionary of {@link #DICTIONARY_SIZE} entries, whose first
+ * few entries are preset (see {@link #PRESET_STRINGS}).  The code {@link
+ * #DICT_REF} followed by a one byte index stands for the string in that entry
+ * of the dictionary.  The code {@link #DICT_DEF} followed by a one byte
+ * length and that many bytes of UTF-8 stands for the string those bytes
+ * encode, and additionally stores it in the dictionary, in the entry after
+ * the one most recently defined (cycling around to the first entry after the
+ * presets once the last entry has been used).  Which strings are sent via
+ * the dictionary is up to the sender.
+ *
+ * Each message is sent as its length in bytes, as an unsigned LEB128 number,
+ * followed by the binary form of the message object.
+ */
+final class BinaryFormat {
+    /**
+     * Suppress the Miranda constructor.
+     */
+    private BinaryFormat() { }
+
+    /** Number of entries in a string dictionary. */
+    static final int DICTIONARY_SIZE = 256;
+
+    /** Strings that start out in every dictionary, at the beginning, in this
+        order.  These are part of the encoding and must not be changed. */
+    static final String PRESET_STRINGS[] = {
+        "to", "op", "type", "ref", "from", "in", "name", "user", "context",
+        "item", "mods", "pos", "x", "y", "lat", "lon", "speech", "error",
+        "msg", "yours", "you", "contents", "sess", "id"
+    };
+
+    /** Longest string that may be defined into a dictionary. */
+    static final int MAX_DICTIONARY_STRING = 255;
+
+    /** Charset for strings. */
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* MessagePack codes. */
+    static final int POSITIVE_FIXINT_MAX = 0x7F;
+    static final int FIXMAP = 0x80;
+    static final int FIXARRAY = 0x90;
+    static final int FIXSTR = 0xA0;
+    static final int NIL = 0xC0;
+    static final int FALSE = 0xC2;
+    static final int TRUE = 0xC3;
+    static final int FLOAT32 = 0xCA;
+    static final int FLOAT64 = 0xCB;
+    static final int INT8 = 0xD0;
+    static final int INT16 = 0xD1;
+    static final int INT32 = 0xD2;
+    static final int INT64 = 0xD3;
+    static final int STR8 = 0xD9;
+    static final int STR16 = 0xDA;
+    static final int STR32 = 0xDB;
+    static final int ARRAY16 = 0xDC;
+    static final int ARRAY32 = 0xDD;
+    static final int MAP16 = 0xDE;
+    static final int MAP32 = 0xDF;
+    static final int NEGATIVE_FIXINT = 0xE0;
+
+    /** Largest length expressible in a fixmap, fixarray or fixstr code. */
+    static final int FIXMAP_MAX = 0x0F;
+    static final int FIXARRAY_MAX = 0x0F;
+    static final int FIXSTR_MAX = 0x1F;
+
+    /** Code for a reference to a dictionary string (MessagePack's unused
+        code). */
+    static final int DICT_REF = 0xC1;
+
+    /** Code for a string that is also defined into the dictionary
+        (MessagePack's bin8 code). */
+    static final int DICT_DEF = 0xC4;
+}
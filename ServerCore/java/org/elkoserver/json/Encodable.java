@@ -14,7 +14,9 @@ public interface Encodable {
      *    should be done.
      *
      * @return a {@link JSONLiteral} representing the encoded state of this
-     *    object.
+     *    object.  This should be a new literal, made for the occasion: when
+     *    an object is encoded as part of some larger literal, the literal
+     *    returned is released as soon as it has been copied in.
      */
     JSONLiteral encode(EncodeControl control);
 }
@@ -17,13 +17,13 @@ public class JSONArray extends ArrayList<Object> {
     }
 
     /**
-     * Encode this JSONArray into an externally provided string buffer.
+     * Encode this JSONArray into an externally provided buffer.
      *
-     * @param buf  The buffer into which to build the literal string.
+     * @param buf  The buffer into which to build the literal.
      * @param control  Encode control determining what flavor of encoding
      *    is being done.
      */
-    /* package */ void encodeLiteral(StringBuffer buf, EncodeControl control) {
+    /* package */ void encodeLiteral(LiteralBuffer buf, EncodeControl control) {
         JSONLiteralArray literal = new JSONLiteralArray(buf, control);
         for (Object element : this) {
             literal.addElement(element);
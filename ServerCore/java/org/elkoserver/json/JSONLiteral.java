@@ -1,5 +1,6 @@
 package org.elkoserver.json;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 
 /**
@@ -12,11 +13,19 @@ import java.util.Collection;
  * calling the {@link #finish} method.  After the literal is completed, it may
  * be used as another literal's parameter value, or its string form can be
  * extracted by calling {@link #sendableString}.
+ *
+ * The literal is built directly in UTF-8, so its transmissible form can also
+ * be had, without any conversion, by calling {@link #sendableBytes}.  Its
+ * storage is drawn from a per-thread pool, and may be returned there by
+ * calling {@link #release} once the literal is no longer needed; this is
+ * optional, but it saves the next literal the trouble of allocating.  A
+ * finished literal that is never released doesn't keep a large pooled array
+ * busy, since finishing it trims its storage down to what it actually holds.
  */
 public class JSONLiteral {
 
     /** The literal under construction */
-    private StringBuffer myStringBuffer;
+    private LiteralBuffer myBuffer;
 
     /** Start of this literal's portion of buffer. */
     private int myStartPos;
@@ -30,6 +39,21 @@ public class JSONLiteral {
     /** Encode control indicating how this literal is being encoded */
     private EncodeControl myControl;
 
+    /** Cached sendable form of this literal, once it is complete. */
+    private String mySendableString;
+
+    /** Transport-level encodings shared among the connections this literal
+        is being broadcast over, or null if it is not being broadcast. */
+    private Object mySharedFrame;
+
+    /** Reference string of the message target, if this literal is a message
+        begun with a target and verb, else null. */
+    private String myTarget;
+
+    /** Message verb, if this literal is a message begun with a target and
+        verb, else null. */
+    private String myVerb;
+
     /** Flag controlling strict adherence to the JSON standard in encoding. */
     static private boolean theStrictnessFlag = true;
 
@@ -42,17 +66,15 @@ public class JSONLiteral {
      * Begin a new literal that will be filled in incrementally, with an
      * externally provided buffer.
      *
-     * @param stringBuffer  The buffer into which to build the literal string.
+     * @param buffer  The buffer into which to build the literal.
      * @param control  Encode control determining what flavor of encoding
      *    is being done.
      */
-    /* package */ JSONLiteral(StringBuffer stringBuffer,
-                              EncodeControl control)
-    {
-        myStringBuffer = stringBuffer;
-        myStartPos = stringBuffer.length();
+    /* package */ JSONLiteral(LiteralBuffer buffer, EncodeControl control) {
+        myBuffer = buffer;
+        myStartPos = buffer.length();
         myEndPos = myStartPos;
-        myStringBuffer.append('{');
+        myBuffer.append('{');
         myState = INITIAL;
         myControl = control;
     }
@@ -64,7 +86,7 @@ public class JSONLiteral {
      *    is being done.
      */
     public JSONLiteral(EncodeControl control) {
-        this(new StringBuffer(1000), control);
+        this(new LiteralBuffer(), control);
     }
 
     /**
@@ -84,6 +106,8 @@ public class JSONLiteral {
         this();
         addParameter("to", target);
         addParameter("op", verb);
+        myTarget = target.ref();
+        myVerb = verb;
     }
 
     /**
@@ -97,6 +121,8 @@ public class JSONLiteral {
         this();
         addParameter("to", target);
         addParameter("op", verb);
+        myTarget = target;
+        myVerb = verb;
     }
 
     /**
@@ -123,10 +149,10 @@ public class JSONLiteral {
      *    complete.
      */
     public void addParameter(String param, Object value) {
-        int start = myStringBuffer.length();
+        int start = myBuffer.length();
         beginParameter(param);
-        if (appendValueString(myStringBuffer, value, myControl)) {
-            myStringBuffer.setLength(start);
+        if (appendValueString(myBuffer, value, myControl)) {
+            myBuffer.setLength(start);
         }
     }
 
@@ -153,7 +179,7 @@ public class JSONLiteral {
     public void addParameter(String param, Object value[]) {
         beginParameter(param);
         JSONLiteralArray arr =
-            new JSONLiteralArray(myStringBuffer, myControl);
+            new JSONLiteralArray(myBuffer, myControl);
         for (Object element : value) {
             arr.addElement(element);
         }
@@ -169,7 +195,7 @@ public class JSONLiteral {
     public void addParameter(String param, Collection value) {
         beginParameter(param);
         JSONLiteralArray arr =
-            new JSONLiteralArray(myStringBuffer, myControl);
+            new JSONLiteralArray(myBuffer, myControl);
         for (Object element : value) {
             arr.addElement(element);
         }
@@ -188,7 +214,7 @@ public class JSONLiteral {
     public void addParameterRef(String param, Object value[]) {
         beginParameter("ref$" + param);
         JSONLiteralArray arr =
-            new JSONLiteralArray(myStringBuffer, myControl);
+            new JSONLiteralArray(myBuffer, myControl);
         for (Object element : value) {
             arr.addElement(((Referenceable) element).ref());
         }
@@ -232,7 +258,7 @@ public class JSONLiteral {
     public void addParameter(String param, int value[]) {
         beginParameter(param);
         JSONLiteralArray arr =
-            new JSONLiteralArray(myStringBuffer, myControl);
+            new JSONLiteralArray(myBuffer, myControl);
         for (int element : value) {
             arr.addElement(element);
         }
@@ -262,7 +288,7 @@ public class JSONLiteral {
     public void addParameter(String param, long value[]) {
         beginParameter(param);
         JSONLiteralArray arr =
-            new JSONLiteralArray(myStringBuffer, myControl);
+            new JSONLiteralArray(myBuffer, myControl);
         for (long element : value) {
             arr.addElement(element);
         }
@@ -292,7 +318,7 @@ public class JSONLiteral {
     public void addParameter(String param, double value[]) {
         beginParameter(param);
         JSONLiteralArray arr =
-            new JSONLiteralArray(myStringBuffer, myControl);
+            new JSONLiteralArray(myBuffer, myControl);
         for (double element : value) {
             arr.addElement(element);
         }
@@ -322,7 +348,7 @@ public class JSONLiteral {
     public void addParameter(String param, boolean value[]) {
         beginParameter(param);
         JSONLiteralArray arr =
-            new JSONLiteralArray(myStringBuffer, myControl);
+            new JSONLiteralArray(myBuffer, myControl);
         for (boolean element : value) {
             arr.addElement(element);
         }
@@ -435,7 +461,8 @@ public class JSONLiteral {
      * @param value  The (double) parameter value.
      */
     public void addParameter(String param, double value) {
-        addParameter(param, (Object) new Double(value));
+        beginParameter(param);
+        myBuffer.append(Double.toString(value));
     }
 
     /**
@@ -445,7 +472,8 @@ public class JSONLiteral {
      * @param value  The (boolean) parameter value.
      */
     public void addParameter(String param, boolean value) {
-        addParameter(param, (Object) new Boolean(value));
+        beginParameter(param);
+        myBuffer.append(value ? "true" : "false");
     }
 
     /**
@@ -455,7 +483,8 @@ public class JSONLiteral {
      * @param value  The (int) parameter value.
      */
     public void addParameter(String param, int value) {
-        addParameter(param, (Object) new Integer(value));
+        beginParameter(param);
+        myBuffer.append((long) value);
     }
 
     /**
@@ -465,7 +494,8 @@ public class JSONLiteral {
      * @param value  The (long) parameter value.
      */
     public void addParameter(String param, long value) {
-        addParameter(param, (Object) new Long(value));
+        beginParameter(param);
+        myBuffer.append(value);
     }
 
     /**
@@ -564,15 +594,17 @@ public class JSONLiteral {
             if (myState == INITIAL) {
                 myState = STARTED;
             } else {
-                myStringBuffer.append(", ");
+                myBuffer.append(',');
+                myBuffer.append(' ');
             }
             if (theStrictnessFlag) {
-                myStringBuffer.append('"');
-                myStringBuffer.append(param);
-                myStringBuffer.append("\":");
+                myBuffer.append('"');
+                myBuffer.append(param);
+                myBuffer.append('"');
+                myBuffer.append(':');
             } else {
-                myStringBuffer.append(param);
-                myStringBuffer.append(':');
+                myBuffer.append(param);
+                myBuffer.append(':');
             }
         } else {
             throw new Error("attempt to add parameter to completed literal");
@@ -595,23 +627,46 @@ public class JSONLiteral {
      */
     public void finish() {
         if (myState != COMPLETE) {
-            myStringBuffer.append('}');
+            myBuffer.append('}');
             myState = COMPLETE;
-            myEndPos = myStringBuffer.length();
+            myEndPos = myBuffer.length();
+            if (myStartPos == 0) {
+                myBuffer.trim();
+            }
         } else {
             throw new Error("attempt to finish already completed literal");
         }
     }
 
     /**
-     * Obtain the number of characters in the literal.
+     * Obtain the length of the literal.
      *
-     * @return the number of characters currently in this literal.
+     * @return the number of bytes (in UTF-8) currently in this literal.
      */
     public int length() {
         return myEndPos - myStartPos;
     }
 
+    /**
+     * Obtain the reference string of the target this message is addressed to.
+     *
+     * @return the target of this message, or null if this literal was not
+     *    begun as a message with a target and verb.
+     */
+    public String target() {
+        return myTarget;
+    }
+
+    /**
+     * Obtain the verb of this message.
+     *
+     * @return the verb of this message, or null if this literal was not begun
+     *    as a message with a target and verb.
+     */
+    public String verb() {
+        return myVerb;
+    }
+
     /**
      * Obtain a string representation of this literal suitable for output to a
      * connection.
@@ -624,7 +679,93 @@ public class JSONLiteral {
         if (myState != COMPLETE) {
             finish();
         }
-        return myStringBuffer.substring(myStartPos, myEndPos);
+        String result = mySendableString;
+        if (result == null) {
+            result = myBuffer.toString(myStartPos, myEndPos);
+            mySendableString = result;
+        }
+        return result;
+    }
+
+    /**
+     * Obtain the UTF-8 encoded bytes of this literal, suitable for output to
+     * a connection.  The bytes are not copied; the view returned shares this
+     * literal's storage, and so is only good until the literal is released.
+     *
+     * @return a read-only view of the sendable bytes of this literal.
+     *
+     * @throws Error if the literal has been released.
+     */
+    public ByteBuffer sendableBytes() {
+        if (myState != COMPLETE) {
+            finish();
+        }
+        return myBuffer.view(myStartPos, myEndPos);
+    }
+
+    /**
+     * Obtain a JSON object equivalent to this literal, for delivering it
+     * internally as if it had been received.  The object is parsed straight
+     * from this literal's bytes, without going through a String.  Objects
+     * nested inside it are left unparsed until they are looked at, so that
+     * parts which are only passed along again are never taken apart.  The
+     * object does not share storage with this literal, which may be released
+     * afterwards.
+     *
+     * @return a {@link JSONObject} with the contents of this literal.
+     *
+     * @throws SyntaxError if this literal contains something the parser does
+     *    not accept (such as a non-finite number).
+     */
+    public JSONObject toJSONObject() throws SyntaxError {
+        if (myState != COMPLETE) {
+            finish();
+        }
+        UTF8Parser parser = myBuffer.parser(myStartPos, myEndPos);
+        parser.setDeferNestedObjects(true);
+        JSONObject result = parser.parseObjectLiteral();
+        if (result == null) {
+            throw new SyntaxError("empty JSON literal");
+        }
+        return result;
+    }
+
+    /**
+     * Give this literal's storage back to be reused by another literal.  A
+     * released literal must not be used again (except that {@link
+     * #sendableString} continues to work if it had already been called).
+     * Releasing a literal that shares its storage with an enclosing literal
+     * (e.g., one that was encoded as a parameter value of another) does
+     * nothing.
+     */
+    public void release() {
+        if (myStartPos == 0) {
+            myBuffer.release();
+        }
+    }
+
+    /**
+     * Obtain the shared, pre-encoded transport form of this literal, if it is
+     * currently being broadcast to multiple connections.
+     *
+     * @return the object holding this literal's shared encodings, or null if
+     *    this literal is not being broadcast.
+     */
+    public Object sharedFrame() {
+        return mySharedFrame;
+    }
+
+    /**
+     * Attach (or detach) a shared, pre-encoded transport form to this
+     * literal.  This is intended to be used by the communications layer
+     * while the literal is being broadcast, so that its encoding can be
+     * computed once rather than once per recipient.
+     *
+     * @param frame  The object holding this literal's shared encodings, or
+     *    null to detach it.
+     */
+    public void setSharedFrame(Object frame) {
+        mySharedFrame = frame;
     }
 
     /**
@@ -634,75 +775,50 @@ public class JSONLiteral {
      * @return a printable representation of this literal.
      */
     public String toString() {
-        int end = myEndPos;
-        if (myState != COMPLETE) {
-            end = myStringBuffer.length();
+        if (myState == COMPLETE) {
+            return sendableString();
         }
-        return myStringBuffer.substring(myStartPos, end);
+        return myBuffer.toString(myStartPos, myBuffer.length());
     }
 
     /**
-     * Convert a value of any type into the appropriate characters appended
-     * onto the string under construction.
+     * Convert a value of any type into the appropriate bytes appended onto
+     * the literal under construction.
      *
      * @param buf  Buffer into which to encode the given value.
-     * @param value  The value whose string encoding is sought
+     * @param value  The value whose encoding is sought
      * @param control  Encode control determining what flavor of encoding
      *    is being done.
      *
      * @return true if the given value could not be encoded and so should be
      *    ignored, false if everything worked fine.
      */
-    static boolean appendValueString(StringBuffer buf, Object value,
+    static boolean appendValueString(LiteralBuffer buf, Object value,
                                      EncodeControl control) {
         if (value == null) {
             /* Null is a special value all its own */
             buf.append("null");
         } else if (value instanceof String) {
-            String str = (String) value;
-            buf.append('"');
-            int start = 0;
-            for (int i = 0; i < str.length(); ++i) {
-                char c = str.charAt(i);
-                char escape = '*';
-                switch (c) {
-                    case '"':  escape = '"';  break;
-                    case '\\': escape = '\\'; break;
-                    case '\b': escape = 'b';  break;
-                    case '\f': escape = 'f';  break;
-                    case '\n': escape = 'n';  break;
-                    case '\r': escape = 'r';  break;
-                    case '\t': escape = 't';  break;
-                    //case '/':
-                    //    if (theStrictnessFlag) {
-                    //        escape = '/';
-                    //    }
-                    //    break;
-                }
-                if (escape != '*') {
-                    buf.append(str.substring(start, i));
-                    start = i + 1;
-                    buf.append('\\');
-                    buf.append(escape);
-                }
-            }
-            buf.append(str.substring(start));
-            buf.append('"');
+            buf.appendQuoted((String) value);
+        } else if (value instanceof Integer || value instanceof Long ||
+                   value instanceof Short || value instanceof Byte) {
+            buf.append(((Number) value).longValue());
         } else if (value instanceof Number) {
             buf.append(value.toString());
         } else if (value instanceof Encodable) {
             /* If the value knows how, ask it to encode itself */
             JSONLiteral encoded = ((Encodable) value).encode(control);
             if (encoded != null) {
-                String result = encoded.sendableString();
-                buf.append(result);
+                encoded.appendTo(buf, true);
+                /* The encoding was made just for this, so it's done with. */
+                encoded.release();
             } else {
                 return true;
             }
         } else if (value instanceof JSONLiteral) {
-            buf.append(((JSONLiteral) value).myStringBuffer);
+            ((JSONLiteral) value).appendTo(buf, false);
         } else if (value instanceof JSONLiteralArray) {
-            buf.append(((JSONLiteralArray) value).stringBuffer());
+            ((JSONLiteralArray) value).appendTo(buf);
         } else if (value instanceof JSONObject) {
             ((JSONObject) value).encodeLiteral(buf, control);
         } else if (value instanceof JSONArray) {
@@ -714,6 +830,24 @@ public class JSONLiteral {
         return false;
     }
 
+    /**
+     * Append this literal onto another literal under construction.
+     *
+     * @param buf  Buffer into which to copy this literal.
+     * @param finish  If true, finish this literal first if it isn't already;
+     *    if false, copy it in whatever its current state is.
+     */
+    private void appendTo(LiteralBuffer buf, boolean finish) {
+        if (finish && myState != COMPLETE) {
+            finish();
+        }
+        int end = myEndPos;
+        if (myState != COMPLETE) {
+            end = myBuffer.length();
+        }
+        buf.append(myBuffer, myStartPos, end);
+    }
+
     /**
      * Set the global strictness flag.  This controls whether interpretation of
      * the JSON standard will be strict or not (by default, it is strict).
@@ -12,7 +12,7 @@ package org.elkoserver.json;
  */
 public class JSONLiteralArray {
     /** The string under construction. */
-    private StringBuffer myStringBuffer;
+    private LiteralBuffer myBuffer;
 
     /** Start of this literal's portion of buffer. */
     private int myStartPos;
@@ -38,17 +38,17 @@ public class JSONLiteralArray {
      * Begin a new array literal that will be filled in incrementally, with an
      * externally provided buffer.
      *
-     * @param stringBuffer  The buffer into which to build the literal string.
+     * @param buffer  The buffer into which to build the literal.
      * @param control  Encode control determining what flavor of encoding
      *    is being done.
      */
-    /* package */ JSONLiteralArray(StringBuffer stringBuffer,
+    /* package */ JSONLiteralArray(LiteralBuffer buffer,
                                    EncodeControl control)
     {
-        myStringBuffer = stringBuffer;
-        myStartPos = stringBuffer.length();
+        myBuffer = buffer;
+        myStartPos = buffer.length();
         myEndPos = myStartPos;
-        myStringBuffer.append("[");
+        myBuffer.append('[');
         myState = INITIAL;
         mySize = 0;
         myControl = control;
@@ -61,7 +61,7 @@ public class JSONLiteralArray {
      *    is being done.
      */
     public JSONLiteralArray(EncodeControl control) {
-        this(new StringBuffer(500), control);
+        this(new LiteralBuffer(), control);
     }
 
     /**
@@ -86,18 +86,18 @@ public class JSONLiteralArray {
             beginElement();
             Object[] valueArray = (Object[]) value;
             JSONLiteralArray arr =
-                new JSONLiteralArray(myStringBuffer, myControl);
+                new JSONLiteralArray(myBuffer, myControl);
             for (int i = 0; i < valueArray.length; ++i) {
                 arr.addElement(valueArray[i]);
             }
             arr.finish();
         } else if (value != null) {
-            int start = myStringBuffer.length();
+            int start = myBuffer.length();
             boolean starting = (myState == INITIAL);
             beginElement();
-            if (JSONLiteral.appendValueString(myStringBuffer, value,
+            if (JSONLiteral.appendValueString(myBuffer, value,
                                               myControl)) {
-                myStringBuffer.setLength(start);
+                myBuffer.setLength(start);
                 if (starting) {
                     myState = INITIAL;
                 }
@@ -122,7 +122,9 @@ public class JSONLiteralArray {
      * @param value  The (double) element value.
      */
     public void addElement(double value) {
-        addElement((Object) new Double(value));
+        beginElement();
+        myBuffer.append(Double.toString(value));
+        mySize += 1;
     }
 
     /**
@@ -131,7 +133,9 @@ public class JSONLiteralArray {
      * @param value  The (boolean) element value.
      */ 
     public void addElement(boolean value) {
-        addElement((Object) new Boolean(value));
+        beginElement();
+        myBuffer.append(value ? "true" : "false");
+        mySize += 1;
     }
     
     /**
@@ -140,7 +144,9 @@ public class JSONLiteralArray {
      * @param value  The (int) element value.
      */
     public void addElement(int value) {
-        addElement((Object) new Integer(value));
+        beginElement();
+        myBuffer.append((long) value);
+        mySize += 1;
     }
     
     /**
@@ -149,7 +155,9 @@ public class JSONLiteralArray {
      * @param value  The (long) element value.
      */
     public void addElement(long value) {
-        addElement((Object) new Long(value));
+        beginElement();
+        myBuffer.append(value);
+        mySize += 1;
     }
 
     /**
@@ -188,7 +196,8 @@ public class JSONLiteralArray {
             if (myState == INITIAL) {
                 myState = STARTED;
             } else {
-                myStringBuffer.append(", ");
+                myBuffer.append(',');
+                myBuffer.append(' ');
             }
         } else {
             throw new Error("attempt to add element to completed array");
@@ -211,9 +220,12 @@ public class JSONLiteralArray {
      */
     public void finish() {
         if (myState != COMPLETE) {
-            myStringBuffer.append(']');
+            myBuffer.append(']');
             myState = COMPLETE;
-            myEndPos = myStringBuffer.length();
+            myEndPos = myBuffer.length();
+            if (myStartPos == 0) {
+                myBuffer.trim();
+            }
         } else {
             throw new Error("attempt to finish already completed array");
         }
@@ -231,7 +243,7 @@ public class JSONLiteralArray {
         if (myState != COMPLETE) {
             finish();
         }
-        return myStringBuffer.substring(myStartPos, myEndPos);
+        return myBuffer.toString(myStartPos, myEndPos);
     }
 
     /**
@@ -244,10 +256,18 @@ public class JSONLiteralArray {
     }
 
     /**
-     * Get the internal string buffer, for collusion with JSONLiteral.
+     * Append this array literal, in whatever its current state is, onto
+     * another literal under construction.  This is for collusion with
+     * JSONLiteral.
+     *
+     * @param buf  Buffer into which to copy this literal.
      */
-    StringBuffer stringBuffer() {
-        return myStringBuffer;
+    void appendTo(LiteralBuffer buf) {
+        int end = myEndPos;
+        if (myState != COMPLETE) {
+            end = myBuffer.length();
+        }
+        buf.append(myBuffer, myStartPos, end);
     }
 
     /**
@@ -259,8 +279,8 @@ public class JSONLiteralArray {
     public String toString() {
         int end = myEndPos;
         if (myState != COMPLETE) {
-            end = myStringBuffer.length();
+            end = myBuffer.length();
         }
-        return myStringBuffer.substring(myStartPos, end);
+        return myBuffer.toString(myStartPos, end);
     }
 }
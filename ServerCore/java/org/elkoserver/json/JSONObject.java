@@ -1,7 +1,13 @@
 package org.elkoserver.json;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
@@ -9,17 +15,81 @@ import java.util.Set;
  *
  * This class represents a JSON object that has been received or is being
  * constructed.  It provides random access to the properties of the object.
+ *
+ * Nearly all JSON objects are messages or object descriptors with only a
+ * handful of properties, so these are kept in a pair of small parallel arrays
+ * of names and values that are searched linearly, which is both faster and
+ * far less garbage than a hash table of that size.  Long and double values
+ * added via the primitive forms of {@link #addProperty(String,long)
+ * addProperty()} are stored unboxed, and are only boxed if they are asked for
+ * as an {@link Object}.  If an object grows beyond {@link
+ * #MAX_COMPACT_PROPERTIES} properties, its properties are transparently moved
+ * into a {@link HashMap}.
+ *
+ * A JSON object may also start out unparsed, holding just its UTF-8 encoded
+ * text, if it was nested inside a message received by a {@link UTF8Parser}
+ * that was told to {@link UTF8Parser#setDeferNestedObjects defer} such
+ * objects.  It is parsed the first time anything about it is asked for or
+ * changed.  If it is encoded as part of another literal without that having
+ * happened, its original text is copied out as is.
  */
 public class JSONObject {
-    /** Table where the object's properties are kept.  Maps from property names
-        to property values. */
-    private Map<String, Object> myProperties;
+    /** Names of the object's properties, in the order they were added, or
+        null if none have been added yet or if myMap is in use. */
+    private String[] myNames;
+
+    /** Values of the object's properties, index-parallel to myNames.  A value
+        of LONG_VALUE or DOUBLE_VALUE means the actual value is in the
+        corresponding element of myPrimitives. */
+    private Object[] myValues;
+
+    /** Primitive values, index-parallel to myNames; allocated only when the
+        first primitive valued property is added. */
+    private long[] myPrimitives;
+
+    /** Number of properties in the myNames and myValues arrays. */
+    private int mySize;
+
+    /** Table where the object's properties are kept once there are too many
+        of them for the arrays, or null if the arrays are in use.  Maps from
+        property names to property values. */
+    private Map<String, Object> myMap;
+
+    /** Count of structural changes, to detect modification while iterating
+        over the properties. */
+    private int myModCount;
+
+    /** UTF-8 encoded text of this object, if it has not been parsed yet, or
+        null if it has been (or never needed to be). */
+    private byte[] myUnparsed;
+
+    /** Marker value for a property whose long value is in myPrimitives. */
+    private static final Object LONG_VALUE = new Object();
+
+    /** Marker value for a property whose double value (as raw bits) is in
+        myPrimitives. */
+    private static final Object DOUBLE_VALUE = new Object();
+
+    /** Number of property slots initially allocated. */
+    private static final int INITIAL_CAPACITY = 8;
+
+    /** Most properties an object can have before switching to a map. */
+    public static final int MAX_COMPACT_PROPERTIES = 16;
 
     /**
      * Construct a new, empty JSON object.
      */
     public JSONObject() {
-        myProperties = new HashMap<String, Object>();
+    }
+
+    /**
+     * Construct a JSON object that will be parsed from its text when needed.
+     *
+     * @param text  The UTF-8 encoded text of the object, which must be
+     *    known to be syntactically valid.  The array is retained, not copied.
+     */
+    /* package */ JSONObject(byte[] text) {
+        myUnparsed = text;
     }
 
     /**
@@ -31,7 +101,13 @@ public class JSONObject {
      *   JSONArray}, or {@link JSONObject}.
      */
     public JSONObject(Map<String, Object> map) {
-        myProperties = new HashMap<String, Object>(map);
+        if (map.size() > MAX_COMPACT_PROPERTIES) {
+            myMap = new HashMap<String, Object>(map);
+        } else {
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
     }
 
     /**
@@ -40,7 +116,18 @@ public class JSONObject {
      * @param original  The original JSON object to be copied.
      */
     public JSONObject(JSONObject original) {
-        myProperties = new HashMap<String, Object>(original.myProperties);
+        if (original.myUnparsed != null) {
+            myUnparsed = original.myUnparsed;
+        } else if (original.myMap != null) {
+            myMap = new HashMap<String, Object>(original.myMap);
+        } else if (original.mySize > 0) {
+            myNames = original.myNames.clone();
+            myValues = original.myValues.clone();
+            if (original.myPrimitives != null) {
+                myPrimitives = original.myPrimitives.clone();
+            }
+            mySize = original.mySize;
+        }
     }
 
     /**
@@ -80,7 +167,7 @@ public class JSONObject {
      * {@link JSONArray}, {@link JSONObject}.
      */
     public void addProperty(String name, Object value) {
-        myProperties.put(name, value);
+        put(name, value);
     }
 
     /**
@@ -90,7 +177,7 @@ public class JSONObject {
      * @param value  Its (boolean) value.
      */
     public void addProperty(String name, boolean value) {
-        myProperties.put(name, new Boolean(value));
+        put(name, Boolean.valueOf(value));
     }
 
     /**
@@ -100,7 +187,11 @@ public class JSONObject {
      * @param value  Its (double) value.
      */
     public void addProperty(String name, double value) {
-        myProperties.put(name, new Double(value));
+        if (myMap != null) {
+            myMap.put(name, Double.valueOf(value));
+        } else {
+            putPrimitive(name, DOUBLE_VALUE, Double.doubleToRawLongBits(value));
+        }
     }
 
     /**
@@ -110,7 +201,7 @@ public class JSONObject {
      * @param value  Its (integer) value.
      */
     public void addProperty(String name, int value) {
-        myProperties.put(name, new Long(value));
+        addProperty(name, (long) value);
     }
 
     /**
@@ -120,7 +211,11 @@ public class JSONObject {
      * @param value  Its (integer) value.
      */
     public void addProperty(String name, long value) {
-        myProperties.put(name, new Long(value));
+        if (myMap != null) {
+            myMap.put(name, Long.valueOf(value));
+        } else {
+            putPrimitive(name, LONG_VALUE, value);
+        }
     }
 
     /**
@@ -131,12 +226,13 @@ public class JSONObject {
      * @param value  Its (Encodable) value.
      */
     public void addProperty(String name, Encodable value) {
+        JSONLiteral literal = value.encode(EncodeControl.forRepository);
         try {
-            myProperties.put(
-                name,
-                parse(value.encode(EncodeControl.forRepository).sendableString()));
+            put(name, literal.toJSONObject());
         } catch (SyntaxError e) {
             /* This can't happen */
+        } finally {
+            literal.release();
         }
     }
 
@@ -149,9 +245,22 @@ public class JSONObject {
      * @param orig  The original object to copy from.
      */
     public void copyProperty(String name, JSONObject orig) {
-        Object value = orig.getProperty(name);
-        if (value != null) {
-            myProperties.put(name, value);
+        orig.ensureParsed();
+        if (orig.myMap == null) {
+            int index = orig.indexOf(name);
+            if (index >= 0 && orig.myValues[index] != null) {
+                Object value = orig.myValues[index];
+                if (value == LONG_VALUE || value == DOUBLE_VALUE) {
+                    putPrimitive(name, value, orig.myPrimitives[index]);
+                } else {
+                    put(name, value);
+                }
+            }
+        } else {
+            Object value = orig.myMap.get(name);
+            if (value != null) {
+                put(name, value);
+            }
         }
     }
 
@@ -167,7 +276,7 @@ public class JSONObject {
      */
     public JSONArray getArray(String name) throws JSONDecodingException {
         try {
-            JSONArray obj = (JSONArray) myProperties.get(name);
+            JSONArray obj = (JSONArray) getProperty(name);
             if (obj == null) {
                 throw new JSONDecodingException("property '" + name +
                                                 "' not found");
@@ -192,7 +301,7 @@ public class JSONObject {
      */
     public boolean getBoolean(String name) throws JSONDecodingException {
         try {
-            Boolean obj = (Boolean) myProperties.get(name);
+            Boolean obj = (Boolean) getProperty(name);
             if (obj == null) {
                 throw new JSONDecodingException("property '" + name +
                                                 "' not found");
@@ -216,18 +325,7 @@ public class JSONObject {
      *    if the value is not a number.
      */
     public double getDouble(String name) throws JSONDecodingException {
-        try {
-            Number obj = (Number) myProperties.get(name);
-            if (obj == null) {
-                throw new JSONDecodingException("property '" + name +
-                                                "' not found");
-            } else {
-                return obj.doubleValue();
-            }
-        } catch (ClassCastException e) {
-            throw new JSONDecodingException("property '" + name +
-                "' is not a floating-point numeric value as was expected");
-        }
+        return doubleProperty(name, true, 0);
     }
 
     /**
@@ -241,18 +339,7 @@ public class JSONObject {
      *    if the value is not a number.
      */
     public int getInt(String name) throws JSONDecodingException{
-        try {
-            Number obj = (Number) myProperties.get(name);
-            if (obj == null) {
-                throw new JSONDecodingException("property '" + name +
-                                                "' not found");
-            } else {
-                return obj.intValue();
-            }
-        } catch (ClassCastException e) {
-            throw new JSONDecodingException("property '" + name +
-                "' is not an integer numeric value as was expected");
-        }
+        return intProperty(name, true, 0);
     }
 
     /**
@@ -266,18 +353,7 @@ public class JSONObject {
      *    if the value is not a number.
      */
     public long getLong(String name) throws JSONDecodingException {
-        try {
-            Number obj = (Number) myProperties.get(name);
-            if (obj == null) {
-                throw new JSONDecodingException("property '" + name +
-                                                "' not found");
-            } else {
-                return obj.longValue();
-            }
-        } catch (ClassCastException e) {
-            throw new JSONDecodingException("property '" + name +
-                "' is not an integer numeric value as was expected");
-        }
+        return longProperty(name, true, 0);
     }
 
     /**
@@ -289,7 +365,13 @@ public class JSONObject {
      *    'name', or null if the object has no such property.
      */
     public Object getProperty(String name) {
-        return myProperties.get(name);
+        ensureParsed();
+        if (myMap != null) {
+            return myMap.get(name);
+        } else {
+            int index = indexOf(name);
+            return index < 0 ? null : valueAt(index);
+        }
     }
 
     /**
@@ -304,7 +386,7 @@ public class JSONObject {
      */
     public JSONObject getObject(String name) throws JSONDecodingException {
         try {
-            JSONObject obj = (JSONObject) myProperties.get(name);
+            JSONObject obj = (JSONObject) getProperty(name);
             if (obj == null) {
                 throw new JSONDecodingException("property '" + name +
                                                 "' not found");
@@ -329,7 +411,7 @@ public class JSONObject {
      */
     public String getString(String name) throws JSONDecodingException {
         try {
-            String obj = (String) myProperties.get(name);
+            String obj = (String) getProperty(name);
             if (obj == null) {
                 throw new JSONDecodingException("property '" + name +
                                                 "' not found");
@@ -349,6 +431,7 @@ public class JSONObject {
      *    is being done.
      */
     public JSONLiteral literal(EncodeControl control) {
+        ensureParsed();
         JSONLiteral literal = new JSONLiteral(control);
 
         /* What follows is a little bit of hackery to ensure that the canonical
@@ -357,14 +440,25 @@ public class JSONObject {
            properties out in.  This is strictly for the sake of legibility and
            has no deeper semantics. */
 
-        literal.addParameterOpt("to", myProperties.get("to"));
-        literal.addParameterOpt("op", myProperties.get("op"));
-        literal.addParameterOpt("type", myProperties.get("type"));
+        literal.addParameterOpt("to", getProperty("to"));
+        literal.addParameterOpt("op", getProperty("op"));
+        literal.addParameterOpt("type", getProperty("type"));
 
-        for (Map.Entry entry : myProperties.entrySet()) {
-            Object key = entry.getKey();
-            if (!key.equals("to") && !key.equals("op") && !key.equals("type")){
-                literal.addParameter((String) key, entry.getValue());
+        if (myMap != null) {
+            for (Map.Entry<String, Object> entry : myMap.entrySet()) {
+                Object key = entry.getKey();
+                if (!key.equals("to") && !key.equals("op") &&
+                        !key.equals("type")) {
+                    literal.addParameter((String) key, entry.getValue());
+                }
+            }
+        } else {
+            for (int i = 0; i < mySize; ++i) {
+                String key = myNames[i];
+                if (!key.equals("to") && !key.equals("op") &&
+                        !key.equals("type")) {
+                    addParameterAt(literal, i);
+                }
             }
         }
         literal.finish();
@@ -372,17 +466,28 @@ public class JSONObject {
     }
 
     /**
-     * Encode this JSONObject into an externally provided string buffer.
+     * Encode this JSONObject into an externally provided buffer.
      *
-     * @param buf  The buffer into which to build the literal string.
+     * @param buf  The buffer into which to build the literal.
      * @param control  Encode control determining what flavor of encoding
      *    is being done.
      */
-    /* package */ void encodeLiteral(StringBuffer buf, EncodeControl control) {
+    /* package */ void encodeLiteral(LiteralBuffer buf, EncodeControl control) {
+        if (myUnparsed != null) {
+            buf.append(myUnparsed, 0, myUnparsed.length);
+            return;
+        }
         JSONLiteral literal = new JSONLiteral(buf, control);
 
-        for (Map.Entry entry : myProperties.entrySet()) {
-            literal.addParameter((String) entry.getKey(), entry.getValue());
+        if (myMap != null) {
+            for (Map.Entry<String, Object> entry : myMap.entrySet()) {
+                literal.addParameter((String) entry.getKey(),
+                                     entry.getValue());
+            }
+        } else {
+            for (int i = 0; i < mySize; ++i) {
+                addParameterAt(literal, i);
+            }
         }
         literal.finish();
     }
@@ -420,7 +525,7 @@ public class JSONObject {
         throws JSONDecodingException
     {
         try {
-            JSONArray obj = (JSONArray) myProperties.get(name);
+            JSONArray obj = (JSONArray) getProperty(name);
             if (obj == null) {
                 return defaultValue;
             } else {
@@ -449,7 +554,7 @@ public class JSONObject {
         throws JSONDecodingException
     {
         try {
-            Boolean obj = (Boolean) myProperties.get(name);
+            Boolean obj = (Boolean) getProperty(name);
             if (obj == null) {
                 return defaultValue;
             } else {
@@ -477,17 +582,7 @@ public class JSONObject {
     public double optDouble(String name, double defaultValue)
         throws JSONDecodingException
     {
-        try {
-            Number obj = (Number) myProperties.get(name);
-            if (obj == null) {
-                return defaultValue;
-            } else {
-                return obj.doubleValue();
-            }
-        } catch (ClassCastException e) {
-            throw new JSONDecodingException("property '" + name +
-                "' is not a floating-point numeric value as was expected");
-        }
+        return doubleProperty(name, false, defaultValue);
     }
 
     /**
@@ -506,17 +601,7 @@ public class JSONObject {
     public int optInt(String name, int defaultValue)
         throws JSONDecodingException
     {
-        try {
-            Number obj = (Number) myProperties.get(name);
-            if (obj == null) {
-                return defaultValue;
-            } else {
-                return obj.intValue();
-            }
-        } catch (ClassCastException e) {
-            throw new JSONDecodingException("property '" + name +
-                "' is not an integer numeric value as was expected");
-        }
+        return intProperty(name, false, defaultValue);
     }
 
     /**
@@ -535,17 +620,7 @@ public class JSONObject {
     public long optLong(String name, long defaultValue)
         throws JSONDecodingException
     {
-        try {
-            Number obj = (Number) myProperties.get(name);
-            if (obj == null) {
-                return defaultValue;
-            } else {
-                return obj.longValue();
-            }
-        } catch (ClassCastException e) {
-            throw new JSONDecodingException("property '" + name +
-                "' is not an integer numeric value as was expected");
-        }
+        return longProperty(name, false, defaultValue);
     }
 
     /**
@@ -565,7 +640,7 @@ public class JSONObject {
         throws JSONDecodingException
     {
         try {
-            JSONObject obj = (JSONObject) myProperties.get(name);
+            JSONObject obj = (JSONObject) getProperty(name);
             if (obj == null) {
                 return defaultValue;
             } else {
@@ -591,7 +666,7 @@ public class JSONObject {
      */
     public JSONObject optObject(String name) throws JSONDecodingException {
         try {
-            JSONObject obj = (JSONObject) myProperties.get(name);
+            JSONObject obj = (JSONObject) getProperty(name);
             if (obj == null) {
                 return new JSONObject();
             } else {
@@ -620,7 +695,7 @@ public class JSONObject {
         throws JSONDecodingException
     {
         try {
-            String obj = (String) myProperties.get(name);
+            String obj = (String) getProperty(name);
             if (obj == null) {
                 return defaultValue;
             } else {
@@ -655,7 +730,12 @@ public class JSONObject {
      * @return a set of this object's properties.
      */
     public Set<Map.Entry<String, Object>> properties() {
-        return myProperties.entrySet();
+        ensureParsed();
+        if (myMap != null) {
+            return myMap.entrySet();
+        } else {
+            return new PropertySet();
+        }
     }
 
     /**
@@ -667,7 +747,19 @@ public class JSONObject {
      *    no such property to remove.
      */
     public Object remove(String name) {
-        return myProperties.remove(name);
+        ensureParsed();
+        if (myMap != null) {
+            return myMap.remove(name);
+        } else {
+            int index = indexOf(name);
+            if (index < 0) {
+                return null;
+            } else {
+                Object result = valueAt(index);
+                removeAt(index);
+                return result;
+            }
+        }
     }
 
     /**
@@ -677,7 +769,10 @@ public class JSONObject {
      * @return a sendable {@link String} representation of this object
      */
     public String sendableString() {
-        return literal(EncodeControl.forClient).sendableString();
+        JSONLiteral literal = literal(EncodeControl.forClient);
+        String result = literal.sendableString();
+        literal.release();
+        return result;
     }
 
     /**
@@ -686,7 +781,8 @@ public class JSONObject {
      * @return the number properties in this JSON object.
      */
     public int size() {
-        return myProperties.size();
+        ensureParsed();
+        return myMap != null ? myMap.size() : mySize;
     }
 
     /**
@@ -704,7 +800,10 @@ public class JSONObject {
      * @return a printable representation of this object.
      */
     public String toString() {
-        return literal(EncodeControl.forRepository).sendableString();
+        JSONLiteral literal = literal(EncodeControl.forRepository);
+        String result = literal.sendableString();
+        literal.release();
+        return result;
     }
 
     /**
@@ -736,11 +835,418 @@ public class JSONObject {
      *   and is a string, else null.
      */
     private String weakStringProperty(String name) {
-        Object weakProperty = myProperties.get(name);
+        Object weakProperty = getProperty(name);
         if (weakProperty instanceof String) {
             return (String) weakProperty;
         } else {
             return null;
         }
     }
+
+    /**
+     * Obtain the double value of a property, or a default if it has none.
+     *
+     * @param name  The name of the property sought.
+     * @param required  true if it is an error for the property to be absent.
+     * @param defaultValue  The value to return if the property is absent.
+     *
+     * @return  The double value of the property named by 'name'.
+     *
+     * @throws JSONDecodingException if the property is required but absent or
+     *    if the property's value is not a number.
+     */
+    private double doubleProperty(String name, boolean required,
+                                  double defaultValue)
+        throws JSONDecodingException
+    {
+        ensureParsed();
+        int index = indexOf(name);
+        if (index >= 0) {
+            Object value = myValues[index];
+            if (value == DOUBLE_VALUE) {
+                return Double.longBitsToDouble(myPrimitives[index]);
+            } else if (value == LONG_VALUE) {
+                return (double) myPrimitives[index];
+            }
+        }
+        Number obj = numberProperty(name, index, required, "a floating-point");
+        return obj == null ? defaultValue : obj.doubleValue();
+    }
+
+    /**
+     * Obtain the int value of a property, or a default if it has none.
+     *
+     * @param name  The name of the property sought.
+     * @param required  true if it is an error for the property to be absent.
+     * @param defaultValue  The value to return if the property is absent.
+     *
+     * @return  The int value of the property named by 'name'.
+     *
+     * @throws JSONDecodingException if the property is required but absent or
+     *    if the property's value is not a number.
+     */
+    private int intProperty(String name, boolean required, int defaultValue)
+        throws JSONDecodingException
+    {
+        ensureParsed();
+        int index = indexOf(name);
+        if (index >= 0) {
+            Object value = myValues[index];
+            if (value == LONG_VALUE) {
+                return (int) myPrimitives[index];
+            } else if (value == DOUBLE_VALUE) {
+                return (int) Double.longBitsToDouble(myPrimitives[index]);
+            }
+        }
+        Number obj = numberProperty(name, index, required, "an integer");
+        return obj == null ? defaultValue : obj.intValue();
+    }
+
+    /**
+     * Obtain the long value of a property, or a default if it has none.
+     *
+     * @param name  The name of the property sought.
+     * @param required  true if it is an error for the property to be absent.
+     * @param defaultValue  The value to return if the property is absent.
+     *
+     * @return  The long value of the property named by 'name'.
+     *
+     * @throws JSONDecodingException if the property is required but absent or
+     *    if the property's value is not a number.
+     */
+    private long longProperty(String name, boolean required,
+                              long defaultValue)
+        throws JSONDecodingException
+    {
+        ensureParsed();
+        int index = indexOf(name);
+        if (index >= 0) {
+            Object value = myValues[index];
+            if (value == LONG_VALUE) {
+                return myPrimitives[index];
+            } else if (value == DOUBLE_VALUE) {
+                return (long) Double.longBitsToDouble(myPrimitives[index]);
+            }
+        }
+        Number obj = numberProperty(name, index, required, "an integer");
+        return obj == null ? defaultValue : obj.longValue();
+    }
+
+    /**
+     * Obtain the boxed value of a numeric property that is not held in a
+     * primitive slot.
+     *
+     * @param name  The name of the property sought.
+     * @param index  The property's index in the arrays, or -1 if it is not
+     *    there (either because it is absent or because myMap is in use).
+     * @param required  true if it is an error for the property to be absent.
+     * @param kind  Description of the kind of number expected, for the error
+     *    message.
+     *
+     * @return the property's value, or null if it is absent and not required.
+     *
+     * @throws JSONDecodingException if the property is required but absent or
+     *    if the property's value is not a number.
+     */
+    private Number numberProperty(String name, int index, boolean required,
+                                  String kind)
+        throws JSONDecodingException
+    {
+        Object value;
+        if (index >= 0) {
+            value = myValues[index];
+        } else if (myMap != null) {
+            value = myMap.get(name);
+        } else {
+            value = null;
+        }
+        if (value == null) {
+            if (required) {
+                throw new JSONDecodingException("property '" + name +
+                                                "' not found");
+            }
+            return null;
+        } else if (value instanceof Number) {
+            return (Number) value;
+        } else {
+            throw new JSONDecodingException("property '" + name +
+                "' is not " + kind + " numeric value as was expected");
+        }
+    }
+
+    /**
+     * Parse this object's text, if that hasn't been done yet.
+     */
+    private void ensureParsed() {
+        if (myUnparsed != null) {
+            UTF8Parser parser = new UTF8Parser(myUnparsed);
+            parser.setDeferNestedObjects(true);
+            myUnparsed = null;
+            try {
+                JSONObject parsed = parser.parseObjectLiteral();
+                myNames = parsed.myNames;
+                myValues = parsed.myValues;
+                myPrimitives = parsed.myPrimitives;
+                mySize = parsed.mySize;
+                myMap = parsed.myMap;
+            } catch (SyntaxError e) {
+                /* This can't happen, since the text was checked when it was
+                   first scanned. */
+            }
+        }
+    }
+
+    /**
+     * Find a property in the arrays.
+     *
+     * @param name  The name of the property sought.
+     *
+     * @return the index of the property named by 'name', or -1 if there is no
+     *    such property in the arrays (which is always the case if myMap is in
+     *    use).
+     */
+    private int indexOf(String name) {
+        if (mySize > 0) {
+            int hash = name.hashCode();
+            for (int i = 0; i < mySize; ++i) {
+                String key = myNames[i];
+                if (key == name ||
+                        (key.hashCode() == hash && key.equals(name))) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Obtain the value of the property at some index in the arrays, boxing it
+     * if it is held in a primitive slot.
+     *
+     * @param index  The index of the property of interest.
+     *
+     * @return the value of the property at 'index'.
+     */
+    private Object valueAt(int index) {
+        Object value = myValues[index];
+        if (value == LONG_VALUE) {
+            return Long.valueOf(myPrimitives[index]);
+        } else if (value == DOUBLE_VALUE) {
+            return Double.valueOf(Double.longBitsToDouble(myPrimitives[index]));
+        } else {
+            return value;
+        }
+    }
+
+    /**
+     * Add the property at some index in the arrays to a JSON literal, without
+     * boxing it if it is held in a primitive slot.
+     *
+     * @param literal  The literal to add the property to.
+     * @param index  The index of the property to add.
+     */
+    private void addParameterAt(JSONLiteral literal, int index) {
+        Object value = myValues[index];
+        if (value == LONG_VALUE) {
+            literal.addParameter(myNames[index], myPrimitives[index]);
+        } else if (value == DOUBLE_VALUE) {
+            literal.addParameter(myNames[index],
+                Double.longBitsToDouble(myPrimitives[index]));
+        } else {
+            literal.addParameter(myNames[index], value);
+        }
+    }
+
+    /**
+     * Set the value of a property.
+     *
+     * @param name  The name of the property.
+     * @param value  Its value.
+     */
+    private void put(String name, Object value) {
+        ensureParsed();
+        int index = slotFor(name);
+        if (index >= 0) {
+            myValues[index] = value;
+        } else {
+            myMap.put(name, value);
+        }
+    }
+
+    /**
+     * Set the value of a property to a primitive value.
+     *
+     * @param name  The name of the property.
+     * @param kind  LONG_VALUE or DOUBLE_VALUE, according to the type of the
+     *    value.
+     * @param bits  The value, or for a double, its raw bits.
+     */
+    private void putPrimitive(String name, Object kind, long bits) {
+        ensureParsed();
+        int index = slotFor(name);
+        if (index >= 0) {
+            if (myPrimitives == null) {
+                myPrimitives = new long[myNames.length];
+            }
+            myValues[index] = kind;
+            myPrimitives[index] = bits;
+        } else if (kind == LONG_VALUE) {
+            myMap.put(name, Long.valueOf(bits));
+        } else {
+            myMap.put(name, Double.valueOf(Double.longBitsToDouble(bits)));
+        }
+    }
+
+    /**
+     * Find or make the slot in the arrays for a property, switching over to
+     * a map if the arrays are full.
+     *
+     * @param name  The name of the property.
+     *
+     * @return the index of the slot for the property named by 'name', or -1
+     *    if myMap is in use.
+     */
+    private int slotFor(String name) {
+        if (myMap != null) {
+            return -1;
+        }
+        int index = indexOf(name);
+        if (index >= 0) {
+            return index;
+        }
+        if (myNames == null) {
+            myNames = new String[INITIAL_CAPACITY];
+            myValues = new Object[INITIAL_CAPACITY];
+        } else if (mySize == myNames.length) {
+            if (mySize == MAX_COMPACT_PROPERTIES) {
+                convertToMap();
+                return -1;
+            }
+            int capacity = Math.min(mySize * 2, MAX_COMPACT_PROPERTIES);
+            myNames = Arrays.copyOf(myNames, capacity);
+            myValues = Arrays.copyOf(myValues, capacity);
+            if (myPrimitives != null) {
+                myPrimitives = Arrays.copyOf(myPrimitives, capacity);
+            }
+        }
+        ++myModCount;
+        myNames[mySize] = name;
+        return mySize++;
+    }
+
+    /**
+     * Remove the property at some index in the arrays.
+     *
+     * @param index  The index of the property to remove.
+     */
+    private void removeAt(int index) {
+        int tail = mySize - index - 1;
+        if (tail > 0) {
+            System.arraycopy(myNames, index + 1, myNames, index, tail);
+            System.arraycopy(myValues, index + 1, myValues, index, tail);
+            if (myPrimitives != null) {
+                System.arraycopy(myPrimitives, index + 1, myPrimitives, index,
+                                 tail);
+            }
+        }
+        --mySize;
+        myNames[mySize] = null;
+        myValues[mySize] = null;
+        ++myModCount;
+    }
+
+    /**
+     * Move this object's properties out of the arrays and into a map.
+     */
+    private void convertToMap() {
+        Map<String, Object> map =
+            new HashMap<String, Object>(MAX_COMPACT_PROPERTIES * 4);
+        for (int i = 0; i < mySize; ++i) {
+            map.put(myNames[i], valueAt(i));
+        }
+        myMap = map;
+        myNames = null;
+        myValues = null;
+        myPrimitives = null;
+        mySize = 0;
+        ++myModCount;
+    }
+
+    /**
+     * Set view of the properties held in the arrays.
+     */
+    private class PropertySet extends AbstractSet<Map.Entry<String, Object>> {
+        public Iterator<Map.Entry<String, Object>> iterator() {
+            return new PropertyIterator();
+        }
+
+        public int size() {
+            return mySize;
+        }
+    }
+
+    /**
+     * Iterator over the properties held in the arrays.
+     */
+    private class PropertyIterator
+        implements Iterator<Map.Entry<String, Object>>
+    {
+        /** Index of the next property to return. */
+        private int myNext = 0;
+
+        /** Index of the property most recently returned, or -1 if there is
+            none that may be removed. */
+        private int myLast = -1;
+
+        /** Modification count the object should have if it hasn't been
+            changed out from under this iterator. */
+        private int myExpectedModCount = myModCount;
+
+        public boolean hasNext() {
+            return myNext < mySize;
+        }
+
+        public Map.Entry<String, Object> next() {
+            checkForModification();
+            if (myNext >= mySize) {
+                throw new NoSuchElementException();
+            }
+            myLast = myNext++;
+            return new PropertyEntry(myNames[myLast], valueAt(myLast));
+        }
+
+        public void remove() {
+            if (myLast < 0) {
+                throw new IllegalStateException();
+            }
+            checkForModification();
+            removeAt(myLast);
+            myNext = myLast;
+            myLast = -1;
+            myExpectedModCount = myModCount;
+        }
+
+        private void checkForModification() {
+            if (myModCount != myExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    /**
+     * A property as returned by iteration over the property set.  This
+     * remains valid even if the property is subsequently removed, and setting
+     * its value sets the property's value in the object.
+     */
+    private class PropertyEntry extends AbstractMap.SimpleEntry<String, Object>
+    {
+        PropertyEntry(String name, Object value) {
+            super(name, value);
+        }
+
+        public Object setValue(Object value) {
+            put(getKey(), value);
+            return super.setValue(value);
+        }
+    }
 }
@@ -0,0 +1,384 @@
+package org.elkoserver.json;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Growable buffer into which JSON literals are encoded, directly as UTF-8
+ * bytes.
+ *
+ * Literals are encoded as bytes because bytes are what finally gets
+ * transmitted; building them as characters meant that every message was
+ * built in one form and then converted into the other.  The byte arrays
+ * themselves are recycled through a small per-thread pool, since nearly
+ * every message is built, sent and discarded in short order by a single
+ * thread, and most literals (especially the many small ones produced while
+ * encoding the parts of a larger one) never need more than the initial
+ * allocation.
+ */
+class LiteralBuffer {
+    /** The bytes encoded so far, or null once the buffer has been
+        released. */
+    private byte[] myBytes;
+
+    /** Number of bytes in myBytes that are in use. */
+    private int myLength;
+
+    /** Size of freshly allocated byte arrays. */
+    private static final int INITIAL_SIZE = 1024;
+
+    /** Largest array that will be returned to the pool. */
+    private static final int MAX_POOLED_SIZE = 64 * 1024;
+
+    /** Maximum number of arrays kept in each thread's pool. */
+    private static final int MAX_POOLED = 32;
+
+    /** Charset for decoding the buffer contents back into a String. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Per-thread pools of byte arrays that are free for reuse. */
+    private static final ThreadLocal<ArrayList<byte[]>> thePools =
+        new ThreadLocal<ArrayList<byte[]>>() {
+            protected ArrayList<byte[]> initialValue() {
+                return new ArrayList<byte[]>(MAX_POOLED);
+            }
+        };
+
+    /**
+     * Constructor.  The storage is taken from the calling thread's pool, if
+     * there is any there.
+     */
+    LiteralBuffer() {
+        ArrayList<byte[]> pool = thePools.get();
+        int count = pool.size();
+        if (count > 0) {
+            myBytes = pool.remove(count - 1);
+        } else {
+            myBytes = new byte[INITIAL_SIZE];
+        }
+        myLength = 0;
+    }
+
+    /**
+     * Return this buffer's storage to the calling thread's pool.  The buffer
+     * must not be used again afterwards.
+     */
+    void release() {
+        byte[] bytes = myBytes;
+        if (bytes != null) {
+            myBytes = null;
+            myLength = 0;
+            recycle(bytes);
+        }
+    }
+
+    /**
+     * Give up this buffer's unused storage, if there is more of it than a
+     * freshly allocated buffer would hold, by copying the contents into an
+     * array of exactly the right size.  This is for buffers that are
+     * complete but may be held onto for a while (for example, in a
+     * connection's output queue) and may never be released, so that they
+     * don't pin down a large array that was grown or taken from the pool.
+     * The larger array goes back to the calling thread's pool.
+     */
+    void trim() {
+        byte[] bytes = myBytes;
+        if (bytes != null && bytes.length - myLength > INITIAL_SIZE) {
+            myBytes = new byte[myLength];
+            System.arraycopy(bytes, 0, myBytes, 0, myLength);
+            recycle(bytes);
+        }
+    }
+
+    /**
+     * Add a byte array to the calling thread's pool, if it is of a size
+     * worth keeping and the pool has room for it.  Arrays smaller than a
+     * freshly allocated one (i.e., the ones made by {@link #trim}) are not
+     * kept, since they would just have to be grown again.
+     *
+     * @param bytes  The array that is no longer in use.
+     */
+    private static void recycle(byte[] bytes) {
+        if (INITIAL_SIZE <= bytes.length && bytes.length <= MAX_POOLED_SIZE) {
+            ArrayList<byte[]> pool = thePools.get();
+            if (pool.size() < MAX_POOLED) {
+                pool.add(bytes);
+            }
+        }
+    }
+
+    /**
+     * Test if this buffer has been released.
+     *
+     * @return true if this buffer's storage has been given up.
+     */
+    boolean isReleased() {
+        return myBytes == null;
+    }
+
+    /**
+     * Make room for more bytes.
+     *
+     * @param count  Number of bytes about to be added.
+     */
+    private void ensureRoom(int count) {
+        if (myBytes == null) {
+            throw new Error("attempt to use released JSON literal");
+        }
+        int needed = myLength + count;
+        if (needed > myBytes.length) {
+            byte[] newBytes = new byte[Math.max(needed, myBytes.length * 2)];
+            System.arraycopy(myBytes, 0, newBytes, 0, myLength);
+            myBytes = newBytes;
+        }
+    }
+
+    /**
+     * Get the number of bytes encoded so far.
+     *
+     * @return the length of this buffer's contents.
+     */
+    int length() {
+        return myLength;
+    }
+
+    /**
+     * Discard bytes from the end of the buffer.
+     *
+     * @param length  The new length, which must be no more than the current
+     *    length.
+     */
+    void setLength(int length) {
+        myLength = length;
+    }
+
+    /**
+     * Append an ASCII character.
+     *
+     * @param c  The character to append, which must be in the range 0-127.
+     */
+    void append(char c) {
+        ensureRoom(1);
+        myBytes[myLength++] = (byte) c;
+    }
+
+    /**
+     * Append a string, encoded in UTF-8.
+     *
+     * @param str  The string to append.
+     */
+    void append(String str) {
+        appendChars(str, 0, str.length());
+    }
+
+    /**
+     * Append a range of characters from a string, encoded in UTF-8.
+     *
+     * @param str  The string containing the characters.
+     * @param start  Index of the first character to append.
+     * @param end  Index just past the last character to append.
+     */
+    private void appendChars(String str, int start, int end) {
+        ensureRoom(end - start);
+        byte[] bytes = myBytes;
+        int length = myLength;
+        for (int i = start; i < end; ++i) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                if (length == bytes.length) {
+                    myLength = length;
+                    ensureRoom(end - i);
+                    bytes = myBytes;
+                }
+                bytes[length++] = (byte) c;
+            } else {
+                myLength = length;
+                appendNonASCII(str, i);
+                if (Character.isHighSurrogate(c) && i + 1 < end &&
+                        Character.isLowSurrogate(str.charAt(i + 1))) {
+                    ++i;
+                }
+                bytes = myBytes;
+                length = myLength;
+            }
+        }
+        myLength = length;
+    }
+
+    /**
+     * Append the UTF-8 encoding of the non-ASCII character at some position
+     * in a string.
+     *
+     * @param str  The string containing the character.
+     * @param index  Index of the character, which if it is the first half of
+     *    a surrogate pair is combined with the character after it.
+     */
+    private void appendNonASCII(String str, int index) {
+        int c = str.charAt(index);
+        ensureRoom(4);
+        if (c < 0x800) {
+            myBytes[myLength++] = (byte) (0xC0 | (c >> 6));
+            myBytes[myLength++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isSurrogate((char) c)) {
+            int code = -1;
+            if (Character.isHighSurrogate((char) c) &&
+                    index + 1 < str.length()) {
+                char low = str.charAt(index + 1);
+                if (Character.isLowSurrogate(low)) {
+                    code = Character.toCodePoint((char) c, low);
+                }
+            }
+            if (code < 0) {
+                /* An unpaired surrogate can't be encoded; do what
+                   String.getBytes() does. */
+                myBytes[myLength++] = (byte) '?';
+            } else {
+                myBytes[myLength++] = (byte) (0xF0 | (code >> 18));
+                myBytes[myLength++] = (byte) (0x80 | ((code >> 12) & 0x3F));
+                myBytes[myLength++] = (byte) (0x80 | ((code >> 6) & 0x3F));
+                myBytes[myLength++] = (byte) (0x80 | (code & 0x3F));
+            }
+        } else {
+            myBytes[myLength++] = (byte) (0xE0 | (c >> 12));
+            myBytes[myLength++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            myBytes[myLength++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    /**
+     * Append a string as a quoted JSON string literal, escaping whatever
+     * characters need it.
+     *
+     * @param str  The string to append.
+     */
+    void appendQuoted(String str) {
+        append('"');
+        int start = 0;
+        int length = str.length();
+        for (int i = 0; i < length; ++i) {
+            char c = str.charAt(i);
+            char escape;
+            switch (c) {
+                case '"':  escape = '"';  break;
+                case '\\': escape = '\\'; break;
+                case '\b': escape = 'b';  break;
+                case '\f': escape = 'f';  break;
+                case '\n': escape = 'n';  break;
+                case '\r': escape = 'r';  break;
+                case '\t': escape = 't';  break;
+                default:   continue;
+            }
+            appendChars(str, start, i);
+            start = i + 1;
+            append('\\');
+            append(escape);
+        }
+        appendChars(str, start, length);
+        append('"');
+    }
+
+    /**
+     * Append the decimal representation of an integer.
+     *
+     * @param value  The number to append.
+     */
+    void append(long value) {
+        if (value == Long.MIN_VALUE) {
+            append(Long.toString(value));
+            return;
+        }
+        ensureRoom(20);
+        if (value < 0) {
+            myBytes[myLength++] = (byte) '-';
+            value = -value;
+        }
+        int end = myLength;
+        long rest = value;
+        do {
+            ++end;
+            rest /= 10;
+        } while (rest != 0);
+        int pos = end;
+        do {
+            myBytes[--pos] = (byte) ('0' + (int) (value % 10));
+            value /= 10;
+        } while (value != 0);
+        myLength = end;
+    }
+
+    /**
+     * Append a range of the contents of another buffer (or of this one).
+     *
+     * @param other  The buffer whose contents are to be appended.
+     * @param start  Index of the first byte to append.
+     * @param end  Index just past the last byte to append.
+     */
+    void append(LiteralBuffer other, int start, int end) {
+        ensureRoom(end - start);
+        System.arraycopy(other.myBytes, start, myBytes, myLength, end - start);
+        myLength += end - start;
+    }
+
+    /**
+     * Append a range of already encoded bytes.
+     *
+     * @param bytes  Array containing the bytes to append.
+     * @param offset  Index of the first byte to append.
+     * @param length  Number of bytes to append.
+     */
+    void append(byte[] bytes, int offset, int length) {
+        ensureRoom(length);
+        System.arraycopy(bytes, offset, myBytes, myLength, length);
+        myLength += length;
+    }
+
+    /**
+     * Decode a range of this buffer's contents into a String.
+     *
+     * @param start  Index of the first byte to decode.
+     * @param end  Index just past the last byte to decode.
+     *
+     * @return the decoded string.
+     */
+    String toString(int start, int end) {
+        if (myBytes == null) {
+            throw new Error("attempt to use released JSON literal");
+        }
+        return new String(myBytes, start, end - start, UTF8);
+    }
+
+    /**
+     * Obtain a read-only view of a range of this buffer's contents.  The
+     * view shares this buffer's storage, so it is only valid until the
+     * buffer is released.
+     *
+     * @param start  Index of the first byte of the range.
+     * @param end  Index just past the last byte of the range.
+     *
+     * @return a read-only ByteBuffer onto the requested bytes.
+     */
+    ByteBuffer view(int start, int end) {
+        if (myBytes == null) {
+            throw new Error("attempt to use released JSON literal");
+        }
+        return ByteBuffer.wrap(myBytes, start, end - start).asReadOnlyBuffer();
+    }
+
+    /**
+     * Obtain a parser that parses a range of this buffer's contents in
+     * place.  The parser shares this buffer's storage, so it is only valid
+     * until the buffer is released.
+     *
+     * @param start  Index of the first byte of the range.
+     * @param end  Index just past the last byte of the range.
+     *
+     * @return a parser for the requested bytes.
+     */
+    UTF8Parser parser(int start, int end) {
+        if (myBytes == null) {
+            throw new Error("attempt to use released JSON literal");
+        }
+        return new UTF8Parser(myBytes, start, end - start);
+    }
+}
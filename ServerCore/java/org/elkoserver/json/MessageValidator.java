@@ -0,0 +1,35 @@
+package org.elkoserver.json;
+
+/**
+ * Implementing this interface enables an object to check messages as they
+ * are being parsed, so that unacceptable ones can be rejected before the
+ * work of parsing them has been completed.
+ *
+ * A validator is only shown the properties of the outermost object of each
+ * message, in the order they appear, as soon as each has been parsed.
+ * Objects nested inside a message may not have been parsed yet when it is
+ * checked.
+ */
+public interface MessageValidator {
+    /**
+     * Check a property of a message being parsed.
+     *
+     * @param message  The message so far, including the property being
+     *    checked and every property that came before it.
+     * @param name  The name of the property being checked.
+     * @param value  The value of the property being checked.
+     *
+     * @throws SyntaxError if the message is unacceptable.
+     */
+    void checkProperty(JSONObject message, String name, Object value)
+        throws SyntaxError;
+
+    /**
+     * Check a message that has been completely parsed.
+     *
+     * @param message  The message.
+     *
+     * @throws SyntaxError if the message is unacceptable.
+     */
+    void checkMessage(JSONObject message) throws SyntaxError;
+}
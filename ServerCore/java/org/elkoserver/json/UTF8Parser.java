@@ -0,0 +1,1033 @@
+package org.elkoserver.json;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Parser to translate UTF-8 encoded JSON text into JSON objects, working
+ * directly on the bytes.
+ *
+ * This accepts exactly the same syntax as {@link Parser} and produces the
+ * same {@link JSONObject} and {@link JSONArray} trees, but it does not need
+ * the input to have been decoded into a String first.  Values are recognized
+ * straight out of the byte array without building intermediate token
+ * objects: numbers are accumulated as they are scanned rather than being
+ * extracted as substrings and handed to the number parsing library, and
+ * string literals are only decoded once their extent is known (and then
+ * without any UTF-8 decoding work at all in the common case where they are
+ * plain ASCII without escapes).  Since the bytes are not copied, the caller
+ * must not modify them until it is through with the parser.
+ *
+ * Optionally (see {@link #setDeferNestedObjects setDeferNestedObjects()}),
+ * the parser can leave objects nested inside the object being parsed
+ * unparsed, keeping just a copy of their text.  Such an object is only
+ * parsed if somebody actually looks inside it, and if it is instead simply
+ * encoded again (for example, because it is the payload of a message that
+ * is being relayed elsewhere), its original text is copied out unchanged.
+ * Only text in strict standard JSON, written on one line, is held this way,
+ * so that what is copied out is always standard JSON that cannot disturb
+ * line-oriented message framing, and means the same as what re-encoding the
+ * parsed object would produce.
+ *
+ * Optionally (see {@link #setLimits setLimits()} and {@link #setValidator
+ * setValidator()}), the parser can also refuse input that nests too deeply,
+ * that has objects or arrays with too many members, or whose objects a
+ * {@link MessageValidator} finds unacceptable.  Such input is rejected as
+ * soon as the problem is seen, rather than after it has all been parsed.
+ */
+public class UTF8Parser {
+    /** The bytes being parsed. */
+    private byte[] myData;
+
+    /** Index of the first byte of the input in myData. */
+    private int myStart;
+
+    /** Index just past the last byte of the input in myData. */
+    private int myEnd;
+
+    /** Index of the next byte to be scanned. */
+    private int myPos;
+
+    /** Charset for decoding plain ASCII strings, which is a straight copy. */
+    private static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+    /** Charset for decoding everything else. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Largest mantissa that a double represents exactly. */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    /** Flag that nested objects should be left unparsed where possible. */
+    private boolean amDeferringObjects;
+
+    /** Shortest nested object text that is worth leaving unparsed; smaller
+        objects are cheaper to parse than to copy and parse later. */
+    private static final int MIN_DEFERRED_LENGTH = 64;
+
+    /** Deepest nesting of objects and arrays that will be accepted. */
+    private int myMaxDepth;
+
+    /** Most properties an object, or elements an array, may have. */
+    private int myMaxMembers;
+
+    /** Number of objects and arrays enclosing the current position. */
+    private int myDepth;
+
+    /** Validator for the outermost objects parsed, or null if none. */
+    private MessageValidator myValidator;
+
+    /** Powers of ten that a double represents exactly. */
+    private static final double EXACT_POWERS_OF_TEN[] = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+        1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Create a parser to parse a range of bytes.
+     *
+     * @param data  Array containing the UTF-8 encoded JSON text to be parsed.
+     *    The text may contain multiple JSON objects, one of which will be
+     *    returned by each successive call to {@link #parseObjectLiteral
+     *    parseObjectLiteral()}.
+     * @param offset  Index of the first byte of the text in 'data'.
+     * @param length  Number of bytes of text.
+     */
+    public UTF8Parser(byte[] data, int offset, int length) {
+        myData = data;
+        myStart = offset;
+        myEnd = offset + length;
+        myPos = offset;
+        amDeferringObjects = false;
+        myMaxDepth = Integer.MAX_VALUE;
+        myMaxMembers = Integer.MAX_VALUE;
+        myDepth = 0;
+        myValidator = null;
+    }
+
+    /**
+     * Create a parser to parse a whole byte array.
+     *
+     * @param data  The UTF-8 encoded JSON text to be parsed.
+     */
+    public UTF8Parser(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    /**
+     * Create a parser to parse the remaining bytes of a byte buffer.  The
+     * buffer's position is not changed.  If the buffer is not backed by an
+     * accessible array, its contents are copied.
+     *
+     * @param buf  Buffer whose remaining bytes are the UTF-8 encoded JSON
+     *    text to be parsed.
+     */
+    public UTF8Parser(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            myData = buf.array();
+            myStart = buf.arrayOffset() + buf.position();
+        } else {
+            myData = new byte[buf.remaining()];
+            buf.duplicate().get(myData);
+            myStart = 0;
+        }
+        myEnd = myStart + buf.remaining();
+        myPos = myStart;
+        amDeferringObjects = false;
+        myMaxDepth = Integer.MAX_VALUE;
+        myMaxMembers = Integer.MAX_VALUE;
+        myDepth = 0;
+        myValidator = null;
+    }
+
+    /**
+     * Control whether objects nested inside the objects being parsed are left
+     * unparsed until they are looked at.  This is worthwhile when the objects
+     * being parsed are messages that may be forwarded without examining their
+     * contents, but not when every part of every object will be examined
+     * anyway.  The default is to parse everything immediately.
+     *
+     * @param flag  If true, nested objects will be left unparsed where
+     *    possible; if false, everything will be parsed immediately.
+     */
+    public void setDeferNestedObjects(boolean flag) {
+        amDeferringObjects = flag;
+    }
+
+    /**
+     * Limit the shape of the objects that will be accepted.  Input that
+     * exceeds a limit is reported as a syntax error as soon as the excess is
+     * encountered.  Objects nested inside the objects being parsed are held
+     * to the limits even if they are left unparsed.  The default is no
+     * limits.
+     *
+     * @param maxDepth  Deepest nesting of objects and arrays allowed; an
+     *    object with no objects or arrays inside it has depth 1.  A value of
+     *    0 means no limit.
+     * @param maxMembers  Most properties any object, or elements any array,
+     *    may have.  A value of 0 means no limit.
+     */
+    public void setLimits(int maxDepth, int maxMembers) {
+        myMaxDepth = maxDepth > 0 ? maxDepth : Integer.MAX_VALUE;
+        myMaxMembers = maxMembers > 0 ? maxMembers : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Designate an object to check each of the outermost objects parsed, as
+     * it is being parsed.  The default is to do no checking.
+     *
+     * @param validator  The validator to use, or null to do no checking.
+     */
+    public void setValidator(MessageValidator validator) {
+        myValidator = validator;
+    }
+
+    /**
+     * Parse the next unparsed JSON object in the input.
+     *
+     * @return the next {@link JSONObject} in the bytes being scanned, or
+     *    null if the end of the input has been reached.
+     */
+    public JSONObject parseObjectLiteral() throws SyntaxError {
+        int c = skipWhitespace();
+        if (c == '{') {
+            myDepth = 0;
+            return parseOpenObjectLiteral();
+        } else if (c < 0) {
+            return null;
+        } else {
+            syntaxError("expected '{'");
+            return null; /* strictly to make compiler happy */
+        }
+    }
+
+    /**
+     * Parse a JSON object, given that we've seen the open brace.
+     *
+     * @return the parsed object.
+     */
+    private JSONObject parseOpenObjectLiteral() throws SyntaxError {
+        enterNesting();
+        boolean validating = myValidator != null && myDepth == 1;
+        JSONObject obj = new JSONObject();
+        int count = 0;
+        int c = skipWhitespace();
+        while (c != '}') {
+            if (++count > myMaxMembers) {
+                limitError("object has too many properties");
+            }
+            String name;
+            if (c == '"' || c == '\'') {
+                name = scanString(c);
+            } else if (isSymbolStart(c)) {
+                name = scanSymbol();
+                if (name.equals("true") || name.equals("false") ||
+                        name.equals("null")) {
+                    syntaxError("expected symbol or string");
+                }
+            } else {
+                syntaxError("expected symbol or string");
+                return null; /* strictly to make compiler happy */
+            }
+            if (skipWhitespace() != ':') {
+                syntaxError("expected ':'");
+            }
+            Object value = parseValue(skipWhitespace());
+            obj.addProperty(name, value);
+            if (validating) {
+                myValidator.checkProperty(obj, name, value);
+            }
+            c = skipWhitespace();
+            if (c == ',') {
+                c = skipWhitespace();
+            } else if (c != '}') {
+                syntaxError("expected '}'");
+            }
+        }
+        if (validating) {
+            myValidator.checkMessage(obj);
+        }
+        --myDepth;
+        return obj;
+    }
+
+    /**
+     * Parse a JSON object nested in another, given that we've seen the open
+     * brace, leaving it unparsed if possible.
+     *
+     * @return the object, which may be unparsed.
+     */
+    private JSONObject parseNestedObjectLiteral() throws SyntaxError {
+        int start = myPos - 1;
+        int depth = myDepth;
+        boolean skipped = skipStrictObject();
+        myDepth = depth;
+        if (skipped && myPos - start >= MIN_DEFERRED_LENGTH) {
+            return new JSONObject(Arrays.copyOfRange(myData, start, myPos));
+        }
+        myPos = start + 1;
+        return parseOpenObjectLiteral();
+    }
+
+    /**
+     * Parse an array literal, given that we've seen the open bracket.
+     *
+     * @return the parsed array literal
+     */
+    private JSONArray parseArrayLiteral() throws SyntaxError {
+        enterNesting();
+        JSONArray array = new JSONArray();
+        int count = 0;
+        int c = skipWhitespace();
+        while (c != ']') {
+            if (++count > myMaxMembers) {
+                limitError("array has too many elements");
+            }
+            array.add(parseValue(c));
+            c = skipWhitespace();
+            if (c == ',') {
+                c = skipWhitespace();
+            } else if (c != ']') {
+                syntaxError("expected ']'");
+            }
+        }
+        --myDepth;
+        return array;
+    }
+
+    /**
+     * Parse a literal value.
+     *
+     * @param c  The first byte of the value literal.
+     *
+     * @return the parsed object
+     */
+    private Object parseValue(int c) throws SyntaxError {
+        switch (c) {
+            case '"': case '\'':
+                return scanString(c);
+            case '0': case '1': case '2': case '3': case '4': case '5':
+            case '6': case '7': case '8': case '9': case '-': case '+':
+            case '.':
+                return scanNumber(c);
+            case '{':
+                if (amDeferringObjects) {
+                    return parseNestedObjectLiteral();
+                } else {
+                    return parseOpenObjectLiteral();
+                }
+            case '[':
+                return parseArrayLiteral();
+            default:
+                if (isSymbolStart(c)) {
+                    String symbol = scanSymbol();
+                    if (symbol.equals("true")) {
+                        return Boolean.TRUE;
+                    } else if (symbol.equals("false")) {
+                        return Boolean.FALSE;
+                    } else if (symbol.equals("null")) {
+                        return null;
+                    }
+                }
+                syntaxError("expected value token");
+                return null; /* strictly to make compiler happy */
+        }
+    }
+
+    /**
+     * Note that an object or array has been entered, checking that this does
+     * not nest too deeply.
+     */
+    private void enterNesting() throws SyntaxError {
+        if (++myDepth > myMaxDepth) {
+            limitError("objects and arrays nested too deeply");
+        }
+    }
+
+    /**
+     * Get the next byte of input, without consuming it.
+     *
+     * @return the next byte, or -1 if the end of the input has been reached.
+     */
+    private int peek() {
+        if (myPos < myEnd) {
+            return myData[myPos] & 0xFF;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Get the next byte of input.
+     *
+     * @return the next byte, or -1 if the end of the input has been reached.
+     */
+    private int next() {
+        if (myPos < myEnd) {
+            return myData[myPos++] & 0xFF;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Test a byte to see if it is a decimal digit.
+     *
+     * @param c  The byte being tested
+     *
+     * @return true if 'c' is in the set [0-9]
+     */
+    private static boolean isDigit(int c) {
+        return '0' <= c && c <= '9';
+    }
+
+    /**
+     * Get the value of a hexadecimal digit.
+     *
+     * @param c  The byte being tested
+     *
+     * @return the value of 'c' as a hex digit, or -1 if it isn't one.
+     */
+    private static int hexValue(int c) {
+        if ('0' <= c && c <= '9') {
+            return c - '0';
+        } else if ('a' <= c && c <= 'f') {
+            return c - 'a' + 10;
+        } else if ('A' <= c && c <= 'F') {
+            return c - 'A' + 10;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Test a byte to see if it can begin a symbol.
+     *
+     * @param c  The byte being tested
+     *
+     * @return true if 'c' is in the set [a-zA-Z_$]
+     */
+    private static boolean isSymbolStart(int c) {
+        return ('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z') ||
+            c == '_' || c == '$';
+    }
+
+    /**
+     * Test a byte to see if it can continue a symbol.  Non-ASCII bytes are
+     * accepted, as parts of the UTF-8 encodings of non-ASCII letters.
+     *
+     * @param c  The byte being tested
+     *
+     * @return true if 'c' is in the set [a-zA-Z0-9_$] or is not ASCII
+     */
+    private static boolean isSymbolPart(int c) {
+        return isSymbolStart(c) || isDigit(c) || c >= 0x80;
+    }
+
+    /**
+     * Scan the rest of a number, given that we know we've started one.
+     *
+     * @param c  The first byte of the number, which has been consumed.
+     *
+     * @return a Long or a Double, according to the form of the number.
+     *
+     * The lexical patterns accepted (and their looseness) are the same as
+     * those accepted by {@link Parser}.  Integers are accumulated as they are
+     * scanned.  Floating point numbers whose digits and exponent permit the
+     * result to be computed exactly are computed the same way; the rest are
+     * handed to Double.parseDouble() to get the rounding right.
+     */
+    private Object scanNumber(int c) throws SyntaxError {
+        int start = myPos - 1;
+        long sign = 1;
+
+        if (c == '-') {
+            sign = -1;
+            c = next();
+        } else if (c == '+') {
+            c = next();
+        }
+        int radix = 10;
+        if (c == '0') {
+            c = peek();
+            if (c == 'x' || c == 'X') {
+                ++myPos;
+                long intValue = 0;
+                int digit = hexValue(peek());
+                if (digit < 0) {
+                    syntaxError("malformed hexadecimal number");
+                }
+                while (digit >= 0) {
+                    intValue = intValue * 16 + digit;
+                    ++myPos;
+                    digit = hexValue(peek());
+                }
+                return Long.valueOf(intValue * sign);
+            }
+            radix = 8;
+        } else if (c == '.') {
+            return scanFloatTail(start, sign, 0, true);
+        } else if (isDigit(c)) {
+            --myPos;
+        } else {
+            syntaxError("malformed number");
+        }
+        long intValue = 0;
+        long mantissa = 0;
+        c = peek();
+        while (isDigit(c)) {
+            intValue = intValue * radix + (c - '0');
+            mantissa = accumulateDigit(mantissa, c);
+            ++myPos;
+            c = peek();
+        }
+        if (c == '.') {
+            ++myPos;
+            return scanFloatTail(start, sign, mantissa, false);
+        } else if (c == 'e' || c == 'E') {
+            return scanFloatExponent(start, sign, mantissa, 0);
+        } else {
+            return Long.valueOf(intValue * sign);
+        }
+    }
+
+    /**
+     * Add a decimal digit to the mantissa of a floating point number being
+     * scanned.
+     *
+     * @param mantissa  The digits so far, or -1 if there are already too many
+     *    for exact computation.
+     * @param c  The digit to add.
+     *
+     * @return the new mantissa, or -1 if there are now too many digits.
+     */
+    private static long accumulateDigit(long mantissa, int c) {
+        if (0 <= mantissa && mantissa < MAX_EXACT_MANTISSA) {
+            return mantissa * 10 + (c - '0');
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Scan the fractional part of a floating point number, given that we've
+     * seen the decimal point.
+     *
+     * @param start  Index of the start of the number.
+     * @param sign  Sign of the number, 1 or -1.
+     * @param mantissa  The digits before the decimal point, or -1 if they
+     *    can't be used for exact computation.
+     * @param needDigits  true==>there must be digits after the decimal point
+     *    (because there weren't any before it); false==>no digits required.
+     *
+     * @return the number, as a Double.
+     */
+    private Object scanFloatTail(int start, long sign, long mantissa,
+                                 boolean needDigits)
+        throws SyntaxError
+    {
+        int scale = 0;
+        int c = peek();
+        if (needDigits && !isDigit(c)) {
+            syntaxError("malformed number");
+        }
+        while (isDigit(c)) {
+            mantissa = accumulateDigit(mantissa, c);
+            --scale;
+            ++myPos;
+            c = peek();
+        }
+        if (c == 'e' || c == 'E') {
+            return scanFloatExponent(start, sign, mantissa, scale);
+        } else {
+            return makeDouble(start, sign, mantissa, scale);
+        }
+    }
+
+    /**
+     * Scan the exponent of a floating point number, given that the next byte
+     * is the 'e' or 'E' that introduces it.
+     *
+     * @param start  Index of the start of the number.
+     * @param sign  Sign of the number, 1 or -1.
+     * @param mantissa  The digits of the number so far, or -1 if they can't be
+     *    used for exact computation.
+     * @param scale  Power of ten by which the mantissa must be multiplied.
+     *
+     * @return the number, as a Double.
+     */
+    private Object scanFloatExponent(int start, long sign, long mantissa,
+                                     int scale)
+        throws SyntaxError
+    {
+        ++myPos;
+        int c = next();
+        int expSign = 1;
+        if (c == '+') {
+            c = next();
+        } else if (c == '-') {
+            expSign = -1;
+            c = next();
+        }
+        if (!isDigit(c)) {
+            syntaxError("malformed number");
+        }
+        int exponent = 0;
+        while (isDigit(c)) {
+            if (exponent < 1000) {
+                exponent = exponent * 10 + (c - '0');
+            }
+            c = peek();
+            if (isDigit(c)) {
+                ++myPos;
+            }
+        }
+        return makeDouble(start, sign, mantissa, scale + exponent * expSign);
+    }
+
+    /**
+     * Produce the value of a floating point number that has been scanned.
+     *
+     * @param start  Index of the start of the number.
+     * @param sign  Sign of the number, 1 or -1.
+     * @param mantissa  The digits of the number, or -1 if they can't be used
+     *    for exact computation.
+     * @param scale  Power of ten by which the mantissa must be multiplied.
+     *
+     * @return the number, as a Double.
+     */
+    private Object makeDouble(int start, long sign, long mantissa, int scale)
+        throws SyntaxError
+    {
+        if (0 <= mantissa && mantissa <= MAX_EXACT_MANTISSA &&
+                -EXACT_POWERS_OF_TEN.length < scale &&
+                scale < EXACT_POWERS_OF_TEN.length) {
+            /* Both operands are exact, so the one rounding is correct. */
+            double value = (double) mantissa;
+            if (scale < 0) {
+                value /= EXACT_POWERS_OF_TEN[-scale];
+            } else {
+                value *= EXACT_POWERS_OF_TEN[scale];
+            }
+            return Double.valueOf(sign * value);
+        }
+        try {
+            return Double.valueOf(
+                new String(myData, start, myPos - start, ASCII));
+        } catch (NumberFormatException e) {
+            syntaxError("malformed number");
+            return null; /* strictly to make compiler happy */
+        }
+    }
+
+    /**
+     * Scan the rest of a string literal, given that we've seen the initial
+     * '"' or "'" character.
+     *
+     * @param quote  The initial quote character, for matching the end
+     *
+     * @return the string.
+     */
+    private String scanString(int quote) throws SyntaxError {
+        StringBuilder buf = null;
+        boolean ascii = true;
+        int start = myPos;
+        while (true) {
+            int c = next();
+            if (c == quote) {
+                int length = myPos - 1 - start;
+                if (buf == null) {
+                    return new String(myData, start, length,
+                                      ascii ? ASCII : UTF8);
+                } else {
+                    buf.append(new String(myData, start, length, UTF8));
+                    return buf.toString();
+                }
+            } else if (c == '\\') {
+                if (buf == null) {
+                    buf = new StringBuilder(100);
+                }
+                buf.append(new String(myData, start, myPos - 1 - start, UTF8));
+                scanEscapeSequence(buf);
+                start = myPos;
+            } else if (c < 0) {
+                syntaxError("unterminated string");
+            } else if (c >= 0x80) {
+                ascii = false;
+            }
+        }
+    }
+
+    /**
+     * Scan an escape sequence inside a string literal, given that we've seen
+     * the '\' character.
+     *
+     * @param buf  Buffer into which the result should be written
+     */
+    private void scanEscapeSequence(StringBuilder buf) throws SyntaxError {
+        int unicode = 0;
+        int c = next();
+
+        switch (c) {
+            case '0': case '1': case '2': case '3':
+            case '4': case '5': case '6': case '7':
+                unicode = c - '0';
+                c = peek();
+                while ('0' <= c && c <= '7') {
+                    unicode = unicode * 8 + c - '0';
+                    ++myPos;
+                    c = peek();
+                }
+                break;
+            case 'u':
+            case 'x':
+                for (int i = (c == 'u' ? 4 : 2); i > 0; --i) {
+                    int digit = hexValue(next());
+                    if (digit < 0) {
+                        syntaxError("malformed escape sequence");
+                    }
+                    unicode = unicode * 16 + digit;
+                }
+                break;
+            case 'b': unicode = '\b'; break;
+            case 'f': unicode = '\f'; break;
+            case 'n': unicode = '\n'; break;
+            case 'r': unicode = '\r'; break;
+            case 't': unicode = '\t'; break;
+            case -1:
+                syntaxError("unterminated string");
+                break;
+            default:
+                if (c >= 0x80) {
+                    /* An escaped non-ASCII character is just itself; back up
+                       and let the caller decode it along with the rest. */
+                    --myPos;
+                    return;
+                }
+                unicode = c;
+                break;
+        }
+        buf.append((char) unicode);
+    }
+
+    /**
+     * Scan the rest of a symbol, given that we've seen its first byte.
+     *
+     * @return the symbol.
+     */
+    private String scanSymbol() {
+        int start = myPos - 1;
+        boolean ascii = true;
+        int c = peek();
+        while (isSymbolPart(c)) {
+            if (c >= 0x80) {
+                ascii = false;
+            }
+            ++myPos;
+            c = peek();
+        }
+        return new String(myData, start, myPos - start, ascii ? ASCII : UTF8);
+    }
+
+    /**
+     * Skip over the rest of an object written in strict JSON on one line,
+     * given that we've seen the open brace.  This and the other skipStrict
+     * methods accept only a subset of what the parser proper does, so that
+     * text they accept can always be parsed later and can be copied out as
+     * standard JSON.  They never throw; anything unexpected, including
+     * genuine syntax errors, is left for the parser proper to deal with.
+     *
+     * The limits on nesting and on numbers of members are enforced here too,
+     * by declining to skip anything that exceeds them, so that the parser
+     * proper will report the problem.  The nesting depth is left incorrect
+     * when something can't be skipped, and must be restored by the caller.
+     *
+     * @return true if the object was skipped, false if it isn't in strict
+     *    JSON on one line.
+     */
+    private boolean skipStrictObject() {
+        if (++myDepth > myMaxDepth) {
+            return false;
+        }
+        int c = skipStrictWhitespace();
+        if (c == '}') {
+            --myDepth;
+            return true;
+        }
+        int count = 0;
+        while (true) {
+            if (++count > myMaxMembers) {
+                return false;
+            }
+            if (c != '"' || !skipStrictString()) {
+                return false;
+            }
+            if (skipStrictWhitespace() != ':') {
+                return false;
+            }
+            if (!skipStrictValue(skipStrictWhitespace())) {
+                return false;
+            }
+            c = skipStrictWhitespace();
+            if (c == '}') {
+                --myDepth;
+                return true;
+            } else if (c != ',') {
+                return false;
+            }
+            c = skipStrictWhitespace();
+        }
+    }
+
+    /**
+     * Skip over the rest of an array written in strict JSON on one line,
+     * given that we've seen the open bracket.
+     *
+     * @return true if the array was skipped, false if it isn't in strict JSON
+     *    on one line.
+     */
+    private boolean skipStrictArray() {
+        if (++myDepth > myMaxDepth) {
+            return false;
+        }
+        int c = skipStrictWhitespace();
+        if (c == ']') {
+            --myDepth;
+            return true;
+        }
+        int count = 0;
+        while (true) {
+            if (++count > myMaxMembers) {
+                return false;
+            }
+            if (!skipStrictValue(c)) {
+                return false;
+            }
+            c = skipStrictWhitespace();
+            if (c == ']') {
+                --myDepth;
+                return true;
+            } else if (c != ',') {
+                return false;
+            }
+            c = skipStrictWhitespace();
+        }
+    }
+
+    /**
+     * Skip over a value written in strict JSON on one line.
+     *
+     * @param c  The first byte of the value, which has been consumed.
+     *
+     * @return true if the value was skipped, false if it isn't in strict JSON
+     *    on one line.
+     */
+    private boolean skipStrictValue(int c) {
+        switch (c) {
+            case '"':
+                return skipStrictString();
+            case '{':
+                return skipStrictObject();
+            case '[':
+                return skipStrictArray();
+            case '-': case '0': case '1': case '2': case '3': case '4':
+            case '5': case '6': case '7': case '8': case '9':
+                return skipStrictNumber(c);
+            case 't':
+                return skipStrictKeyword("true");
+            case 'f':
+                return skipStrictKeyword("false");
+            case 'n':
+                return skipStrictKeyword("null");
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Skip over the rest of a keyword, given that we've seen its first byte.
+     *
+     * @param keyword  The keyword expected.
+     *
+     * @return true if the keyword was there, false if not.
+     */
+    private boolean skipStrictKeyword(String keyword) {
+        for (int i = 1; i < keyword.length(); ++i) {
+            if (next() != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return !isSymbolPart(peek());
+    }
+
+    /**
+     * Skip over the rest of a number in strict JSON form, given that we've
+     * seen its first byte.  Leading zeros are not accepted, since the parser
+     * proper takes them to mean octal.
+     *
+     * @param c  The first byte of the number, which has been consumed.
+     *
+     * @return true if the number was skipped, false if it isn't in strict
+     *    JSON form.
+     */
+    private boolean skipStrictNumber(int c) {
+        if (c == '-') {
+            c = next();
+        }
+        if (c == '0') {
+            if (isDigit(peek())) {
+                return false;
+            }
+        } else if (!isDigit(c)) {
+            return false;
+        }
+        skipDigits();
+        if (peek() == '.') {
+            ++myPos;
+            if (!isDigit(peek())) {
+                return false;
+            }
+            skipDigits();
+        }
+        c = peek();
+        if (c == 'e' || c == 'E') {
+            ++myPos;
+            c = peek();
+            if (c == '+' || c == '-') {
+                ++myPos;
+            }
+            if (!isDigit(peek())) {
+                return false;
+            }
+            skipDigits();
+        }
+        return true;
+    }
+
+    /**
+     * Skip over any decimal digits.
+     */
+    private void skipDigits() {
+        while (isDigit(peek())) {
+            ++myPos;
+        }
+    }
+
+    /**
+     * Skip over the rest of a string literal in strict JSON form, given that
+     * we've seen the initial '"' character.
+     *
+     * @return true if the string was skipped, false if it isn't in strict
+     *    JSON form.
+     */
+    private boolean skipStrictString() {
+        while (true) {
+            int c = next();
+            if (c == '"') {
+                return true;
+            } else if (c == '\\') {
+                c = next();
+                if (c == 'u') {
+                    for (int i = 0; i < 4; ++i) {
+                        if (hexValue(next()) < 0) {
+                            return false;
+                        }
+                    }
+                } else if (c != '"' && c != '\\' && c != '/' && c != 'b' &&
+                           c != 'f' && c != 'n' && c != 'r' && c != 't') {
+                    return false;
+                }
+            } else if (c < 0x20) {
+                /* Control characters, including newlines, and end of input */
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Consume spaces and tabs, and return the next byte after them.  Other
+     * whitespace and comments are not accepted in text being skipped.
+     *
+     * @return the next byte that is neither a space nor a tab, or -1 if the
+     *    end of the input has been reached.
+     */
+    private int skipStrictWhitespace() {
+        int c = next();
+        while (c == ' ' || c == '\t') {
+            c = next();
+        }
+        return c;
+    }
+
+    /**
+     * Consume whitespace and comments, and return the next byte after them.
+     *
+     * @return the next byte that is neither whitespace nor part of a
+     *    comment, or -1 if the end of the input has been reached.
+     */
+    private int skipWhitespace() {
+        while (true) {
+            int c = next();
+            if (c == '/') {
+                c = peek();
+                if (c == '*') {
+                    ++myPos;
+                    boolean sawStar = false;
+                    while (true) {
+                        c = next();
+                        if (c < 0) {
+                            return -1;
+                        } else if (c == '/' && sawStar) {
+                            break;
+                        } else {
+                            sawStar = (c == '*');
+                        }
+                    }
+                } else if (c == '/') {
+                    ++myPos;
+                    while (true) {
+                        c = next();
+                        if (c < 0 || c == '\n') {
+                            break;
+                        } else if (c == '\r') {
+                            if (peek() == '\n') {
+                                ++myPos;
+                            }
+                            break;
+                        }
+                    }
+                } else {
+                    return '/';
+                }
+            } else if (c == ' ' || (9 <= c && c <= 13) ||
+                       (28 <= c && c <= 31)) {
+                /* Same set as Character.isWhitespace() for ASCII. */
+            } else {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Construct and throw an exception reporting that input exceeds one of
+     * the parser's limits.  Unlike a syntax error, this does not quote the
+     * input, which may be very large.
+     *
+     * @param message  Description of the limit exceeded.
+     */
+    private void limitError(String message) throws SyntaxError {
+        throw new SyntaxError(message + " near position " +
+                              (myPos - myStart));
+    }
+
+    /**
+     * Construct and throw a syntax error exception
+     *
+     * @param message  Helpful message describing what parser had expected
+     */
+    private void syntaxError(String message) throws SyntaxError {
+        throw new SyntaxError(message + " near position " +
+            (myPos - myStart) + " in: ///" +
+            new String(myData, myStart, myEnd - myStart, UTF8) + "///");
+    }
+}
@@ -0,0 +1,167 @@
+package org.elkoserver.json.test;
+
+import org.elkoserver.json.JSONObject;
+import org.elkoserver.json.Parser;
+import org.elkoserver.json.SyntaxError;
+import org.elkoserver.json.UTF8Parser;
+import java.nio.charset.Charset;
+
+/**
+ * Check that UTF8Parser reads what Parser reads, and that it enforces its
+ * depth and member count limits, whether or not nested objects are left
+ * unparsed.
+ */
+public class UTF8ParserTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static int theFailureCount = 0;
+
+    private static final String[] theSamples = {
+        "{}",
+        "{op:\"x\", n:17, neg:-3, big:12345678901234, f:1.5, e:-2.5e-3}",
+        "{'single':'quoted', \"esc\":\"a\\\"b\\\\c\\n\\t\\u00e9\\u20ac\"}",
+        "{s:\"caf\u00e9 \u20ac \ud83d\ude00\", t:true, u:false, v:null}",
+        "{a:[1, [2, [3]], {b:{c:[]}}], d:{e:{f:{g:\"deep\"}}}}",
+        "{ \"to\" : \"user-1\" , \"op\" : \"say\" , \"text\" : \"hi\" }",
+    };
+
+    private static void check(boolean ok, String what) {
+        if (ok) {
+            System.out.println("ok: " + what);
+        } else {
+            System.out.println("FAILED: " + what);
+            ++theFailureCount;
+        }
+    }
+
+    private static UTF8Parser parser(String text, boolean defer) {
+        UTF8Parser parser = new UTF8Parser(text.getBytes(UTF8));
+        parser.setDeferNestedObjects(defer);
+        return parser;
+    }
+
+    /**
+     * Parse some text under some limits.
+     *
+     * @return null if the text was accepted, else the error message.
+     */
+    private static String parseLimited(String text, int maxDepth,
+                                       int maxMembers, boolean defer)
+    {
+        UTF8Parser parser = parser(text, defer);
+        parser.setLimits(maxDepth, maxMembers);
+        try {
+            JSONObject obj = parser.parseObjectLiteral();
+            /* Looking inside forces any deferred objects to be parsed. */
+            obj.toString();
+            return null;
+        } catch (SyntaxError e) {
+            return e.getMessage();
+        }
+    }
+
+    private static void checkAccepted(String what, String text, int maxDepth,
+                                      int maxMembers, boolean defer)
+    {
+        String error = parseLimited(text, maxDepth, maxMembers, defer);
+        check(error == null, what + (error == null ? "" : " (" + error + ")"));
+    }
+
+    private static void checkRejected(String what, String text, int maxDepth,
+                                      int maxMembers, boolean defer)
+    {
+        String error = parseLimited(text, maxDepth, maxMembers, defer);
+        check(error != null && error.indexOf("///") < 0, what);
+    }
+
+    /**
+     * Make an object nested 'depth' deep, alternating objects and arrays.
+     */
+    private static String nested(int depth) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < depth; ++i) {
+            buf.append(i % 2 == 0 ? "{\"x\":" : "[");
+        }
+        buf.append("1");
+        for (int i = depth - 1; i >= 0; --i) {
+            buf.append(i % 2 == 0 ? "}" : "]");
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Make an object whose 'inner' property is an object (or an array) with
+     * 'count' members.
+     */
+    private static String wide(int count, boolean array) {
+        StringBuilder buf = new StringBuilder("{\"inner\":");
+        buf.append(array ? '[' : '{');
+        for (int i = 0; i < count; ++i) {
+            if (i > 0) {
+                buf.append(',');
+            }
+            if (!array) {
+                buf.append("\"m").append(i).append("\":");
+            }
+            buf.append(i);
+        }
+        buf.append(array ? ']' : '}');
+        buf.append('}');
+        return buf.toString();
+    }
+
+    private static void testSameAsParser() {
+        for (String sample : theSamples) {
+            for (int d = 0; d < 2; ++d) {
+                boolean defer = d == 1;
+                String expected;
+                String actual;
+                try {
+                    expected = new Parser(sample).parseObjectLiteral().
+                        toString();
+                } catch (SyntaxError e) {
+                    expected = "error";
+                }
+                try {
+                    actual = parser(sample, defer).parseObjectLiteral().
+                        toString();
+                } catch (SyntaxError e) {
+                    actual = "error: " + e.getMessage();
+                }
+                check(expected.equals(actual), "same as Parser" +
+                      (defer ? " (deferred)" : "") + ": " + sample);
+            }
+        }
+    }
+
+    private static void testLimits(boolean defer) {
+        String how = defer ? " (deferred)" : "";
+        checkAccepted("depth 6 under limit 6" + how, nested(6), 6, 0, defer);
+        checkRejected("depth 7 over limit 6" + how, nested(7), 6, 0, defer);
+        checkAccepted("depth 50 with no limit" + how, nested(50), 0, 0,
+                      defer);
+        checkAccepted("10 properties under limit 10" + how, wide(10, false),
+                      0, 10, defer);
+        checkRejected("11 properties over limit 10" + how, wide(11, false),
+                      0, 10, defer);
+        checkAccepted("10 elements under limit 10" + how, wide(10, true),
+                      0, 10, defer);
+        checkRejected("11 elements over limit 10" + how, wide(11, true),
+                      0, 10, defer);
+        checkAccepted("1000 properties with no limit" + how,
+                      wide(1000, false), 0, 0, defer);
+    }
+
+    public static void main(String[] args) {
+        testSameAsParser();
+        testLimits(false);
+        testLimits(true);
+
+        if (theFailureCount == 0) {
+            System.out.println("all checks passed");
+        } else {
+            System.out.println(theFailureCount + " checks FAILED");
+        }
+        System.exit(theFailureCount == 0 ? 0 : 1);
+    }
+}
@@ -21,14 +21,23 @@ class ClassDesc {
     }
 
     /**
-     * Tell an object database about all the classes this object describes.
+     * Tell an object database about all the classes this object describes,
+     * and do the reflection operations needed to decode them and to dispatch
+     * messages to them, so that this isn't done piecemeal once the server is
+     * running.
      *
      * @param odb  The object database to tell.
      * @param tr  Trace object for error logging.
+     *
+     * @return the number of classes successfully prepared.
      */
-    void useInODB(ObjDB odb, Trace tr) {
+    int useInODB(ObjDB odb, Trace tr) {
+        int count = 0;
         for (ClassTagDesc odbClass : myClasses) {
-            odbClass.useInODB(odb, tr);
+            if (odbClass.useInODB(odb, tr)) {
+                ++count;
+            }
         }
+        return count;
     }
 }
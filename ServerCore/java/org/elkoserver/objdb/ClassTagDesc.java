@@ -1,6 +1,8 @@
 package org.elkoserver.objdb;
 
 import org.elkoserver.foundation.json.JSONMethod;
+import org.elkoserver.foundation.json.MessageDispatcher;
+import org.elkoserver.foundation.json.ObjectDecoder;
 import org.elkoserver.util.trace.Trace;
 
 /**
@@ -25,17 +27,24 @@ class ClassTagDesc {
     }
 
     /**
-     * Tell an object database that about the class this object describes.
+     * Tell an object database that about the class this object describes,
+     * and prepare the class for JSON decoding and message dispatch.
      *
      * @param odb  The object database to tell.
      * @param tr  Trace object for error logging.
+     *
+     * @return true if the class was found and prepared, false if not.
      */
-    void useInODB(ObjDB odb, Trace tr) {
+    boolean useInODB(ObjDB odb, Trace tr) {
         try {
-            odb.addClass(myTag, Class.forName(myClassName));
+            Class<?> type = Class.forName(myClassName);
+            odb.addClass(myTag, type);
+            return ObjectDecoder.prepare(type) &&
+                MessageDispatcher.prepare(type);
         } catch (ClassNotFoundException e) {
             tr.errorm("unable to load class info for '" + myTag + "': class " +
                       e.getMessage() + " not found");
+            return false;
         }
     }
 }
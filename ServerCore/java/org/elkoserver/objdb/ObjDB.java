@@ -7,6 +7,10 @@ import org.elkoserver.util.ArgRunnable;
 
 /**
  * Asynchronous interface to the object database.
+ *
+ * Requests may be made from any run queue.  Result handlers are called in
+ * the run queue that made the request (or, for requests made from outside
+ * any run queue, in the default one).
  */
 public interface ObjDB extends TypeResolver {
     /**
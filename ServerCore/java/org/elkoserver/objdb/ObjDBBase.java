@@ -1,12 +1,12 @@
 package org.elkoserver.objdb;
 
 import java.lang.reflect.Array;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 import org.elkoserver.foundation.json.ObjectDecoder;
 import org.elkoserver.json.JSONArray;
 import org.elkoserver.json.JSONObject;
@@ -21,7 +21,9 @@ import org.elkoserver.util.trace.Trace;
  * interface.
  */
 abstract class ObjDBBase implements ObjDB {
-    /** Table mapping JSON object type tags to Java classes. */
+    /** Table mapping JSON object type tags to Java classes.  This is
+        consulted by whatever thread is decoding objects, which for a local
+        object database is the database's own thread. */
     private Map<String, Class<?>> myClasses;
 
     /** Application trace object for logging. */
@@ -32,7 +34,7 @@ abstract class ObjDBBase implements ObjDB {
      */
     ObjDBBase(Trace appTrace) {
         tr = appTrace;
-        myClasses = new HashMap<String, Class<?>>();
+        myClasses = new ConcurrentHashMap<String, Class<?>>();
     }
 
     /**
@@ -222,7 +224,11 @@ abstract class ObjDBBase implements ObjDB {
             ClassDesc classes = (ClassDesc) obj;
             if (classes != null) {
                 tr.eventi("loading classDesc '" + myTag + "'");
-                classes.useInODB(ObjDBBase.this, tr);
+                long startTime = System.nanoTime();
+                int count = classes.useInODB(ObjDBBase.this, tr);
+                tr.noticei("classDesc '" + myTag + "': prepared " + count +
+                           " classes in " +
+                           (System.nanoTime() - startTime) / 1000000 + "ms");
             } else {
                 tr.errorm("unable to load classDesc '" + myTag + "'");
             }
@@ -33,9 +33,6 @@ public class ObjDBLocal extends ObjDBBase {
     /** Asynch run queue for giving tasks to the ODB thread. */
     private Runner myRunner;
 
-    /** Asynch run queue for giving results back to the main thread. */
-    private Runner myReturnRunner;
-
     /**
      * Create an object to access a local object store.
      *
@@ -78,7 +75,6 @@ public class ObjDBLocal extends ObjDBBase {
         }
         myObjectStore.initialize(props, propRoot, tr);
 
-        myReturnRunner = Runner.currentRunner();
         myRunner = new Runner("Elko RunQueue LocalObjDB");
 
         loadClassDesc(props.getProperty(propRoot + ".classdesc"));
@@ -106,11 +102,13 @@ public class ObjDBLocal extends ObjDBBase {
         private String myRef;
         private String myCollectionName;
         private ArgRunnable myRunnable;
+        private Runner myReturnRunner;
         GetCallHandler(String ref, String collectionName,
                        ArgRunnable runnable) {
             myRef = ref;
             myCollectionName = collectionName;
             myRunnable = runnable;
+            myReturnRunner = Runner.currentRunner();
         }
         public void run() {
             RequestDesc what[] =
@@ -181,12 +179,14 @@ public class ObjDBLocal extends ObjDBBase {
         private String myCollectionName;
         private boolean amRequireNew;
         private ArgRunnable myRunnable;
+        private Runner myReturnRunner;
         PutCallHandler(String ref, JSONLiteral obj, String collectionName,
                        boolean requireNew, ArgRunnable runnable) {
             myRef = ref;
             myObj = obj;
             myCollectionName = collectionName;
             myRunnable = runnable;
+            myReturnRunner = Runner.currentRunner();
             amRequireNew = requireNew;
         }
         public void run() {
@@ -216,6 +216,7 @@ public class ObjDBLocal extends ObjDBBase {
         private JSONLiteral myObj;
         private String myCollectionName;
         private ArgRunnable myRunnable;
+        private Runner myReturnRunner;
         UpdateCallHandler(String ref, int version, JSONLiteral obj,
                           String collectionName, ArgRunnable runnable)
         {
@@ -224,6 +225,7 @@ public class ObjDBLocal extends ObjDBBase {
             myObj = obj;
             myCollectionName = collectionName;
             myRunnable = runnable;
+            myReturnRunner = Runner.currentRunner();
         }
         public void run() {
             UpdateDesc what[] = {
@@ -276,12 +278,14 @@ public class ObjDBLocal extends ObjDBBase {
         private String myCollectionName;
         private int myMaxResults;
         private ArgRunnable myRunnable;
+        private Runner myReturnRunner;
         QueryCallHandler(JSONObject template, String collectionName,
                          int maxResults, ArgRunnable runnable) {
             myTemplate = template;
             myCollectionName = collectionName;
             myMaxResults = maxResults;
             myRunnable = runnable;
+            myReturnRunner = Runner.currentRunner();
         }
         public void run() {
             QueryDesc what[] =
@@ -346,11 +350,13 @@ public class ObjDBLocal extends ObjDBBase {
         private String myRef;
         private String myCollectionName;
         private ArgRunnable myRunnable;
+        private Runner myReturnRunner;
         RemoveCallHandler(String ref, String collectionName,
                           ArgRunnable runnable) {
             myRef = ref;
             myCollectionName = collectionName;
             myRunnable = runnable;
+            myReturnRunner = Runner.currentRunner();
         }
         public void run() {
             RequestDesc what[] =
@@ -374,7 +380,8 @@ public class ObjDBLocal extends ObjDBBase {
     }
 
     /**
-     * Runnable to invoke an ArgRunnable.  Runs in the main thread.
+     * Runnable to invoke an ArgRunnable.  Runs in the thread of the run queue
+     * that made the request.
      */
     private class ArgRunnableRunnable implements Runnable {
         private ArgRunnable myRunnable;
@@ -1,9 +1,9 @@
 package org.elkoserver.objdb;
 
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.elkoserver.foundation.boot.BootProperties;
 import org.elkoserver.foundation.json.MessageDispatcher;
 import org.elkoserver.foundation.net.Connection;
@@ -112,7 +112,7 @@ public class ObjDBRemote extends ObjDBBase {
         amClosing = false;
         addClass("obji", ObjectDesc.class);
         addClass("stati", ResultDesc.class);
-        myPendingRequests = new HashMap<String, PendingRequest>();
+        myPendingRequests = new ConcurrentHashMap<String, PendingRequest>();
         myUnsentRequests = null;
         myMessageHandlerFactory = new MessageHandlerFactory() {
                 public MessageHandler provideMessageHandler(Connection conn) {
@@ -185,7 +185,7 @@ public class ObjDBRemote extends ObjDBBase {
      * @param odbActor  Actor representing the connection to the repository;
      *    this may be null, indicating that a connection has been lost.
      */
-    void repositoryConnected(ODBActor odbActor) {
+    synchronized void repositoryConnected(ODBActor odbActor) {
         myODBActor = odbActor;
 
         if (odbActor == null) {
@@ -304,7 +304,7 @@ public class ObjDBRemote extends ObjDBBase {
      *
      * @param req  The new request.
      */
-    private void newRequest(PendingRequest req) {
+    private synchronized void newRequest(PendingRequest req) {
         myPendingRequests.put(req.tag(), req);
         if (myODBActor != null) {
             req.sendRequest(myODBActor);
@@ -1,5 +1,7 @@
 package org.elkoserver.objdb;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import org.elkoserver.foundation.run.Runner;
 import org.elkoserver.json.EncodeControl;
 import org.elkoserver.json.Encodable;
 import org.elkoserver.json.JSONLiteral;
@@ -12,7 +14,7 @@ import org.elkoserver.util.ArgRunnable;
  */
 class PendingRequest {
     /** Counter for generating request tags. */
-    private static int theTagCounter = 0;
+    private static AtomicInteger theTagCounter = new AtomicInteger();
 
     /** Tag to match request with reply */
     private String myTag;
@@ -29,6 +31,10 @@ class PendingRequest {
     /** Handler to be called with request result when available. */
     private ArgRunnable myHandler;
 
+    /** Run queue that made the request, in which the handler will be
+        called. */
+    private Runner myRunner;
+
     /**
      * Private constructor.  N.b.: initially, the object has no encoded message
      * associated with it and thus should not be used until the message is
@@ -41,8 +47,9 @@ class PendingRequest {
      */
     private PendingRequest(ArgRunnable handler, String ref,
                            String collectionName) {
-        myTag = Integer.toString(++theTagCounter);
+        myTag = Integer.toString(theTagCounter.incrementAndGet());
         myHandler = handler;
+        myRunner = Runner.currentRunner();
         myRef = ref;
         myCollectionName = collectionName;
         myMsg = null;
@@ -66,13 +73,23 @@ class PendingRequest {
     }
 
     /**
-     * Handle a reply from the repository.
+     * Handle a reply from the repository.  The handler is called in the run
+     * queue that made the request, with the same priority as the reply
+     * itself.
      *
      * @param obj  The reply object.
      */
-    void handleReply(Object obj) {
+    void handleReply(final Object obj) {
         if (myHandler != null) {
-            myHandler.run(obj);
+            if (myRunner.isCurrentThreadInRunner()) {
+                myHandler.run(obj);
+            } else {
+                myRunner.enqueue(new Runnable() {
+                    public void run() {
+                        myHandler.run(obj);
+                    }
+                }, Runner.isCurrentTaskPriority());
+            }
         }
     }
 
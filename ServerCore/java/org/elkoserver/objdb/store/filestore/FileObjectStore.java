@@ -1,15 +1,17 @@
 package org.elkoserver.objdb.store.filestore;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import org.elkoserver.foundation.boot.BootProperties;
 import org.elkoserver.json.JSONArray;
 import org.elkoserver.json.JSONObject;
-import org.elkoserver.json.Parser;
+import org.elkoserver.json.UTF8Parser;
 import org.elkoserver.objdb.store.GetResultHandler;
 import org.elkoserver.objdb.store.ObjectDesc;
 import org.elkoserver.objdb.store.ObjectStore;
@@ -108,13 +110,20 @@ public class FileObjectStore implements ObjectStore {
             File file = odbFile(ref);
             long length = file.length();
             if (length > 0) {
-                FileReader objReader = new FileReader(file);
-                char buf[] = new char[(int) length];
-                objReader.read(buf);
+                FileInputStream objReader = new FileInputStream(file);
+                byte buf[] = new byte[(int) length];
+                int count = 0;
+                while (count < buf.length) {
+                    int n = objReader.read(buf, count, buf.length - count);
+                    if (n < 0) {
+                        break;
+                    }
+                    count += n;
+                }
                 objReader.close();
-                obj = new String(buf);
-                Parser parser = new Parser(obj);
+                UTF8Parser parser = new UTF8Parser(buf, 0, count);
                 JSONObject jsonObj = parser.parseObjectLiteral();
+                obj = new String(buf, 0, count, "UTF-8");
                 contents = doGetContents(jsonObj);
             } else {
                 failure = "not found";
@@ -167,7 +176,8 @@ public class FileObjectStore implements ObjectStore {
             failure = "requireNew option not supported in file store";
         } else {
             try {
-                FileWriter objWriter = new FileWriter(odbFile(ref));
+                Writer objWriter = new OutputStreamWriter(
+                    new FileOutputStream(odbFile(ref)), "UTF-8");
                 objWriter.write(obj);
                 objWriter.close();
             } catch (Exception e) {
@@ -5,6 +5,7 @@ import org.elkoserver.foundation.json.JSONMethod;
 import org.elkoserver.foundation.json.MessageHandlerException;
 import org.elkoserver.foundation.json.OptBoolean;
 import org.elkoserver.foundation.json.OptString;
+import org.elkoserver.foundation.run.RunnerStats;
 import org.elkoserver.foundation.server.metadata.LoadDesc;
 import org.elkoserver.foundation.server.metadata.ServiceDesc;
 import org.elkoserver.json.JSONLiteral;
@@ -29,6 +30,9 @@ import java.util.List;
  *   'reinit' - Requests the broker to order the reinitialization of zero or
  *      more of the servers it knows about, and, optionally, itself.
  *
+ *   'runstats' - Requests statistics about the work done by the server's
+ *      run queues.
+ *
  *   'servicedesc' - Requests a description of available services that the
  *      broker knows about, optionally limiting the scope of the query to
  *      particular service name classes.
@@ -190,6 +194,22 @@ class AdminHandler extends BasicProtocolHandler {
         }
     }
 
+    /**
+     * Handle the 'runstats' verb.
+     *
+     * Request statistics about the work done by the server's run queues.
+     *
+     * @param from  The administrator asking for the information.
+     */
+    @JSONMethod
+    public void runstats(BrokerActor from) throws MessageHandlerException {
+        from.ensureAuthorizedAdmin();
+        JSONLiteral msg = new JSONLiteral(this, "runstats");
+        msg.addParameter("runners", RunnerStats.encodeAll());
+        msg.finish();
+        from.send(msg);
+    }
+
     /**
      * Handle the 'servicedesc' verb.
      *
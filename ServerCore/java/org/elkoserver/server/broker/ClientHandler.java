@@ -84,6 +84,9 @@ class ClientHandler extends BasicProtocolHandler {
      *
      * @param from  The client asking to find a service.
      * @param service  The name of the service they are seeking.
+     * @param protocol  Optional protocol (default "tcp") by which the service
+     *    is to be reached, or a comma-separated list of acceptable protocols
+     *    in order of preference.
      * @param wait  Optional time (default 0) to wait for service to become
      *    available (0 means don't wait, a negative value means wait forever).
      * @param monitor  Optional flag (default false) to keep looking for new
@@ -100,9 +103,18 @@ class ClientHandler extends BasicProtocolHandler {
         int wait = optWait.value(0);
         boolean monitor = optMonitor.value(false);
         String tag = optTag.value(null);
-        String protocol = optProtocol.value("tcp");
+        String protocols = optProtocol.value("tcp");
 
-        Iterable<ServiceDesc> services = myBroker.services(service, protocol);
+        /* The protocol may be a comma-separated list of acceptable
+           protocols, most preferred first; the services reachable via the
+           first protocol that has any are the ones returned. */
+        Iterable<ServiceDesc> services = null;
+        for (String protocol : protocols.split(",")) {
+            services = myBroker.services(service, protocol.trim());
+            if (services.iterator().hasNext()) {
+                break;
+            }
+        }
         if (!services.iterator().hasNext()) {
             if (wait == 0) {
                 findFailure(from, service, tag);
@@ -6,6 +6,7 @@ import org.elkoserver.foundation.json.MessageHandlerException;
 import org.elkoserver.foundation.json.OptBoolean;
 import org.elkoserver.foundation.json.OptInteger;
 import org.elkoserver.foundation.json.OptString;
+import org.elkoserver.foundation.run.Runner;
 import org.elkoserver.foundation.timer.Timeout;
 import org.elkoserver.foundation.timer.TimeoutNoticer;
 import org.elkoserver.foundation.timer.Timer;
@@ -98,6 +99,9 @@ public class Context extends BasicObject implements Deliverer {
     /** Optional watcher for friend presence changes. */
     private PresenceWatcher myPresenceWatcher;
 
+    /** Run queue that handles everything that happens in this context. */
+    private volatile Runner myRunner;
+
     /** Trace object for diagnostics. */
     private Trace tr;
 
@@ -192,6 +196,7 @@ public class Context extends BasicObject implements Deliverer {
         myLoadedFromRef = loadedFromRef;
         amClosing = false;
         amForceClosing = false;
+        myRunner = contextor.assignShard();
         contextor.noteContext(this, true);
     }
 
@@ -447,6 +452,15 @@ public class Context extends BasicObject implements Deliverer {
         return amAllowableTemplate || amMandatoryTemplate;
     }
 
+    /**
+     * Test if this context is being shut down.
+     *
+     * @return true iff this context is closing and will admit no more users.
+     */
+    boolean isClosing() {
+        return amClosing;
+    }
+
     /**
      * Test if this context may be used as a template for other contexts but
      * may not be instantiated directly.
@@ -641,12 +655,24 @@ public class Context extends BasicObject implements Deliverer {
         myRetainCount += 1;
     }
 
+    /**
+     * Obtain the run queue that handles everything that happens in this
+     * context.  Code running anywhere else must not touch this context or
+     * anything in it directly, but should instead pass what it wants done to
+     * this run queue (see {@link Contextor#runInContext}).
+     *
+     * @return this context's run queue, or null if it has not been activated.
+     */
+    public Runner runner() {
+        return myRunner;
+    }
+
     /**
      * Schedule a timer event associated with this context.  This is different
      * from scheduling a timer event directly using the Timer class in two
      * significant ways: first, it ensures that the context is retained until
      * after the event happens; second, it executes the event handler thunk on
-     * the server's run queue instead of in the Timer thread, so that we won't
+     * the context's run queue instead of in the Timer thread, so that we won't
      * get reentrancy.
      *
      * Another notable difference is that unlike direct Timer events, there is
@@ -664,8 +690,8 @@ public class Context extends BasicObject implements Deliverer {
 
     /**
      * Class to hold onto a context event thunk so that when the timer triggers
-     * the event, the thunk is executed on the server run queue and the context
-     * is then released.
+     * the event, the thunk is executed on the context's run queue and the
+     * context is then released.
      */
     private class ContextEventThunk implements Runnable, TimeoutNoticer {
         private Runnable myThunk;
@@ -675,7 +701,7 @@ public class Context extends BasicObject implements Deliverer {
         }
 
         public void noticeTimeout() {
-            myContextor.server().enqueue(this);
+            myRunner.enqueue(this);
         }
 
         public void run() {
@@ -10,10 +10,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 import org.elkoserver.foundation.actor.RefTable;
 import org.elkoserver.foundation.json.DispatchTarget;
 import org.elkoserver.foundation.json.MessageHandlerException;
 import org.elkoserver.foundation.net.Connection;
+import org.elkoserver.foundation.run.Runner;
 import org.elkoserver.foundation.server.Server;
 import org.elkoserver.foundation.server.ShutdownWatcher;
 import org.elkoserver.foundation.server.metadata.HostDesc;
@@ -21,7 +23,6 @@ import org.elkoserver.json.JSONArray;
 import org.elkoserver.json.JSONDecodingException;
 import org.elkoserver.json.JSONLiteral;
 import org.elkoserver.json.JSONObject;
-import org.elkoserver.json.Parser;
 import org.elkoserver.json.Referenceable;
 import org.elkoserver.json.SyntaxError;
 import org.elkoserver.objdb.ObjDB;
@@ -31,6 +32,20 @@ import org.elkoserver.util.trace.Trace;
 
 /**
  * Main state data structure in a Context Server.
+ *
+ * <p>The contexts a server hosts may be spread across several run queues,
+ * or shards, so that a server can make use of more than one processor (the
+ * number of shards is set by the property <tt>"conf.context.shards"</tt>,
+ * which defaults to 1).  Each context, and everything in it, belongs to the
+ * shard it was assigned to when it was activated, and is only ever touched
+ * from that shard's run queue: messages to it, its timer events, and the
+ * results of the object database requests made on its behalf are all handled
+ * there.  Everything else, including the loading of contexts and users, the
+ * tables of open contexts and users, and all dealings with directors and
+ * presence servers, belongs to the server's main run queue, which is also
+ * the first shard.  Work that crosses from one to the other is passed
+ * between them explicitly, by {@link #runInContext runInContext()} and
+ * {@link #runInMain runInMain()}.
  */
 public class Contextor extends RefTable {
     /** Database that persistent objects are stored in. */
@@ -89,8 +104,20 @@ public class Contextor extends RefTable {
     /** Random number generator, for creating unique IDs and sub-IDs. */
     static private SecureRandom theRandom = new SecureRandom();
 
-    /** Mods on completed objects awaiting notification that they're ready. */
-    private List<ObjectCompletionWatcher> myPendingObjectCompletionWatchers;
+    /** Mods on completed objects awaiting notification that they're ready,
+        kept separately for each run queue since each run queue completes the
+        objects it is working on independently. */
+    private ThreadLocal<List<ObjectCompletionWatcher>>
+        myPendingObjectCompletionWatchers;
+
+    /** The server's main run queue. */
+    private Runner myMainRunner;
+
+    /** Run queues contexts are assigned to, the first being the main one. */
+    private Runner myShards[];
+
+    /** Number of open contexts assigned to each shard. */
+    private int myShardContextCounts[];
 
     /**
      * Constructor.
@@ -152,21 +179,41 @@ public class Contextor extends RefTable {
         myUsers = new HashSet<User>();
         myDirectorGroup = null;
         myPresencerGroup = null;
-        myUserNames = new HashMap<String, String>();
-        myContextNames = new HashMap<String, String>();
-        myPendingObjectCompletionWatchers = null;
+        myUserNames = new ConcurrentHashMap<String, String>();
+        myContextNames = new ConcurrentHashMap<String, String>();
+        myPendingObjectCompletionWatchers =
+            new ThreadLocal<List<ObjectCompletionWatcher>>();
         initializeContextFamilies();
+        initializeShards(server.props().intProperty("conf.context.shards",
+                                                    1));
         myPendingGets = new HashMap<String, Set<ArgRunnable>>();
-        myStaticObjects = new HashMap<String, Object>();
+        myStaticObjects = new ConcurrentHashMap<String, Object>();
         loadStaticObjects(server.props().getProperty("conf.context.statics"));
 
         server.registerShutdownWatcher(new ShutdownWatcher() {
                 public void noteShutdown() {
                     /* List copy to avert ConcurrentModificationException */
-                    List<User> saveUsers = new LinkedList<User>(myUsers);
-                    for (User user : saveUsers) {
-                        user.exitContext("server shutting down", "shutdown",
-                                         false);
+                    final List<User> saveUsers = new LinkedList<User>(myUsers);
+                    for (final Runner shard : myShards) {
+                        Callable<Object> shutdownShard =
+                            new Callable<Object>() {
+                                public Object call() {
+                                    shutdownShard(shard, saveUsers);
+                                    return null;
+                                }
+                            };
+                        if (shard == myMainRunner) {
+                            try {
+                                shutdownShard.call();
+                            } catch (Exception e) {
+                                /* Can't happen */
+                            }
+                        } else {
+                            /* Wait for the shard, so that everything it
+                               saves is written before the ODB shuts down. */
+                            shard.now(shutdownShard);
+                            shard.orderlyShutdown();
+                        }
                     }
                     if (myDirectorGroup != null) {
                         myDirectorGroup.disconnectHosts();
@@ -174,12 +221,165 @@ public class Contextor extends RefTable {
                     if (myPresencerGroup != null) {
                         myPresencerGroup.disconnectHosts();
                     }
-                    checkpointAll();
+                    checkpointAll(myMainRunner);
                     myODB.shutdown();
                 }
             });
     }
 
+    /**
+     * Set up the run queues that contexts will be assigned to.
+     *
+     * @param count  How many there should be, including the main one.
+     */
+    private void initializeShards(int count) {
+        myMainRunner = Runner.currentRunner();
+        if (count < 1) {
+            count = 1;
+        }
+        myShards = new Runner[count];
+        myShardContextCounts = new int[count];
+        myShards[0] = myMainRunner;
+        for (int i = 1; i < count; ++i) {
+            myShards[i] = new Runner("Elko RunQueue Context Shard " + i);
+        }
+        if (count > 1) {
+            tr.worldi("contexts sharded across " + count + " run queues");
+        }
+    }
+
+    /**
+     * Exit the users in the contexts belonging to a shard, and save the
+     * objects belonging to it, at server shutdown.  Runs in the shard's run
+     * queue.
+     *
+     * @param shard  The shard.
+     * @param users  All the users on the server.
+     */
+    private void shutdownShard(Runner shard, List<User> users) {
+        for (User user : users) {
+            if (runnerFor(user.context()) == shard) {
+                user.exitContext("server shutting down", "shutdown", false);
+            }
+        }
+        if (shard != myMainRunner) {
+            checkpointAll(shard);
+        }
+    }
+
+    /**
+     * Pick the shard for a newly activated context: whichever one has the
+     * fewest contexts already.
+     *
+     * @return the run queue that will handle the new context.
+     */
+    Runner assignShard() {
+        int best = 0;
+        for (int i = 1; i < myShards.length; ++i) {
+            if (myShardContextCounts[i] < myShardContextCounts[best]) {
+                best = i;
+            }
+        }
+        ++myShardContextCounts[best];
+        return myShards[best];
+    }
+
+    /**
+     * Note that a context has closed, so that its shard has room for more.
+     *
+     * @param shard  The run queue that handled the context.
+     */
+    private void releaseShard(Runner shard) {
+        for (int i = 0; i < myShards.length; ++i) {
+            if (myShards[i] == shard) {
+                --myShardContextCounts[i];
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the run queue that handles a context.
+     *
+     * @param context  The context of interest, or null.
+     *
+     * @return the run queue that handles 'context', or the main run queue if
+     *    'context' is null or has not been activated yet.
+     */
+    Runner runnerFor(Context context) {
+        Runner runner = null;
+        if (context != null) {
+            runner = context.runner();
+        }
+        if (runner == null) {
+            return myMainRunner;
+        } else {
+            return runner;
+        }
+    }
+
+    /**
+     * Get the run queue in which a message received from a user should be
+     * handled: the one that handles the context of the object the message
+     * is addressed to, or the main one for anything else.
+     *
+     * @param message  The message.
+     *
+     * @return the run queue that should handle 'message'.
+     */
+    Runner runnerFor(JSONObject message) {
+        if (myShards.length > 1) {
+            String targetRef = message.target();
+            if (targetRef != null) {
+                DispatchTarget target = get(targetRef);
+                if (target instanceof BasicObject) {
+                    return runnerFor(((BasicObject) target).context());
+                }
+            }
+        }
+        return myMainRunner;
+    }
+
+    /**
+     * Run something in the run queue that handles a context: right away if
+     * that is the current one, or otherwise as soon as that run queue gets
+     * to it.
+     *
+     * @param context  The context the thing to be done concerns, or null
+     *    if it doesn't concern any context.
+     * @param todo  The thing to do.
+     */
+    void runInContext(Context context, Runnable todo) {
+        runIn(runnerFor(context), todo);
+    }
+
+    /**
+     * Run something in the main run queue: right away if that is the current
+     * one, or otherwise as soon as the main run queue gets to it.
+     *
+     * @param todo  The thing to do.
+     */
+    void runInMain(Runnable todo) {
+        runIn(myMainRunner, todo);
+    }
+
+    /**
+     * Run something in a given run queue, right away if it is the current
+     * one.  If it has to wait, it waits with the same priority as whatever
+     * is running now, so that work done on behalf of control traffic keeps
+     * its priority when it moves to another run queue.
+     *
+     * @param runner  The run queue.
+     * @param todo  The thing to do.
+     */
+    private static void runIn(Runner runner, Runnable todo) {
+        if (runner.isCurrentThreadInRunner()) {
+            todo.run();
+        } else {
+            runner.enqueue(todo, Runner.isCurrentTaskPriority());
+        }
+    }
+
     private void initializeContextFamilies() {
         myContextFamilies = new HashSet<String>();
         myContextFamilies.add("c");
@@ -216,10 +416,13 @@ public class Contextor extends RefTable {
      * @param watcher  The watching Mod to be notified.
      */
     void addPendingObjectCompletionWatcher(ObjectCompletionWatcher watcher) {
-        if (myPendingObjectCompletionWatchers == null) {
-            myPendingObjectCompletionWatchers = new LinkedList<>();
+        List<ObjectCompletionWatcher> watchers =
+            myPendingObjectCompletionWatchers.get();
+        if (watchers == null) {
+            watchers = new LinkedList<>();
+            myPendingObjectCompletionWatchers.set(watchers);
         }
-        myPendingObjectCompletionWatchers.add(watcher);
+        watchers.add(watcher);
     }
 
     /**
@@ -228,10 +431,10 @@ public class Contextor extends RefTable {
      * As a side effect, this will clear the list of who is waiting.
      */
     void notifyPendingObjectCompletionWatchers() {
-        if (myPendingObjectCompletionWatchers != null) {
-            List<ObjectCompletionWatcher> targets =
-                myPendingObjectCompletionWatchers;
-            myPendingObjectCompletionWatchers = null;
+        List<ObjectCompletionWatcher> targets =
+            myPendingObjectCompletionWatchers.get();
+        if (targets != null) {
+            myPendingObjectCompletionWatchers.remove();
             for (ObjectCompletionWatcher target : targets) {
                 target.objectIsComplete();
             }
@@ -302,13 +505,18 @@ public class Contextor extends RefTable {
     }
 
     /**
-     * Save all changed objects that need saving.
+     * Save all changed objects belonging to a shard that need saving.
+     *
+     * @param shard  The run queue whose objects are to be saved.  Objects
+     *    that aren't in any context belong to the main one.
      */
-    void checkpointAll() {
+    private void checkpointAll(Runner shard) {
         for (DispatchTarget candidate : this) {
             if (candidate instanceof BasicObject) {
                 BasicObject object = (BasicObject) candidate;
-                object.checkpointWithoutContents();
+                if (runnerFor(object.context()) == shard) {
+                    object.checkpointWithoutContents();
+                }
             }
         }
     }
@@ -460,12 +668,18 @@ public class Contextor extends RefTable {
      * @param destination  Object instance to deliver to.
      * @param message  The message to deliver.
      */
-    void deliverMessage(BasicObject destination, JSONObject message) {
-        try {
-            dispatchMessage(null, destination, message);
-        } catch (MessageHandlerException e) {
-            tr.eventm("ignoring error from internal msg relay: " + e);
-        }
+    void deliverMessage(final BasicObject destination,
+                        final JSONObject message)
+    {
+        runInContext(destination.context(), new Runnable() {
+            public void run() {
+                try {
+                    dispatchMessage(null, destination, message);
+                } catch (MessageHandlerException e) {
+                    tr.eventm("ignoring error from internal msg relay: " + e);
+                }
+            }
+        });
     }
 
     /**
@@ -1142,12 +1356,20 @@ public class Contextor extends RefTable {
     /**
      * Do record keeping associated with tracking the set of open contexts:
      * tell the directors that a context has been opened or closed and update
-     * the context clone collection.
+     * the context clone collection.  This is done in the main run queue.
      *
      * @param context  The context.
      * @param open  true if opened, false if closed.
      */
-    void noteContext(Context context, boolean open) {
+    void noteContext(final Context context, final boolean open) {
+        if (!myMainRunner.isCurrentThreadInRunner()) {
+            myMainRunner.enqueue(new Runnable() {
+                public void run() {
+                    noteContext(context, open);
+                }
+            }, Runner.isCurrentTaskPriority());
+            return;
+        }
         if (open) {
             myContexts.add(context);
             if (context.baseCapacity() > 0) {
@@ -1158,6 +1380,7 @@ public class Contextor extends RefTable {
             if (context.baseCapacity() > 0) {
                 myContextClones.remove(context.baseRef(), context);
             }
+            releaseShard(context.runner());
         }
         if (myDirectorGroup != null) {
             myDirectorGroup.noteContext(context, open);
@@ -1169,24 +1392,40 @@ public class Contextor extends RefTable {
 
     /**
      * Tell the directors that a context gate has been opened or closed.
+     * This is done in the main run queue.
      *
      * @param context  The context whose gate is being opened or closed
      * @param open  Flag indicating open or closed
      * @param reason  Reason for closing the gate
      */
-    void noteContextGate(Context context, boolean open, String reason) {
-        if (myDirectorGroup != null) {
-            myDirectorGroup.noteContextGate(context, open, reason);
-        }
+    void noteContextGate(final Context context, final boolean open,
+                         final String reason)
+    {
+        runInMain(new Runnable() {
+            public void run() {
+                if (myDirectorGroup != null) {
+                    myDirectorGroup.noteContextGate(context, open, reason);
+                }
+            }
+        });
     }
 
     /**
-     * Tell the directors that a user has come or gone.
+     * Tell the directors that a user has come or gone.  This is done in the
+     * main run queue.
      *
      * @param user  The user.
      * @param on  true if now online, false if now offline.
      */
-    void noteUser(User user, boolean on) {
+    void noteUser(final User user, final boolean on) {
+        if (!myMainRunner.isCurrentThreadInRunner()) {
+            myMainRunner.enqueue(new Runnable() {
+                public void run() {
+                    noteUser(user, on);
+                }
+            }, Runner.isCurrentTaskPriority());
+            return;
+        }
         if (on) {
             myUsers.add(user);
         } else {
@@ -1212,10 +1451,10 @@ public class Contextor extends RefTable {
      * @param whereMeta  Optional metadata about the context entered or exited
      * @param on  True if they came, false if they left
      */
-    void observePresenceChange(String contextRef, String observerRef,
-                               String domain, String whoRef,
-                               JSONObject whoMeta, String whereRef,
-                               JSONObject whereMeta, boolean on)
+    void observePresenceChange(String contextRef, final String observerRef,
+                               final String domain, final String whoRef,
+                               JSONObject whoMeta, final String whereRef,
+                               JSONObject whereMeta, final boolean on)
     {
         if (whoMeta != null) {
             try {
@@ -1231,10 +1470,14 @@ public class Contextor extends RefTable {
             } catch (JSONDecodingException e) {
             }
         }
-        Context subscriber = (Context) get(contextRef);
+        final Context subscriber = (Context) get(contextRef);
         if (subscriber != null) {
-            subscriber.observePresenceChange(observerRef, domain, whoRef,
-                                             whereRef, on);
+            runInContext(subscriber, new Runnable() {
+                public void run() {
+                    subscriber.observePresenceChange(observerRef, domain,
+                                                     whoRef, whereRef, on);
+                }
+            });
         } else {
             tr.warningi("presence change of " + whoRef +
                         (on ? " entering " : " exiting ") + whereRef +
@@ -1286,9 +1529,13 @@ public class Contextor extends RefTable {
      * @param who  The user being pushed
      * @param contextRef  The ref of the context to push them to.
      */
-    void pushNewContext(User who, String contextRef) {
+    void pushNewContext(final User who, final String contextRef) {
         if (myDirectorGroup != null) {
-            myDirectorGroup.pushNewContext(who, contextRef);
+            runInMain(new Runnable() {
+                public void run() {
+                    myDirectorGroup.pushNewContext(who, contextRef);
+                }
+            });
         } else {
             who.exitWithContextChange(contextRef, null, null);
         }
@@ -1368,52 +1615,64 @@ public class Contextor extends RefTable {
      * @param source  Object that is sending the message.
      * @param message  The message itself.
      */
-    void relay(BasicObject source, JSONLiteral message) {
+    void relay(BasicObject source, final JSONLiteral message) {
         if (source.isClone()) {
-            String baseRef = source.baseRef();
-            String contextRef = null;
-            String userRef = null;
+            final String baseRef = source.baseRef();
+            final String contextRef;
+            final String userRef;
 
             if (source instanceof Context) {
                 contextRef = baseRef;
+                userRef = null;
             } else if (source instanceof User) {
+                contextRef = null;
                 userRef = baseRef;
             } else {
                 throw new Error("relay from inappropriate object");
             }
 
-            JSONObject msgObject = null;
+            /* Each run queue that receives the message gets its own copy of
+               it, since a JSONObject (whose nested objects are parsed as
+               they are looked at) must not be used by two threads at once. */
+            Map<Runner, JSONObject> msgObjects =
+                new HashMap<Runner, JSONObject>();
             for (DispatchTarget target : clones(baseRef)) {
                 BasicObject obj = (BasicObject) target;
                 if (obj != source) {
+                    Runner runner = runnerFor(obj.context());
+                    JSONObject msgObject = msgObjects.get(runner);
                     if (msgObject == null) {
-                        /* Generating the text form of the message and then
-                           parsing it internally may seem like a ludicrously
-                           inefficient way to do this, but it saves a vast
-                           amount of complication that would otherwise result
-                           if internal message relay had to be treated as a
-                           special case.  Note that the expensive operations
-                           are conditional inside the loop, so that if there is
-                           no local relaying to do, no parsing is done, and it
-                           is only ever done once in any case.  If this
-                           actually turns out to be a performance issue in
-                           practice (unlikely, IMHO), this can be revisited. */
+                        /* Turning the message back into an object, as if it
+                           had been received, saves a vast amount of
+                           complication that would otherwise result if
+                           internal message relay had to be treated as a
+                           special case.  The object is parsed straight from
+                           the literal's bytes, and any objects nested in it
+                           are only parsed if the recipient looks at them.
+                           Note that this is conditional inside the loop, so
+                           that if there is no local relaying to do, no
+                           parsing is done, and it is only ever done once per
+                           run queue in any case. */
                         try {
-                            msgObject =
-                                new Parser(message.sendableString()).
-                                   parseObjectLiteral();
+                            msgObject = message.toJSONObject();
                         } catch (SyntaxError e) {
                             tr.errorm(
                                 "syntax error in internal JSON message: " +
                                 e.getMessage());
                             break;
                         }
+                        msgObjects.put(runner, msgObject);
                     }
                     deliverMessage(obj, msgObject);
                 }
             }
             if (myDirectorGroup != null) {
-                myDirectorGroup.relay(baseRef, contextRef, userRef, message);
+                runInMain(new Runnable() {
+                    public void run() {
+                        myDirectorGroup.relay(baseRef, contextRef, userRef,
+                                              message);
+                    }
+                });
             }
         }
     }
@@ -15,12 +15,14 @@ import org.elkoserver.foundation.json.MessageHandlerException;
 import org.elkoserver.foundation.json.OptBoolean;
 import org.elkoserver.foundation.json.OptString;
 import org.elkoserver.foundation.net.Connection;
+import org.elkoserver.foundation.run.Runner;
 import org.elkoserver.foundation.server.metadata.HostDesc;
 import org.elkoserver.foundation.timer.TimeoutNoticer;
 import org.elkoserver.foundation.timer.Timer;
 import org.elkoserver.json.JSONLiteral;
 import org.elkoserver.json.JSONObject;
 import org.elkoserver.json.Referenceable;
+import org.elkoserver.json.SyntaxError;
 import org.elkoserver.util.trace.Trace;
 
 /**
@@ -255,7 +257,7 @@ class DirectorActor extends NonRoutingActor {
                       OptBoolean dup)
         throws MessageHandlerException
     {
-        boolean isDup = dup.value(false);
+        final boolean isDup = dup.value(false);
 
         /* Must copy lists of dead users and contexts to avert
            ConcurrentModificationException from user.exitContext() and
@@ -271,11 +273,20 @@ class DirectorActor extends NonRoutingActor {
                 deadUsers.add((User) obj);
             }
         }
-        for (User deaduser : deadUsers) {
-            deaduser.exitContext("admin", "admin", isDup);
+        Contextor contextor = myGroup.contextor();
+        for (final User deadUser : deadUsers) {
+            contextor.runInContext(deadUser.context(), new Runnable() {
+                public void run() {
+                    deadUser.exitContext("admin", "admin", isDup);
+                }
+            });
         }
-        for (Context deadContext : deadContexts) {
-            deadContext.forceClose(isDup);
+        for (final Context deadContext : deadContexts) {
+            contextor.runInContext(deadContext, new Runnable() {
+                public void run() {
+                    deadContext.forceClose(isDup);
+                }
+            });
         }
     }
 
@@ -316,9 +327,27 @@ class DirectorActor extends NonRoutingActor {
                       JSONObject msg)
         throws MessageHandlerException
     {
+        Contextor contextor = myGroup.contextor();
+        /* Each run queue that receives the message gets its own copy of it,
+           since a JSONObject must not be used by two threads at once. */
+        Map<Runner, JSONObject> msgs = new HashMap<Runner, JSONObject>();
         RelayIterator iter = new RelayIterator(context, user);
         while (iter.hasNext()) {
-            myGroup.contextor().deliverMessage((BasicObject) iter.next(), msg);
+            BasicObject destination = (BasicObject) iter.next();
+            Runner runner = contextor.runnerFor(destination.context());
+            JSONObject copy = msgs.get(runner);
+            if (copy == null) {
+                try {
+                    copy = JSONObject.parse(msg.sendableString());
+                } catch (SyntaxError e) {
+                    Trace.comm.errorm(
+                        "syntax error in relayed JSON message: " +
+                        e.getMessage());
+                    return;
+                }
+                msgs.put(runner, copy);
+            }
+            contextor.deliverMessage(destination, copy);
         }
     }
 
@@ -329,10 +358,15 @@ class DirectorActor extends NonRoutingActor {
             INTERNAL_RESERVATION_TIMEOUT,
             new TimeoutNoticer() {
                 public void noticeTimeout() {
-                    User user = myPendingReservationRequests.remove(tag);
-                    if (user != null) {
-                        user.exitContext("no response", "badres", false);
-                    }
+                    myGroup.contextor().runInMain(new Runnable() {
+                        public void run() {
+                            User user =
+                                myPendingReservationRequests.remove(tag);
+                            if (user != null) {
+                                exitUser(user, "no response", "badres");
+                            }
+                        }
+                    });
                 }
             });
         send(msgReserve(this, who.protocol(), contextRef, who.baseRef(), tag));
@@ -350,36 +384,58 @@ class DirectorActor extends NonRoutingActor {
      * @param tag  Optional tag for requestor to match
      */
     @JSONMethod({ "context", "user", "hostport", "reservation", "deny", "tag"})
-    public void reserve(DirectorActor from, String context, OptString optUser,
-                        OptString optHostPort, OptString optReservation,
-                        OptString optDeny, OptString optTag)
+    public void reserve(DirectorActor from, final String context,
+                        OptString optUser, OptString optHostPort,
+                        OptString optReservation, OptString optDeny,
+                        OptString optTag)
         throws MessageHandlerException
     {
         String tag = optTag.value(null);
-        String hostPort = optHostPort.value(null);
-        String reservation = optReservation.value(null);
+        final String hostPort = optHostPort.value(null);
+        final String reservation = optReservation.value(null);
         String deny = optDeny.value(null);
         if (tag != null) {
-            User who = myPendingReservationRequests.remove(tag);
+            final User who = myPendingReservationRequests.remove(tag);
             if (who == null) {
                 Trace.comm.warningi("received reservation for unknown tag " +
                                     tag);
             } else if (deny != null) {
-                who.exitContext(deny, "dirdeny", false);
+                exitUser(who, deny, "dirdeny");
             } else if (hostPort == null) {
-                who.exitContext("no hostport for next context", "dirfail",
-                                false);
+                exitUser(who, "no hostport for next context", "dirfail");
             } else if (reservation == null) {
-                who.exitContext("no reservation for next context", "dirfail",
-                                false);
+                exitUser(who, "no reservation for next context", "dirfail");
             } else {
-                who.exitWithContextChange(context, hostPort, reservation);
+                myGroup.contextor().runInContext(who.context(),
+                    new Runnable() {
+                        public void run() {
+                            who.exitWithContextChange(context, hostPort,
+                                                      reservation);
+                        }
+                    });
             }
         } else {
             Trace.comm.warningi("received reservation reply without tag");
         }
     }
 
+    /**
+     * Kick a user off, in their context's run queue.
+     *
+     * @param who  The user to kick off.
+     * @param why  Explanation of why.
+     * @param whyCode  Machine readable code tag version of 'why'.
+     */
+    private void exitUser(final User who, final String why,
+                          final String whyCode)
+    {
+        myGroup.contextor().runInContext(who.context(), new Runnable() {
+            public void run() {
+                who.exitContext(why, whyCode, false);
+            }
+        });
+    }
+
     /**
      * Handle the 'say' verb.
      *
@@ -391,19 +447,29 @@ class DirectorActor extends NonRoutingActor {
      */
     @JSONMethod({ "context", "user", "text" })
     public void say(DirectorActor from, OptString contextRef,
-                    OptString userRef, String text)
+                    OptString userRef, final String text)
         throws MessageHandlerException
     {
         RelayIterator iter = new RelayIterator(contextRef, userRef);
         while (iter.hasNext()) {
-            Object obj = iter.next();
+            final Object obj = iter.next();
+            Context where;
             if (obj instanceof Context) {
-                Context context = (Context) obj;
-                context.send(Msg.msgSay(context, null, text));
+                where = (Context) obj;
             } else /* if (obj instanceof User) */ {
-                User user = (User) obj;
-                user.send(Msg.msgSay(user, null, text));
+                where = ((User) obj).context();
             }
+            myGroup.contextor().runInContext(where, new Runnable() {
+                public void run() {
+                    if (obj instanceof Context) {
+                        Context context = (Context) obj;
+                        context.send(Msg.msgSay(context, null, text));
+                    } else /* if (obj instanceof User) */ {
+                        User user = (User) obj;
+                        user.send(Msg.msgSay(user, null, text));
+                    }
+                }
+            });
         }
     }
 
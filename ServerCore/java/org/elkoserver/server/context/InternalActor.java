@@ -5,13 +5,18 @@ import org.elkoserver.foundation.actor.BasicProtocolHandler;
 import org.elkoserver.foundation.actor.RoutingActor;
 import org.elkoserver.foundation.json.MessageHandlerException;
 import org.elkoserver.foundation.net.Connection;
+import org.elkoserver.foundation.run.Runner;
 import org.elkoserver.foundation.server.metadata.AuthDesc;
+import org.elkoserver.json.JSONObject;
 import org.elkoserver.util.trace.Trace;
 
 /**
  * Actor for an internal connection to a context server from within the server
  * farm.  Such connnections may send messages to any addressable object but do
- * not have associated users and are not placed into any context.
+ * not have associated users and are not placed into any context.  Each
+ * message is handled in the run queue of the context of the object it is
+ * addressed to (or in the main run queue, if it isn't addressed to something
+ * in a context).
  */
 public class InternalActor extends RoutingActor implements BasicProtocolActor
 {
@@ -85,6 +90,32 @@ public class InternalActor extends RoutingActor implements BasicProtocolActor
         }
     }
 
+    /**
+     * Process a received message in the run queue of the context of the
+     * object it is addressed to.
+     *
+     * @param connection  Connection over which the message was received.
+     * @param receivedMessage  The message received.
+     */
+    public void processMessage(final Connection connection,
+                               final Object receivedMessage)
+    {
+        if (receivedMessage instanceof JSONObject) {
+            Runner runner =
+                myFactory.contextor().runnerFor((JSONObject) receivedMessage);
+            if (!runner.isCurrentThreadInRunner()) {
+                runner.enqueue(new Runnable() {
+                    public void run() {
+                        InternalActor.super.processMessage(connection,
+                                                           receivedMessage);
+                    }
+                }, connection.isPriority());
+                return;
+            }
+        }
+        super.processMessage(connection, receivedMessage);
+    }
+
     /**
      * Return this actor's label.
      */
@@ -4,6 +4,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import org.elkoserver.foundation.json.Deliverer;
+import org.elkoserver.foundation.net.SharedFrame;
 import org.elkoserver.json.JSONLiteral;
 
 /**
@@ -50,11 +51,19 @@ class LiveGroup implements SendGroup {
     /**
      * Send a message to each member of this send group.
      *
+     * The message is encoded for transmission only once, no matter how many
+     * members there are.
+     *
      * @param message  The message to send.
      */
     public void send(JSONLiteral message) {
-        for (Deliverer member : myMembers) {
-            member.send(message);
+        SharedFrame frame = beginBroadcast(message);
+        try {
+            for (Deliverer member : myMembers) {
+                member.send(message);
+            }
+        } finally {
+            endBroadcast(frame);
         }
     }
 
@@ -65,10 +74,45 @@ class LiveGroup implements SendGroup {
      * @param message  The message to send.
      */
     public void sendToNeighbors(Deliverer exclude, JSONLiteral message) {
-        for (Deliverer member : myMembers) {
-            if (member != exclude) {
-                member.send(message);
+        SharedFrame frame = beginBroadcast(message);
+        try {
+            for (Deliverer member : myMembers) {
+                if (member != exclude) {
+                    member.send(message);
+                }
             }
+        } finally {
+            endBroadcast(frame);
+        }
+    }
+
+    /**
+     * Arrange for a message about to be sent to the members of this group to
+     * share a single pre-encoded frame among all their connections, if there
+     * is more than one member to share it.
+     *
+     * @param message  The message about to be sent.
+     *
+     * @return the shared frame to be ended after sending, or null if none.
+     */
+    private SharedFrame beginBroadcast(JSONLiteral message) {
+        if (myMembers.size() > 1) {
+            return SharedFrame.beginSharing(message);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Finish sending a message begun by {@link #beginBroadcast}.  This must
+     * be done even if sending to some member failed, or the frame will never
+     * be released.
+     *
+     * @param frame  The shared frame that was returned by beginBroadcast().
+     */
+    private void endBroadcast(SharedFrame frame) {
+        if (frame != null) {
+            frame.endSharing();
         }
     }
 }
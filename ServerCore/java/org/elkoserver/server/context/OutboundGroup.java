@@ -90,7 +90,8 @@ abstract class OutboundGroup extends LiveGroup {
         Iterator<HostDesc> iter = hosts.iterator();
         while (iter.hasNext()) {
             HostDesc host = iter.next();
-            if (!host.protocol().equals("tcp")) {
+            if (!host.protocol().equals("tcp") &&
+                    !host.protocol().equals("ltcp")) {
                 iter.remove();
                 tr.errorm("unknown " + propRoot + " server access protocol '" +
                     host.protocol() + "' for access to " + host.hostPort() +
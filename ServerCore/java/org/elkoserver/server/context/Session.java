@@ -6,6 +6,7 @@ import org.elkoserver.foundation.json.JSONMethod;
 import org.elkoserver.foundation.json.MessageHandlerException;
 import org.elkoserver.foundation.json.OptBoolean;
 import org.elkoserver.foundation.json.OptString;
+import org.elkoserver.foundation.run.RunnerStats;
 import org.elkoserver.foundation.server.Server;
 import org.elkoserver.json.JSONLiteral;
 import org.elkoserver.json.JSONLiteralArray;
@@ -103,6 +104,8 @@ class Session extends BasicProtocolHandler {
                 }
                 list.finish();
                 reply.addParameter("users", list);
+            } else if (what.equals("runstats")) {
+                reply.addParameter("runners", RunnerStats.encodeAll());
             } else if (what.equals("items")) {
                 // dump items in 'context' or all items
             } else {
@@ -1,9 +1,7 @@
 package org.elkoserver.server.context;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.elkoserver.foundation.actor.BasicProtocolActor;
 import org.elkoserver.foundation.actor.BasicProtocolHandler;
 import org.elkoserver.foundation.actor.RoutingActor;
@@ -11,6 +9,7 @@ import org.elkoserver.foundation.json.Deliverer;
 import org.elkoserver.foundation.json.DispatchTarget;
 import org.elkoserver.foundation.json.SourceRetargeter;
 import org.elkoserver.foundation.net.Connection;
+import org.elkoserver.foundation.run.Runner;
 import org.elkoserver.foundation.server.metadata.AuthDesc;
 import org.elkoserver.foundation.timer.Timeout;
 import org.elkoserver.foundation.timer.TimeoutNoticer;
@@ -21,19 +20,26 @@ import org.elkoserver.util.trace.Trace;
 
 /**
  * Actor representing a connection to a user in one or more contexts.
+ *
+ * <p>Each message received from the user is handled in the run queue of the
+ * context that the object it is addressed to is in (or in the main run queue,
+ * if it isn't addressed to something in a context).  While the user is in
+ * just one context, the connection's messages are all taken straight to that
+ * context's run queue.
  */
 class UserActor
     extends RoutingActor
     implements SourceRetargeter, BasicProtocolActor
 {
-    /** The users this actor is the actor for, by context. */
+    /** The users this actor is the actor for, by context.  This is touched
+        from the run queues of all of those contexts. */
     private Map<Context, User> myUsers;
 
     /** Counter for assigning emphemeral user IDs. */
     static private int theNextTempID = 1;
 
     /** Flag to prevent race in exit where users bump off themselves. */
-    private boolean amDead;
+    private volatile boolean amDead;
 
     /** Timeout for kicking off users who connect and don't enter a context. */
     private Timeout myEntryTimeout;
@@ -72,7 +78,7 @@ class UserActor
         tr = appTrace;
         amDead = false;
 
-        myUsers = new HashMap<Context, User>();
+        myUsers = new ConcurrentHashMap<Context, User>();
         amAuthRequired = authRequired;
         myProtocol = protocol;
         startEntryTimeout();
@@ -106,14 +112,14 @@ class UserActor
     {
         if (!amDead) {
             amDead = true;
-            final List<User> users = new LinkedList<User>(myUsers.values());
-            myContextor.server().enqueue(new Runnable() {
-                    public void run() {
-                        for (User user : users) {
+            for (Map.Entry<Context, User> entry : myUsers.entrySet()) {
+                final User user = entry.getValue();
+                myContextor.runnerFor(entry.getKey()).enqueue(new Runnable() {
+                        public void run() {
                             user.connectionDied(connection, reason);
                         }
-                    }
-                });
+                    }, connection.isPriority());
+            }
             close();
         }
     }
@@ -240,7 +246,7 @@ class UserActor
 
         EnterRunnable runnable =
             new EnterRunnable(userRef, isEphemeral, isAnonymous, name,
-                              contextRef, sess);
+                              contextRef, contextTemplate, opener, sess);
         if (utag != null) {
             myContextor.synthesizeUser(myConnection, utag, uparam, contextRef,
                                        contextTemplate, scope, runnable);
@@ -257,8 +263,8 @@ class UserActor
      * for the user object and once for the context object.  The order in which
      * the two objects are delivered is not important.  On the second
      * invocation it checks to see if both objects were successfully delivered
-     * by the database: If so, it processes the entry normally.  If not, the
-     * user is kicked off.
+     * by the database: If so, it processes the entry normally, in the
+     * context's run queue.  If not, the user is kicked off.
      */
     private class EnterRunnable implements ArgRunnable {
         private String myUserRef;
@@ -266,19 +272,25 @@ class UserActor
         private boolean amAnonymous;
         private String myEntryName;
         private String myContextRef;
+        private String myContextTemplate;
+        private DirectorActor myOpener;
         private String mySess;
         private User myUser;
         private Context myContext;
         private int myComponentCount;
 
         EnterRunnable(String userRef, boolean isEphemeral, boolean isAnonymous,
-                      String entryName, String contextRef, String sess)
+                      String entryName, String contextRef,
+                      String contextTemplate, DirectorActor opener,
+                      String sess)
         {
             myUserRef = userRef;
             amEphemeral = isEphemeral;
             amAnonymous = isAnonymous;
             myEntryName = entryName;
             myContextRef = contextRef;
+            myContextTemplate = contextTemplate;
+            myOpener = opener;
             mySess = sess;
             myUser = null;
             myContext = null;
@@ -302,32 +314,61 @@ class UserActor
                 } else if (myContext == null) {
                     abruptExit("invalid context " + myContextRef,"badcontext");
                 } else {
-                    if (myUserRef == null) {
-                        myUserRef = myUser.ref();
-                    }
-                    if (myUserRef == null) {
-                        myUserRef = myContextor.uniqueID("u");
-                    }
-                    String name = myUser.name();
-                    if (name == null) {
-                        name = myEntryName;
-                    }
-                    String subID = myContextor.uniqueID("");
-                    String ref = myUserRef + subID;
-
-                    myUsers.put(myContext, myUser);
-                    myUser.activate(ref, subID, myContextor, name, mySess,
-                                    amEphemeral, amAnonymous, UserActor.this,
-                                    tr);
-                    myUser.checkpoint();
-                    String problem = myUser.enterContext(myContext);
-                    myContextor.noteUser(myUser, true);
-                    if (problem != null) {
-                        myUser.exitContext(problem, problem, false);
-                    }
+                    myContextor.runInContext(myContext, new Runnable() {
+                        public void run() {
+                            enter();
+                        }
+                    });
                 }
             }
         }
+
+        /**
+         * Enter the user into the context, once both have been obtained.
+         * Runs in the context's run queue.
+         */
+        private void enter() {
+            if (amDead) {
+                return;
+            }
+            if (myContext.isClosing()) {
+                /* The context began shutting down after it was obtained but
+                   before the user could get into it, so get it again. */
+                myContext = null;
+                myComponentCount = 1;
+                myContextor.runInMain(new Runnable() {
+                    public void run() {
+                        myContextor.getOrLoadContext(myContextRef,
+                            myContextTemplate, EnterRunnable.this, myOpener);
+                    }
+                });
+                return;
+            }
+            if (myUserRef == null) {
+                myUserRef = myUser.ref();
+            }
+            if (myUserRef == null) {
+                myUserRef = myContextor.uniqueID("u");
+            }
+            String name = myUser.name();
+            if (name == null) {
+                name = myEntryName;
+            }
+            String subID = myContextor.uniqueID("");
+            String ref = myUserRef + subID;
+
+            myUsers.put(myContext, myUser);
+            myUser.activate(ref, subID, myContextor, name, mySess,
+                            amEphemeral, amAnonymous, UserActor.this, tr);
+            myUser.checkpoint();
+            String problem = myUser.enterContext(myContext);
+            myContextor.noteUser(myUser, true);
+            if (problem != null) {
+                myUser.exitContext(problem, problem, false);
+            } else {
+                updateRunner();
+            }
+        }
     }
 
     /**
@@ -340,6 +381,48 @@ class UserActor
         if (!amDead && myUsers.isEmpty()) {
             startEntryTimeout();
         }
+        updateRunner();
+    }
+
+    /**
+     * Take this actor's connection's messages straight to the run queue of
+     * the context the user is in, if they are in only one, or otherwise to
+     * the main run queue.
+     */
+    private void updateRunner() {
+        Context only = null;
+        if (myUsers.size() == 1) {
+            for (Context context : myUsers.keySet()) {
+                only = context;
+            }
+        }
+        myConnection.setRunner(myContextor.runnerFor(only));
+    }
+
+    /**
+     * Process a received message in the run queue of the context of the
+     * object it is addressed to.
+     *
+     * @param connection  Connection over which the message was received.
+     * @param receivedMessage  The message received.
+     */
+    public void processMessage(final Connection connection,
+                               final Object receivedMessage)
+    {
+        if (receivedMessage instanceof JSONObject) {
+            Runner runner =
+                myContextor.runnerFor((JSONObject) receivedMessage);
+            if (!runner.isCurrentThreadInRunner()) {
+                runner.enqueue(new Runnable() {
+                    public void run() {
+                        UserActor.super.processMessage(connection,
+                                                       receivedMessage);
+                    }
+                }, connection.isPriority());
+                return;
+            }
+        }
+        super.processMessage(connection, receivedMessage);
     }
 
     /**
@@ -62,13 +62,29 @@ public class DevicePersistentUserFactory implements UserFactory {
         final DeviceCredentials creds =
             extractCredentials(contextor.appTrace(), param);
         if (creds != null) {
-            contextor.server().enqueueSlowTask(new Callable<Object>() {
-                public Object call() {
-                    contextor.queryObjects(deviceQuery(creds.uuid), null, 0,
-                      new DeviceQueryResultHandler(contextor, creds, handler));
-                    return null;
-                }
-            }, null);
+            final DeviceQueryResultHandler queryHandler =
+                new DeviceQueryResultHandler(contextor, creds, handler);
+            boolean accepted =
+                contextor.server().enqueueSlowTask(new Callable<Object>() {
+                    public Object call() {
+                        contextor.queryObjects(deviceQuery(creds.uuid), null,
+                                               0, queryHandler);
+                        return null;
+                    }
+                }, new ArgRunnable() {
+                    public void run(Object result) {
+                        /* The task was refused, dropped or timed out, or it
+                           failed outright. */
+                        if (result instanceof Throwable) {
+                            queryHandler.fail((Throwable) result);
+                        }
+                    }
+                });
+            if (!accepted) {
+                contextor.appTrace().warningm(
+                    "slow task queue full, can't look up device user " +
+                    creds.uuid);
+            }
         } else {
             handler.run(null);
         }        
@@ -79,15 +95,48 @@ public class DevicePersistentUserFactory implements UserFactory {
         private DeviceCredentials myCreds;
         private ArgRunnable myHandler;
 
+        /** Flag that myHandler has been called, so it's only called once. */
+        private boolean amAnswered;
+
         DeviceQueryResultHandler(Contextor contextor, DeviceCredentials creds,
                                  ArgRunnable handler)
         {
             myContextor = contextor;
             myCreds = creds;
             myHandler = handler;
+            amAnswered = false;
+        }
+
+        /**
+         * Take the right to call the handler.
+         *
+         * @return true if the handler has not been called already.
+         */
+        private synchronized boolean claim() {
+            if (amAnswered) {
+                return false;
+            }
+            amAnswered = true;
+            return true;
+        }
+
+        /**
+         * Give up on the user, because the query couldn't be made.
+         *
+         * @param problem  What went wrong.
+         */
+        void fail(Throwable problem) {
+            if (claim()) {
+                myContextor.appTrace().warningm("device user lookup for " +
+                    myCreds.uuid + " failed: " + problem);
+                myHandler.run(null);
+            }
         }
 
         public void run(Object queryResult) {
+            if (!claim()) {
+                return;
+            }
             User user;
             Object result[] = (Object []) queryResult;
             if (result != null && result.length > 0) {
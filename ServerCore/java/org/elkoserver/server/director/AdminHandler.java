@@ -5,6 +5,7 @@ import org.elkoserver.foundation.json.JSONMethod;
 import org.elkoserver.foundation.json.MessageHandlerException;
 import org.elkoserver.foundation.json.OptBoolean;
 import org.elkoserver.foundation.json.OptString;
+import org.elkoserver.foundation.run.RunnerStats;
 import org.elkoserver.json.EncodeControl;
 import org.elkoserver.json.Encodable;
 import org.elkoserver.json.JSONLiteral;
@@ -47,6 +48,9 @@ import java.util.Set;
  *      context, context family, or user, by relaying through the appropriate
  *      provider servers for the message target's current location.
  *
+ *   'runstats' - Requests statistics about the work done by the server's
+ *      run queues.
+ *
  *   'say' - Requests the director to deliver text in a 'say' message to a
  *      context, context family, or user, by relaying through the appropriate
  *      provider servers for the message target's current location.
@@ -412,6 +416,22 @@ class AdminHandler extends BasicProtocolHandler {
         myDirector.doRelay(null, context, user, msg);
     }
 
+    /**
+     * Handle the 'runstats' verb.
+     *
+     * Request statistics about the work done by the server's run queues.
+     *
+     * @param from  The administrator asking for the information.
+     */
+    @JSONMethod
+    public void runstats(DirectorActor from) throws MessageHandlerException {
+        from.ensureAuthorizedAdmin();
+        JSONLiteral msg = new JSONLiteral(this, "runstats");
+        msg.addParameter("runners", RunnerStats.encodeAll());
+        msg.finish();
+        from.send(msg);
+    }
+
     /**
      * Handle the 'say' verb.
      *
@@ -6,6 +6,7 @@ import org.elkoserver.foundation.json.JSONMethod;
 import org.elkoserver.foundation.json.MessageHandlerException;
 import org.elkoserver.foundation.json.OptBoolean;
 import org.elkoserver.foundation.json.OptString;
+import org.elkoserver.foundation.run.RunnerStats;
 import org.elkoserver.foundation.server.metadata.AuthDesc;
 import org.elkoserver.foundation.server.metadata.HostDesc;
 import org.elkoserver.json.JSONLiteral;
@@ -21,6 +22,9 @@ import org.elkoserver.json.Referenceable;
  *
  *   'reinit' - Requests the gatekeeper to reinitialize itself.
  *
+ *   'runstats' - Requests statistics about the work done by the server's
+ *      run queues.
+ *
  *   'shutdown' - Requests the gatekeeper to shut down, with an option to force
  *      abrupt termination.
  *
@@ -97,6 +101,22 @@ class AdminHandler extends BasicProtocolHandler {
         myGatekeeper.reinit();
     }
 
+    /**
+     * Handle the 'runstats' verb.
+     *
+     * Request statistics about the work done by the server's run queues.
+     *
+     * @param from  The administrator asking for the information.
+     */
+    @JSONMethod
+    public void runstats(GatekeeperActor from) throws MessageHandlerException {
+        from.ensureAuthorizedAdmin();
+        JSONLiteral msg = new JSONLiteral(this, "runstats");
+        msg.addParameter("runners", RunnerStats.encodeAll());
+        msg.finish();
+        from.send(msg);
+    }
+
     /**
      * Handle the 'shutdown' verb.
      *
@@ -64,7 +64,8 @@ class DirectorActorFactory implements MessageHandlerFactory {
      * @param director  Host and port of director to open a connection to.
      */
     void connectDirector(HostDesc director) {
-        if (!director.protocol().equals("tcp")) {
+        if (!director.protocol().equals("tcp") &&
+                !director.protocol().equals("ltcp")) {
             tr.errorm("unknown director access protocol '" +
                       director.protocol() + "' for access to " +
                       director.hostPort());
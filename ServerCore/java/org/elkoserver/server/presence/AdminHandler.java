@@ -5,6 +5,7 @@ import org.elkoserver.foundation.json.JSONMethod;
 import org.elkoserver.foundation.json.MessageHandlerException;
 import org.elkoserver.foundation.json.OptBoolean;
 import org.elkoserver.foundation.json.OptString;
+import org.elkoserver.foundation.run.RunnerStats;
 import org.elkoserver.json.JSONLiteral;
 import org.elkoserver.json.JSONLiteralArray;
 import org.elkoserver.json.JSONObject;
@@ -17,6 +18,9 @@ import org.elkoserver.json.Referenceable;
  *
  *   'reinit' - Requests the presence server to reinitialize itself.
  *
+ *   'runstats' - Requests statistics about the work done by the server's
+ *      run queues.
+ *
  *   'shutdown' - Requests the presence server to shut down, with an option to
  *      force abrupt termination.
  *
@@ -102,6 +106,22 @@ class AdminHandler extends BasicProtocolHandler {
         myPresenceServer.reinitServer();
     }
 
+    /**
+     * Handle the 'runstats' verb.
+     *
+     * Request statistics about the work done by the server's run queues.
+     *
+     * @param from  The administrator asking for the information.
+     */
+    @JSONMethod
+    public void runstats(PresenceActor from) throws MessageHandlerException {
+        from.ensureAuthorizedAdmin();
+        JSONLiteral msg = new JSONLiteral(this, "runstats");
+        msg.addParameter("runners", RunnerStats.encodeAll());
+        msg.finish();
+        from.send(msg);
+    }
+
     /**
      * Handle the 'shutdown' verb.
      *
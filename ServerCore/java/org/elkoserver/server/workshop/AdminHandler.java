@@ -4,6 +4,8 @@ import org.elkoserver.foundation.actor.BasicProtocolHandler;
 import org.elkoserver.foundation.json.JSONMethod;
 import org.elkoserver.foundation.json.MessageHandlerException;
 import org.elkoserver.foundation.json.OptBoolean;
+import org.elkoserver.foundation.run.RunnerStats;
+import org.elkoserver.json.JSONLiteral;
 
 /**
  * Singleton handler for the workshop 'admin' protocol.
@@ -12,6 +14,9 @@ import org.elkoserver.foundation.json.OptBoolean;
  *
  *   'reinit' - Requests the workshop to reinitialize itself.
  *
+ *   'runstats' - Requests statistics about the work done by the server's
+ *      run queues.
+ *
  *   'shutdown' - Requests the workshop to shut down, with an option to force
  *      abrupt termination.
  */
@@ -49,6 +54,22 @@ class AdminHandler extends BasicProtocolHandler {
         myWorkshop.reinit();
     }
 
+    /**
+     * Handle the 'runstats' verb.
+     *
+     * Request statistics about the work done by the server's run queues.
+     *
+     * @param from  The administrator asking for the information.
+     */
+    @JSONMethod
+    public void runstats(WorkshopActor from) throws MessageHandlerException {
+        from.ensureAuthorizedAdmin();
+        JSONLiteral msg = new JSONLiteral(this, "runstats");
+        msg.addParameter("runners", RunnerStats.encodeAll());
+        msg.finish();
+        from.send(msg);
+    }
+
     /**
      * Handle the 'shutdown' verb.
      *